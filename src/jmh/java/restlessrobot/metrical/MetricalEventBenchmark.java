@@ -0,0 +1,122 @@
+package restlessrobot.metrical;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.handlers.NullMetricalHandler;
+
+/**
+ * Measures the cost of reporting an event through Metrical, excluding any handler work, for
+ * events with different numbers of metrics and contexts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricalEventBenchmark {
+    @Param({"0", "1", "5", "20"})
+    private int metricCount;
+
+    @Param({"0", "1", "3"})
+    private int contextCount;
+
+    private Metrical metrical;
+    private String[] metricNames;
+    private MetricalEventType eventType;
+
+    @Setup
+    public void setUp() {
+        MetricalContext[] contexts = new MetricalContext[contextCount];
+        for (int i = 0; i < contextCount; i++) {
+            contexts[i] = Metrical.c("context" + i,
+                    Metrical.d("os", "android"),
+                    Metrical.d("version", "4.4.4"));
+        }
+        metrical = contextCount == 0
+                ? new Metrical(new NullMetricalHandler())
+                : new Metrical(new NullMetricalHandler(), contexts);
+
+        metricNames = new String[metricCount];
+        for (int i = 0; i < metricCount; i++) {
+            metricNames[i] = "metric" + i;
+        }
+
+        MetricalEventType.MetricalEventTypeBuilder builder = metrical.eventType("request-completed");
+        for (int i = 0; i < metricCount; i++) {
+            builder.metric(metricNames[i], Unit.MILLISECONDS);
+        }
+        eventType = builder.build();
+    }
+
+    @Benchmark
+    public void event() {
+        report();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void event_4threads() {
+        report();
+    }
+
+    @Benchmark
+    public void begin() {
+        write();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void begin_4threads() {
+        write();
+    }
+
+    @Benchmark
+    public void eventType() {
+        writeTyped();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void eventType_4threads() {
+        writeTyped();
+    }
+
+    // Build the metrics at the call site, as applications do
+    private void report() {
+        MetricalMetric[] metrics = new MetricalMetric[metricCount];
+        for (int i = 0; i < metricCount; i++) {
+            metrics[i] = Metrical.m(metricNames[i], i, Unit.MILLISECONDS);
+        }
+        metrical.event("request-completed", metrics);
+    }
+
+    private void write() {
+        MetricalEventWriter writer = metrical.begin("request-completed");
+        for (int i = 0; i < metricCount; i++) {
+            writer.metric(metricNames[i], i, Unit.MILLISECONDS);
+        }
+        writer.end();
+    }
+
+    private void writeTyped() {
+        MetricalEventWriter writer = eventType.begin();
+        for (int i = 0; i < metricCount; i++) {
+            writer.value(i);
+        }
+        writer.end();
+    }
+}
@@ -0,0 +1,75 @@
+package restlessrobot.metrical.formatters;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.Unit;
+
+/**
+ * Measures encoding of events into a ByteBuffer with BinaryMetricalFormatter and, for comparison,
+ * SimpleMetricalFormatter.  As in SimpleMetricalFormatterBenchmark, the contexts and names have
+ * already been output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryMetricalFormatterBenchmark {
+    @Param({"1", "5", "20"})
+    private int metricCount;
+
+    private final BinaryMetricalFormatter binaryFormatter = new BinaryMetricalFormatter();
+    private final SimpleMetricalFormatter textFormatter = new SimpleMetricalFormatter();
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private MetricalEvent event;
+
+    @Setup
+    public void setUp() {
+        MetricalContext platform = Metrical.c("platform", Metrical.d("os", "android"));
+        MetricalContext request = Metrical.c("request", Metrical.d("operation", "get"));
+        MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+        builder.name("request-completed");
+        for (int i = 0; i < metricCount; i++) {
+            builder.metric("metric" + i, 1234.5678 / (i + 1), Unit.MILLISECONDS);
+        }
+        builder.contexts(Arrays.asList(platform, request));
+        event = builder.build();
+
+        binary();
+        text();
+    }
+
+    @Benchmark
+    public ByteBuffer binary() {
+        buffer.clear();
+        binaryFormatter.header(event, buffer);
+        binaryFormatter.body(event, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer text() {
+        buffer.clear();
+        textFormatter.header(event, buffer);
+        textFormatter.body(event, buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,109 @@
+package restlessrobot.metrical.formatters;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventType;
+import restlessrobot.metrical.MetricalEventWriter;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.Unit;
+
+/**
+ * Measures formatting of events which only refer to contexts that have already been output (the
+ * common case), with integer and floating-point metric values, and of the same events written
+ * with a MetricalEventType.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleMetricalFormatterBenchmark {
+    @Param({"1", "5", "20"})
+    private int metricCount;
+
+    private final SimpleMetricalFormatter formatter = new SimpleMetricalFormatter();
+    private MetricalEvent integerEvent;
+    private MetricalEvent floatEvent;
+    private MetricalEventWriter typedWriter;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    @Setup
+    public void setUp() {
+        MetricalContext platform = Metrical.c("platform", Metrical.d("os", "android"));
+        MetricalContext request = Metrical.c("request", Metrical.d("operation", "get"));
+        integerEvent = buildEvent(false, platform, request);
+        floatEvent = buildEvent(true, platform, request);
+
+        // Output the contexts, so they aren't included in the measurements
+        formatter.event(integerEvent);
+
+        // A writer which is never ended, so it can be formatted repeatedly
+        MetricalEventType.MetricalEventTypeBuilder builder = new Metrical((MetricalHandler) null, platform, request)
+                .eventType("request-completed");
+        for (int i = 0; i < metricCount; i++) {
+            builder.metric("metric" + i, Unit.MILLISECONDS);
+        }
+        typedWriter = builder.build().begin();
+        for (int i = 0; i < metricCount; i++) {
+            typedWriter.value(1234L * (i + 1));
+        }
+        buffer.clear();
+        formatter.header(typedWriter, buffer);
+    }
+
+    @Benchmark
+    public String integerMetrics() {
+        return formatter.event(integerEvent);
+    }
+
+    @Benchmark
+    public String floatMetrics() {
+        return formatter.event(floatEvent);
+    }
+
+    @Benchmark
+    public int integerMetricsToBytes() {
+        buffer.clear();
+        formatter.header(integerEvent, buffer);
+        return formatter.body(integerEvent, buffer);
+    }
+
+    @Benchmark
+    public int eventTypeToBytes() {
+        buffer.clear();
+        formatter.header(typedWriter, buffer);
+        return formatter.body(typedWriter, buffer);
+    }
+
+    private MetricalEvent buildEvent(boolean floatingPoint, MetricalContext... contexts) {
+        MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+        builder.name("request-completed");
+        for (int i = 0; i < metricCount; i++) {
+            if (floatingPoint) {
+                builder.metric("metric" + i, 1234.5678 / (i + 1), Unit.MILLISECONDS);
+            } else {
+                builder.metric("metric" + i, 1234L * (i + 1), Unit.MILLISECONDS);
+            }
+        }
+        builder.contexts(Arrays.asList(contexts));
+        return builder.build();
+    }
+}
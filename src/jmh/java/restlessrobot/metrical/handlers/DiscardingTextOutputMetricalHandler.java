@@ -0,0 +1,23 @@
+package restlessrobot.metrical.handlers;
+
+/**
+ * A text output handler which formats events but throws the text away, so that benchmarks
+ * measure formatting, locking and rotation without any I/O.
+ */
+class DiscardingTextOutputMetricalHandler extends TextOutputMetricalHandler {
+    private long charsOutput;
+
+    @Override
+    protected void output(String text) {
+        // Called under the handler's monitor
+        charsOutput += text.length();
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    synchronized long getCharsOutput() {
+        return charsOutput;
+    }
+}
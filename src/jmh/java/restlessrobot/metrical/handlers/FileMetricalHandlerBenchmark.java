@@ -0,0 +1,77 @@
+package restlessrobot.metrical.handlers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.Unit;
+
+/**
+ * Measures the throughput of logging events to files with FileMetricalHandler, with the default
+ * rotation limits.  Files are written to a temporary directory which is deleted afterwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileMetricalHandlerBenchmark {
+    private File directory;
+    private FileMetricalHandler handler;
+    private Metrical metrical;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("metrical-benchmark").toFile();
+        handler = new FileMetricalHandler(new File(directory, "metrics-").getPath(), ".log");
+        metrical = new Metrical(handler,
+                Metrical.c("platform", Metrical.d("os", "android"), Metrical.d("version", "4.4.4")));
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.finish();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void event() {
+        report();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void event_4threads() {
+        report();
+    }
+
+    private void report() {
+        metrical.begin("request-completed")
+                .metric("latency", 12, Unit.MILLISECONDS)
+                .metric("cpu", 3.5, Unit.PERCENT)
+                .metric("rows", 20, Unit.NONE)
+                .end();
+    }
+}
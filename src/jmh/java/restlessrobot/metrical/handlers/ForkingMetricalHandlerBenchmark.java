@@ -0,0 +1,66 @@
+package restlessrobot.metrical.handlers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.Unit;
+
+/**
+ * Measures the cost of fanning events out to several text output handlers with
+ * ForkingMetricalHandler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForkingMetricalHandlerBenchmark {
+    @Param({"1", "2", "4"})
+    private int fanOut;
+
+    private Metrical metrical;
+
+    @Setup
+    public void setUp() {
+        MetricalHandler[] handlers = new MetricalHandler[fanOut];
+        for (int i = 0; i < fanOut; i++) {
+            handlers[i] = new DiscardingTextOutputMetricalHandler();
+        }
+        metrical = new Metrical(new ForkingMetricalHandler(handlers),
+                Metrical.c("platform", Metrical.d("os", "android"), Metrical.d("version", "4.4.4")));
+    }
+
+    @Benchmark
+    public void event() {
+        report();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void event_4threads() {
+        report();
+    }
+
+    private void report() {
+        metrical.begin("request-completed")
+                .metric("latency", 12, Unit.MILLISECONDS)
+                .metric("cpu", 3.5, Unit.PERCENT)
+                .metric("rows", 20, Unit.NONE)
+                .end();
+    }
+}
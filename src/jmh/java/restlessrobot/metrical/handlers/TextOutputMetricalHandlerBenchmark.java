@@ -0,0 +1,64 @@
+package restlessrobot.metrical.handlers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.Unit;
+
+/**
+ * Measures the cost of formatting events in TextOutputMetricalHandler, including rotation (which
+ * re-outputs the version line and contexts) at different size limits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextOutputMetricalHandlerBenchmark {
+    @Param({"4096", "51200", "1048576"})
+    private long rotateSizeLimitBytes;
+
+    private Metrical metrical;
+
+    @Setup
+    public void setUp() {
+        DiscardingTextOutputMetricalHandler handler = new DiscardingTextOutputMetricalHandler();
+        handler.setRotateSizeLimitBytes(rotateSizeLimitBytes);
+        metrical = new Metrical(handler,
+                Metrical.c("platform", Metrical.d("os", "android"), Metrical.d("version", "4.4.4")),
+                Metrical.c("request", Metrical.d("operation", "get")));
+    }
+
+    @Benchmark
+    public void event() {
+        report();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void event_4threads() {
+        report();
+    }
+
+    private void report() {
+        metrical.begin("request-completed")
+                .metric("latency", 12, Unit.MILLISECONDS)
+                .metric("cpu", 3.5, Unit.PERCENT)
+                .metric("rows", 20, Unit.NONE)
+                .end();
+    }
+}
@@ -0,0 +1,75 @@
+package restlessrobot.metrical.readers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.Unit;
+import restlessrobot.metrical.formatters.SimpleMetricalFormatter;
+
+/**
+ * Measures parsing of a log of EVENTS events, each with an integer and a floating-point metric.
+ * Results are per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricalLogReaderBenchmark {
+    private static final int EVENTS = 10_000;
+
+    private final MetricalLogReader reader = new MetricalLogReader();
+    private ByteBuffer log;
+    private long total;
+
+    private final MetricalLogListener listener = new MetricalLogListener() {
+        @Override
+        public void event(MetricalEventRecord record) {
+            total += record.getLongMetricValue(0);
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        MetricalContext platform = Metrical.c("platform", Metrical.d("os", "android"));
+        MetricalContext request = Metrical.c("request", Metrical.d("operation", "get"));
+        SimpleMetricalFormatter formatter = new SimpleMetricalFormatter();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < EVENTS; i++) {
+            sb.append(formatter.event(MetricalEvent.builder()
+                    .name("request-completed")
+                    .metric("latency", (long) i, Unit.MILLISECONDS)
+                    .metric("cpu", i / 7.0, Unit.PERCENT)
+                    .contexts(Arrays.asList(platform, request))
+                    .build()));
+        }
+        log = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long read() throws IOException {
+        reader.read(log.duplicate(), listener);
+        return total;
+    }
+}
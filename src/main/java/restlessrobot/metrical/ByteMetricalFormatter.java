@@ -0,0 +1,48 @@
+package restlessrobot.metrical;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Formats events into bytes, split (like ConcurrentMetricalFormatter) into a part that depends on
+ * the formatter's state and a part that doesn't, so that handlers can do most of the formatting
+ * work concurrently on the reporting threads.
+ *
+ * For any event, the bytes written by header(...) followed by those written by body(...) are the
+ * complete encoding of the event.
+ *
+ * Thread-safety: body(...) must be safe to call from any number of threads concurrently.
+ * header(...) and reset() may change the formatter's state, so callers must serialize them, and
+ * must output the header bytes followed by the body bytes before the next header(...) call.
+ */
+public interface ByteMetricalFormatter {
+    /**
+     * Encodes anything which must precede the event's body into a buffer, based on what has
+     * previously been formatted, and updates the formatter's state as if it will be output.
+     *
+     * @param event The event to format
+     * @param out The buffer to write to
+     * @return The number of bytes written
+     * @throws BufferOverflowException Thrown if the buffer doesn't have enough space remaining.  The
+     *                                 buffer's position and the formatter's state are unchanged.
+     */
+    int header(MetricalEventRecord event, ByteBuffer out);
+
+    /**
+     * Encodes the event itself into a buffer.  The bytes must not depend on (or change) the
+     * formatter's state.
+     *
+     * @param event The event to format
+     * @param out The buffer to write to
+     * @return The number of bytes written
+     * @throws BufferOverflowException Thrown if the buffer doesn't have enough space remaining.  The
+     *                                 buffer's position is unchanged.
+     */
+    int body(MetricalEventRecord event, ByteBuffer out);
+
+    /**
+     * Clears any internal state created by previous header() calls.  Subsequent events will be
+     * formatted as if a new formatter instance had been created.
+     */
+    void reset();
+}
@@ -0,0 +1,79 @@
+package restlessrobot.metrical;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A TimeProvider which reads the system clock from a background thread every resolutionMillis,
+ * so that currentTimeMillis() is just a volatile read.  The time it returns lags the system clock
+ * by up to resolutionMillis (plus any scheduling delay), which is fine for event timestamps and
+ * rotation checks, but means events reported within the same tick get the same timestamp.
+ *
+ * The background thread is a daemon thread, and runs until close() is called.
+ */
+public class CoarseTimeProvider implements TimeProvider {
+    public static final long DEFAULT_RESOLUTION_MILLIS = 10;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final long resolutionNanos;
+    private final Thread ticker;
+    private volatile long now = System.currentTimeMillis();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a CoarseTimeProvider which reads the system clock every DEFAULT_RESOLUTION_MILLIS.
+     */
+    public CoarseTimeProvider() {
+        this(DEFAULT_RESOLUTION_MILLIS);
+    }
+
+    /**
+     * @param resolutionMillis How often to read the system clock
+     */
+    public CoarseTimeProvider(long resolutionMillis) {
+        if (resolutionMillis <= 0)
+            throw new IllegalArgumentException("Invalid resolution: " + resolutionMillis);
+
+        this.resolutionNanos = TimeUnit.MILLISECONDS.toNanos(resolutionMillis);
+        this.ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tickUntilClosed();
+            }
+        }, "metrical-clock-" + threadCount.incrementAndGet());
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    /**
+     * Stops the background thread.  The time then stays at the last value read.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+        boolean interrupted = false;
+        while (ticker.isAlive()) {
+            try {
+                ticker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void tickUntilClosed() {
+        while (running) {
+            LockSupport.parkNanos(this, resolutionNanos);
+            now = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package restlessrobot.metrical;
+
+/**
+ * A MetricalFormatter that splits the formatting of an event into a part that depends on the
+ * formatter's state and a part that doesn't, so that handlers can do most of the formatting work
+ * concurrently on the reporting threads.
+ *
+ * For any event, header(...) followed by body(...) must produce the same text as event(...).
+ *
+ * Thread-safety: body(...) must be safe to call from any number of threads concurrently.
+ * header(...), event(...) and reset() may change the formatter's state, so callers must
+ * serialize them, and must output the header text followed by the body text before the next
+ * header(...) call (e.g. by holding an output lock around the header(...) call and the write).
+ */
+public interface ConcurrentMetricalFormatter extends MetricalFormatter {
+    /**
+     * Appends any text which must precede the event's body, based on what has previously been
+     * formatted (e.g. definitions of contexts that haven't been output yet).  Updates the
+     * formatter's state as if the text will be output.
+     *
+     * @param event The event to format
+     * @param out The buffer to append the text to
+     */
+    void header(MetricalEventRecord event, StringBuilder out);
+
+    /**
+     * Appends the text for the event itself.  The text must not depend on (or change) the
+     * formatter's state.
+     *
+     * @param event The event to format
+     * @param out The buffer to append the text to
+     */
+    void body(MetricalEventRecord event, StringBuilder out);
+}
@@ -0,0 +1,52 @@
+package restlessrobot.metrical;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Estimates how many distinct strings have been offered to it, in a fixed amount of memory
+ * (HyperLogLog, with linear counting for small cardinalities).  With 2^PRECISION registers the
+ * standard error is about 1.04 / sqrt(2^PRECISION), i.e. around 3%.
+ *
+ * Thread-safety: offer(...) and estimate() can be called from any number of threads.  Registers
+ * are only ever raised, with compare-and-set, so no offers are lost.
+ */
+final class HyperLogLog {
+    private static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+
+    void offer(String value) {
+        long hash = HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+        int index = (int) (hash >>> (Long.SIZE - PRECISION));
+        // The position of the first 1 bit in the remaining bits, counting from 1
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+
+        int current;
+        while (rank > (current = registers.get(index))) {
+            if (registers.compareAndSet(index, current, rank))
+                return;
+        }
+    }
+
+    long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            int register = registers.get(i);
+            sum += 1.0 / (1L << register);
+            if (register == 0)
+                zeros++;
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0)
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        return Math.round(estimate);
+    }
+}
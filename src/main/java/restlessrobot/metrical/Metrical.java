@@ -1,17 +1,33 @@
 package restlessrobot.metrical;
 
+import com.google.common.collect.ImmutableList;
+
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * The main entry point to the Metrical API - an object that provides metrics-reporting
  * functionality.
+ *
+ * Thread-safety: a Metrical instance can be shared between any number of threads.  Its handler
+ * and contexts never change after construction, and enable()/disable() and setSampler(...) take
+ * effect for all threads.  Events are passed to the handler on the reporting thread, so the
+ * handler must be thread-safe too - all of the handlers in restlessrobot.metrical.handlers are.
+ *
+ * Every event passed to the handler is counted in MetricalStats, as accepted or failed, and the
+ * time the handler took is recorded there too, unless MetricalStats' handler timing is switched
+ * off.
  */
 public class Metrical {
     private final MetricalHandler handler;
-    private boolean isEnabled = true;
-    private Map<String, MetricalContext> contexts;
+    private volatile boolean isEnabled = true;
+    private volatile MetricalSampler sampler;
+    private volatile MetricalCardinalityGuard cardinalityGuard;
+    private final Map<String, MetricalContext> contexts;
+    private final List<MetricalContext> contextList;
 
     /**
      * Creates a new Metrical instance that reports metrics to the given handler.
@@ -22,6 +38,7 @@ public class Metrical {
     public Metrical(MetricalHandler handler) {
         this.handler = handler;
         this.contexts = null;
+        this.contextList = ImmutableList.of();
     }
 
     /**
@@ -35,7 +52,9 @@ public class Metrical {
      */
     public Metrical(MetricalHandler handler, MetricalContext... contexts) {
         this.handler = handler;
-        addContexts(contexts);
+        this.contexts = new LinkedHashMap<>();
+        addContexts(this.contexts, contexts);
+        this.contextList = ImmutableList.copyOf(this.contexts.values());
     }
 
     /**
@@ -55,10 +74,14 @@ public class Metrical {
 
         this.handler   = other.handler;
         this.isEnabled = other.isEnabled;
+        this.sampler   = other.sampler;
+        this.cardinalityGuard = other.cardinalityGuard;
+        this.contexts  = new LinkedHashMap<>();
         if (other.contexts != null) {
-            addContexts(other.contexts.values());
+            addContexts(this.contexts, other.contexts.values());
         }
-        addContexts(additionalContexts);
+        addContexts(this.contexts, guard(additionalContexts));
+        this.contextList = ImmutableList.copyOf(this.contexts.values());
     }
 
     /**
@@ -105,6 +128,13 @@ public class Metrical {
         if (!isEnabled || handler == null)
             return;
 
+        // Sample before building the event, so that discarded events cost next to nothing
+        double sampleRate = sample(name);
+        if (sampleRate <= 0) {
+            MetricalStats.get().increment(MetricalStats.Counter.EVENTS_DISCARDED);
+            return;
+        }
+
         MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
         builder.name(name);
         if (metrics != null) {
@@ -113,13 +143,146 @@ public class Metrical {
                     builder.metric(metric);
             }
         }
-        if (this.contexts != null)
-            builder.contexts(contexts.values());
+        if (sampleRate < 1)
+            builder.metric(MetricalSampler.SAMPLE_RATE_METRIC, sampleRate, Unit.NONE);
+        builder.contexts(contextList);
 
         MetricalEvent event = builder.build();
         event(event);
     }
 
+    /**
+     * Starts reporting an event using this thread's reusable MetricalEventWriter, which records
+     * primitive metric values without allocating any objects.  The event is reported to the
+     * configured handler when end() is called on the returned writer, unless this instance is
+     * disabled by then, or the sampler discards the event.
+     *
+     * @param name The name of the event to report
+     * @return A writer to add metrics to
+     */
+    public MetricalEventWriter begin(String name) {
+        return MetricalEventWriter.begin(this, name, contextList, sample(name));
+    }
+
+    /**
+     * Starts timing something with System.nanoTime().  When the returned timer is stopped, an
+     * event is reported with a single metric holding the time taken, in milliseconds with
+     * sub-millisecond precision.  See MetricalTimer.
+     *
+     * @param eventName The name of the event to report
+     * @param metricName The name of the metric to report the time taken as
+     * @return A running timer, which must be stopped (or closed) on the same thread
+     */
+    public MetricalTimer startTimer(String eventName, String metricName) {
+        return MetricalTimer.start(this, eventName, metricName);
+    }
+
+    /**
+     * Calls a Callable, and reports the time it took as startTimer(...) does, whether it returns
+     * normally or throws.
+     *
+     * @param eventName The name of the event to report
+     * @param metricName The name of the metric to report the time taken as
+     * @param callable The code to time
+     * @return The value returned by the callable
+     * @throws Exception Thrown if the callable throws
+     */
+    public <T> T time(String eventName, String metricName, Callable<T> callable) throws Exception {
+        if (callable == null)
+            throw new IllegalArgumentException("No callable provided");
+
+        MetricalTimer timer = startTimer(eventName, metricName);
+        try {
+            return callable.call();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Starts pre-registering a type of event with this instance's contexts, so that events of the
+     * type can be reported with just their metric values.  See MetricalEventType.
+     *
+     * @param name The name of the events
+     * @return A builder to add the type's metrics to
+     */
+    public MetricalEventType.MetricalEventTypeBuilder eventType(String name) {
+        return MetricalEventType.builder(this, name, contextList);
+    }
+
+    /**
+     * Creates a registry of counters and gauges, which reports them all as a single event with
+     * this instance's contexts every intervalMillis, until it's closed.  See MetricalRegistry.
+     *
+     * @param eventName The name of the events the registry reports
+     * @param intervalMillis How often the registry reports
+     * @return The registry
+     */
+    public MetricalRegistry registry(String eventName, long intervalMillis) {
+        return registry(eventName, intervalMillis, MetricalScheduler.shared());
+    }
+
+    /**
+     * Creates a registry of counters and gauges, as registry(eventName, intervalMillis) does, which
+     * reports on the given scheduler.
+     *
+     * @param eventName The name of the events the registry reports
+     * @param intervalMillis How often the registry reports
+     * @param scheduler The scheduler to report on
+     * @return The registry
+     */
+    public MetricalRegistry registry(String eventName, long intervalMillis, MetricalScheduler scheduler) {
+        return new MetricalRegistry(this, eventName, intervalMillis, scheduler);
+    }
+
+    MetricalEventWriter begin(MetricalEventType type) {
+        return MetricalEventWriter.begin(this, type, sample(type.getName()));
+    }
+
+    /**
+     * Sets a sampler to decide which events this instance reports, so that only a sample of
+     * frequent events is reported.  Each event is sampled before it's built, and each event kept
+     * with a probability less than 1 has a MetricalSampler.SAMPLE_RATE_METRIC metric attached.
+     * Instances created with withContexts(...) afterwards use the same sampler.
+     *
+     * @param sampler The sampler, or null to report every event
+     */
+    public void setSampler(MetricalSampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Sets a guard to check the contexts added to instances created with withContexts(...)
+     * afterwards, so that contexts with unbounded numbers of names or dimension values (e.g. user
+     * ids) can't use unbounded memory.  Those instances use the same guard.  See
+     * MetricalCardinalityGuard.
+     *
+     * @param cardinalityGuard The guard, or null to add contexts unchecked
+     */
+    public void setCardinalityGuard(MetricalCardinalityGuard cardinalityGuard) {
+        this.cardinalityGuard = cardinalityGuard;
+    }
+
+    private MetricalContext[] guard(MetricalContext[] contexts) {
+        if (contexts == null)
+            throw new IllegalArgumentException("No contexts provided");
+
+        MetricalCardinalityGuard guard = cardinalityGuard;
+        if (guard == null)
+            return contexts;
+
+        MetricalContext[] guarded = new MetricalContext[contexts.length];
+        for (int i = 0; i < contexts.length; i++) {
+            guarded[i] = contexts[i] != null ? guard.guard(contexts[i]) : null;
+        }
+        return guarded;
+    }
+
+    private double sample(String name) {
+        MetricalSampler currentSampler = sampler;
+        return currentSampler != null ? currentSampler.sample(name) : 1;
+    }
+
     /**
      * Prevents this instance from reporting events to the configured handler.  When this instance
      * is disabled, the event() method calls will return immediately and the events are discarded.
@@ -193,43 +356,73 @@ public class Metrical {
         return MetricalContext.builder().name(name).dimensions(dimensions).build();
     }
 
-    private void addContexts(MetricalContext... contexts) {
+    // Use LinkedHashMap targets to provide predictable order for unit tests
+    private static void addContexts(Map<String, MetricalContext> target, MetricalContext... contexts) {
         if (contexts == null)
             throw new IllegalArgumentException("No contexts provided");
 
-        // Use LinkedHashMap to provide predictable order for unit tests
-        if (this.contexts == null)
-            this.contexts = new LinkedHashMap<>();
-
         for (MetricalContext context : contexts) {
             if (context != null)
-                this.contexts.put(context.getName(), context);
+                target.put(context.getName(), context);
         }
     }
 
-    private void addContexts(Collection<MetricalContext> contexts) {
+    private static void addContexts(Map<String, MetricalContext> target, Collection<MetricalContext> contexts) {
         if (contexts == null || contexts.isEmpty())
             throw new IllegalArgumentException("No contexts provided");
 
-        // Use LinkedHashMap to provide predictable order for unit tests
-        if (this.contexts == null)
-            this.contexts = new LinkedHashMap<>();
-
         for (MetricalContext context : contexts) {
-            this.contexts.put(context.getName(), context);
+            target.put(context.getName(), context);
         }
     }
 
+    // Reports an event built elsewhere in the package, with this instance's contexts
+    void event(MetricalEvent.MetricalEventBuilder builder) {
+        builder.contexts(contextList);
+        event(builder.build());
+    }
+
     private void event(MetricalEvent event) {
         if (!isEnabled || handler == null)
             return;
 
+        MetricalStats stats = MetricalStats.get();
+        boolean timed = stats.isHandlerTimingEnabled();
+        long start = timed ? System.nanoTime() : 0;
         try {
             handler.event(event);
+            stats.increment(MetricalStats.Counter.EVENTS_ACCEPTED);
+        } catch (MetricalException e) {
+            // Catch and suppress the exception, but count it
+            stats.increment(MetricalStats.Counter.EVENTS_FAILED);
+            e.printStackTrace();
+        } finally {
+            if (timed)
+                stats.recordHandlerTime(System.nanoTime() - start);
+        }
+    }
+
+    void record(MetricalEventWriter writer) {
+        if (!isEnabled || handler == null)
+            return;
+
+        MetricalStats stats = MetricalStats.get();
+        boolean timed = stats.isHandlerTimingEnabled();
+        long start = timed ? System.nanoTime() : 0;
+        try {
+            if (handler instanceof MetricalRecordHandler) {
+                ((MetricalRecordHandler) handler).record(writer);
+            } else {
+                handler.event(writer.toEvent());
+            }
+            stats.increment(MetricalStats.Counter.EVENTS_ACCEPTED);
         } catch (MetricalException e) {
-            // Catch and suppress the exception
-            // TODO: we should count these!
+            // Catch and suppress the exception, but count it
+            stats.increment(MetricalStats.Counter.EVENTS_FAILED);
             e.printStackTrace();
+        } finally {
+            if (timed)
+                stats.recordHandlerTime(System.nanoTime() - start);
         }
     }
 
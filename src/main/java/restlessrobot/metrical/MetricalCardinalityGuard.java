@@ -0,0 +1,192 @@
+package restlessrobot.metrical;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops contexts with unbounded numbers of distinct names or dimension values (e.g. a user id put
+ * in a dimension by mistake) from using unbounded memory in Metrical, the formatters, and whatever
+ * processes the metrics downstream.  Set a guard on a Metrical instance with
+ * setCardinalityGuard(...), and every context added with withContexts(...) is checked.
+ *
+ * The first maxValues distinct values seen for each dimension name are let through, and any
+ * others are replaced with OTHER.  Similarly, the first maxNames distinct context names and
+ * dimension names are tracked, contexts with any other name are renamed OTHER, and all the values
+ * of dimensions with any other name are replaced with OTHER.  Each value replaced is counted, per
+ * dimension and in MetricalStats (as VALUES_FOLDED), so that folding shows up in the metrics.
+ *
+ * The number of distinct values actually seen for each dimension, including the folded ones, is
+ * estimated with a HyperLogLog sketch, which takes a fixed 4 kB per tracked dimension name
+ * whatever the number of values.
+ *
+ * Thread-safety: all methods can be called from any number of threads.  When several threads
+ * offer new values at once, slightly more than maxValues values may be let through.
+ */
+public class MetricalCardinalityGuard {
+    public static final String OTHER = "__other__";
+    public static final int DEFAULT_MAX_VALUES = 100;
+    public static final int DEFAULT_MAX_NAMES = 1000;
+
+    private final int maxValues;
+    private final int maxNames;
+    private final Set<String> contextNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<String, Dimension> dimensions = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a guard which lets through DEFAULT_MAX_VALUES values per dimension, and
+     * DEFAULT_MAX_NAMES context and dimension names.
+     */
+    public MetricalCardinalityGuard() {
+        this(DEFAULT_MAX_VALUES, DEFAULT_MAX_NAMES);
+    }
+
+    /**
+     * @param maxValues The number of distinct values to let through for each dimension name
+     * @param maxNames The number of distinct context names, and of dimension names, to let through
+     */
+    public MetricalCardinalityGuard(int maxValues, int maxNames) {
+        if (maxValues <= 0)
+            throw new IllegalArgumentException("Invalid max values: " + maxValues);
+        if (maxNames <= 0)
+            throw new IllegalArgumentException("Invalid max names: " + maxNames);
+
+        this.maxValues = maxValues;
+        this.maxNames = maxNames;
+    }
+
+    /**
+     * Checks a context's name and dimension values, folding any that are over the limits into
+     * OTHER.
+     *
+     * @param context The context to check
+     * @return The context itself if nothing was folded, or else a copy with the folded name and
+     *         values replaced
+     */
+    public MetricalContext guard(MetricalContext context) {
+        if (context == null)
+            throw new IllegalArgumentException("No context provided");
+
+        String name = context.getName();
+        boolean folded = !admitContextName(name);
+        if (folded)
+            name = OTHER;
+
+        Map<String, MetricalDimension> guarded = null;
+        for (MetricalDimension dimension : context.getDimensions().values()) {
+            if (admitValue(dimension.getName(), String.valueOf(dimension.getValue())))
+                continue;
+
+            if (guarded == null)
+                guarded = new LinkedHashMap<>(context.getDimensions());
+            guarded.put(dimension.getName(), new MetricalDimension(dimension.getName(), OTHER));
+        }
+
+        if (!folded && guarded == null)
+            return context;
+        return new MetricalContext(name, guarded != null ? guarded : context.getDimensions());
+    }
+
+    /**
+     * @param dimensionName A dimension name
+     * @return The estimated number of distinct values seen for the dimension, including those
+     *         that were folded, or 0 if the dimension name isn't tracked
+     */
+    public long getEstimatedCardinality(String dimensionName) {
+        Dimension dimension = dimensions.get(dimensionName);
+        return dimension != null ? dimension.sketch.estimate() : 0;
+    }
+
+    /**
+     * @param dimensionName A dimension name
+     * @return The number of the dimension's values which were folded into OTHER
+     */
+    public long getFoldedCount(String dimensionName) {
+        Dimension dimension = dimensions.get(dimensionName);
+        return dimension != null ? dimension.folded.get() : 0;
+    }
+
+    /**
+     * @return The names of the dimensions which have had values folded into OTHER
+     */
+    public List<String> getFoldedDimensionNames() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Dimension> entry : dimensions.entrySet()) {
+            if (entry.getValue().folded.get() > 0)
+                names.add(entry.getKey());
+        }
+        return names;
+    }
+
+    private boolean admitContextName(String name) {
+        if (contextNames.contains(name))
+            return true;
+        if (contextNames.size() >= maxNames) {
+            countFolded();
+            return false;
+        }
+        contextNames.add(name);
+        return true;
+    }
+
+    private boolean admitValue(String dimensionName, String value) {
+        Dimension dimension = dimension(dimensionName);
+        if (dimension != null)
+            return dimension.admit(value);
+
+        // All the values of untracked dimension names are folded, without sketching them
+        countFolded();
+        return false;
+    }
+
+    private Dimension dimension(String name) {
+        Dimension dimension = dimensions.get(name);
+        if (dimension != null)
+            return dimension;
+        if (dimensions.size() >= maxNames)
+            return null;
+
+        Dimension newDimension = new Dimension(maxValues);
+        dimension = dimensions.putIfAbsent(name, newDimension);
+        return dimension != null ? dimension : newDimension;
+    }
+
+    private static void countFolded() {
+        MetricalStats.get().increment(MetricalStats.Counter.VALUES_FOLDED);
+    }
+
+    /**
+     * The values let through for a dimension name, and a sketch of all the values seen.
+     */
+    private static final class Dimension {
+        private final int maxValues;
+        private final Set<String> values = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final HyperLogLog sketch = new HyperLogLog();
+        private final AtomicLong folded = new AtomicLong();
+
+        Dimension(int maxValues) {
+            this.maxValues = maxValues;
+        }
+
+        boolean admit(String value) {
+            if (values.contains(value))
+                return true;
+
+            // Values already let through have already been offered, so only new ones need to be
+            sketch.offer(value);
+            if (values.size() < maxValues) {
+                values.add(value);
+                return true;
+            }
+            folded.incrementAndGet();
+            countFolded();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package restlessrobot.metrical;
+
+/**
+ * The clock that Metrical reads by default: for event timestamps, and in the handlers and samplers
+ * which check times (e.g. for TextOutputMetricalHandler's rotation time limit).  Reading the clock
+ * once per event in each of those places adds up at high event rates, so the shared clock can be
+ * replaced with a cheaper one, such as a CoarseTimeProvider:
+ *
+ * <pre>
+ * MetricalClock.setTimeProvider(new CoarseTimeProvider(10));
+ * </pre>
+ *
+ * The change takes effect for every event, handler and sampler that uses the shared clock,
+ * including ones which already exist.  Handlers and samplers whose setTimeProvider(...) has been
+ * called use the TimeProvider they were given instead.
+ */
+public final class MetricalClock {
+    private static final TimeProvider SYSTEM = new TimeProvider() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static final TimeProvider SHARED = new TimeProvider() {
+        @Override
+        public long currentTimeMillis() {
+            return timeProvider.currentTimeMillis();
+        }
+    };
+
+    private static volatile TimeProvider timeProvider = SYSTEM;
+
+    private MetricalClock() {
+    }
+
+    /**
+     * @return A TimeProvider which reads System.currentTimeMillis()
+     */
+    public static TimeProvider system() {
+        return SYSTEM;
+    }
+
+    /**
+     * @return A TimeProvider which reads whichever TimeProvider was last passed to
+     *         setTimeProvider(...), or the system clock
+     */
+    public static TimeProvider shared() {
+        return SHARED;
+    }
+
+    /**
+     * Replaces the shared clock.
+     *
+     * @param timeProvider The TimeProvider to read, or null to read the system clock
+     */
+    public static void setTimeProvider(TimeProvider timeProvider) {
+        MetricalClock.timeProvider = timeProvider != null ? timeProvider : SYSTEM;
+    }
+}
@@ -1,11 +1,21 @@
 package restlessrobot.metrical;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.ToString;
 
 /**
  * Object representing a Metrical metrics context.
@@ -18,9 +28,28 @@ import lombok.Data;
  *
  * This class cannot be instantiated directly, but should instead be created using the
  * Metrical.c(...) method.
+ *
+ * Each context is given an id when it's created, which is the same for every equal context (i.e.
+ * with the same name and dimensions) that exists at the same time, however it was built.  Ids are
+ * small positive integers, so formatters can record which contexts they've already output in a
+ * BitSet, and equals(...) just compares ids rather than the contexts' dimensions.  Once every
+ * context with a particular id has been garbage collected, the id is freed, and may be given to
+ * any context created later, so ids stay below the largest number of distinct contexts that have
+ * existed at once, however many are created over time.
  */
 @Data
+@ToString(of = {"name", "dimensions"})
 public class MetricalContext {
+    private static final Interner<Identity> IDENTITIES = Interners.newWeakInterner();
+    private static final Object idLock = new Object();
+    private static final ReferenceQueue<Identity> collectedIdentities = new ReferenceQueue<>();
+
+    // Guarded by idLock.  The references are kept so that they're enqueued when their identities
+    // are collected.
+    private static final Set<IdReference> idReferences = new HashSet<>();
+    private static final BitSet freeIds = new BitSet();
+    private static int maxId;
+
     /**
      * @return The name of this metrics context
      */
@@ -29,6 +58,13 @@ public class MetricalContext {
      * @return Immutable map of the dimensions attached to this context, indexed by name
      */
     private final Map<String, MetricalDimension> dimensions;
+    /**
+     * @return The id shared by all contexts equal to this one
+     */
+    private final int id;
+    // Keeps the id allocated for as long as this context exists
+    @Getter(AccessLevel.NONE)
+    private final Identity identity;
 
     /**
      * Creates a MetricalContext instance with the given name and dimensions
@@ -39,6 +75,21 @@ public class MetricalContext {
     MetricalContext(String name, Map<String, MetricalDimension> dimensions) {
         this.name = name;
         this.dimensions = ImmutableMap.copyOf(dimensions);
+        this.identity = IDENTITIES.intern(new Identity(name, this.dimensions));
+        this.id = identity.id();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MetricalContext)) return false;
+
+        return id == ((MetricalContext) o).id;
+    }
+
+    @Override
+    public int hashCode() {
+        return identity.hash;
     }
 
     static MetricalContextBuilder builder() {
@@ -74,4 +125,80 @@ public class MetricalContext {
         }
     }
 
+    /**
+     * Allocates the lowest free id, after freeing the ids of any identities which have been
+     * collected.  An identity is only collected once the interner can no longer return it, so its
+     * id can't be in use by any context.
+     */
+    private static int allocateId(Identity identity) {
+        synchronized (idLock) {
+            IdReference collected;
+            while ((collected = (IdReference) collectedIdentities.poll()) != null) {
+                idReferences.remove(collected);
+                freeIds.set(collected.id);
+            }
+
+            int id = freeIds.nextSetBit(1);
+            if (id > 0) {
+                freeIds.clear(id);
+            } else {
+                id = ++maxId;
+            }
+            idReferences.add(new IdReference(identity, id));
+            return id;
+        }
+    }
+
+    /**
+     * Frees an identity's id when the identity is collected.
+     */
+    private static final class IdReference extends WeakReference<Identity> {
+        private final int id;
+
+        IdReference(Identity identity, int id) {
+            super(identity, collectedIdentities);
+            this.id = id;
+        }
+    }
+
+    /**
+     * The value of a context, which is interned so that equal contexts share an id.
+     */
+    private static final class Identity {
+        private final String name;
+        private final Map<String, MetricalDimension> dimensions;
+        private final int hash;
+        private int id;
+
+        Identity(String name, Map<String, MetricalDimension> dimensions) {
+            this.name = name;
+            this.dimensions = dimensions;
+            this.hash = 31 * (name == null ? 0 : name.hashCode()) + dimensions.hashCode();
+        }
+
+        // The id is only allocated once this instance has been interned, so that ids aren't
+        // used up by duplicates
+        synchronized int id() {
+            if (id == 0)
+                id = allocateId(this);
+            return id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Identity)) return false;
+
+            Identity other = (Identity) o;
+            return hash == other.hash
+                    && (name == null ? other.name == null : name.equals(other.name))
+                    && dimensions.equals(other.dimensions);
+        }
+    }
+
 }
@@ -0,0 +1,55 @@
+package restlessrobot.metrical;
+
+/**
+ * A count of things that happen (e.g. clicks or cache misses), registered with a
+ * MetricalRegistry, which reports how much it went up by in each interval.  Counting is much
+ * cheaper than reporting an event for each thing that happens: the count is a StripedCounter, so
+ * threads counting at the same time don't contend, and nothing is formatted or written until the
+ * registry reports.
+ *
+ * Thread-safety: all methods can be called from any number of threads.
+ */
+public final class MetricalCounter {
+    private final String name;
+    private final Unit unit;
+    private final StripedCounter count = new StripedCounter();
+
+    // Guarded by the registry's lock
+    private long reportedCount;
+
+    MetricalCounter(String name, Unit unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long delta) {
+        count.add(delta);
+    }
+
+    /**
+     * @return The total since the counter was created
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Unit getUnit() {
+        return unit;
+    }
+
+    // Returns the change since the previous call
+    long takeDelta() {
+        long current = count.get();
+        long delta = current - reportedCount;
+        reportedCount = current;
+        return delta;
+    }
+}
@@ -29,4 +29,24 @@ public class MetricalDimension {
     public Object getValue() {
         return value;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MetricalDimension)) return false;
+
+        MetricalDimension other = (MetricalDimension) o;
+        return (name == null ? other.name == null : name.equals(other.name))
+                && (value == null ? other.value == null : value.equals(other.value));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (name == null ? 0 : name.hashCode()) + (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "MetricalDimension(name=" + name + ", value=" + value + ")";
+    }
 }
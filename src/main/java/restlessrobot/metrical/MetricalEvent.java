@@ -13,19 +13,14 @@ import lombok.Data;
  * more metrics attached.  They may also have a metrics context.
  */
 @Data
-public class MetricalEvent {
+public class MetricalEvent implements MetricalEventRecord {
     /*
         TODO: Handle local clock skew.  In some situations the local clock time isn't reliable - e.g.
         if we're running on an Android device where the user has the time set incorrectly.  There's
         not a huge amount we can do about this, but we could periodically contact a reliable time-
         source to calculate an offset?
     */
-    private static TimeProvider timeProvider = new TimeProvider() {
-        @Override
-        public long currentTimeMillis() {
-            return System.currentTimeMillis();
-        }
-    };
+    private static volatile TimeProvider timeProvider = MetricalClock.shared();
 
     /**
      * @return The name of this event
@@ -39,20 +34,77 @@ public class MetricalEvent {
      * @return An immutable list of the contexts attached to this event
      */
     private final List<MetricalContext> contexts;
+    /**
+     * @return An immutable list of the histograms attached to this event
+     */
+    private final List<MetricalHistogram> histograms;
     /**
      * @return The time that this event was created (in milliseconds since the epoch)
      */
     private final long timestamp;
 
     private MetricalEvent(String name, List<MetricalMetric<? extends Number>> metrics,
-            List<MetricalContext> contexts) {
+            List<MetricalContext> contexts, List<MetricalHistogram> histograms, long timestamp) {
         this.name    = name;
         this.metrics = ImmutableList.copyOf(metrics);
         this.contexts  = ImmutableList.copyOf(contexts);
-        this.timestamp = timeProvider.currentTimeMillis();
+        this.histograms = ImmutableList.copyOf(histograms);
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public int getMetricCount() {
+        return metrics.size();
+    }
+
+    @Override
+    public String getMetricName(int index) {
+        return metrics.get(index).getName();
+    }
+
+    @Override
+    public Unit getMetricUnit(int index) {
+        return metrics.get(index).getUnit();
+    }
+
+    @Override
+    public boolean isFloatingPointMetric(int index) {
+        Number value = metrics.get(index).getValue();
+        return value instanceof Float || value instanceof Double;
+    }
+
+    @Override
+    public long getLongMetricValue(int index) {
+        return metrics.get(index).getValue().longValue();
+    }
+
+    @Override
+    public double getDoubleMetricValue(int index) {
+        return metrics.get(index).getValue().doubleValue();
+    }
+
+    @Override
+    public int getHistogramCount() {
+        return histograms.size();
+    }
+
+    @Override
+    public MetricalHistogram getHistogram(int index) {
+        return histograms.get(index);
     }
 
-    static MetricalEventBuilder builder() {
+    @Override
+    public MetricalEvent toEvent() {
+        return this;
+    }
+
+    /**
+     * Creates a builder for constructing events directly, e.g. for handlers which report new
+     * events to a downstream handler.  Applications should normally report events via Metrical.
+     *
+     * @return A new event builder
+     */
+    public static MetricalEventBuilder builder() {
         return new MetricalEventBuilder();
     }
 
@@ -60,10 +112,17 @@ public class MetricalEvent {
         MetricalEvent.timeProvider = timeProvider;
     }
 
-    static class MetricalEventBuilder {
+    static long currentTimeMillis() {
+        return timeProvider.currentTimeMillis();
+    }
+
+    public static class MetricalEventBuilder {
         private String name;
         private List<MetricalMetric<? extends Number>> metrics = new LinkedList<>();
         private List<MetricalContext> contexts = new LinkedList<>();
+        private List<MetricalHistogram> histograms = new LinkedList<>();
+        private long timestamp;
+        private boolean hasTimestamp;
 
         public MetricalEventBuilder name(String name) {
             this.name = name;
@@ -84,10 +143,24 @@ public class MetricalEvent {
             return metric(new MetricalMetric<>(name, value, unit));
         }
 
+        public MetricalEventBuilder metric(String name, long value, Unit unit) {
+            return metric(new MetricalMetric<>(name, value, unit));
+        }
+
+        public MetricalEventBuilder metric(String name, double value, Unit unit) {
+            return metric(new MetricalMetric<>(name, value, unit));
+        }
+
         public MetricalEventBuilder metric(String name, Number value, Unit unit) {
             return metric(new MetricalMetric<>(name, value, unit));
         }
 
+        public MetricalEventBuilder histogram(MetricalHistogram histogram) {
+            if (histogram == null) throw new NullPointerException();
+            histograms.add(histogram);
+            return this;
+        }
+
         public MetricalEventBuilder contexts(Collection<MetricalContext> contexts) {
             if (contexts != null) {
                 this.contexts.addAll(contexts);
@@ -95,8 +168,15 @@ public class MetricalEvent {
             return this;
         }
 
+        public MetricalEventBuilder timestamp(long timestamp) {
+            this.timestamp = timestamp;
+            this.hasTimestamp = true;
+            return this;
+        }
+
         public MetricalEvent build() {
-            return new MetricalEvent(name, metrics, contexts);
+            return new MetricalEvent(name, metrics, contexts, histograms,
+                    hasTimestamp ? timestamp : timeProvider.currentTimeMillis());
         }
     }
 }
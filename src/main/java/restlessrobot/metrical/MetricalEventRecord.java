@@ -0,0 +1,81 @@
+package restlessrobot.metrical;
+
+import java.util.List;
+
+/**
+ * A read-only view of an event, with its metric values exposed as primitives.
+ *
+ * MetricalEvent implements this interface, but so do reusable flyweights such as
+ * MetricalEventWriter, whose contents change once the call they were passed to returns.  Code
+ * which needs to keep an event beyond the current call must use toEvent().
+ */
+public interface MetricalEventRecord {
+    /**
+     * @return The name of the event
+     */
+    String getName();
+
+    /**
+     * @return The time that the event was reported (in milliseconds since the epoch)
+     */
+    long getTimestamp();
+
+    /**
+     * @return An immutable list of the contexts attached to the event
+     */
+    List<MetricalContext> getContexts();
+
+    /**
+     * @return The number of metrics attached to the event
+     */
+    int getMetricCount();
+
+    /**
+     * @param index The index of the metric, from 0 to getMetricCount() - 1
+     * @return The name of the metric
+     */
+    String getMetricName(int index);
+
+    /**
+     * @param index The index of the metric, from 0 to getMetricCount() - 1
+     * @return The unit of the metric
+     */
+    Unit getMetricUnit(int index);
+
+    /**
+     * @param index The index of the metric, from 0 to getMetricCount() - 1
+     * @return true if the metric has a floating-point value, which should be read with
+     *         getDoubleMetricValue(), or false if it has an integer value, which should be read
+     *         with getLongMetricValue()
+     */
+    boolean isFloatingPointMetric(int index);
+
+    /**
+     * @param index The index of the metric, from 0 to getMetricCount() - 1
+     * @return The value of the metric as a long
+     */
+    long getLongMetricValue(int index);
+
+    /**
+     * @param index The index of the metric, from 0 to getMetricCount() - 1
+     * @return The value of the metric as a double
+     */
+    double getDoubleMetricValue(int index);
+
+    /**
+     * @return The number of histograms attached to the event
+     */
+    int getHistogramCount();
+
+    /**
+     * @param index The index of the histogram, from 0 to getHistogramCount() - 1
+     * @return The histogram
+     */
+    MetricalHistogram getHistogram(int index);
+
+    /**
+     * @return An immutable MetricalEvent with the same contents as this record.  May allocate a
+     *         new object.
+     */
+    MetricalEvent toEvent();
+}
@@ -0,0 +1,158 @@
+package restlessrobot.metrical;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pre-registered type of event: a name, a fixed list of metric names and units, and the contexts
+ * of the Metrical instance it was created from.  Events of the type are reported with just their
+ * metric values, so the common case is a tight loop over numbers:
+ *
+ * <pre>
+ * MetricalEventType requests = metrical.eventType("request-completed")
+ *     .metric("latency", Unit.MILLISECONDS)
+ *     .metric("rows", Unit.NONE)
+ *     .build();
+ * ...
+ * requests.record(latencyMillis, rowCount);
+ * </pre>
+ *
+ * Events are written with the current thread's MetricalEventWriter, so they're sampled and
+ * reported exactly as if the metrics had been added with begin(...).metric(...), and produce the
+ * same output.  While a writer holds just the type's metrics, getEventType() returns the type, which
+ * lets formatters that recognise it (such as SimpleMetricalFormatter) reuse text they encoded for
+ * the type's name, metric names, units and contexts the first time they saw it, rather than
+ * re-encoding it and re-checking the contexts for every event.
+ *
+ * Formatters may cache encodings for each type they see (until the type is garbage collected), so
+ * types should be created once and kept, rather than created for each event.
+ *
+ * Thread-safety: a type is immutable and can be shared between any number of threads.
+ */
+public final class MetricalEventType {
+    private final Metrical metrical;
+    private final String name;
+    private final List<MetricalContext> contexts;
+    private final String[] metricNames;
+    private final Unit[] metricUnits;
+
+    private MetricalEventType(MetricalEventTypeBuilder builder) {
+        this.metrical    = builder.metrical;
+        this.name        = builder.name;
+        this.contexts    = builder.contexts;
+        this.metricNames = builder.metricNames.toArray(new String[builder.metricNames.size()]);
+        this.metricUnits = builder.metricUnits.toArray(new Unit[builder.metricUnits.size()]);
+    }
+
+    static MetricalEventTypeBuilder builder(Metrical metrical, String name, List<MetricalContext> contexts) {
+        return new MetricalEventTypeBuilder(metrical, name, contexts);
+    }
+
+    /**
+     * Starts reporting an event of this type.  Call value(...) on the returned writer once for
+     * each of the type's metrics, in the order they were added to the type, and then end().
+     *
+     * @return A writer to add metric values to
+     */
+    public MetricalEventWriter begin() {
+        return metrical.begin(this);
+    }
+
+    /**
+     * Reports an event of a type with a single metric.
+     *
+     * @param value The value of the metric
+     */
+    public void record(long value) {
+        begin().value(value).end();
+    }
+
+    /**
+     * Reports an event of a type with a single metric.
+     *
+     * @param value The value of the metric
+     */
+    public void record(double value) {
+        begin().value(value).end();
+    }
+
+    /**
+     * Reports an event of a type with two metrics.
+     *
+     * @param value1 The value of the first metric
+     * @param value2 The value of the second metric
+     */
+    public void record(long value1, long value2) {
+        begin().value(value1).value(value2).end();
+    }
+
+    /**
+     * Reports an event of a type with three metrics.
+     *
+     * @param value1 The value of the first metric
+     * @param value2 The value of the second metric
+     * @param value3 The value of the third metric
+     */
+    public void record(long value1, long value2, long value3) {
+        begin().value(value1).value(value2).value(value3).end();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<MetricalContext> getContexts() {
+        return contexts;
+    }
+
+    public int getMetricCount() {
+        return metricNames.length;
+    }
+
+    public String getMetricName(int index) {
+        return metricNames[index];
+    }
+
+    public Unit getMetricUnit(int index) {
+        return metricUnits[index];
+    }
+
+    public static final class MetricalEventTypeBuilder {
+        private final Metrical metrical;
+        private final String name;
+        private final List<MetricalContext> contexts;
+        private final List<String> metricNames = new ArrayList<>();
+        private final List<Unit> metricUnits = new ArrayList<>();
+
+        private MetricalEventTypeBuilder(Metrical metrical, String name, List<MetricalContext> contexts) {
+            if (name == null)
+                throw new IllegalArgumentException("No name provided");
+
+            this.metrical = metrical;
+            this.name     = name;
+            this.contexts = contexts;
+        }
+
+        /**
+         * Adds a metric to the type.  Values are given for metrics in the order they're added.
+         *
+         * @param name The name of the metric
+         * @param unit The unit of the metric
+         * @return This builder
+         */
+        public MetricalEventTypeBuilder metric(String name, Unit unit) {
+            if (name == null)
+                throw new IllegalArgumentException("No metric name provided");
+            if (unit == null)
+                throw new IllegalArgumentException("No unit provided");
+
+            metricNames.add(name);
+            metricUnits.add(unit);
+            return this;
+        }
+
+        public MetricalEventType build() {
+            return new MetricalEventType(this);
+        }
+    }
+}
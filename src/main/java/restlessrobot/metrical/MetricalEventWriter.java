@@ -0,0 +1,359 @@
+package restlessrobot.metrical;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reusable, per-thread writer for reporting events without allocating any objects.
+ *
+ * Obtain a writer from Metrical.begin(...), add metrics with primitive values, and report the
+ * event with end():
+ *
+ * <pre>
+ * metrical.begin("request-completed")
+ *     .metric("latency", latencyMillis, Unit.MILLISECONDS)
+ *     .metric("rows", rowCount, Unit.NONE)
+ *     .end();
+ * </pre>
+ *
+ * Writers are pooled per thread, and their metric values are stored in arrays which are reused
+ * for every event reported on the same thread, so once the arrays have grown to fit the largest
+ * event, no further allocation happens.
+ * If the handler is a MetricalRecordHandler, the writer itself is passed to it as a
+ * MetricalEventRecord; otherwise a MetricalEvent is built from the writer's contents.
+ *
+ * A writer obtained from MetricalEventType.begin() takes the type's metrics positionally with
+ * value(...), and can be recognised by formatters through getEventType().
+ *
+ * If the Metrical instance's sampler discards the event, the writer still accepts metrics, but
+ * end() doesn't report them.  If the sampler keeps the event with a probability less than 1, end()
+ * adds a MetricalSampler.SAMPLE_RATE_METRIC metric.
+ *
+ * A writer belongs to the thread that called begin(...) and must not be passed to other threads
+ * or used after end() or abandon() has been called.  A writer which is never ended (e.g. because
+ * an exception was thrown while adding metrics) isn't returned to the pool, so the next begin(...)
+ * allocates a writer to replace it.  Code which may throw between begin(...) and end() can return
+ * the writer with abandon() instead:
+ *
+ * <pre>
+ * MetricalEventWriter writer = metrical.begin("request-completed");
+ * try {
+ *     writer.metric("rows", countRows(), Unit.NONE);
+ * } finally {
+ *     writer.end();   // or writer.abandon(), to discard the event
+ * }
+ * </pre>
+ */
+public final class MetricalEventWriter implements MetricalEventRecord {
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int MAX_POOLED_WRITERS = 16;
+
+    private static final ThreadLocal<Pool> POOLS = new ThreadLocal<Pool>() {
+        @Override
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
+
+    private final Pool pool;
+    private Metrical metrical;
+    private boolean inUse;
+    private double sampleRate;
+    private MetricalEventType eventType;
+    private int valueCount;
+
+    private String name;
+    private long timestamp;
+    private List<MetricalContext> contexts = ImmutableList.of();
+    private int metricCount;
+    private String[] metricNames = new String[INITIAL_CAPACITY];
+    private Unit[] metricUnits = new Unit[INITIAL_CAPACITY];
+    private boolean[] floatingPoint = new boolean[INITIAL_CAPACITY];
+    private long[] longValues = new long[INITIAL_CAPACITY];
+    private double[] doubleValues = new double[INITIAL_CAPACITY];
+
+    private MetricalEventWriter(Pool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns a writer from the current thread's pool, ready to record a new event.  Each writer
+     * that's recording an event at once (e.g. when an event is reported from within a handler) is
+     * a different writer.
+     */
+    static MetricalEventWriter begin(Metrical metrical, String name, List<MetricalContext> contexts,
+            double sampleRate) {
+        MetricalEventWriter writer = POOLS.get().take();
+        writer.inUse       = true;
+        writer.metrical    = metrical;
+        writer.name        = name;
+        writer.contexts    = contexts;
+        writer.sampleRate  = sampleRate;
+        writer.eventType   = null;
+        writer.metricCount = 0;
+        return writer;
+    }
+
+    /**
+     * Returns the current thread's writer, as begin(...) does, ready to record an event of a type.
+     */
+    static MetricalEventWriter begin(Metrical metrical, MetricalEventType type, double sampleRate) {
+        MetricalEventWriter writer = begin(metrical, type.getName(), type.getContexts(), sampleRate);
+        writer.eventType  = type;
+        writer.valueCount = 0;
+        return writer;
+    }
+
+    /**
+     * Adds a metric with an integer value to the event.
+     *
+     * @param name The name of the metric
+     * @param value The value of the metric
+     * @param unit The unit of the metric
+     * @return This writer
+     */
+    public MetricalEventWriter metric(String name, long value, Unit unit) {
+        int index = nextMetric(name, unit);
+        floatingPoint[index] = false;
+        longValues[index]    = value;
+        doubleValues[index]  = value;
+        return this;
+    }
+
+    /**
+     * Adds a metric with a floating-point value to the event.
+     *
+     * @param name The name of the metric
+     * @param value The value of the metric
+     * @param unit The unit of the metric
+     * @return This writer
+     */
+    public MetricalEventWriter metric(String name, double value, Unit unit) {
+        int index = nextMetric(name, unit);
+        floatingPoint[index] = true;
+        longValues[index]    = (long) value;
+        doubleValues[index]  = value;
+        return this;
+    }
+
+    /**
+     * Adds the value of the event type's next metric to the event, with an integer value.
+     *
+     * @param value The value of the metric
+     * @return This writer
+     * @throws IllegalStateException Thrown if the writer wasn't obtained from an event type, or if
+     *                               the type's metrics already all have values
+     */
+    public MetricalEventWriter value(long value) {
+        int index = nextValue();
+        floatingPoint[index] = false;
+        longValues[index]    = value;
+        doubleValues[index]  = value;
+        return this;
+    }
+
+    /**
+     * Adds the value of the event type's next metric to the event, with a floating-point value.
+     *
+     * @param value The value of the metric
+     * @return This writer
+     * @throws IllegalStateException Thrown if the writer wasn't obtained from an event type, or if
+     *                               the type's metrics already all have values
+     */
+    public MetricalEventWriter value(double value) {
+        int index = nextValue();
+        floatingPoint[index] = true;
+        longValues[index]    = (long) value;
+        doubleValues[index]  = value;
+        return this;
+    }
+
+    /**
+     * Returns the event type that the writer was obtained from, if the event has exactly the
+     * type's metrics (i.e. all their values have been added, and no other metrics have).
+     *
+     * @return The event type, or null
+     */
+    public MetricalEventType getEventType() {
+        MetricalEventType type = eventType;
+        return type != null && metricCount == type.getMetricCount() ? type : null;
+    }
+
+    /**
+     * Reports the event to the handler of the Metrical instance that the writer was obtained from,
+     * and releases the writer for reuse.
+     */
+    public void end() {
+        if (!inUse)
+            throw new IllegalStateException("end() called without begin()");
+
+        Metrical target = metrical;
+        try {
+            if (eventType != null && valueCount < eventType.getMetricCount())
+                throw new IllegalStateException("Expected " + eventType.getMetricCount()
+                        + " values for event type " + name + " but got " + valueCount);
+            if (sampleRate > 0) {
+                if (sampleRate < 1)
+                    metric(MetricalSampler.SAMPLE_RATE_METRIC, sampleRate, Unit.NONE);
+                timestamp = MetricalEvent.currentTimeMillis();
+                target.record(this);
+            } else {
+                MetricalStats.get().increment(MetricalStats.Counter.EVENTS_DISCARDED);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Discards the event without reporting it, and releases the writer for reuse.  Does nothing
+     * if the writer has already been ended or abandoned.
+     */
+    public void abandon() {
+        if (inUse)
+            release();
+    }
+
+    private void release() {
+        metrical  = null;
+        eventType = null;
+        inUse     = false;
+        // Don't hold on to the caller's strings between events
+        Arrays.fill(metricNames, 0, metricCount, null);
+        pool.release(this);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public List<MetricalContext> getContexts() {
+        return contexts;
+    }
+
+    @Override
+    public int getMetricCount() {
+        return metricCount;
+    }
+
+    @Override
+    public String getMetricName(int index) {
+        return metricNames[checkIndex(index)];
+    }
+
+    @Override
+    public Unit getMetricUnit(int index) {
+        return metricUnits[checkIndex(index)];
+    }
+
+    @Override
+    public boolean isFloatingPointMetric(int index) {
+        return floatingPoint[checkIndex(index)];
+    }
+
+    @Override
+    public long getLongMetricValue(int index) {
+        return longValues[checkIndex(index)];
+    }
+
+    @Override
+    public double getDoubleMetricValue(int index) {
+        return doubleValues[checkIndex(index)];
+    }
+
+    @Override
+    public int getHistogramCount() {
+        return 0;
+    }
+
+    @Override
+    public MetricalHistogram getHistogram(int index) {
+        throw new IndexOutOfBoundsException("Histogram index " + index + " of 0");
+    }
+
+    @Override
+    public MetricalEvent toEvent() {
+        MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+        builder.name(name);
+        builder.timestamp(timestamp);
+        builder.contexts(contexts);
+        for (int i = 0; i < metricCount; i++) {
+            if (floatingPoint[i]) {
+                builder.metric(metricNames[i], Double.valueOf(doubleValues[i]), metricUnits[i]);
+            } else {
+                builder.metric(metricNames[i], Long.valueOf(longValues[i]), metricUnits[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    private int nextMetric(String name, Unit unit) {
+        if (!inUse)
+            throw new IllegalStateException("metric() called without begin()");
+        if (name == null || unit == null)
+            throw new NullPointerException();
+
+        if (metricCount == metricNames.length) {
+            int capacity  = metricCount * 2;
+            metricNames   = Arrays.copyOf(metricNames, capacity);
+            metricUnits   = Arrays.copyOf(metricUnits, capacity);
+            floatingPoint = Arrays.copyOf(floatingPoint, capacity);
+            longValues    = Arrays.copyOf(longValues, capacity);
+            doubleValues  = Arrays.copyOf(doubleValues, capacity);
+        }
+
+        int index = metricCount++;
+        metricNames[index] = name;
+        metricUnits[index] = unit;
+        return index;
+    }
+
+    private int nextValue() {
+        if (!inUse)
+            throw new IllegalStateException("value() called without begin()");
+        if (eventType == null)
+            throw new IllegalStateException("value() called on a writer without an event type");
+        if (valueCount == eventType.getMetricCount())
+            throw new IllegalStateException("Too many values for event type " + name);
+        if (metricCount != valueCount)
+            throw new IllegalStateException("value() called after metric()");
+
+        int index = nextMetric(eventType.getMetricName(valueCount), eventType.getMetricUnit(valueCount));
+        valueCount++;
+        return index;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= metricCount)
+            throw new IndexOutOfBoundsException("Metric index " + index + " of " + metricCount);
+        return index;
+    }
+
+    private static final class Pool {
+        private final MetricalEventWriter[] writers = new MetricalEventWriter[MAX_POOLED_WRITERS];
+        private int size;
+
+        MetricalEventWriter take() {
+            if (size == 0)
+                return new MetricalEventWriter(this);
+
+            MetricalEventWriter writer = writers[--size];
+            writers[size] = null;
+            return writer;
+        }
+
+        void release(MetricalEventWriter writer) {
+            if (size < writers.length)
+                writers[size++] = writer;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package restlessrobot.metrical;
+
+/**
+ * A value that goes up and down (e.g. a queue size or the memory in use), registered with a
+ * MetricalRegistry, which reports its value at the end of each interval.  The value is either set
+ * with set(...) whenever it changes, or read from a Callback when the registry reports.
+ *
+ * Thread-safety: all methods can be called from any number of threads.  A Callback is called on
+ * the registry's reporting thread (or whichever thread calls MetricalRegistry.report()).
+ */
+public final class MetricalGauge {
+    /**
+     * Reads a gauge's value when it's reported.
+     */
+    public interface Callback {
+        double getValue();
+    }
+
+    private final String name;
+    private final Unit unit;
+    private final Callback callback;
+    private volatile double value;
+
+    MetricalGauge(String name, Unit unit, Callback callback) {
+        this.name = name;
+        this.unit = unit;
+        this.callback = callback;
+    }
+
+    /**
+     * Sets the gauge's value.  Does nothing for gauges that read their value from a Callback.
+     *
+     * @param value The new value
+     */
+    public void set(double value) {
+        this.value = value;
+    }
+
+    /**
+     * @return The gauge's value - its Callback's value, if it has one
+     */
+    public double getValue() {
+        return callback != null ? callback.getValue() : value;
+    }
+
+    boolean hasCallback() {
+        return callback != null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Unit getUnit() {
+        return unit;
+    }
+}
@@ -7,6 +7,8 @@ import java.io.IOException;
  * Metrical instance.
  *
  * The event(...) method is called for each event reported as it occurs (i.e. synchronously).
+ * Handlers that do slow work such as I/O can be wrapped in an AsyncMetricalHandler to move that
+ * work off the application threads.
  */
 public interface MetricalHandler {
     /**
@@ -0,0 +1,246 @@
+package restlessrobot.metrical;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of metric values, from which percentiles (e.g. p50, p90, p99 and p99.9) can be
+ * read.  Histograms have a name and a unit, like MetricalMetric, and can be attached to events
+ * with MetricalEvent.MetricalEventBuilder.histogram(...).
+ *
+ * Values are counted in log-linear buckets (as in HdrHistogram): values below 2^SUB_BUCKET_BITS
+ * each have their own bucket, and every power-of-two range above that is split into
+ * 2^(SUB_BUCKET_BITS - 1) equal buckets.  This keeps the relative error of any percentile below
+ * 1 / 2^(SUB_BUCKET_BITS - 1) (about 3%), using a fixed BUCKETS counters for the whole range of
+ * long values.  Values are recorded with a resolution of 1 / SCALE of the histogram's unit (e.g.
+ * microseconds for a MILLISECONDS histogram); negative values are recorded as 0.
+ *
+ * Because the bucket layout is fixed, histograms (and the bucket counts written to metrics logs)
+ * can be merged by adding the counts of matching buckets, whichever thread or interval they
+ * were recorded in.
+ *
+ * Thread-safety: record(...) and merge(...) are lock-free and can be called from any number of
+ * threads.  Reads made while other threads are recording see each bucket's count at some point
+ * during the read, so they may be slightly inconsistent with each other.
+ */
+public class MetricalHistogram {
+    public static final int SUB_BUCKET_BITS = 6;
+    public static final long SCALE = 1000;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * The number of buckets in every histogram.
+     */
+    public static final int BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final String name;
+    private final Unit unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param name The name of the metric that this histogram records
+     * @param unit The unit of the recorded values
+     */
+    public MetricalHistogram(String name, Unit unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value The value to record, in this histogram's unit
+     */
+    public void record(long value) {
+        recordScaled(value > Long.MAX_VALUE / SCALE ? Long.MAX_VALUE : value * SCALE);
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value The value to record, in this histogram's unit
+     */
+    public void record(double value) {
+        // Math.round() saturates at Long.MAX_VALUE, and returns 0 for NaN
+        recordScaled(Math.round(value * SCALE));
+    }
+
+    /**
+     * Adds all of the values recorded by another histogram to this one.  The other histogram is
+     * not changed.
+     *
+     * @param other The histogram to merge into this one
+     */
+    public void merge(MetricalHistogram other) {
+        long merged = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = other.counts.get(i);
+            if (bucketCount != 0) {
+                counts.addAndGet(i, bucketCount);
+                merged += bucketCount;
+            }
+        }
+        count.addAndGet(merged);
+        updateMax(other.max.get());
+    }
+
+    /**
+     * Adds values to a bucket directly, e.g. to rebuild a histogram from the bucket counts written
+     * to a metrics log.  updateMax(...) should also be called with the largest recorded value.
+     *
+     * @param index The index of the bucket, from 0 to BUCKETS - 1
+     * @param valueCount The number of values to add to the bucket
+     */
+    public void addBucketValueCount(int index, long valueCount) {
+        if (valueCount < 0)
+            throw new IllegalArgumentException("Invalid value count: " + valueCount);
+
+        counts.addAndGet(index, valueCount);
+        count.addAndGet(valueCount);
+    }
+
+    /**
+     * Raises the largest value recorded to at least the given value, without recording it.
+     *
+     * @param value The value, in this histogram's unit
+     */
+    public void updateMax(double value) {
+        updateMax(Math.round(value * SCALE));
+    }
+
+    /**
+     * Moves all of the values recorded so far into a new histogram, leaving this one empty.  Values
+     * recorded concurrently end up in exactly one of the two histograms.
+     *
+     * @return A histogram with the same name and unit, containing the values that were recorded
+     */
+    public MetricalHistogram getAndReset() {
+        MetricalHistogram snapshot = new MetricalHistogram(name, unit);
+        long moved = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts.get(i) != 0) {
+                long bucketCount = counts.getAndSet(i, 0);
+                snapshot.counts.set(i, bucketCount);
+                moved += bucketCount;
+            }
+        }
+        count.addAndGet(-moved);
+        snapshot.count.set(moved);
+        snapshot.max.set(max.getAndSet(0));
+        return snapshot;
+    }
+
+    /**
+     * @return The name of the metric that this histogram records
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The unit of the recorded values
+     */
+    public Unit getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return The number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The largest value recorded, or 0 if no values have been recorded
+     */
+    public double getMax() {
+        return (double) max.get() / SCALE;
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values fall.  The result is
+     * the highest value in the bucket containing the percentile (but no higher than getMax()),
+     * so it is never lower than the exact percentile.
+     *
+     * @param percentile The percentile to return, from 0 to 100
+     * @return The value at the percentile, or 0 if no values have been recorded
+     */
+    public double getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return (double) Math.min(highestValueInBucket(i), max.get()) / SCALE;
+        }
+        return getMax();
+    }
+
+    /**
+     * @param index The index of the bucket, from 0 to BUCKETS - 1
+     * @return The number of recorded values that fell into the bucket
+     */
+    public long getBucketValueCount(int index) {
+        return counts.get(index);
+    }
+
+    /**
+     * @param index The index of the bucket, from 0 to BUCKETS - 1
+     * @return The lowest value counted in the bucket, in this histogram's unit
+     */
+    public static double getBucketLowestValue(int index) {
+        return (double) lowestValueInBucket(index) / SCALE;
+    }
+
+    private void recordScaled(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        updateMax(value);
+    }
+
+    private void updateMax(long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+    }
+
+    private static long lowestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return subBucket << shift;
+    }
+
+    private static long highestValueInBucket(int index) {
+        return index == BUCKETS - 1 ? Long.MAX_VALUE : lowestValueInBucket(index + 1) - 1;
+    }
+}
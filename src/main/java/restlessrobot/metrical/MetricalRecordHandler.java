@@ -0,0 +1,17 @@
+package restlessrobot.metrical;
+
+/**
+ * A MetricalHandler which can also process events directly from a MetricalEventRecord, without
+ * needing a MetricalEvent to be built.  Events reported through a MetricalEventWriter are passed
+ * to record(...) rather than event(...), so they can be processed without any allocation.
+ */
+public interface MetricalRecordHandler extends MetricalHandler {
+    /**
+     * Called to report a metrics event.  The record is only valid until this method returns, so
+     * implementers which need to keep the event must call record.toEvent().
+     *
+     * @param record The event to report
+     * @throws MetricalException Thrown if a problem occurs reporting the provided event
+     */
+    void record(MetricalEventRecord record) throws MetricalException;
+}
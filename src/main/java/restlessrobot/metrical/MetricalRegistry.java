@@ -0,0 +1,223 @@
+package restlessrobot.metrical;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds counters and gauges, and periodically reports them all as a single event through a
+ * Metrical instance, so that things which happen very often can be counted without reporting an
+ * event for each one.  Create a registry with Metrical.registry(...).
+ *
+ * Each report is an event named after the registry, with a metric for each counter, giving how
+ * much it went up by since the previous report, and one for each gauge, giving its current value.
+ * Gauge values that are whole numbers are reported as integers, so they aren't rounded like other
+ * floating-point values.  Reports go through the Metrical instance's handler, with its contexts,
+ * but aren't sampled, since each one stands for many events.  Nothing is reported while the
+ * registry is empty.
+ *
+ * Reports are made by a MetricalScheduler (by default the shared one) until close() is called.
+ *
+ * Thread-safety: all methods can be called from any number of threads.
+ */
+public class MetricalRegistry {
+    public static final String HEAP_USED_METRIC = "heap-used";
+    public static final String HEAP_COMMITTED_METRIC = "heap-committed";
+    public static final String NON_HEAP_USED_METRIC = "non-heap-used";
+
+    private final Metrical metrical;
+    private final String eventName;
+    private final Object lock = new Object();
+    private final MetricalScheduler.Task task;
+
+    // Guarded by lock
+    private final Map<String, Object> metrics = new LinkedHashMap<>();
+
+    /**
+     * @param metrical The Metrical instance to report through
+     * @param eventName The name of the events reported
+     * @param intervalMillis How often to report
+     * @param scheduler The scheduler to report on
+     */
+    MetricalRegistry(Metrical metrical, String eventName, long intervalMillis, MetricalScheduler scheduler) {
+        if (eventName == null)
+            throw new IllegalArgumentException("No event name provided");
+        if (scheduler == null)
+            throw new IllegalArgumentException("No scheduler provided");
+
+        this.metrical = metrical;
+        this.eventName = eventName;
+        this.task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalMillis);
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if necessary.
+     *
+     * @param name The counter's metric name
+     * @param unit The counter's unit
+     * @return The counter
+     * @throws IllegalArgumentException Thrown if a gauge, or a counter with a different unit, is
+     *                                  already registered with the same name
+     */
+    public MetricalCounter counter(String name, Unit unit) {
+        checkMetric(name, unit);
+        synchronized (lock) {
+            Object existing = metrics.get(name);
+            if (existing == null) {
+                MetricalCounter counter = new MetricalCounter(name, unit);
+                metrics.put(name, counter);
+                return counter;
+            }
+            if (existing instanceof MetricalCounter && ((MetricalCounter) existing).getUnit() == unit)
+                return (MetricalCounter) existing;
+            throw new IllegalArgumentException("Metric already registered: " + name);
+        }
+    }
+
+    /**
+     * Returns the gauge with the given name, creating it if necessary.  Its value is set with
+     * MetricalGauge.set(...), and is 0 until it's first set.
+     *
+     * @param name The gauge's metric name
+     * @param unit The gauge's unit
+     * @return The gauge
+     * @throws IllegalArgumentException Thrown if a counter, a callback gauge, or a gauge with a
+     *                                  different unit, is already registered with the same name
+     */
+    public MetricalGauge gauge(String name, Unit unit) {
+        checkMetric(name, unit);
+        synchronized (lock) {
+            Object existing = metrics.get(name);
+            if (existing == null) {
+                MetricalGauge gauge = new MetricalGauge(name, unit, null);
+                metrics.put(name, gauge);
+                return gauge;
+            }
+            if (existing instanceof MetricalGauge && ((MetricalGauge) existing).getUnit() == unit
+                    && !((MetricalGauge) existing).hasCallback())
+                return (MetricalGauge) existing;
+            throw new IllegalArgumentException("Metric already registered: " + name);
+        }
+    }
+
+    /**
+     * Registers a gauge whose value is read from a callback each time the registry reports.
+     *
+     * @param name The gauge's metric name
+     * @param unit The gauge's unit
+     * @param callback The callback that reads the gauge's value
+     * @return The gauge
+     * @throws IllegalArgumentException Thrown if a metric is already registered with the same name
+     */
+    public MetricalGauge gauge(String name, Unit unit, MetricalGauge.Callback callback) {
+        checkMetric(name, unit);
+        if (callback == null)
+            throw new IllegalArgumentException("No callback provided");
+
+        synchronized (lock) {
+            if (metrics.containsKey(name))
+                throw new IllegalArgumentException("Metric already registered: " + name);
+
+            MetricalGauge gauge = new MetricalGauge(name, unit, callback);
+            metrics.put(name, gauge);
+            return gauge;
+        }
+    }
+
+    /**
+     * Registers gauges for the JVM's memory use, in bytes: HEAP_USED_METRIC,
+     * HEAP_COMMITTED_METRIC and NON_HEAP_USED_METRIC.
+     */
+    public void jvmMemoryGauges() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gauge(HEAP_USED_METRIC, Unit.BYTES, new MetricalGauge.Callback() {
+            @Override
+            public double getValue() {
+                return memory.getHeapMemoryUsage().getUsed();
+            }
+        });
+        gauge(HEAP_COMMITTED_METRIC, Unit.BYTES, new MetricalGauge.Callback() {
+            @Override
+            public double getValue() {
+                return memory.getHeapMemoryUsage().getCommitted();
+            }
+        });
+        gauge(NON_HEAP_USED_METRIC, Unit.BYTES, new MetricalGauge.Callback() {
+            @Override
+            public double getValue() {
+                return memory.getNonHeapMemoryUsage().getUsed();
+            }
+        });
+    }
+
+    /**
+     * Reports the counters and gauges straight away.
+     */
+    public void report() {
+        MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+        builder.name(eventName);
+        synchronized (lock) {
+            if (metrics.isEmpty())
+                return;
+
+            for (Object metric : metrics.values()) {
+                if (metric instanceof MetricalCounter) {
+                    MetricalCounter counter = (MetricalCounter) metric;
+                    builder.metric(counter.getName(), counter.takeDelta(), counter.getUnit());
+                } else {
+                    MetricalGauge gauge = (MetricalGauge) metric;
+                    addGaugeValue(builder, gauge);
+                }
+            }
+        }
+        metrical.event(builder);
+    }
+
+    /**
+     * Stops reporting.  Anything counted since the last report isn't reported; call report()
+     * first to report it.
+     */
+    public void close() {
+        task.cancel();
+    }
+
+    /**
+     * @return The names of the registered counters and gauges, in the order they were registered
+     */
+    public List<String> getMetricNames() {
+        synchronized (lock) {
+            return new ArrayList<>(metrics.keySet());
+        }
+    }
+
+    private static void checkMetric(String name, Unit unit) {
+        if (name == null)
+            throw new IllegalArgumentException("No metric name provided");
+        if (unit == null)
+            throw new IllegalArgumentException("No unit provided");
+    }
+
+    private static void addGaugeValue(MetricalEvent.MetricalEventBuilder builder, MetricalGauge gauge) {
+        double value;
+        try {
+            value = gauge.getValue();
+        } catch (RuntimeException e) {
+            // A failing callback mustn't stop the other metrics being reported, so just count it
+            MetricalStats.get().increment(MetricalStats.Counter.EVENTS_FAILED);
+            return;
+        }
+        long longValue = (long) value;
+        if (longValue == value)
+            builder.metric(gauge.getName(), longValue, gauge.getUnit());
+        else
+            builder.metric(gauge.getName(), value, gauge.getUnit());
+    }
+}
@@ -0,0 +1,24 @@
+package restlessrobot.metrical;
+
+/**
+ * Decides which events to report, so that frequent events can be reported as a statistical
+ * sample.  Samplers are called for every event, before it's built, so they must be cheap and
+ * thread-safe.
+ *
+ * Each sampled event has a SAMPLE_RATE_METRIC metric attached with the probability that it was
+ * kept, unless that's 1, so that aggregations can weight each event by 1 / rate.
+ *
+ * See the restlessrobot.metrical.samplers package for implementations.
+ */
+public interface MetricalSampler {
+    String SAMPLE_RATE_METRIC = "sample-rate";
+
+    /**
+     * Decides whether to keep an event.
+     *
+     * @param name The name of the event
+     * @return The probability with which the event was kept (greater than 0, and at most 1), or 0
+     *         if the event should be discarded
+     */
+    double sample(String name);
+}
@@ -0,0 +1,163 @@
+package restlessrobot.metrical;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Metrical's periodic work on a single background thread: MetricalRegistry reports (whose
+ * callback gauges poll queue sizes, memory use etc.), MetricalStatsReporter reports, and ticks of
+ * handlers with time-based work (see MetricalTickable).  Sharing one thread keeps the number of
+ * threads down however many of these there are, and the shared() scheduler is used unless another
+ * is given.
+ *
+ * Each task runs every interval, measured from the end of its previous run, so tasks that take a
+ * while don't run back to back.  Tasks should be quick, since they delay each other.  An exception
+ * thrown by a task is counted as a failed event in MetricalStats, and doesn't stop it running
+ * again.
+ *
+ * Thread-safety: all methods can be called from any number of threads.
+ */
+public class MetricalScheduler {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static MetricalScheduler shared;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    public MetricalScheduler() {
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrical-scheduler-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return The scheduler shared by everything that isn't given a scheduler, which is created
+     *         when it's first needed and never closed
+     */
+    public static synchronized MetricalScheduler shared() {
+        if (shared == null)
+            shared = new MetricalScheduler();
+        return shared;
+    }
+
+    /**
+     * Runs a task every intervalMillis, starting intervalMillis from now, until it's cancelled.
+     *
+     * @param task The task to run
+     * @param intervalMillis The time between the end of one run and the start of the next
+     * @return A handle to cancel the task with
+     */
+    public Task schedule(Runnable task, long intervalMillis) {
+        if (task == null)
+            throw new IllegalArgumentException("No task provided");
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("Invalid interval: " + intervalMillis);
+
+        final Task scheduled = new Task(task);
+        scheduled.future = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.run();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return scheduled;
+    }
+
+    /**
+     * Calls a handler's tick() every intervalMillis, until the task is cancelled, so that its
+     * time-based work is done even when no events arrive.
+     *
+     * @param handler The handler to tick
+     * @param intervalMillis How often to tick it
+     * @return A handle to cancel the task with
+     */
+    public Task tick(final MetricalTickable handler, long intervalMillis) {
+        if (handler == null)
+            throw new IllegalArgumentException("No handler provided");
+
+        return schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handler.tick();
+                } catch (MetricalException e) {
+                    // There's no caller to throw to, so count the failure
+                    MetricalStats.get().increment(MetricalStats.Counter.EVENTS_FAILED);
+                }
+            }
+        }, intervalMillis);
+    }
+
+    /**
+     * Cancels all the tasks and stops the scheduler's thread, waiting for any task that's running
+     * to finish.  The shared scheduler can't be closed.
+     */
+    public void close() {
+        synchronized (MetricalScheduler.class) {
+            if (this == shared)
+                throw new IllegalStateException("The shared scheduler can't be closed");
+        }
+        executor.shutdownNow();
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * A task run by a MetricalScheduler.
+     */
+    public static final class Task {
+        private final Runnable task;
+        private volatile ScheduledFuture<?> future;
+
+        // Guarded by this
+        private boolean cancelled;
+
+        private Task(Runnable task) {
+            this.task = task;
+        }
+
+        private synchronized void run() {
+            if (cancelled)
+                return;
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // There's no caller to throw to, so count the failure
+                MetricalStats.get().increment(MetricalStats.Counter.EVENTS_FAILED);
+            }
+        }
+
+        /**
+         * Stops the task running again.  If it's running, waits for it to finish (unless it's
+         * the task itself that's cancelling it), so it's never running once this returns.
+         */
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+            }
+            future.cancel(false);
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package restlessrobot.metrical;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what Metrical itself is doing, so that the health of the metrics pipeline can be
+ * monitored: how many events were handled, discarded, dropped or failed, how much output was
+ * formatted, how often files were rotated, how often output failed to be committed, how many
+ * values were folded by cardinality guards, and how long handlers took.
+ *
+ * There's a single instance per process (see get()), which Metrical and the handlers in
+ * restlessrobot.metrical.handlers update as they go.  Counters are StripedCounters, and handler
+ * times are recorded in a histogram per stripe, merged when they're read, so reporting threads
+ * don't contend on them.  Timing handlers costs two System.nanoTime() calls per event, so it can
+ * be switched off with setHandlerTimingEnabled(false).  The totals can be read directly, as an
+ * immutable Snapshot, over JMX once registerMBean() has been called, or as periodic events with
+ * MetricalStatsReporter.
+ *
+ * Thread-safety: all methods can be called from any number of threads.
+ */
+public final class MetricalStats implements MetricalStatsMXBean {
+    public static final String OBJECT_NAME = "restlessrobot.metrical:type=MetricalStats";
+    public static final String HANDLER_TIME_METRIC = "handler-time";
+
+    /**
+     * The counters that are kept.
+     */
+    public enum Counter {
+        /** Events passed to a Metrical instance's handler without an error. */
+        EVENTS_ACCEPTED("events-accepted", Unit.NONE),
+        /** Events that a sampler discarded. */
+        EVENTS_DISCARDED("events-discarded", Unit.NONE),
+        /** Events that an AsyncMetricalHandler dropped because its buffer was full. */
+        EVENTS_DROPPED("events-dropped", Unit.NONE),
+        /**
+         * Events that a handler failed to process, whether synchronously or asynchronously, and
+         * failures of background work with no caller to report them to: MetricalScheduler tasks,
+         * MetricalRegistry gauges, and handlers that fail to flush or finish.
+         */
+        EVENTS_FAILED("events-failed", Unit.NONE),
+        /** Output formatted by text output handlers, in bytes (or chars, for non-streaming formatters). */
+        BYTES_FORMATTED("bytes-formatted", Unit.BYTES),
+        /** Output files rotated because they reached their size or time limit. */
+        ROTATIONS("rotations", Unit.NONE),
+        /** Output which FileMetricalHandler failed to force to the disk, or to close. */
+        COMMITS_FAILED("commits-failed", Unit.NONE),
+        /** Context names and dimension values folded into MetricalCardinalityGuard.OTHER. */
+        VALUES_FOLDED("values-folded", Unit.NONE);
+
+        private final String metricName;
+        private final Unit unit;
+
+        Counter(String metricName, Unit unit) {
+            this.metricName = metricName;
+            this.unit = unit;
+        }
+
+        /**
+         * @return The name of the metric that MetricalStatsReporter reports the counter as
+         */
+        public String getMetricName() {
+            return metricName;
+        }
+
+        public Unit getUnit() {
+            return unit;
+        }
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final MetricalStats INSTANCE = new MetricalStats();
+
+    private final StripedCounter[] counters = new StripedCounter[COUNTERS.length];
+    private final MetricalHistogram[] handlerTimes = new MetricalHistogram[StripedCounter.STRIPES];
+    private volatile boolean handlerTimingEnabled = true;
+
+    private MetricalStats() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new StripedCounter();
+        }
+        for (int i = 0; i < handlerTimes.length; i++) {
+            handlerTimes[i] = new MetricalHistogram(HANDLER_TIME_METRIC, Unit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return The process's MetricalStats
+     */
+    public static MetricalStats get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the process's MetricalStats with the platform MBean server, as OBJECT_NAME.  Does
+     * nothing if it's already registered.
+     *
+     * @throws JMException Thrown if the MBean can't be registered
+     */
+    public static void registerMBean() throws JMException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // Already registered
+        }
+    }
+
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    public void add(Counter counter, long delta) {
+        counters[counter.ordinal()].add(delta);
+    }
+
+    /**
+     * Records how long a handler took to process an event.
+     *
+     * @param nanos The time taken, in nanoseconds
+     */
+    public void recordHandlerTime(long nanos) {
+        handlerTimes[StripedCounter.stripe()].record(nanos / 1e6);
+    }
+
+    /**
+     * @return Whether Metrical times its handlers, which it does by default
+     */
+    @Override
+    public boolean isHandlerTimingEnabled() {
+        return handlerTimingEnabled;
+    }
+
+    /**
+     * Switches the timing of handlers on or off.  While it's off, no handler times are recorded.
+     *
+     * @param handlerTimingEnabled Whether Metrical should time its handlers
+     */
+    @Override
+    public void setHandlerTimingEnabled(boolean handlerTimingEnabled) {
+        this.handlerTimingEnabled = handlerTimingEnabled;
+    }
+
+    /**
+     * @param counter The counter
+     * @return The counter's total since the process started
+     */
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].get();
+    }
+
+    /**
+     * @return The current totals
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[COUNTERS.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = counters[i].get();
+        }
+        return new Snapshot(counts, mergedHandlerTime());
+    }
+
+    @Override
+    public long getEventsAccepted() {
+        return getCount(Counter.EVENTS_ACCEPTED);
+    }
+
+    @Override
+    public long getEventsDiscarded() {
+        return getCount(Counter.EVENTS_DISCARDED);
+    }
+
+    @Override
+    public long getEventsDropped() {
+        return getCount(Counter.EVENTS_DROPPED);
+    }
+
+    @Override
+    public long getEventsFailed() {
+        return getCount(Counter.EVENTS_FAILED);
+    }
+
+    @Override
+    public long getBytesFormatted() {
+        return getCount(Counter.BYTES_FORMATTED);
+    }
+
+    @Override
+    public long getRotations() {
+        return getCount(Counter.ROTATIONS);
+    }
+
+    @Override
+    public long getCommitsFailed() {
+        return getCount(Counter.COMMITS_FAILED);
+    }
+
+    @Override
+    public long getValuesFolded() {
+        return getCount(Counter.VALUES_FOLDED);
+    }
+
+    @Override
+    public long getHandlerCallCount() {
+        long count = 0;
+        for (MetricalHistogram handlerTime : handlerTimes) {
+            count += handlerTime.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public double getHandlerTimeP50Millis() {
+        return mergedHandlerTime().getValueAtPercentile(50);
+    }
+
+    @Override
+    public double getHandlerTimeP99Millis() {
+        return mergedHandlerTime().getValueAtPercentile(99);
+    }
+
+    @Override
+    public double getHandlerTimeMaxMillis() {
+        return mergedHandlerTime().getMax();
+    }
+
+    private MetricalHistogram mergedHandlerTime() {
+        MetricalHistogram merged = new MetricalHistogram(HANDLER_TIME_METRIC, Unit.MILLISECONDS);
+        for (MetricalHistogram handlerTime : handlerTimes) {
+            merged.merge(handlerTime);
+        }
+        return merged;
+    }
+
+    /**
+     * The totals of all the counters, and the handler time histogram, at one point in time.  The
+     * counters are each read at some point while the snapshot is taken, so they may be slightly
+     * inconsistent with each other.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final MetricalHistogram handlerTime;
+
+        private Snapshot(long[] counts, MetricalHistogram handlerTime) {
+            this.counts = counts;
+            this.handlerTime = handlerTime;
+        }
+
+        public long getCount(Counter counter) {
+            return counts[counter.ordinal()];
+        }
+
+        /**
+         * @return A copy of the handler times recorded, in milliseconds
+         */
+        public MetricalHistogram getHandlerTime() {
+            MetricalHistogram copy = new MetricalHistogram(HANDLER_TIME_METRIC, Unit.MILLISECONDS);
+            copy.merge(handlerTime);
+            return copy;
+        }
+
+        /**
+         * Returns what happened between an earlier snapshot and this one.  The histogram's max is
+         * this snapshot's, since the max within the interval isn't known.
+         *
+         * @param earlier The earlier snapshot
+         * @return The differences between the snapshots
+         */
+        public Snapshot since(Snapshot earlier) {
+            if (earlier == null)
+                throw new IllegalArgumentException("No snapshot provided");
+
+            long[] differences = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                differences[i] = counts[i] - earlier.counts[i];
+            }
+            MetricalHistogram interval = new MetricalHistogram(HANDLER_TIME_METRIC, Unit.MILLISECONDS);
+            for (int i = 0; i < MetricalHistogram.BUCKETS; i++) {
+                long count = handlerTime.getBucketValueCount(i) - earlier.handlerTime.getBucketValueCount(i);
+                if (count > 0)
+                    interval.addBucketValueCount(i, count);
+            }
+            if (interval.getCount() > 0)
+                interval.updateMax(handlerTime.getMax());
+            return new Snapshot(differences, interval);
+        }
+    }
+}
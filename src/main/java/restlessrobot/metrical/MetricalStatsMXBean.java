@@ -0,0 +1,35 @@
+package restlessrobot.metrical;
+
+/**
+ * The JMX view of MetricalStats, registered with MetricalStats.registerMBean().  All the values
+ * are totals since the process started.  Handler timing can be switched on and off here too.
+ */
+public interface MetricalStatsMXBean {
+    long getEventsAccepted();
+
+    long getEventsDiscarded();
+
+    long getEventsDropped();
+
+    long getEventsFailed();
+
+    long getBytesFormatted();
+
+    long getRotations();
+
+    long getCommitsFailed();
+
+    long getValuesFolded();
+
+    long getHandlerCallCount();
+
+    double getHandlerTimeP50Millis();
+
+    double getHandlerTimeP99Millis();
+
+    double getHandlerTimeMaxMillis();
+
+    boolean isHandlerTimingEnabled();
+
+    void setHandlerTimingEnabled(boolean handlerTimingEnabled);
+}
@@ -0,0 +1,80 @@
+package restlessrobot.metrical;
+
+/**
+ * Periodically reports the process's MetricalStats as an event through a Metrical instance, so
+ * that the health of the metrics pipeline is logged alongside the metrics themselves.
+ *
+ * Each STATS_EVENT event has a metric for each MetricalStats.Counter (e.g. "events-dropped"), with
+ * the change in the counter since the previous report, and a "handler-time" histogram of the
+ * handler times recorded since the previous report, if there were any.  The events go through the
+ * Metrical instance's handler like any others (and are counted as accepted events themselves).
+ *
+ * Reports are made by a MetricalScheduler (by default the shared one) until close() is called.
+ */
+public class MetricalStatsReporter {
+    public static final String STATS_EVENT = "metrical-stats";
+
+    private final Metrical metrical;
+    private final Object lock = new Object();
+    private final MetricalScheduler.Task task;
+
+    // Guarded by lock
+    private MetricalStats.Snapshot previous;
+
+    /**
+     * @param metrical The Metrical instance to report the stats through
+     * @param intervalMillis How often to report the stats
+     */
+    public MetricalStatsReporter(Metrical metrical, long intervalMillis) {
+        this(metrical, intervalMillis, MetricalScheduler.shared());
+    }
+
+    /**
+     * @param metrical The Metrical instance to report the stats through
+     * @param intervalMillis How often to report the stats
+     * @param scheduler The scheduler to report on
+     */
+    public MetricalStatsReporter(Metrical metrical, long intervalMillis, MetricalScheduler scheduler) {
+        if (metrical == null)
+            throw new IllegalArgumentException("No metrical provided");
+        if (scheduler == null)
+            throw new IllegalArgumentException("No scheduler provided");
+
+        this.metrical = metrical;
+        this.previous = MetricalStats.get().snapshot();
+        this.task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalMillis);
+    }
+
+    /**
+     * Reports the changes in the stats since the previous report straight away.
+     */
+    public void report() {
+        MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+        builder.name(STATS_EVENT);
+        synchronized (lock) {
+            MetricalStats.Snapshot current = MetricalStats.get().snapshot();
+            MetricalStats.Snapshot interval = current.since(previous);
+            previous = current;
+
+            for (MetricalStats.Counter counter : MetricalStats.Counter.values()) {
+                builder.metric(counter.getMetricName(), interval.getCount(counter), counter.getUnit());
+            }
+            MetricalHistogram handlerTime = interval.getHandlerTime();
+            if (handlerTime.getCount() > 0)
+                builder.histogram(handlerTime);
+        }
+        metrical.event(builder);
+    }
+
+    /**
+     * Stops reporting.  The stats since the last report aren't reported.
+     */
+    public void close() {
+        task.cancel();
+    }
+}
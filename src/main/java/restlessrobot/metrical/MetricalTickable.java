@@ -0,0 +1,18 @@
+package restlessrobot.metrical;
+
+/**
+ * Implemented by handlers with time-based work - rotating or flushing output, or reporting
+ * aggregates - which they'd otherwise only do when an event arrives.  Registering a handler with
+ * MetricalScheduler.tick(...) makes sure the work is still done when events stop arriving.
+ *
+ * Handlers which wrap other handlers pass tick() on to them.
+ */
+public interface MetricalTickable {
+    /**
+     * Called periodically to do any time-based work that's due.  May be called concurrently with
+     * event(...) and record(...).
+     *
+     * @throws MetricalException Thrown if the work fails
+     */
+    void tick() throws MetricalException;
+}
@@ -0,0 +1,122 @@
+package restlessrobot.metrical;
+
+/**
+ * Measures the time taken by a piece of code with System.nanoTime(), and reports it as an event
+ * with a single MILLISECONDS metric, whose value has sub-millisecond precision.
+ *
+ * Obtain a timer from Metrical.startTimer(...), and stop it with stop() or close(), which can be
+ * left to a try-with-resources statement:
+ *
+ * <pre>
+ * try (MetricalTimer timer = metrical.startTimer("request-completed", "latency")) {
+ *     handleRequest();
+ * }
+ * </pre>
+ *
+ * Timers are pooled per thread, so once a thread's pool holds as many timers as the thread ever
+ * has running at once, timing code doesn't allocate any objects.  The event is reported with the
+ * thread's MetricalEventWriter, so it's sampled and handled like any other.
+ *
+ * A timer belongs to the thread that started it, and must be stopped on that thread.  It's returned
+ * to the pool when it's stopped, so it must not be used afterwards.  Stopping it again does
+ * nothing, as long as the thread hasn't started another timer meanwhile, which may have reused it
+ * - so a timer can be stopped explicitly inside a try-with-resources statement, but mustn't be
+ * kept and stopped later.
+ */
+public final class MetricalTimer implements AutoCloseable {
+    private static final int MAX_POOLED_TIMERS = 16;
+
+    private static final ThreadLocal<Pool> POOLS = new ThreadLocal<Pool>() {
+        @Override
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
+
+    private final Pool pool;
+    private Metrical metrical;
+    private String eventName;
+    private String metricName;
+    private long startNanos;
+    private boolean running;
+
+    private MetricalTimer(Pool pool) {
+        this.pool = pool;
+    }
+
+    static MetricalTimer start(Metrical metrical, String eventName, String metricName) {
+        if (metricName == null)
+            throw new IllegalArgumentException("No metric name provided");
+
+        MetricalTimer timer = POOLS.get().take();
+        timer.metrical   = metrical;
+        timer.eventName  = eventName;
+        timer.metricName = metricName;
+        timer.running    = true;
+        timer.startNanos = System.nanoTime();
+        return timer;
+    }
+
+    /**
+     * @return The time since the timer was started, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        if (!running)
+            throw new IllegalStateException("Timer not running");
+
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Stops the timer, reports the time taken, and returns the timer to its pool.  Does nothing if
+     * the timer has already been stopped.
+     *
+     * @return The time taken, in nanoseconds, or -1 if the timer had already been stopped
+     */
+    public long stop() {
+        if (!running)
+            return -1;
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        Metrical target = metrical;
+        String event    = eventName;
+        String metric   = metricName;
+
+        // Release the timer before reporting, in case the handler times something too
+        running    = false;
+        metrical   = null;
+        eventName  = null;
+        metricName = null;
+        pool.release(this);
+
+        target.begin(event).metric(metric, elapsedNanos / 1e6, Unit.MILLISECONDS).end();
+        return elapsedNanos;
+    }
+
+    /**
+     * Stops the timer, as stop() does.
+     */
+    @Override
+    public void close() {
+        stop();
+    }
+
+    private static final class Pool {
+        private final MetricalTimer[] timers = new MetricalTimer[MAX_POOLED_TIMERS];
+        private int size;
+
+        MetricalTimer take() {
+            if (size == 0)
+                return new MetricalTimer(this);
+
+            MetricalTimer timer = timers[--size];
+            timers[size] = null;
+            return timer;
+        }
+
+        void release(MetricalTimer timer) {
+            if (size < timers.length)
+                timers[size++] = timer;
+        }
+    }
+}
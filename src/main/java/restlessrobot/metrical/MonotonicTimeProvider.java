@@ -0,0 +1,38 @@
+package restlessrobot.metrical;
+
+/**
+ * A TimeProvider based on System.nanoTime(), which never goes backwards, even if the system clock
+ * is stepped back (e.g. by NTP or a user changing the time).  The time is the system clock's time
+ * when the provider was created, plus the nanoTime() elapsed since then, so timestamps from one
+ * provider are always in the order the events happened.
+ *
+ * currentTimeNanos() gives the same time with nanosecond resolution, for ordering events that
+ * happen within the same millisecond.
+ *
+ * Since the provider doesn't follow the system clock after it's created, it slowly drifts away
+ * from it (as nanoTime() and the system clock run at slightly different rates).  Long-running
+ * processes can replace it with a new instance periodically to resynchronise.
+ */
+public class MonotonicTimeProvider implements TimeProvider {
+    private static final long NANOS_PER_MILLI = 1_000_000;
+
+    private final long originMillis;
+    private final long originNanos;
+
+    public MonotonicTimeProvider() {
+        this.originMillis = System.currentTimeMillis();
+        this.originNanos = System.nanoTime();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return originMillis + (System.nanoTime() - originNanos) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return The time in nanoseconds since the epoch
+     */
+    public long currentTimeNanos() {
+        return originMillis * NANOS_PER_MILLI + (System.nanoTime() - originNanos);
+    }
+}
@@ -0,0 +1,27 @@
+package restlessrobot.metrical;
+
+import java.io.IOException;
+
+/**
+ * A ConcurrentMetricalFormatter which can also write events straight into a caller-supplied
+ * ByteBuffer (as UTF-8) or Appendable, so that handlers can output events without creating any
+ * intermediate Strings.
+ *
+ * The bytes written by the ByteMetricalFormatter methods must be the UTF-8 encoding of the text
+ * that the corresponding ConcurrentMetricalFormatter methods append.
+ *
+ * Thread-safety: as for ConcurrentMetricalFormatter - both body(...) methods can be called
+ * concurrently, but the header(...) and event(...) methods must be serialized.
+ */
+public interface StreamingMetricalFormatter extends ConcurrentMetricalFormatter, ByteMetricalFormatter {
+    /**
+     * Appends the text for an event (its header followed by its body), as event(MetricalEvent)
+     * would return it.
+     *
+     * @param event The event to format
+     * @param out The destination for the text
+     * @return The number of chars appended
+     * @throws IOException Thrown if the text can't be appended
+     */
+    int event(MetricalEventRecord event, Appendable out) throws IOException;
+}
@@ -0,0 +1,49 @@
+package restlessrobot.metrical;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can add to without contending on a single memory location.  Each
+ * thread adds to one of several cells, chosen by its thread id, and each cell is padded onto its
+ * own cache line; reading the counter sums the cells.  (Java 8's LongAdder does the same thing,
+ * adapting the number of cells to the contention.)
+ *
+ * Thread-safety: add(...) and get() can be called from any number of threads.  get() sees each
+ * cell's value at some point during the read, so it may miss additions made while it's summing.
+ */
+final class StripedCounter {
+    // One cell per cache line (64 bytes, i.e. 8 longs)
+    private static final int PADDING = 8;
+    static final int STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void add(long delta) {
+        cells.getAndAdd(stripe() * PADDING, delta);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return The current thread's stripe, between 0 and STRIPES - 1, which other striped
+     *         structures can use too
+     */
+    static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    // The number of processors, rounded up to a power of two, so that stripes can be masked
+    private static int stripeCount(int processors) {
+        return processors <= 1 ? 1 : Integer.highestOneBit(processors - 1) << 1;
+    }
+}
@@ -1,8 +1,10 @@
 package restlessrobot.metrical;
 
 /**
- * Interface for generating MetricalEvent timestamps.  Currently only used for mocking timestamps
- * for testing.
+ * Interface for generating MetricalEvent timestamps, and the times that handlers and samplers
+ * check.  By default these all read MetricalClock.shared(); see CoarseTimeProvider and
+ * MonotonicTimeProvider for alternatives to the system clock, and implement it to mock times for
+ * testing.
  */
 public interface TimeProvider {
     long currentTimeMillis();
@@ -0,0 +1,319 @@
+package restlessrobot.metrical.formatters;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import restlessrobot.metrical.ByteMetricalFormatter;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalDimension;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalHistogram;
+
+/**
+ * Formats events in a compact binary format, as an alternative to the text format written by
+ * SimpleMetricalFormatter.  Names are written once per file and then referred to by id,
+ * timestamps are written as the difference from the previous event, and floating-point values
+ * are written exactly rather than rounded to 4 significant digits.  BinaryMetricalReader reads
+ * the format back.
+ *
+ * Version 1 of the format is as follows.  Integers are unsigned LEB128 varints, and signed
+ * integers are zig-zag encoded first.  Doubles are 8-byte big-endian IEEE 754 values.  Strings are
+ * the varint length of their UTF-8 encoding, followed by the encoding.
+ *
+ *   log       := (MAGIC VERSION_NO record*)*
+ *   record    := STRING_RECORD id string
+ *              | CONTEXT_RECORD name:ref dimensionCount (name:ref value:string)*
+ *              | EVENT_RECORD timestampDelta:signed name:ref contextCount (name:ref)*
+ *                    metricCount (name:ref unit:ref (LONG_VALUE signed | DOUBLE_VALUE double))*
+ *                    histogramCount (name:ref unit:ref max:double (indexDelta valueCount)* 0)*
+ *   ref       := NULL_REF | INLINE_REF string | (id + FIRST_ID_REF)
+ *
+ * MAGIC is written as a 4-byte big-endian int.  A STRING_RECORD defines an id for a string, which
+ * precedes any ref to that id.  A CONTEXT_RECORD defines a context (which its events refer to by
+ * name), and precedes the first event that refers to it, as in the text format.  Units are
+ * referred to by their short names.  Each histogram lists its non-empty buckets (as
+ * MetricalHistogram bucket indexes, each relative to the previous one, starting from -1) and
+ * their counts, terminated by 0.  The state of the format (string ids, contexts and the previous
+ * timestamp) is cleared by each MAGIC, so every file written by FileMetricalHandler can be read
+ * on its own.
+ *
+ * Thread-safety: string ids are assigned from a dictionary which is shared by all threads and
+ * never forgets a string, so body(...) can refer to strings by id concurrently.  header(...)
+ * writes definitions of any ids (and contexts) that haven't been output since the last reset(),
+ * and the timestamp delta, so it must be serialized by the caller as described in
+ * ByteMetricalFormatter.  Once the dictionary is full, any new strings are written inline.
+ */
+public class BinaryMetricalFormatter implements ByteMetricalFormatter {
+    public static final int MAGIC = 0x894d5442; // "\x89MTB"
+    public static final int VERSION_NO = 1;
+
+    public static final int STRING_RECORD = 1;
+    public static final int CONTEXT_RECORD = 2;
+    public static final int EVENT_RECORD = 3;
+
+    public static final int LONG_VALUE = 0;
+    public static final int DOUBLE_VALUE = 1;
+
+    public static final int NULL_REF = 0;
+    public static final int INLINE_REF = 1;
+    public static final int FIRST_ID_REF = 2;
+
+    public static final int DEFAULT_MAX_DICTIONARY_SIZE = 64 * 1024;
+
+    private final int maxDictionarySize;
+    private final ConcurrentMap<String, Integer> dictionary = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    // State of the current file, which is only touched by header(...) and reset()
+    private final BitSet idsAlreadyOutput = new BitSet();
+    private final OutputContexts contextsAlreadyOutput = new OutputContexts();
+    private boolean magicDone = false;
+    private long lastTimestamp;
+
+    // The ids defined by the current header(...) call, so that they can be forgotten on overflow
+    private int[] idsDefinedByHeader = new int[16];
+    private int idsDefinedByHeaderCount;
+
+    public BinaryMetricalFormatter() {
+        this(DEFAULT_MAX_DICTIONARY_SIZE);
+    }
+
+    @VisibleForTesting
+    BinaryMetricalFormatter(int maxDictionarySize) {
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    @Override
+    public int header(MetricalEventRecord event, ByteBuffer out) {
+        int start = out.position();
+        idsDefinedByHeaderCount = 0;
+        try {
+            if (!magicDone) {
+                out.putInt(MAGIC);
+                putVarint(out, VERSION_NO);
+            }
+
+            List<MetricalContext> contexts = event.getContexts();
+            outputStringDefinitions(out, event, contexts);
+            for (int i = 0; i < contexts.size(); i++) {
+                MetricalContext context = contexts.get(i);
+                if (!isContextAlreadyOutput(context))
+                    outputContext(out, context);
+            }
+
+            out.put((byte) EVENT_RECORD);
+            putSignedVarint(out, event.getTimestamp() - lastTimestamp);
+
+        } catch (BufferOverflowException e) {
+            for (int i = 0; i < idsDefinedByHeaderCount; i++) {
+                idsAlreadyOutput.clear(idsDefinedByHeader[i]);
+            }
+            out.position(start);
+            throw e;
+        }
+
+        // Only update the rest of the state once the header has fitted into the buffer
+        magicDone = true;
+        lastTimestamp = event.getTimestamp();
+        List<MetricalContext> contexts = event.getContexts();
+        for (int i = 0; i < contexts.size(); i++) {
+            MetricalContext context = contexts.get(i);
+            contextsAlreadyOutput.add(context);
+        }
+        return out.position() - start;
+    }
+
+    @Override
+    public int body(MetricalEventRecord event, ByteBuffer out) {
+        int start = out.position();
+        try {
+            putRef(out, event.getName());
+
+            List<MetricalContext> contexts = event.getContexts();
+            putVarint(out, contexts.size());
+            for (int i = 0; i < contexts.size(); i++) {
+                putRef(out, contexts.get(i).getName());
+            }
+
+            int metricCount = event.getMetricCount();
+            putVarint(out, metricCount);
+            for (int i = 0; i < metricCount; i++) {
+                putRef(out, event.getMetricName(i));
+                putRef(out, event.getMetricUnit(i).getShortName());
+                if (event.isFloatingPointMetric(i)) {
+                    out.put((byte) DOUBLE_VALUE);
+                    out.putDouble(event.getDoubleMetricValue(i));
+                } else {
+                    out.put((byte) LONG_VALUE);
+                    putSignedVarint(out, event.getLongMetricValue(i));
+                }
+            }
+
+            int histogramCount = event.getHistogramCount();
+            putVarint(out, histogramCount);
+            for (int i = 0; i < histogramCount; i++) {
+                outputHistogram(out, event.getHistogram(i));
+            }
+
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            throw e;
+        }
+        return out.position() - start;
+    }
+
+    @Override
+    public void reset() {
+        idsAlreadyOutput.clear();
+        contextsAlreadyOutput.clear();
+        magicDone = false;
+        lastTimestamp = 0;
+    }
+
+    private boolean isContextAlreadyOutput(MetricalContext context) {
+        return contextsAlreadyOutput.contains(context);
+    }
+
+    // Defines all the strings that the header and body of an event refer to
+    private void outputStringDefinitions(ByteBuffer out, MetricalEventRecord event, List<MetricalContext> contexts) {
+        defineString(out, event.getName());
+        for (int i = 0; i < contexts.size(); i++) {
+            MetricalContext context = contexts.get(i);
+            defineString(out, context.getName());
+            if (!isContextAlreadyOutput(context)) {
+                for (MetricalDimension dimension : context.getDimensions().values()) {
+                    defineString(out, dimension.getName());
+                }
+            }
+        }
+
+        int metricCount = event.getMetricCount();
+        for (int i = 0; i < metricCount; i++) {
+            defineString(out, event.getMetricName(i));
+            defineString(out, event.getMetricUnit(i).getShortName());
+        }
+        int histogramCount = event.getHistogramCount();
+        for (int i = 0; i < histogramCount; i++) {
+            MetricalHistogram histogram = event.getHistogram(i);
+            defineString(out, histogram.getName());
+            defineString(out, histogram.getUnit().getShortName());
+        }
+    }
+
+    private void defineString(ByteBuffer out, String value) {
+        if (value == null)
+            return;
+
+        int id = idFor(value);
+        if (id < 0 || idsAlreadyOutput.get(id))
+            return;
+
+        out.put((byte) STRING_RECORD);
+        putVarint(out, id);
+        putString(out, value);
+
+        idsAlreadyOutput.set(id);
+        if (idsDefinedByHeaderCount == idsDefinedByHeader.length) {
+            int[] grown = new int[idsDefinedByHeader.length * 2];
+            System.arraycopy(idsDefinedByHeader, 0, grown, 0, idsDefinedByHeaderCount);
+            idsDefinedByHeader = grown;
+        }
+        idsDefinedByHeader[idsDefinedByHeaderCount++] = id;
+    }
+
+    private void outputContext(ByteBuffer out, MetricalContext context) {
+        out.put((byte) CONTEXT_RECORD);
+        putRef(out, context.getName());
+
+        Map<String, MetricalDimension> dimensions = context.getDimensions();
+        putVarint(out, dimensions.size());
+        for (MetricalDimension dimension : dimensions.values()) {
+            putRef(out, dimension.getName());
+            putString(out, valueToString(dimension.getValue()));
+        }
+    }
+
+    private void outputHistogram(ByteBuffer out, MetricalHistogram histogram) {
+        putRef(out, histogram.getName());
+        putRef(out, histogram.getUnit().getShortName());
+        out.putDouble(histogram.getMax());
+
+        int previousIndex = -1;
+        for (int i = 0; i < MetricalHistogram.BUCKETS; i++) {
+            long count = histogram.getBucketValueCount(i);
+            if (count != 0) {
+                putVarint(out, i - previousIndex);
+                putVarint(out, count);
+                previousIndex = i;
+            }
+        }
+        putVarint(out, 0);
+    }
+
+    /**
+     * Returns the id of a string, assigning one if it hasn't got one yet, or -1 if the dictionary
+     * is full.  Once a string has an id it never changes, so header(...) and body(...) always
+     * agree on it.
+     */
+    private int idFor(String value) {
+        Integer id = dictionary.get(value);
+        if (id != null)
+            return id;
+        if (dictionary.size() >= maxDictionarySize)
+            return -1;
+
+        int newId = nextId.getAndIncrement();
+        id = dictionary.putIfAbsent(value, newId);
+        return id != null ? id : newId;
+    }
+
+    private void putRef(ByteBuffer out, String value) {
+        if (value == null) {
+            putVarint(out, NULL_REF);
+            return;
+        }
+
+        int id = idFor(value);
+        if (id < 0) {
+            putVarint(out, INLINE_REF);
+            putString(out, value);
+        } else {
+            putVarint(out, id + FIRST_ID_REF);
+        }
+    }
+
+    private static String valueToString(Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Integer || value instanceof Float) {
+            return value.toString();
+        } else {
+            throw new IllegalArgumentException("Invalid value type: " + value.getClass().getCanonicalName());
+        }
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        putVarint(out, MetricalTextEncoder.utf8Length(value));
+        MetricalTextEncoder.encodeUtf8(value, out);
+    }
+
+    private static void putSignedVarint(ByteBuffer out, long value) {
+        putVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
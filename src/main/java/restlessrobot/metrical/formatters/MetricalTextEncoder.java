@@ -0,0 +1,294 @@
+package restlessrobot.metrical.formatters;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Appends numbers and text to a StringBuilder in the formats used by SimpleMetricalFormatter,
+ * without going through String.format(...) or allocating intermediate strings, and encodes the
+ * resulting text into ByteBuffers.
+ *
+ * appendNumber(StringBuilder, double) produces exactly the same text as
+ * String.format(Locale.ROOT, "%.4g", value).  Most values are rounded with plain double
+ * arithmetic, and exact ties are rounded up as String.format(...) does; values which are too close
+ * to a tie for that to be reliable, and very large or small values, are passed to
+ * String.format(...) instead.
+ */
+final class MetricalTextEncoder {
+    private static final int SIGNIFICANT_DIGITS = 4;
+    private static final int MIN_SIGNIFICAND = 1000;
+    private static final int MAX_SIGNIFICAND = 10000;
+    private static final double LOG10_2 = Math.log10(2);
+
+    // Powers of ten which doubles represent exactly
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Powers of five which can divide an odd number less than 2 * MAX_SIGNIFICAND
+    private static final long[] POWERS_OF_FIVE = {1, 5, 25, 125, 625, 3125, 15625};
+
+    // Integers up to 2^53 are exactly representable as doubles
+    private static final long MAX_EXACT_INTEGER = 1L << 53;
+    private static final int MAX_EXACT_INTEGER_DIGITS = 15;
+
+    // String.format(...) rounds the shortest decimal representation of a value half-up, and that
+    // can differ from the double arithmetic here by a few units in the last place.  Fractions this
+    // close to a half are checked with isTie(...), or left to String.format(...).
+    private static final double TIE_TOLERANCE = 1e-7;
+
+    private static final String MIN_LONG_TEXT = Long.toString(Long.MIN_VALUE);
+
+    private MetricalTextEncoder() {
+    }
+
+    /**
+     * Appends a value with 4 significant digits, in the same format as "%.4g".
+     *
+     * @param sb The buffer to append to
+     * @param value The value to append
+     * @return The buffer
+     */
+    static StringBuilder appendNumber(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return sb.append(value);
+
+        boolean negative = Double.doubleToRawLongBits(value) < 0;
+        double magnitude = Math.abs(value);
+        if (magnitude == 0)
+            return sb.append(negative ? "-0.000" : "0.000");
+
+        // Estimate the decimal exponent from the binary one, which can be out by one
+        int exponent = (int) Math.floor(Math.getExponent(magnitude) * LOG10_2);
+        double scaled = scale(magnitude, exponent);
+        if (scaled < MIN_SIGNIFICAND) {
+            scaled = scale(magnitude, --exponent);
+        } else if (scaled >= MAX_SIGNIFICAND) {
+            scaled = scale(magnitude, ++exponent);
+        }
+
+        long significand = (long) scaled;
+        double fraction = scaled - significand;
+        if (Double.isNaN(scaled) || significand < MIN_SIGNIFICAND || significand >= MAX_SIGNIFICAND)
+            return sb.append(String.format(Locale.ROOT, "%.4g", value));
+
+        if (Math.abs(fraction - 0.5) < TIE_TOLERANCE) {
+            if (!isTie(magnitude, significand, exponent))
+                return sb.append(String.format(Locale.ROOT, "%.4g", value));
+            // Ties round up
+            significand++;
+        } else if (fraction > 0.5) {
+            significand++;
+        }
+        if (significand == MAX_SIGNIFICAND) {
+            significand = MIN_SIGNIFICAND;
+            exponent++;
+        }
+
+        if (negative)
+            sb.append('-');
+        if (exponent >= -4 && exponent < SIGNIFICANT_DIGITS) {
+            appendDecimal(sb, (int) significand, exponent);
+        } else {
+            appendScientific(sb, (int) significand, exponent);
+        }
+        return sb;
+    }
+
+    /**
+     * Appends text, replacing any field separators (':') with '_'.
+     *
+     * @param sb The buffer to append to
+     * @param text The text to append
+     * @return The buffer
+     */
+    static StringBuilder appendText(StringBuilder sb, String text) {
+        if (text.indexOf(':') < 0)
+            return sb.append(text);
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            sb.append(c == ':' ? '_' : c);
+        }
+        return sb;
+    }
+
+    /**
+     * Encodes text as UTF-8 into a buffer.  Unpaired surrogates are encoded as '?', as
+     * String.getBytes(...) does.
+     *
+     * @param text The text to encode
+     * @param out The buffer to encode the text into
+     * @return The number of bytes written
+     * @throws BufferOverflowException Thrown if the buffer doesn't have enough space remaining, in
+     *                                 which case the buffer's position is unchanged
+     */
+    static int encodeUtf8(CharSequence text, ByteBuffer out) {
+        int start = out.position();
+        try {
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    out.put((byte) c);
+                } else if (c < 0x800) {
+                    out.put((byte) (0xc0 | c >> 6));
+                    out.put((byte) (0x80 | c & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    char low = i + 1 < length ? text.charAt(i + 1) : 0;
+                    if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+                        int codePoint = Character.toCodePoint(c, low);
+                        out.put((byte) (0xf0 | codePoint >> 18));
+                        out.put((byte) (0x80 | codePoint >> 12 & 0x3f));
+                        out.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+                        out.put((byte) (0x80 | codePoint & 0x3f));
+                        i++;
+                    } else {
+                        out.put((byte) '?');
+                    }
+                } else {
+                    out.put((byte) (0xe0 | c >> 12));
+                    out.put((byte) (0x80 | c >> 6 & 0x3f));
+                    out.put((byte) (0x80 | c & 0x3f));
+                }
+            }
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            throw e;
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Encodes an integer's decimal digits into a buffer, as the text StringBuilder.append(long)
+     * appends would be encoded.
+     *
+     * @param value The value to encode
+     * @param out The buffer to encode the value into
+     * @throws BufferOverflowException Thrown if the buffer doesn't have enough space remaining, in
+     *                                 which case the buffer's position is unchanged
+     */
+    static void putLong(long value, ByteBuffer out) {
+        if (value == Long.MIN_VALUE) {
+            encodeUtf8(MIN_LONG_TEXT, out);
+            return;
+        }
+
+        int start = out.position();
+        boolean negative = value < 0;
+        long magnitude = Math.abs(value);
+        int length = negative ? 2 : 1;
+        for (long remaining = magnitude; remaining >= 10; remaining /= 10) {
+            length++;
+        }
+        if (out.remaining() < length)
+            throw new BufferOverflowException();
+
+        if (negative)
+            out.put(start, (byte) '-');
+        for (int i = start + length - 1; i >= start + (negative ? 1 : 0); i--) {
+            out.put(i, (byte) ('0' + magnitude % 10));
+            magnitude /= 10;
+        }
+        out.position(start + length);
+    }
+
+    /**
+     * Returns the number of bytes that encodeUtf8(...) writes for some text.
+     *
+     * @param text The text
+     * @return The length of the text's encoding
+     */
+    static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    bytes += 4;
+                    i++;
+                } else {
+                    bytes++;
+                }
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Scales a value so that, if its decimal exponent is the one given, the result has 4 digits
+     * before the decimal point.  Returns NaN if the scaling factor isn't exactly representable.
+     */
+    private static double scale(double magnitude, int exponent) {
+        int shift = SIGNIFICANT_DIGITS - 1 - exponent;
+        if (shift >= 0) {
+            return shift < POWERS_OF_TEN.length ? magnitude * POWERS_OF_TEN[shift] : Double.NaN;
+        } else {
+            return -shift < POWERS_OF_TEN.length ? magnitude / POWERS_OF_TEN[-shift] : Double.NaN;
+        }
+    }
+
+    /**
+     * Returns true if a value is exactly the 5-digit decimal half-way between significand and
+     * significand + 1 (scaled by the exponent), which String.format(...) rounds up.  Ties which
+     * doubles can't represent exactly are left to String.format(...).
+     */
+    private static boolean isTie(double magnitude, long significand, int exponent) {
+        int shift = SIGNIFICANT_DIGITS - 1 - exponent;
+        long twiceTie = 2 * significand + 1;
+        if (shift >= 0) {
+            // twiceTie / (2 * 10^shift) is exact if 5^shift divides twiceTie
+            if (shift >= POWERS_OF_FIVE.length || twiceTie % POWERS_OF_FIVE[shift] != 0)
+                return false;
+            return twiceTie / (2 * POWERS_OF_TEN[shift]) == magnitude;
+        } else {
+            // twiceTie * 10^-shift is exact if it's an integer which doubles can represent
+            if (-shift > MAX_EXACT_INTEGER_DIGITS || twiceTie * (long) POWERS_OF_TEN[-shift] > MAX_EXACT_INTEGER)
+                return false;
+            return twiceTie * POWERS_OF_TEN[-shift] / 2 == magnitude;
+        }
+    }
+
+    // e.g. 1235, 123.5, 1.235, 0.001235
+    private static void appendDecimal(StringBuilder sb, int significand, int exponent) {
+        if (exponent < 0) {
+            sb.append('0').append('.');
+            for (int i = -1; i > exponent; i--) {
+                sb.append('0');
+            }
+            sb.append(significand);
+            return;
+        }
+
+        int divisor = 1000;
+        for (int i = 0; i < SIGNIFICANT_DIGITS; i++) {
+            if (i == exponent + 1)
+                sb.append('.');
+            sb.append((char) ('0' + significand / divisor % 10));
+            divisor /= 10;
+        }
+    }
+
+    // e.g. 1.235e+04, 1.235e-05
+    private static void appendScientific(StringBuilder sb, int significand, int exponent) {
+        sb.append((char) ('0' + significand / 1000));
+        sb.append('.');
+        sb.append((char) ('0' + significand / 100 % 10));
+        sb.append((char) ('0' + significand / 10 % 10));
+        sb.append((char) ('0' + significand % 10));
+        sb.append('e').append(exponent < 0 ? '-' : '+');
+        int absExponent = Math.abs(exponent);
+        if (absExponent < 10)
+            sb.append('0');
+        sb.append(absExponent);
+    }
+}
@@ -0,0 +1,51 @@
+package restlessrobot.metrical.formatters;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import restlessrobot.metrical.MetricalContext;
+
+/**
+ * The contexts a formatter has already output to the current file: the latest version of each
+ * context name.  Whether a context has been output is checked with a bit lookup on its id, so
+ * contexts are never compared by value.
+ *
+ * Not thread-safe: formatters only touch it from their serialized header(...) and reset() methods.
+ */
+final class OutputContexts {
+    private final BitSet ids = new BitSet();
+    private final Map<String, MetricalContext> contextsByName = new HashMap<>();
+
+    /**
+     * @param context The context
+     * @return True if the context (or an equal one) is the latest version of its name output
+     */
+    boolean contains(MetricalContext context) {
+        return ids.get(context.getId());
+    }
+
+    /**
+     * Records that a context has been output, replacing any other version of its name.
+     *
+     * @param context The context
+     * @return True if a different version of the context's name was replaced
+     */
+    boolean add(MetricalContext context) {
+        if (ids.get(context.getId()))
+            return false;
+
+        MetricalContext previous = contextsByName.put(context.getName(), context);
+        ids.set(context.getId());
+        if (previous == null)
+            return false;
+
+        ids.clear(previous.getId());
+        return true;
+    }
+
+    void clear() {
+        ids.clear();
+        contextsByName.clear();
+    }
+}
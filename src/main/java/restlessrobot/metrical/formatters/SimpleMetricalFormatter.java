@@ -1,157 +1,423 @@
 package restlessrobot.metrical.formatters;
 
-import com.google.common.base.Joiner;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.MapMaker;
 
-import java.util.Collection;
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
-import restlessrobot.metrical.MetricalMetric;
+import restlessrobot.metrical.ConcurrentMetricalFormatter;
 import restlessrobot.metrical.MetricalDimension;
 import restlessrobot.metrical.MetricalEvent;
-import restlessrobot.metrical.MetricalFormatter;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalEventType;
+import restlessrobot.metrical.MetricalEventWriter;
 import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.StreamingMetricalFormatter;
 import restlessrobot.metrical.Unit;
 
 /**
  * Created by simon on 06/06/14.
+ *
+ * Thread-safety: body(...) only reads the event, so it can be called concurrently.  The record of
+ * which contexts have already been output is only touched by header(...), event(...) and reset(),
+ * which must be serialized by the caller as described in ConcurrentMetricalFormatter.
+ *
+ * The ByteBuffer methods format the text into a per-thread buffer which is reused, and encode it
+ * from there, so they don't allocate once the buffer has grown to fit the largest event.
+ *
+ * Events written by a MetricalEventWriter with an event type (see MetricalEventType) take a faster
+ * path: the text around the timestamp and values of each line is encoded once per type and reused,
+ * and once a type's contexts have been output, its events' headers are skipped without comparing
+ * the contexts again until a different version of any context is output.  Types are only weakly
+ * referenced, so types which are no longer used (e.g. ones created for short-lived Metrical
+ * instances) are forgotten once they're garbage collected.
  */
-public class SimpleMetricalFormatter implements MetricalFormatter {
+public class SimpleMetricalFormatter implements StreamingMetricalFormatter {
     private static final String LINE_SEPARATOR = "\n";
     private static final String LINE_PREFIX = "@";
+    private static final char FIELD_SEPARATOR = ':';
     private static final String VERSION_KEY = "v";
     private static final String EVENT_KEY = "e";
     private static final String METRIC_KEY = "m";
+    private static final String HISTOGRAM_KEY = "h";
     private static final String CONTEXT_KEY = "c";
     private static final String DIMENSION_KEY = "d";
     private static final int VERSION_NO = 1;
     private static final String VERSION_LINE = LINE_PREFIX + VERSION_KEY + ":restlessrobot.metrical:" + VERSION_NO + LINE_SEPARATOR;
-    private static final Joiner colonJoiner = Joiner.on(':').useForNull("");
-    private static final Joiner commaJoiner = Joiner.on(',').skipNulls();
+    private static final double[] HISTOGRAM_PERCENTILES = {50, 90, 99, 99.9};
+    private static final String EVENT_LINE_START = LINE_PREFIX + EVENT_KEY + FIELD_SEPARATOR;
+    private static final String METRIC_LINE_START = LINE_PREFIX + METRIC_KEY + FIELD_SEPARATOR;
+    private static final byte[] EVENT_LINE_START_BYTES = EVENT_LINE_START.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] METRIC_LINE_START_BYTES = METRIC_LINE_START.getBytes(StandardCharsets.UTF_8);
 
-    private final Map<String, MetricalContext> contextsAlreadyOutput = new HashMap<>();
+    // Per-thread buffers larger than this are discarded after use rather than retained
+    private static final int MAX_RETAINED_BUFFER_CHARS = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> TEXT_BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    private final OutputContexts contextsAlreadyOutput = new OutputContexts();
     private boolean versionLineDone = false;
+    // Event types whose contexts are all in contextsAlreadyOutput
+    private final Set<MetricalEventType> typesAlreadyOutput =
+            Collections.newSetFromMap(new MapMaker().weakKeys().<MetricalEventType, Boolean>makeMap());
+    private final ConcurrentMap<MetricalEventType, EncodedEventType> encodedTypes =
+            new MapMaker().weakKeys().makeMap();
 
     @Override
     public String event(MetricalEvent event) {
         StringBuilder sb = new StringBuilder();
+        header(event, sb);
+        body(event, sb);
+        return sb.toString();
+    }
+
+    @Override
+    public int event(MetricalEventRecord event, Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            StringBuilder sb = (StringBuilder) out;
+            int start = sb.length();
+            header(event, sb);
+            body(event, sb);
+            return sb.length() - start;
+        }
+
+        StringBuilder sb = TEXT_BUFFER.get();
+        try {
+            sb.setLength(0);
+            header(event, sb);
+            body(event, sb);
+            out.append(sb);
+            return sb.length();
+        } finally {
+            releaseTextBuffer(sb);
+        }
+    }
+
+    @Override
+    public void header(MetricalEventRecord event, StringBuilder sb) {
+        outputHeader(sb, event);
+        headerOutput(event);
+    }
+
+    @Override
+    public int header(MetricalEventRecord event, ByteBuffer out) {
+        StringBuilder sb = TEXT_BUFFER.get();
+        try {
+            sb.setLength(0);
+            outputHeader(sb, event);
+            // Only update the state once the header has fitted into the buffer
+            int length = MetricalTextEncoder.encodeUtf8(sb, out);
+            headerOutput(event);
+            return length;
+        } finally {
+            releaseTextBuffer(sb);
+        }
+    }
 
+    @Override
+    public int body(MetricalEventRecord event, ByteBuffer out) {
+        MetricalEventType type = eventType(event);
+        if (type != null)
+            return typedBody(event, encoded(type), out);
+
+        StringBuilder sb = TEXT_BUFFER.get();
+        try {
+            sb.setLength(0);
+            body(event, sb);
+            return MetricalTextEncoder.encodeUtf8(sb, out);
+        } finally {
+            releaseTextBuffer(sb);
+        }
+    }
+
+    private void outputHeader(StringBuilder sb, MetricalEventRecord event) {
         if (!versionLineDone) {
             sb.append(VERSION_LINE);
-            versionLineDone = true;
+        } else if (typesAlreadyOutput.contains(eventType(event))) {
+            return;
         }
 
         List<MetricalContext> contexts = event.getContexts();
-        for (MetricalContext context : contexts) {
-            if (!context.equals(contextsAlreadyOutput.get(context.getName()))) {
-                contextsAlreadyOutput.put(context.getName(), context);
-                sb.append(context(context));
+        for (int i = 0; i < contexts.size(); i++) {
+            MetricalContext context = contexts.get(i);
+            if (!contextsAlreadyOutput.contains(context)) {
+                outputContext(sb, context);
             }
         }
+    }
+
+    // Records that the header for an event has been output
+    private void headerOutput(MetricalEventRecord event) {
+        versionLineDone = true;
+
+        MetricalEventType type = eventType(event);
+        if (typesAlreadyOutput.contains(type))
+            return;
+
+        List<MetricalContext> contexts = event.getContexts();
+        for (int i = 0; i < contexts.size(); i++) {
+            MetricalContext context = contexts.get(i);
+            // A different version of a context means types' contexts must be checked again
+            if (contextsAlreadyOutput.add(context))
+                typesAlreadyOutput.clear();
+        }
+        if (type != null)
+            typesAlreadyOutput.add(type);
+    }
+
+    private static void releaseTextBuffer(StringBuilder sb) {
+        if (sb.capacity() > MAX_RETAINED_BUFFER_CHARS)
+            TEXT_BUFFER.remove();
+    }
 
-        List<MetricalMetric<? extends Number>> metrics = event.getMetrics();
+    @Override
+    public void body(MetricalEventRecord event, StringBuilder sb) {
+        MetricalEventType type = eventType(event);
+        if (type != null) {
+            typedBody(event, encoded(type), sb);
+            return;
+        }
+
+        List<MetricalContext> contexts = event.getContexts();
 
         outputEvent(sb, event, contexts);
-        for (MetricalMetric<? extends Number> metric : metrics) {
-            outputMetric(sb, event, metric, contexts);
+        int metricCount = event.getMetricCount();
+        for (int i = 0; i < metricCount; i++) {
+            outputMetric(sb, event, i, contexts);
         }
-        return sb.toString();
+        int histogramCount = event.getHistogramCount();
+        for (int i = 0; i < histogramCount; i++) {
+            outputHistogram(sb, event, event.getHistogram(i), contexts);
+        }
+    }
+
+    private static void typedBody(MetricalEventRecord event, EncodedEventType encoded, StringBuilder sb) {
+        long timestamp = event.getTimestamp();
+        sb.append(EVENT_LINE_START).append(timestamp).append(encoded.eventLineEnd);
+        int metricCount = event.getMetricCount();
+        for (int i = 0; i < metricCount; i++) {
+            sb.append(METRIC_LINE_START).append(timestamp).append(encoded.metricLineMiddles[i]);
+            if (event.isFloatingPointMetric(i)) {
+                appendNumber(sb, event.getDoubleMetricValue(i));
+            } else {
+                sb.append(event.getLongMetricValue(i));
+            }
+            sb.append(encoded.metricLineEnds[i]);
+        }
+    }
+
+    private static int typedBody(MetricalEventRecord event, EncodedEventType encoded, ByteBuffer out) {
+        int start = out.position();
+        try {
+            long timestamp = event.getTimestamp();
+            out.put(EVENT_LINE_START_BYTES);
+            MetricalTextEncoder.putLong(timestamp, out);
+            out.put(encoded.eventLineEndBytes);
+            int metricCount = event.getMetricCount();
+            for (int i = 0; i < metricCount; i++) {
+                out.put(METRIC_LINE_START_BYTES);
+                MetricalTextEncoder.putLong(timestamp, out);
+                out.put(encoded.metricLineMiddleBytes[i]);
+                if (event.isFloatingPointMetric(i)) {
+                    StringBuilder sb = TEXT_BUFFER.get();
+                    sb.setLength(0);
+                    MetricalTextEncoder.encodeUtf8(appendNumber(sb, event.getDoubleMetricValue(i)), out);
+                } else {
+                    MetricalTextEncoder.putLong(event.getLongMetricValue(i), out);
+                }
+                out.put(encoded.metricLineEndBytes[i]);
+            }
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            throw e;
+        }
+        return out.position() - start;
+    }
+
+    private EncodedEventType encoded(MetricalEventType type) {
+        EncodedEventType encoded = encodedTypes.get(type);
+        if (encoded == null) {
+            encoded = new EncodedEventType(type);
+            EncodedEventType existing = encodedTypes.putIfAbsent(type, encoded);
+            if (existing != null)
+                encoded = existing;
+        }
+        return encoded;
+    }
+
+    @VisibleForTesting
+    int getEncodedTypeCount() {
+        return encodedTypes.size();
+    }
+
+    private static MetricalEventType eventType(MetricalEventRecord event) {
+        return event instanceof MetricalEventWriter ? ((MetricalEventWriter) event).getEventType() : null;
+    }
+
+    private void outputEvent(StringBuilder sb, MetricalEventRecord event, List<MetricalContext> contexts) {
+        sb.append(LINE_PREFIX).append(EVENT_KEY).append(FIELD_SEPARATOR);
+        sb.append(event.getTimestamp()).append(FIELD_SEPARATOR);
+        appendNullable(sb, event.getName()).append(FIELD_SEPARATOR);
+        appendContextNames(sb, contexts);
+        sb.append(LINE_SEPARATOR);
     }
 
-    private void outputEvent(StringBuilder sb, MetricalEvent event, List<MetricalContext> contexts) {
-        sb.append(LINE_PREFIX);
-        sb.append(colonJoiner.join(
-                EVENT_KEY,
-                event.getTimestamp(),
-                event.getName(),
-                joinContextNames(contexts)));
+    private void outputMetric(StringBuilder sb, MetricalEventRecord event, int index, List<MetricalContext> contexts) {
+        sb.append(LINE_PREFIX).append(METRIC_KEY).append(FIELD_SEPARATOR);
+        sb.append(event.getTimestamp()).append(FIELD_SEPARATOR);
+        appendNullable(sb, event.getName()).append(FIELD_SEPARATOR);
+        appendNullable(sb, event.getMetricName(index)).append(FIELD_SEPARATOR);
+        if (event.isFloatingPointMetric(index)) {
+            appendNumber(sb, event.getDoubleMetricValue(index));
+        } else {
+            sb.append(event.getLongMetricValue(index));
+        }
+        sb.append(FIELD_SEPARATOR);
+        sb.append(event.getMetricUnit(index).getShortName()).append(FIELD_SEPARATOR);
+        appendContextNames(sb, contexts);
         sb.append(LINE_SEPARATOR);
     }
 
-    private void outputMetric(StringBuilder sb, MetricalEvent event, MetricalMetric<? extends Number> metric, List<MetricalContext> contexts) {
-        sb.append(LINE_PREFIX);
-        sb.append(colonJoiner.join(
-                METRIC_KEY,
-                event.getTimestamp(),
-                event.getName(),
-                metric.getName(),
-                formatValue(metric.getValue()),
-                metric.getUnit().getShortName(),
-                joinContextNames(contexts)));
+    /**
+     * Outputs a histogram as:
+     *   @h:[timestamp]:[event]:[metric]:[count]:[p50]:[p90]:[p99]:[p99.9]:[max]:[unit]:[buckets]:[contexts]
+     * where [buckets] lists the non-empty buckets as [index]=[count], separated by commas, so that
+     * histograms from different lines can be merged (see MetricalHistogram).
+     */
+    private void outputHistogram(StringBuilder sb, MetricalEventRecord event, MetricalHistogram histogram,
+            List<MetricalContext> contexts) {
+        sb.append(LINE_PREFIX).append(HISTOGRAM_KEY).append(FIELD_SEPARATOR);
+        sb.append(event.getTimestamp()).append(FIELD_SEPARATOR);
+        appendNullable(sb, event.getName()).append(FIELD_SEPARATOR);
+        appendNullable(sb, histogram.getName()).append(FIELD_SEPARATOR);
+        sb.append(histogram.getCount()).append(FIELD_SEPARATOR);
+        for (double percentile : HISTOGRAM_PERCENTILES) {
+            appendNumber(sb, histogram.getValueAtPercentile(percentile)).append(FIELD_SEPARATOR);
+        }
+        appendNumber(sb, histogram.getMax()).append(FIELD_SEPARATOR);
+        sb.append(histogram.getUnit().getShortName()).append(FIELD_SEPARATOR);
+        boolean first = true;
+        for (int i = 0; i < MetricalHistogram.BUCKETS; i++) {
+            long count = histogram.getBucketValueCount(i);
+            if (count != 0) {
+                if (!first)
+                    sb.append(',');
+                sb.append(i).append('=').append(count);
+                first = false;
+            }
+        }
+        sb.append(FIELD_SEPARATOR);
+        appendContextNames(sb, contexts);
         sb.append(LINE_SEPARATOR);
     }
 
     @Override
     public void reset() {
         contextsAlreadyOutput.clear();
+        typesAlreadyOutput.clear();
         versionLineDone = false;
     }
 
-    private String context(MetricalContext context) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(LINE_PREFIX);
-        sb.append(colonJoiner.join(
-                CONTEXT_KEY,
-                context.getName()
-                ));
+    private void outputContext(StringBuilder sb, MetricalContext context) {
+        sb.append(LINE_PREFIX).append(CONTEXT_KEY).append(FIELD_SEPARATOR);
+        appendNullable(sb, context.getName());
         sb.append(LINE_SEPARATOR);
 
         Map<String, MetricalDimension> dimensions = context.getDimensions();
         for (MetricalDimension dimension : dimensions.values()) {
-            sb.append(LINE_PREFIX);
-            sb.append(colonJoiner.join(
-                    DIMENSION_KEY,
-                    context.getName(),
-                    dimension.getName(),
-                    formatValue(dimension.getValue())));
+            sb.append(LINE_PREFIX).append(DIMENSION_KEY).append(FIELD_SEPARATOR);
+            appendNullable(sb, context.getName()).append(FIELD_SEPARATOR);
+            appendNullable(sb, dimension.getName()).append(FIELD_SEPARATOR);
+            appendValue(sb, dimension.getValue());
             sb.append(LINE_SEPARATOR);
         }
-        return sb.toString();
     }
 
-    private String formatNumber(int value) {
-        return Integer.toString(value);
+    private static StringBuilder appendNumber(StringBuilder sb, double value) {
+        return MetricalTextEncoder.appendNumber(sb, value);
     }
 
-    private String formatNumber(float value) {
-        return String.format("%.4g", value);
-    }
-
-    private String formatValue(Object value) {
+    private static void appendValue(StringBuilder sb, Object value) {
         if (value instanceof String) {
-            return ((String) value).replace(':', '_');
+            MetricalTextEncoder.appendText(sb, (String) value);
         } else if (value instanceof Integer) {
-            return formatNumber((Integer) value);
+            sb.append(((Integer) value).intValue());
         } else if (value instanceof Float) {
-            return formatNumber((Float) value);
+            appendNumber(sb, ((Float) value).doubleValue());
         } else {
             throw new IllegalArgumentException("Invalid value type: " + value.getClass().getCanonicalName());
         }
     }
 
-    private String joinContextNames(MetricalContext[] contexts) {
-        if (contexts == null || contexts.length == 0) {
-            return null;
-        } else {
-            String[] names = new String[contexts.length];
-            for (int i = 0; i < contexts.length; i++) {
-                names[i] = contexts[i].getName();
+    private static void appendContextNames(StringBuilder sb, List<MetricalContext> contexts) {
+        boolean first = true;
+        for (int i = 0; i < contexts.size(); i++) {
+            String name = contexts.get(i).getName();
+            if (name != null) {
+                if (!first)
+                    sb.append(',');
+                sb.append(name);
+                first = false;
             }
-            return commaJoiner.join(names);
         }
     }
 
-    private String joinContextNames(Collection<MetricalContext> contexts) {
-        if (contexts == null || contexts.size() == 0) {
-            return null;
-        } else {
-            String[] names = new String[contexts.size()];
-            int i = 0;
-            for (MetricalContext context : contexts) {
-                names[i++] = context.getName();
+    private static StringBuilder appendNullable(StringBuilder sb, String value) {
+        return value == null ? sb : sb.append(value);
+    }
+
+    /**
+     * The text of an event type's lines, apart from the timestamps and values, as outputEvent(...)
+     * and outputMetric(...) would write it.
+     */
+    private static final class EncodedEventType {
+        final String eventLineEnd;
+        final String[] metricLineMiddles;
+        final String[] metricLineEnds;
+        final byte[] eventLineEndBytes;
+        final byte[][] metricLineMiddleBytes;
+        final byte[][] metricLineEndBytes;
+
+        EncodedEventType(MetricalEventType type) {
+            StringBuilder contextNames = new StringBuilder();
+            appendContextNames(contextNames, type.getContexts());
+
+            StringBuilder sb = new StringBuilder();
+            sb.append(FIELD_SEPARATOR);
+            appendNullable(sb, type.getName()).append(FIELD_SEPARATOR).append(contextNames).append(LINE_SEPARATOR);
+            eventLineEnd = sb.toString();
+            eventLineEndBytes = eventLineEnd.getBytes(StandardCharsets.UTF_8);
+
+            int metricCount = type.getMetricCount();
+            metricLineMiddles = new String[metricCount];
+            metricLineEnds = new String[metricCount];
+            metricLineMiddleBytes = new byte[metricCount][];
+            metricLineEndBytes = new byte[metricCount][];
+            for (int i = 0; i < metricCount; i++) {
+                sb.setLength(0);
+                sb.append(FIELD_SEPARATOR);
+                appendNullable(sb, type.getName()).append(FIELD_SEPARATOR);
+                appendNullable(sb, type.getMetricName(i)).append(FIELD_SEPARATOR);
+                metricLineMiddles[i] = sb.toString();
+                metricLineEnds[i] = FIELD_SEPARATOR + type.getMetricUnit(i).getShortName() + FIELD_SEPARATOR
+                        + contextNames + LINE_SEPARATOR;
+                metricLineMiddleBytes[i] = metricLineMiddles[i].getBytes(StandardCharsets.UTF_8);
+                metricLineEndBytes[i] = metricLineEnds[i].getBytes(StandardCharsets.UTF_8);
             }
-            return commaJoiner.join(names);
         }
     }
 
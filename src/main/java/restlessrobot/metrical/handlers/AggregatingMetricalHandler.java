@@ -0,0 +1,464 @@
+package restlessrobot.metrical.handlers;
+
+import com.google.common.util.concurrent.AtomicDouble;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import restlessrobot.metrical.MetricalClock;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.MetricalRecordHandler;
+import restlessrobot.metrical.MetricalStats;
+import restlessrobot.metrical.MetricalTickable;
+import restlessrobot.metrical.TimeProvider;
+import restlessrobot.metrical.Unit;
+
+/**
+ * A handler which aggregates events in memory and periodically reports a summary of them to a
+ * downstream handler, to reduce the volume of metrics that need to be logged.
+ *
+ * Events are grouped by event name and contexts.  Once per flush interval, one event is reported
+ * downstream for each group that received events during the interval.  The summary event has the
+ * same name and contexts as the events it summarises, a "count" metric with the number of events,
+ * and "[metric].count", "[metric].sum", "[metric].min" and "[metric].max" metrics for each metric
+ * attached to those events.
+ *
+ * In histogram mode, metrics with time units (see Unit.isTimeUnit()) are also recorded in a
+ * MetricalHistogram per group, which is attached to the summary event, so that percentiles of
+ * e.g. latencies can be reported.
+ *
+ * The flush interval is checked on tick(), and flush() and finish() flush straight away.  A flush
+ * reports summaries to the downstream handler on the thread which runs it, so it should normally
+ * be left to a MetricalScheduler.  Until tick() is first called, the interval is also checked when
+ * events arrive (like the rotation time limit in TextOutputMetricalHandler), in which case the
+ * reporting thread which crosses the deadline waits for the whole downstream flush.
+ *
+ * Aggregation is done with atomic primitive accumulators, so recording an event in an existing
+ * group takes no locks and allocates nothing.  Summaries are taken field by field while other
+ * threads may still be recording, so a value recorded during a flush may be counted in one
+ * interval's sum and the next interval's count.  Events are counted after their metrics are
+ * added, so metrics are never left behind by a count that has already been reported.  Groups
+ * which receive no events for a whole interval are retired and discarded; a group is only retired
+ * while no thread is recording into it, and threads which find a retired group start a new one,
+ * so no events are lost.
+ */
+public class AggregatingMetricalHandler implements MetricalRecordHandler, MetricalTickable {
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 60 * 1000;
+
+    public static final String COUNT_METRIC = "count";
+    public static final String COUNT_SUFFIX = ".count";
+    public static final String SUM_SUFFIX   = ".sum";
+    public static final String MIN_SUFFIX   = ".min";
+    public static final String MAX_SUFFIX   = ".max";
+
+    // Reusable keys for looking up existing groups without allocating
+    private static final ThreadLocal<GroupKey> PROBE_KEY = new ThreadLocal<GroupKey>() {
+        @Override
+        protected GroupKey initialValue() {
+            return new GroupKey();
+        }
+    };
+
+    private final MetricalHandler handler;
+    private final ConcurrentMap<GroupKey, Group> groups = new ConcurrentHashMap<>();
+    private final AtomicLong nextFlushTime = new AtomicLong();
+    private final Object flushLock = new Object();
+
+    private final boolean timeHistograms;
+    private volatile long flushIntervalMillis;
+    private volatile TimeProvider timeProvider = MetricalClock.shared();
+    // Set once tick() has been called, after which flushes are left to tick()
+    private volatile boolean ticked;
+
+    /**
+     * Creates an AggregatingMetricalHandler with the default flush interval.
+     *
+     * @param handler The handler to report summary events to
+     */
+    public AggregatingMetricalHandler(MetricalHandler handler) {
+        this(handler, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param handler The handler to report summary events to
+     * @param flushIntervalMillis How often to report summary events
+     */
+    public AggregatingMetricalHandler(MetricalHandler handler, long flushIntervalMillis) {
+        this(handler, flushIntervalMillis, false);
+    }
+
+    /**
+     * @param handler The handler to report summary events to
+     * @param flushIntervalMillis How often to report summary events
+     * @param timeHistograms true to also record histograms of metrics with time units
+     */
+    public AggregatingMetricalHandler(MetricalHandler handler, long flushIntervalMillis, boolean timeHistograms) {
+        if (handler == null)
+            throw new IllegalArgumentException("No handler provided");
+
+        this.handler = handler;
+        this.timeHistograms = timeHistograms;
+        setFlushIntervalMillis(flushIntervalMillis);
+    }
+
+    @Override
+    public void event(MetricalEvent event) throws MetricalException {
+        record(event);
+    }
+
+    @Override
+    public void record(MetricalEventRecord record) throws MetricalException {
+        Group group = group(record);
+        // A retired group is about to be removed by flush(), so look it up again until it has been
+        while (!group.enter()) {
+            group = group(record);
+        }
+        try {
+            int metricCount = record.getMetricCount();
+            for (int i = 0; i < metricCount; i++) {
+                Accumulator accumulator = group.accumulator(record.getMetricName(i), record.getMetricUnit(i));
+                if (record.isFloatingPointMetric(i)) {
+                    accumulator.add(record.getDoubleMetricValue(i));
+                } else {
+                    accumulator.add(record.getLongMetricValue(i));
+                }
+            }
+            // Counted last, so that a flush which finds no events leaves the metrics for the next
+            group.count.incrementAndGet();
+        } finally {
+            group.exit();
+        }
+
+        if (!ticked)
+            flushIfDue();
+    }
+
+    /**
+     * Reports summaries of all events aggregated since the last flush to the downstream handler.
+     *
+     * @throws MetricalException Thrown if the downstream handler fails to process a summary.  All
+     *                           of the other summaries are still reported.
+     */
+    public void flush() throws MetricalException {
+        MetricalException failure = null;
+        synchronized (flushLock) {
+            Iterator<Map.Entry<GroupKey, Group>> it = groups.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<GroupKey, Group> entry = it.next();
+                Group group = entry.getValue();
+                if (group.count.get() == 0 && group.retire())
+                    groups.remove(entry.getKey(), group);
+
+                // A retired group can't change, so this picks up anything recorded before it was
+                // retired
+                MetricalEvent summary = group.summarise(entry.getKey());
+                if (summary == null)
+                    continue;
+
+                try {
+                    handler.event(summary);
+                } catch (MetricalException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Flushes if the flush interval has passed, then ticks the downstream handler.  Once this has
+     * been called, events no longer trigger flushes, so it should be called regularly.
+     */
+    @Override
+    public void tick() throws MetricalException {
+        ticked = true;
+        try {
+            flushIfDue();
+        } finally {
+            if (handler instanceof MetricalTickable)
+                ((MetricalTickable) handler).tick();
+        }
+    }
+
+    @Override
+    public void finish() {
+        try {
+            flush();
+        } catch (MetricalException e) {
+            // Finish the downstream handler anyway, but count the summaries that it failed to take
+            MetricalStats.get().increment(MetricalStats.Counter.EVENTS_FAILED);
+        }
+        handler.finish();
+    }
+
+    /**
+     * Discards all aggregated events without reporting them, and resets the downstream handler.
+     */
+    @Override
+    public void reset() throws IOException {
+        synchronized (flushLock) {
+            groups.clear();
+            nextFlushTime.set(0);
+        }
+        handler.reset();
+    }
+
+    public TimeProvider getTimeProvider() {
+        return timeProvider;
+    }
+
+    public void setTimeProvider(TimeProvider timeProvider) {
+        this.timeProvider = timeProvider;
+    }
+
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        if (flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("Invalid flush interval: " + flushIntervalMillis);
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    private Group group(MetricalEventRecord record) {
+        GroupKey probe = PROBE_KEY.get();
+        probe.set(record.getName(), record.getContexts());
+        Group group = groups.get(probe);
+        probe.set(null, null);
+        if (group == null) {
+            GroupKey key = new GroupKey();
+            key.set(record.getName(), record.getContexts());
+            Group newGroup = new Group(timeHistograms);
+            group = groups.putIfAbsent(key, newGroup);
+            if (group == null)
+                group = newGroup;
+        }
+        return group;
+    }
+
+    private void flushIfDue() throws MetricalException {
+        long now = timeProvider.currentTimeMillis();
+        long next = nextFlushTime.get();
+        if (next == 0) {
+            nextFlushTime.compareAndSet(0, now + flushIntervalMillis);
+        } else if (now >= next && nextFlushTime.compareAndSet(next, now + flushIntervalMillis)) {
+            flush();
+        }
+    }
+
+    /**
+     * Identifies a group of events by name and contexts.  Keys stored in the map are never
+     * modified; only the per-thread probe keys are reused.
+     */
+    private static final class GroupKey {
+        private String name;
+        private List<MetricalContext> contexts;
+        private int hash;
+
+        void set(String name, List<MetricalContext> contexts) {
+            this.name = name;
+            this.contexts = contexts;
+
+            int h = name == null ? 0 : name.hashCode();
+            if (contexts != null) {
+                for (int i = 0; i < contexts.size(); i++) {
+                    h = 31 * h + contexts.get(i).hashCode();
+                }
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof GroupKey)) return false;
+
+            GroupKey other = (GroupKey) o;
+            if (hash != other.hash) return false;
+            if (name == null ? other.name != null : !name.equals(other.name)) return false;
+            if (contexts.size() != other.contexts.size()) return false;
+            for (int i = 0; i < contexts.size(); i++) {
+                if (!contexts.get(i).equals(other.contexts.get(i))) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Group {
+        private final AtomicLong count = new AtomicLong();
+        // The number of threads recording into the group, or -1 once it's retired
+        private final AtomicInteger recorders = new AtomicInteger();
+        private final ConcurrentMap<String, Accumulator> accumulators = new ConcurrentHashMap<>();
+        private final boolean timeHistograms;
+
+        Group(boolean timeHistograms) {
+            this.timeHistograms = timeHistograms;
+        }
+
+        /**
+         * Registers a thread as recording into the group.
+         *
+         * @return False if the group has been retired, so nothing can be recorded into it
+         */
+        boolean enter() {
+            while (true) {
+                int current = recorders.get();
+                if (current < 0)
+                    return false;
+                if (recorders.compareAndSet(current, current + 1))
+                    return true;
+            }
+        }
+
+        void exit() {
+            recorders.decrementAndGet();
+        }
+
+        /**
+         * Retires the group, so that it can be removed without losing anything recorded into it.
+         *
+         * @return False if a thread is recording into the group, so it can't be retired yet
+         */
+        boolean retire() {
+            return recorders.compareAndSet(0, -1);
+        }
+
+        Accumulator accumulator(String metricName, Unit unit) {
+            Accumulator accumulator = accumulators.get(metricName);
+            if (accumulator == null) {
+                MetricalHistogram histogram = timeHistograms && unit != null && unit.isTimeUnit()
+                        ? new MetricalHistogram(metricName, unit) : null;
+                Accumulator newAccumulator = new Accumulator(unit, histogram);
+                accumulator = accumulators.putIfAbsent(metricName, newAccumulator);
+                if (accumulator == null)
+                    accumulator = newAccumulator;
+            }
+            return accumulator;
+        }
+
+        /**
+         * Builds a summary of the events recorded since the last call, and resets the group.
+         *
+         * @return The summary event, or null if no events were recorded
+         */
+        MetricalEvent summarise(GroupKey key) {
+            long eventCount = count.getAndSet(0);
+            if (eventCount == 0)
+                return null;
+
+            MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+            builder.name(key.name);
+            builder.contexts(key.contexts);
+            builder.metric(COUNT_METRIC, eventCount, Unit.NONE);
+            for (Map.Entry<String, Accumulator> entry : accumulators.entrySet()) {
+                entry.getValue().summarise(entry.getKey(), builder);
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Accumulates count, sum, min and max for one metric.  Integer and floating-point values are
+     * accumulated separately, so that integer sums stay exact, and combined when summarised.
+     */
+    private static final class Accumulator {
+        private final Unit unit;
+        private final AtomicLong longCount = new AtomicLong();
+        private final AtomicLong longSum = new AtomicLong();
+        private final AtomicLong longMin = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong longMax = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicLong doubleCount = new AtomicLong();
+        private final AtomicDouble doubleSum = new AtomicDouble(0);
+        private final AtomicDouble doubleMin = new AtomicDouble(Double.POSITIVE_INFINITY);
+        private final AtomicDouble doubleMax = new AtomicDouble(Double.NEGATIVE_INFINITY);
+        private final MetricalHistogram histogram;
+
+        Accumulator(Unit unit, MetricalHistogram histogram) {
+            this.unit = unit;
+            this.histogram = histogram;
+        }
+
+        void add(long value) {
+            longSum.addAndGet(value);
+            long min;
+            while (value < (min = longMin.get()) && !longMin.compareAndSet(min, value)) {
+                // retry
+            }
+            long max;
+            while (value > (max = longMax.get()) && !longMax.compareAndSet(max, value)) {
+                // retry
+            }
+            if (histogram != null)
+                histogram.record(value);
+            // Counted last, so that a summary which counts the value also has it in its sum
+            longCount.incrementAndGet();
+        }
+
+        void add(double value) {
+            doubleSum.addAndGet(value);
+            double min;
+            while (value < (min = doubleMin.get()) && !doubleMin.compareAndSet(min, value)) {
+                // retry
+            }
+            double max;
+            while (value > (max = doubleMax.get()) && !doubleMax.compareAndSet(max, value)) {
+                // retry
+            }
+            if (histogram != null)
+                histogram.record(value);
+            // Counted last, so that a summary which counts the value also has it in its sum
+            doubleCount.incrementAndGet();
+        }
+
+        void summarise(String metricName, MetricalEvent.MetricalEventBuilder builder) {
+            long longs = longCount.getAndSet(0);
+            long doubles = doubleCount.getAndSet(0);
+            // Values which haven't been counted yet are left for the next summary
+            if (longs + doubles == 0)
+                return;
+
+            long lSum = longSum.getAndSet(0);
+            long lMin = longMin.getAndSet(Long.MAX_VALUE);
+            long lMax = longMax.getAndSet(Long.MIN_VALUE);
+            double dSum = doubleSum.getAndSet(0);
+            double dMin = doubleMin.getAndSet(Double.POSITIVE_INFINITY);
+            double dMax = doubleMax.getAndSet(Double.NEGATIVE_INFINITY);
+
+            // The sums may include values which are still being counted, of either kind
+            builder.metric(metricName + COUNT_SUFFIX, longs + doubles, Unit.NONE);
+            if (doubles == 0 && dSum == 0) {
+                builder.metric(metricName + SUM_SUFFIX, lSum, unit);
+                builder.metric(metricName + MIN_SUFFIX, lMin, unit);
+                builder.metric(metricName + MAX_SUFFIX, lMax, unit);
+            } else if (longs == 0 && lSum == 0) {
+                builder.metric(metricName + SUM_SUFFIX, dSum, unit);
+                builder.metric(metricName + MIN_SUFFIX, dMin, unit);
+                builder.metric(metricName + MAX_SUFFIX, dMax, unit);
+            } else {
+                builder.metric(metricName + SUM_SUFFIX, lSum + dSum, unit);
+                builder.metric(metricName + MIN_SUFFIX, Math.min((double) lMin, dMin), unit);
+                builder.metric(metricName + MAX_SUFFIX, Math.max((double) lMax, dMax), unit);
+            }
+            if (histogram != null) {
+                MetricalHistogram snapshot = histogram.getAndReset();
+                if (snapshot.getCount() > 0)
+                    builder.histogram(snapshot);
+            }
+        }
+    }
+}
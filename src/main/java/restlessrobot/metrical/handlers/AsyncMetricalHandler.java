@@ -0,0 +1,255 @@
+package restlessrobot.metrical.handlers;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalStats;
+import restlessrobot.metrical.MetricalTickable;
+
+/**
+ * A handler that decouples application threads from a (potentially slow) downstream handler.
+ *
+ * Events are placed on a bounded, lock-free ring buffer and delivered to the wrapped handler by a
+ * dedicated consumer thread, so formatting and I/O (e.g. file writes and rotation in
+ * FileMetricalHandler) happen off the calling thread.  The wrapped handler is only ever called by
+ * one thread at a time.
+ *
+ * When the buffer is full, the configured OverflowPolicy decides what happens to the new event.
+ * Dropped events and events that the wrapped handler failed to process are counted rather than
+ * reported to the caller, both here and in MetricalStats.
+ */
+public class AsyncMetricalHandler implements MetricalHandler, MetricalTickable {
+    /**
+     * What to do with an event when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the event being reported. */
+        DROP_NEWEST,
+        /** Discard the oldest buffered event to make room for the event being reported. */
+        DROP_OLDEST,
+        /** Make the reporting thread wait until there is room in the buffer. */
+        BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final MetricalHandler handler;
+    private final OverflowPolicy overflowPolicy;
+    private final BoundedRingBuffer<MetricalEvent> buffer;
+    private final Object handlerLock = new Object();
+    private final AtomicLong droppedEventCount = new AtomicLong();
+    private final AtomicLong failedEventCount = new AtomicLong();
+    private final Thread consumer;
+
+    private volatile boolean running = true;
+    // Set once the consumer thread has stopped, before finish() drains the buffer for the last time
+    private volatile boolean closed;
+    private volatile boolean consumerParked;
+
+    /**
+     * Creates an AsyncMetricalHandler with the default capacity, which drops new events when the
+     * buffer is full.
+     *
+     * @param handler The handler to deliver events to
+     */
+    public AsyncMetricalHandler(MetricalHandler handler) {
+        this(handler, DEFAULT_CAPACITY, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * @param handler The handler to deliver events to
+     * @param capacity The maximum number of buffered events.  Rounded up to a power of two.
+     * @param overflowPolicy What to do with an event when the buffer is full
+     */
+    public AsyncMetricalHandler(MetricalHandler handler, int capacity, OverflowPolicy overflowPolicy) {
+        if (handler == null)
+            throw new IllegalArgumentException("No handler provided");
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("No overflow policy provided");
+
+        this.handler        = handler;
+        this.overflowPolicy = overflowPolicy;
+        this.buffer         = new BoundedRingBuffer<>(capacity);
+
+        this.consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "metrical-async-" + threadCount.incrementAndGet());
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    @Override
+    public void event(MetricalEvent event) {
+        if (!running) {
+            dropped();
+            return;
+        }
+
+        if (!buffer.offer(event)) {
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    dropped();
+                    return;
+                case DROP_OLDEST:
+                    do {
+                        if (buffer.poll() != null)
+                            dropped();
+                    } while (!buffer.offer(event));
+                    break;
+                case BLOCK:
+                    do {
+                        LockSupport.unpark(consumer);
+                        LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+                        if (!running || Thread.currentThread().isInterrupted()) {
+                            dropped();
+                            return;
+                        }
+                    } while (!buffer.offer(event));
+                    break;
+            }
+        }
+
+        // finish() may already have drained the buffer for the last time, in which case nothing
+        // else will deliver the event, so drop whatever is left
+        if (closed) {
+            while (buffer.poll() != null)
+                dropped();
+            return;
+        }
+
+        if (consumerParked)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Stops the consumer thread once all buffered events have been delivered, then finishes the
+     * wrapped handler.  Events reported after finish() are dropped, as are events reported while
+     * it's running which miss its last delivery; every event is either delivered or counted.
+     */
+    @Override
+    public void finish() {
+        if (running) {
+            running = false;
+            LockSupport.unpark(consumer);
+            boolean interrupted = false;
+            while (consumer.isAlive()) {
+                try {
+                    consumer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            // Pick up anything that raced with the consumer thread shutting down.  Reporting
+            // threads which see closed drop anything added after this.
+            closed = true;
+            drain();
+        }
+
+        synchronized (handlerLock) {
+            handler.finish();
+        }
+    }
+
+    /**
+     * Ticks the wrapped handler, on the calling thread, while no events are being delivered to it.
+     */
+    @Override
+    public void tick() throws MetricalException {
+        if (handler instanceof MetricalTickable) {
+            synchronized (handlerLock) {
+                ((MetricalTickable) handler).tick();
+            }
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        synchronized (handlerLock) {
+            handler.reset();
+        }
+    }
+
+    /**
+     * @return The number of events that were discarded because the buffer was full, or because
+     *         they were reported after finish()
+     */
+    public long getDroppedEventCount() {
+        return droppedEventCount.get();
+    }
+
+    /**
+     * @return The number of events that the wrapped handler failed to process
+     */
+    public long getFailedEventCount() {
+        return failedEventCount.get();
+    }
+
+    /**
+     * @return The approximate number of events waiting to be delivered
+     */
+    public int getQueueSize() {
+        return buffer.size();
+    }
+
+    /**
+     * @return The maximum number of events that can be buffered
+     */
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    private void dropped() {
+        droppedEventCount.incrementAndGet();
+        MetricalStats.get().increment(MetricalStats.Counter.EVENTS_DROPPED);
+    }
+
+    private void consume() {
+        while (running) {
+            if (drain() == 0) {
+                consumerParked = true;
+                if (running && buffer.isEmpty())
+                    LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+                consumerParked = false;
+            }
+        }
+        drain();
+    }
+
+    private int drain() {
+        int count = 0;
+        MetricalEvent event;
+        while ((event = buffer.poll()) != null) {
+            deliver(event);
+            count++;
+        }
+        return count;
+    }
+
+    private void deliver(MetricalEvent event) {
+        synchronized (handlerLock) {
+            try {
+                handler.event(event);
+            } catch (MetricalException | RuntimeException e) {
+                // The caller has long since moved on, so all we can do is count the failure
+                failedEventCount.incrementAndGet();
+                MetricalStats.get().increment(MetricalStats.Counter.EVENTS_FAILED);
+            }
+        }
+    }
+}
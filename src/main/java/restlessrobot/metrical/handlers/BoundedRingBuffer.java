@@ -0,0 +1,112 @@
+package restlessrobot.metrical.handlers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer ring buffer.
+ *
+ * Each slot carries a sequence number which tells producers and consumers whether the slot is
+ * free for the current lap of the ring (after D. Vyukov's bounded MPMC queue).  Producers and
+ * consumers only contend on a single CAS of the tail or head counter respectively, so offer() and
+ * poll() never block and never allocate.
+ *
+ * @param <E> The type of the buffered elements
+ */
+class BoundedRingBuffer<E> {
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity The minimum capacity of the buffer.  This is rounded up to the next power of
+     *                 two.
+     */
+    BoundedRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+        this.capacity  = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask      = this.capacity - 1;
+        this.elements  = new AtomicReferenceArray<>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element to the tail of the buffer, unless the buffer is full.
+     *
+     * @param element The element to add
+     * @return true if the element was added, false if the buffer was full
+     */
+    boolean offer(E element) {
+        if (element == null) throw new NullPointerException();
+
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the head of the buffer.
+     *
+     * @return The removed element, or null if the buffer was empty
+     */
+    E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, pos + capacity);
+                    return element;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return The approximate number of elements in the buffer.  The value is exact if there are
+     *         no concurrent offer() or poll() calls.
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,91 @@
+package restlessrobot.metrical.handlers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+
+/**
+ * Writes to a FileChannel through a direct buffer, which is flushed when it fills up, on flush()
+ * and when the sink is closed.  Bytes which are still buffered are lost if the process dies.
+ *
+ * Write buffers are taken from a pool shared by the sinks of a handler, and returned to it when
+ * the sink is closed, so that a sink can be closed by another thread while the next one is in use.
+ */
+class ChannelFileSink implements FileSink {
+    static final int WRITE_BUFFER_BYTES = 8 * 1024;
+
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final Queue<ByteBuffer> writeBuffers;
+    private final ByteBuffer writeBuffer;
+
+    /**
+     * @param file The file to write, which is created or truncated
+     * @param writeBuffers The pool of empty buffers to write through, which is thread-safe and
+     *                     may be bounded
+     * @throws IOException Thrown if the file can't be opened
+     */
+    ChannelFileSink(File file, Queue<ByteBuffer> writeBuffers) throws IOException {
+        this.stream       = new FileOutputStream(file);
+        this.channel      = stream.getChannel();
+        this.writeBuffers = writeBuffers;
+
+        ByteBuffer pooled = writeBuffers.poll();
+        this.writeBuffer  = pooled != null ? pooled : ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+        if (bytes.remaining() > writeBuffer.remaining()) {
+            flushWriteBuffer();
+            if (bytes.remaining() > writeBuffer.remaining()) {
+                writeFully(bytes);
+                return;
+            }
+        }
+        writeBuffer.put(bytes);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushWriteBuffer();
+    }
+
+    @Override
+    public void force() throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // The file was closed (and forced first, if that was required) by another thread
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushWriteBuffer();
+        } finally {
+            stream.close();
+            writeBuffers.offer(writeBuffer);
+        }
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        try {
+            writeFully(writeBuffer);
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package restlessrobot.metrical.handlers;
+
+import java.io.IOException;
+
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalRecordHandler;
+import restlessrobot.metrical.MetricalStats;
+import restlessrobot.metrical.MetricalTickable;
+
+/**
+ * A handler that delivers every event to several child handlers, like ForkingMetricalHandler, but
+ * gives each child its own AsyncMetricalHandler - a bounded queue and a consumer thread - so that
+ * the children don't affect each other or the reporting thread.  A slow child only falls behind
+ * (and drops events once its queue is full, according to the overflow policy), and a child that
+ * fails only has its own failures counted; the other children still get every event.
+ *
+ * Children that are already AsyncMetricalHandlers are used as they are, rather than wrapped again.
+ *
+ * Each child's lag (the number of events waiting for it), dropped events and failed events can be
+ * read with the methods that take a child's index, which is its position in the constructor's
+ * arguments.
+ *
+ * Records are converted to MetricalEvents once, before being queued, since the children deliver
+ * them after the reporting thread has moved on.
+ */
+public class FanOutMetricalHandler implements MetricalRecordHandler, MetricalTickable {
+    private final AsyncMetricalHandler[] children;
+
+    /**
+     * Creates a handler which queues up to AsyncMetricalHandler.DEFAULT_CAPACITY events for each
+     * child, and drops new events for a child whose queue is full.
+     *
+     * @param handlers The child handlers
+     */
+    public FanOutMetricalHandler(MetricalHandler... handlers) {
+        this(AsyncMetricalHandler.DEFAULT_CAPACITY, AsyncMetricalHandler.OverflowPolicy.DROP_NEWEST, handlers);
+    }
+
+    /**
+     * @param capacity The maximum number of events queued for each child
+     * @param overflowPolicy What to do with an event for a child whose queue is full
+     * @param handlers The child handlers
+     */
+    public FanOutMetricalHandler(int capacity, AsyncMetricalHandler.OverflowPolicy overflowPolicy,
+            MetricalHandler... handlers) {
+        if (handlers == null || handlers.length == 0)
+            throw new IllegalArgumentException("No handlers provided");
+        for (MetricalHandler handler : handlers) {
+            if (handler == null)
+                throw new IllegalArgumentException("No handler provided");
+        }
+
+        this.children = new AsyncMetricalHandler[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            children[i] = handlers[i] instanceof AsyncMetricalHandler
+                    ? (AsyncMetricalHandler) handlers[i]
+                    : new AsyncMetricalHandler(handlers[i], capacity, overflowPolicy);
+        }
+    }
+
+    @Override
+    public void event(MetricalEvent event) {
+        for (AsyncMetricalHandler child : children) {
+            child.event(event);
+        }
+    }
+
+    @Override
+    public void record(MetricalEventRecord record) {
+        event(record.toEvent());
+    }
+
+    /**
+     * Finishes every child, once each has delivered its queued events.  A child that fails to
+     * finish doesn't stop the others from finishing.
+     */
+    @Override
+    public void finish() {
+        for (AsyncMetricalHandler child : children) {
+            try {
+                child.finish();
+            } catch (RuntimeException e) {
+                // Carry on finishing the others, but count the failure
+                MetricalStats.get().increment(MetricalStats.Counter.EVENTS_FAILED);
+            }
+        }
+    }
+
+    /**
+     * Ticks every child, even if ticking one of them fails.
+     *
+     * @throws MetricalException The first failure, if any child failed to tick
+     */
+    @Override
+    public void tick() throws MetricalException {
+        MetricalException failure = null;
+        for (AsyncMetricalHandler child : children) {
+            try {
+                child.tick();
+            } catch (MetricalException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Resets every child, even if resetting one of them fails.
+     *
+     * @throws IOException The first failure, if any child failed to reset
+     */
+    @Override
+    public void reset() throws IOException {
+        IOException failure = null;
+        for (AsyncMetricalHandler child : children) {
+            try {
+                child.reset();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * @return The number of child handlers
+     */
+    public int getHandlerCount() {
+        return children.length;
+    }
+
+    /**
+     * @param index The index of a child handler
+     * @return The approximate number of events waiting to be delivered to the child
+     */
+    public int getQueueSize(int index) {
+        return children[index].getQueueSize();
+    }
+
+    /**
+     * @param index The index of a child handler
+     * @return The number of events discarded for the child because its queue was full, or because
+     *         they were reported after finish()
+     */
+    public long getDroppedEventCount(int index) {
+        return children[index].getDroppedEventCount();
+    }
+
+    /**
+     * @param index The index of a child handler
+     * @return The number of events that the child failed to process
+     */
+    public long getFailedEventCount(int index) {
+        return children[index].getFailedEventCount();
+    }
+}
@@ -2,20 +2,99 @@ package restlessrobot.metrical.handlers;
 
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Queue;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import restlessrobot.metrical.ByteMetricalFormatter;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalStats;
 
 /**
  * Created by simon on 11/06/14.
+ *
+ * Writes UTF-8 text (or the output of a ByteMetricalFormatter, such as BinaryMetricalFormatter) to
+ * a new file each time the output is rotated.  By default the output is written to a FileChannel
+ * through a direct buffer, which is flushed when it fills up, when the file is rotated and on
+ * finish().  In OutputMode.MAPPED the output is copied into memory-mapped segments of the file
+ * instead, so that nothing is lost if the JVM crashes.  In OutputMode.GZIP the output is
+ * compressed as it's written, in blocks, by another background thread (so the path suffix should
+ * end in ".gz").  MetricalLogReader decompresses gzip files transparently.
+ *
+ * Rotation is kept off the reporting threads as far as possible: the next file is opened in
+ * advance by a background thread, under a temporary name ending in ".tmp", and is renamed when the
+ * output is rotated to it.  The file being rotated away from is flushed and closed by the same
+ * background thread.  finish() waits for the background thread to close all the files.
+ *
+ * By default nothing is forced to the disk, so output can be lost if the operating system crashes.
+ * With Durability.GROUP_COMMIT a background thread forces the current file at the commit interval,
+ * or sooner when the commit size is reached, so that each force() covers many events; files are
+ * also forced before they're closed.  Durability.GROUP_COMMIT_ACKNOWLEDGED also makes each
+ * reporting thread wait until its event is on the disk, and awaitDurable() lets callers wait for
+ * that selectively.  If a file can't be forced or closed, only the threads waiting for its events
+ * are given the failure, and later files are committed as usual.
  */
 public class FileMetricalHandler extends TextOutputMetricalHandler {
+    public enum OutputMode {
+        /**
+         * Write through a buffer, which is flushed when it fills up and when the file is closed.
+         */
+        BUFFERED,
+
+        /**
+         * Copy into memory-mapped segments of the file, which are preallocated as required and
+         * truncated when the file is closed.
+         */
+        MAPPED,
+
+        /**
+         * Compress with gzip, a block at a time in the background.  The file can be decompressed
+         * up to the last block compressed before it's closed.
+         */
+        GZIP
+    }
+
+    public enum Durability {
+        /**
+         * Leave the operating system to write the output to the disk.
+         */
+        NONE,
+
+        /**
+         * Force the output to the disk from a background thread, in batches.
+         */
+        GROUP_COMMIT,
+
+        /**
+         * As GROUP_COMMIT, but event(...) doesn't return until the event is on the disk.
+         */
+        GROUP_COMMIT_ACKNOWLEDGED
+    }
+
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 100;
+    public static final long DEFAULT_COMMIT_SIZE_BYTES = 1024 * 1024;
+
     // Construct DateFormat per-thread, because it's not thread-safe
     private static final ThreadLocal<DateFormat> ISO_TIMESTAMP_FORMAT
             = new ThreadLocal<DateFormat>() {
@@ -28,61 +107,469 @@ public class FileMetricalHandler extends TextOutputMetricalHandler {
         }
     };
 
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+    private static final int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    // Enough write buffers for the current file, the next one and one being closed
+    private static final int MAX_POOLED_WRITE_BUFFERS = 3;
+    private static final String NEXT_FILE_SUFFIX = ".tmp";
+    private static final AtomicInteger rotatorThreadCount = new AtomicInteger();
+    private static final AtomicInteger compressorThreadCount = new AtomicInteger();
+
     private final String pathStem;
     private final String pathSuffix;
+    private final Queue<ByteBuffer> writeBuffers = new ArrayBlockingQueue<>(MAX_POOLED_WRITE_BUFFERS);
+    private final AtomicInteger nextFileCount = new AtomicInteger();
+    // The start and end positions of each thread's last output, tracked once there's a committer
+    private final ThreadLocal<long[]> lastOutput = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
 
-    private Writer currentWriter;
+    private volatile OutputMode outputMode = OutputMode.BUFFERED;
+    private volatile Durability durability = Durability.NONE;
+    private volatile long commitIntervalMillis = DEFAULT_COMMIT_INTERVAL_MILLIS;
+    private volatile long commitSizeBytes = DEFAULT_COMMIT_SIZE_BYTES;
+    private FileSink currentSink;
     private String currentPath;
+    private GroupCommitter committer;
+    private long writtenBytes;
+    private long flushedBytes;
+    // The value of writtenBytes when the current file was started
+    private long fileStartBytes;
+    private ExecutorService rotator;
+    private ExecutorService compressor;
+    private Future<NextFile> nextFile;
+    private Future<Void> lastClose;
 
     public FileMetricalHandler(String pathStem, String pathSuffix) {
         this.pathStem = pathStem;
         this.pathSuffix = pathSuffix;
     }
 
+    /**
+     * Creates a handler which writes files in a format other than the default text format, e.g.
+     * with a BinaryMetricalFormatter.
+     *
+     * @param pathStem The start of the path of each file, which is followed by the time it was
+     *                 created
+     * @param pathSuffix The end of the path of each file
+     * @param formatter The formatter to write events with
+     */
+    public FileMetricalHandler(String pathStem, String pathSuffix, ByteMetricalFormatter formatter) {
+        super(formatter);
+        this.pathStem = pathStem;
+        this.pathSuffix = pathSuffix;
+    }
+
     @Override
     protected void output(String text) throws IOException {
-        if (currentWriter == null) {
+        output(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    protected void output(ByteBuffer bytes) throws IOException {
+        if (currentSink == null) {
             startNewFile();
         }
-        currentWriter.write(text);
+        int length = bytes.remaining();
+        currentSink.write(bytes);
+        writtenBytes += length;
+
+        if (committer == null && durability != Durability.NONE)
+            committer = new GroupCommitter(this);
+        if (committer != null) {
+            long[] range = lastOutput.get();
+            range[0] = writtenBytes - length;
+            range[1] = writtenBytes;
+            committer.written(writtenBytes);
+        }
+    }
+
+    @Override
+    public void event(MetricalEvent event) throws MetricalException {
+        super.event(event);
+        acknowledge();
+    }
+
+    @Override
+    public void record(MetricalEventRecord record) throws MetricalException {
+        super.record(record);
+        acknowledge();
+    }
+
+    private void acknowledge() throws MetricalException {
+        if (durability == Durability.GROUP_COMMIT_ACKNOWLEDGED) {
+            try {
+                awaitDurable();
+            } catch (IOException e) {
+                throw new MetricalException("Failed to commit event", e);
+            }
+        }
+    }
+
+    /**
+     * Waits until all the events written so far are on the disk.  With group commit, this waits
+     * for the background thread to force them (along with any other events written meanwhile);
+     * otherwise it forces the current file directly, and files which have already been rotated
+     * are left to the operating system.
+     *
+     * @throws IOException Thrown if the events can't be forced to the disk.  With group commit,
+     *                     only failures to commit the calling thread's last event, or anything
+     *                     written after it, are thrown.
+     */
+    public void awaitDurable() throws IOException {
+        GroupCommitter currentCommitter;
+        long position;
+        synchronized (this) {
+            currentCommitter = committer;
+            position = writtenBytes;
+        }
+        if (currentCommitter != null) {
+            long[] range = lastOutput.get();
+            // A thread which hasn't written anything has no output of its own to fail
+            long startPosition = range[1] > 0 ? range[0] : position;
+            currentCommitter.await(startPosition, position);
+        } else {
+            commit();
+        }
+    }
+
+    /**
+     * Flushes the current file while holding this handler's monitor, then forces it to the disk
+     * without holding the monitor, so that events can still be written meanwhile.  Also waits for
+     * any files which have been rotated to be closed.
+     *
+     * @return The position up to which the output is now durable
+     * @throws IOException Thrown if the file can't be flushed or forced
+     */
+    long commit() throws IOException {
+        FileSink sink;
+        long position;
+        Future<Void> close;
+        synchronized (this) {
+            sink = currentSink;
+            position = writtenBytes;
+            close = lastClose;
+            if (sink != null)
+                sink.flush();
+        }
+        if (sink != null)
+            sink.force();
+        // Files are closed in order, so the last one closed covers all the earlier ones
+        if (close != null)
+            await(close);
+        return position;
     }
 
     @Override
     public void finish() {
-        try {
-            if (currentWriter != null) {
-                currentWriter.flush();
+        GroupCommitter finishedCommitter;
+        ExecutorService finishedRotator;
+        ExecutorService finishedCompressor;
+        synchronized (this) {
+            try {
+                reset();
+            } catch (IOException e) {
+                // suppress exception.
+                e.printStackTrace();
             }
-            reset();
-        } catch (IOException e) {
-            // suppress exception.
-            e.printStackTrace();
+            if (nextFile != null) {
+                discardInBackground(nextFile);
+                nextFile = null;
+            }
+            finishedCommitter = committer;
+            committer = null;
+            finishedRotator = rotator;
+            rotator = null;
+            finishedCompressor = compressor;
+            compressor = null;
+            lastClose = null;
         }
+
+        // Outside the monitor, because the committer may be waiting for it.  The rotator closes
+        // files, which waits for the compressor, so it's shut down first.
+        if (finishedRotator != null)
+            shutdown(finishedRotator);
+        if (finishedCompressor != null)
+            shutdown(finishedCompressor);
+        if (finishedCommitter != null)
+            finishedCommitter.close();
     }
 
-    private Writer startNewFile() throws IOException {
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void startNewFile() throws IOException {
         String isoTimestamp = ISO_TIMESTAMP_FORMAT.get().format(new Date(getTimeProvider().currentTimeMillis()));
         String path = new StringBuilder(pathStem).append(isoTimestamp).append(pathSuffix).toString();
 
         File f = new File(path);
-        Writer writer = new BufferedWriter(new FileWriter(f));
+        FileSink sink = takeNextFile(f);
+        if (sink == null) {
+            OutputMode mode = outputMode;
+            sink = openSink(f, mode, mode == OutputMode.GZIP ? compressor() : null);
+        }
+
+        currentPath = path;
+        currentSink = sink;
+        fileStartBytes = writtenBytes;
+
+        if (nextFile == null)
+            nextFile = prepareNextFile();
+    }
+
+    /**
+     * Renames the file opened in advance to the given path, if it's ready.
+     *
+     * @return The sink for the file, or null if the file isn't ready or can't be used
+     */
+    private FileSink takeNextFile(File f) {
+        Future<NextFile> prepared = nextFile;
+        if (prepared == null || !prepared.isDone())
+            return null;
 
-        currentPath           = path;
-        currentWriter         = writer;
-        return writer;
+        nextFile = null;
+        NextFile next;
+        try {
+            next = prepared.get();
+        } catch (ExecutionException | InterruptedException e) {
+            // The file is opened the slow way instead, which reports any failure to the caller
+            return null;
+        }
+
+        if (next.outputMode == outputMode) {
+            try {
+                Files.move(next.file.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return next.sink;
+            } catch (IOException e) {
+                // e.g. the platform can't rename open files, so open the file the slow way
+            }
+        }
+        discardInBackground(prepared);
+        return null;
+    }
+
+    private Future<NextFile> prepareNextFile() {
+        final OutputMode mode = outputMode;
+        // The compressor is started here, because the monitor isn't held in the background
+        final Executor fileCompressor = mode == OutputMode.GZIP ? compressor() : null;
+        final File f = new File(new StringBuilder(pathStem).append("next-").append(nextFileCount.incrementAndGet())
+                .append(pathSuffix).append(NEXT_FILE_SUFFIX).toString());
+        return rotator().submit(new Callable<NextFile>() {
+            @Override
+            public NextFile call() throws IOException {
+                return new NextFile(f, openSink(f, mode, fileCompressor), mode);
+            }
+        });
+    }
+
+    private void discardInBackground(final Future<NextFile> prepared) {
+        rotator().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // The file has been opened by now, because the rotator runs tasks in order
+                NextFile next = prepared.get();
+                try {
+                    next.sink.close();
+                } finally {
+                    if (!next.file.delete())
+                        next.file.deleteOnExit();
+                }
+                return null;
+            }
+        });
     }
 
-    public void reset() throws IOException {
+    @VisibleForTesting
+    FileSink openSink(File f, OutputMode mode, Executor fileCompressor) throws IOException {
+        switch (mode) {
+            case MAPPED:
+                // Map enough for a whole file, so that most files only need one segment
+                long segmentBytes = Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, getRotateSizeLimitBytes()));
+                return new MappedFileSink(f, (int) segmentBytes);
+            case GZIP:
+                return new GzipFileSink(f, fileCompressor);
+            default:
+                return new ChannelFileSink(f, writeBuffers);
+        }
+    }
+
+    /**
+     * Flushes the current file, if anything has been written to it since it was last flushed, so
+     * that output doesn't sit in the buffer while no events arrive.
+     */
+    @Override
+    protected void flush() throws IOException {
+        if (currentSink != null && flushedBytes != writtenBytes) {
+            currentSink.flush();
+            flushedBytes = writtenBytes;
+        }
+    }
+
+    public synchronized void reset() throws IOException {
         super.reset();
-        if (currentWriter != null) {
-            currentWriter.close();
-            currentWriter = null;
+        if (currentSink != null) {
+            lastClose = closeInBackground(currentSink, committer, fileStartBytes, writtenBytes);
+            currentSink = null;
         }
         currentPath = null;
     }
 
+    /**
+     * Closes a file on the rotator thread, first forcing it to the disk if there's a committer to
+     * tell.  If the file can't be forced or closed, the committer is told instead of the close
+     * failing, so that it never reports the file's output as durable, but can carry on committing
+     * later files.
+     */
+    private Future<Void> closeInBackground(final FileSink sink, final GroupCommitter fileCommitter,
+            final long startPosition, final long position) {
+        return rotator().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    if (fileCommitter != null) {
+                        sink.flush();
+                        sink.force();
+                    }
+                    sink.close();
+                } catch (IOException e) {
+                    if (fileCommitter == null) {
+                        // Thrown to anyone waiting for the file to be closed, and counted
+                        MetricalStats.get().increment(MetricalStats.Counter.COMMITS_FAILED);
+                        throw e;
+                    }
+                    fileCommitter.failed(startPosition, position, e);
+                    return null;
+                }
+                if (fileCommitter != null)
+                    fileCommitter.committed(position);
+                return null;
+            }
+        });
+    }
+
+    private ExecutorService rotator() {
+        if (rotator == null)
+            rotator = newDaemonExecutor("metrical-rotate-", rotatorThreadCount);
+        return rotator;
+    }
+
+    private ExecutorService compressor() {
+        if (compressor == null)
+            compressor = newDaemonExecutor("metrical-compress-", compressorThreadCount);
+        return compressor;
+    }
+
+    private static ExecutorService newDaemonExecutor(final String namePrefix, final AtomicInteger threadCount) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static void await(Future<Void> close) throws IOException {
+        try {
+            close.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to close file", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for file to close");
+        }
+    }
+
+    /**
+     * Sets how text is written to files.  The mode takes effect from the next file.
+     *
+     * @param outputMode The output mode
+     */
+    public void setOutputMode(OutputMode outputMode) {
+        if (outputMode == null)
+            throw new IllegalArgumentException("No output mode provided");
+
+        this.outputMode = outputMode;
+    }
+
+    /**
+     * Sets whether output is forced to the disk.  Group commit starts with the next event.
+     *
+     * @param durability The durability
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null)
+            throw new IllegalArgumentException("No durability provided");
+
+        this.durability = durability;
+    }
+
+    long getCommitIntervalMillis() {
+        return commitIntervalMillis;
+    }
+
+    /**
+     * Sets the longest time that output waits to be committed with group commit.
+     *
+     * @param commitIntervalMillis The commit interval
+     */
+    public void setCommitIntervalMillis(long commitIntervalMillis) {
+        if (commitIntervalMillis < 1)
+            throw new IllegalArgumentException("Invalid commit interval: " + commitIntervalMillis);
+
+        this.commitIntervalMillis = commitIntervalMillis;
+    }
+
+    long getCommitSizeBytes() {
+        return commitSizeBytes;
+    }
+
+    /**
+     * Sets the amount of output which starts a commit before the commit interval has passed,
+     * with group commit.
+     *
+     * @param commitSizeBytes The commit size
+     */
+    public void setCommitSizeBytes(long commitSizeBytes) {
+        if (commitSizeBytes < 1)
+            throw new IllegalArgumentException("Invalid commit size: " + commitSizeBytes);
+
+        this.commitSizeBytes = commitSizeBytes;
+    }
+
     @VisibleForTesting
-    String getCurrentPath() {
+    synchronized String getCurrentPath() {
         return currentPath;
     }
+
+    /**
+     * A file opened in advance under a temporary name.
+     */
+    private static final class NextFile {
+        private final File file;
+        private final FileSink sink;
+        private final OutputMode outputMode;
+
+        NextFile(File file, FileSink sink, OutputMode outputMode) {
+            this.file       = file;
+            this.sink       = sink;
+            this.outputMode = outputMode;
+        }
+    }
 }
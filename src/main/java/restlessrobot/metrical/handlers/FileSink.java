@@ -0,0 +1,47 @@
+package restlessrobot.metrical.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The destination of the bytes written by FileMetricalHandler to a single file.  A sink is
+ * created for each file, and closed when the file is rotated or the handler finishes.
+ *
+ * Sinks aren't thread-safe - apart from force(), FileMetricalHandler only calls them while holding
+ * its monitor.
+ */
+interface FileSink {
+    /**
+     * Writes all the remaining bytes in a buffer.  The buffer may be reused once this method
+     * returns, so implementations must not keep it.
+     *
+     * @param bytes The bytes to write
+     * @throws IOException Thrown if the bytes can't be written
+     */
+    void write(ByteBuffer bytes) throws IOException;
+
+    /**
+     * Passes any buffered bytes to the operating system, without waiting for them to reach the
+     * disk.
+     *
+     * @throws IOException Thrown if the bytes can't be written
+     */
+    void flush() throws IOException;
+
+    /**
+     * Waits until all the bytes passed to the operating system have reached the disk.  Unlike the
+     * other methods, this can be called from any thread, concurrently with write(...) and
+     * flush(), so that writing can carry on while the disk catches up.  If the sink is closed
+     * meanwhile, this may return without forcing anything.
+     *
+     * @throws IOException Thrown if the bytes can't be forced to the disk
+     */
+    void force() throws IOException;
+
+    /**
+     * Writes out any buffered bytes and closes the file.
+     *
+     * @throws IOException Thrown if the file can't be written or closed
+     */
+    void close() throws IOException;
+}
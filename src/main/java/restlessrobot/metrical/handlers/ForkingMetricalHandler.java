@@ -3,13 +3,16 @@ package restlessrobot.metrical.handlers;
 import java.io.IOException;
 
 import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
 import restlessrobot.metrical.MetricalException;
 import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalRecordHandler;
+import restlessrobot.metrical.MetricalTickable;
 
 /**
  * Created by simon on 06/06/14.
  */
-public class ForkingMetricalHandler implements MetricalHandler {
+public class ForkingMetricalHandler implements MetricalRecordHandler, MetricalTickable {
     private final MetricalHandler[] handlers;
 
     public ForkingMetricalHandler(MetricalHandler... handlers) {
@@ -23,6 +26,38 @@ public class ForkingMetricalHandler implements MetricalHandler {
         }
     }
 
+    @Override
+    public void record(MetricalEventRecord record) throws MetricalException {
+        MetricalEvent event = null;
+        for (MetricalHandler handler : handlers) {
+            if (handler instanceof MetricalRecordHandler) {
+                ((MetricalRecordHandler) handler).record(record);
+            } else {
+                // Only build an event if one of the handlers needs it
+                if (event == null)
+                    event = record.toEvent();
+                handler.event(event);
+            }
+        }
+    }
+
+    @Override
+    public void tick() throws MetricalException {
+        MetricalException failure = null;
+        for (MetricalHandler handler : handlers) {
+            if (handler instanceof MetricalTickable) {
+                try {
+                    ((MetricalTickable) handler).tick();
+                } catch (MetricalException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
     @Override
     public void finish() {
         for (MetricalHandler handler : handlers) {
@@ -0,0 +1,249 @@
+package restlessrobot.metrical.handlers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import restlessrobot.metrical.MetricalStats;
+
+/**
+ * Makes the output of a FileMetricalHandler durable from a background thread, so that a single
+ * force() covers every event written since the previous one (group commit).
+ *
+ * Output is tracked as a position: the total number of bytes the handler has written, across all
+ * its files.  A commit is started when the bytes written since the last one reach the handler's
+ * commit size, when its commit interval has passed, or straight away if any thread is waiting in
+ * await(...).  Events written while a commit is in progress are picked up by the next one.
+ *
+ * When a file can't be forced or closed, or a commit fails, the range of output it covered is
+ * recorded as failed (and counted in MetricalStats as COMMITS_FAILED), and waiters for any output
+ * in that range are given the failure.  Later output is committed as usual.  Only the most recent
+ * MAX_FAILED_RANGES ranges are kept apart; older ones are merged, which may make the output
+ * between them look failed too, but never makes failed output look durable.
+ *
+ * Lock ordering: the handler's monitor may be held when calling this class's methods, but this
+ * class never holds its own lock while calling the handler.
+ */
+class GroupCommitter {
+    static final int MAX_FAILED_RANGES = 16;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final FileMetricalHandler handler;
+    private final Object lock = new Object();
+    private final Thread thread;
+
+    private volatile long writtenPosition;
+
+    // Guarded by lock
+    private long committedPosition;
+    // The output which failed to be committed, oldest first
+    private final List<FailedRange> failedRanges = new ArrayList<>();
+    private int waiterCount;
+    private boolean running = true;
+
+    GroupCommitter(FileMetricalHandler handler) {
+        this.handler = handler;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitUntilClosed();
+            }
+        }, "metrical-commit-" + threadCount.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Records that the handler has written output up to a position.
+     *
+     * @param position The handler's total output
+     */
+    void written(long position) {
+        long previous = writtenPosition;
+        writtenPosition = position;
+
+        long sizeBytes = handler.getCommitSizeBytes();
+        synchronized (lock) {
+            // Only wake the committer when the threshold is crossed, rather than for every event
+            if (position - committedPosition >= sizeBytes && previous - committedPosition < sizeBytes)
+                lock.notifyAll();
+        }
+    }
+
+    /**
+     * Records that the handler's output is durable up to a position, e.g. because it forced a
+     * file before closing it.
+     *
+     * @param position The position
+     */
+    void committed(long position) {
+        synchronized (lock) {
+            if (position > committedPosition) {
+                committedPosition = position;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Records that a file couldn't be forced or closed, so its output may not be durable.  Waiters
+     * for any of the file's output are given the failure, even once later files have been
+     * committed.  Must be called before the file's position is reported as committed.
+     *
+     * @param startPosition The position at the start of the file
+     * @param endPosition The position at the end of the file
+     * @param e The failure
+     */
+    void failed(long startPosition, long endPosition, IOException e) {
+        synchronized (lock) {
+            addFailedRange(startPosition, endPosition, e);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the handler's output is durable up to a position.
+     *
+     * @param startPosition The start of the output the caller is interested in, which has to be
+     *                      committed successfully
+     * @param position The position
+     * @throws IOException Thrown if any of the output from the start position to the position
+     *                     failed to be committed
+     */
+    void await(long startPosition, long position) throws IOException {
+        synchronized (lock) {
+            checkFailure(startPosition, position);
+            if (committedPosition >= position)
+                return;
+
+            waiterCount++;
+            try {
+                lock.notifyAll();
+                while (committedPosition < position) {
+                    checkFailure(startPosition, position);
+                    if (!running)
+                        throw new IOException("Committer stopped");
+                    lock.wait();
+                }
+                // The failure of a file is recorded before its position is committed
+                checkFailure(startPosition, position);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for commit");
+            } finally {
+                waiterCount--;
+            }
+        }
+    }
+
+    /**
+     * Stops the background thread, once any commit in progress has finished.  Must not be called
+     * while holding the handler's monitor, which the thread may be waiting for.
+     */
+    void close() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void commitUntilClosed() {
+        long lastCommitNanos = System.nanoTime();
+        while (true) {
+            synchronized (lock) {
+                try {
+                    while (running && !isCommitDue(lastCommitNanos)) {
+                        lock.wait(Math.max(1, handler.getCommitIntervalMillis() - elapsedMillis(lastCommitNanos)));
+                    }
+                } catch (InterruptedException e) {
+                    // Only close() stops the committer
+                }
+                if (!running)
+                    return;
+            }
+
+            lastCommitNanos = System.nanoTime();
+            try {
+                committed(handler.commit());
+            } catch (IOException | RuntimeException e) {
+                synchronized (lock) {
+                    // The commit covered at most the output written up to now
+                    addFailedRange(committedPosition, writtenPosition,
+                            e instanceof IOException ? (IOException) e : new IOException(e));
+                    lock.notifyAll();
+
+                    // Don't retry until the next interval, even if there are more waiters
+                    try {
+                        if (running)
+                            lock.wait(Math.max(1, handler.getCommitIntervalMillis()));
+                    } catch (InterruptedException ie) {
+                        // Only close() stops the committer
+                    }
+                }
+            }
+        }
+    }
+
+    // Must hold lock
+    private void addFailedRange(long startPosition, long endPosition, IOException e) {
+        MetricalStats.get().increment(MetricalStats.Counter.COMMITS_FAILED);
+        if (failedRanges.size() == MAX_FAILED_RANGES) {
+            FailedRange oldest = failedRanges.remove(0);
+            FailedRange next = failedRanges.get(0);
+            failedRanges.set(0, new FailedRange(Math.min(oldest.startPosition, next.startPosition),
+                    Math.max(oldest.endPosition, next.endPosition), next.failure));
+        }
+        failedRanges.add(new FailedRange(startPosition, endPosition, e));
+    }
+
+    // Must hold lock.  Throws the most recent failure to commit any output in the range.
+    private void checkFailure(long startPosition, long endPosition) throws IOException {
+        for (int i = failedRanges.size() - 1; i >= 0; i--) {
+            FailedRange range = failedRanges.get(i);
+            if (range.startPosition < endPosition && startPosition < range.endPosition)
+                throw new IOException("Failed to commit output", range.failure);
+        }
+    }
+
+    // Must hold lock
+    private boolean isCommitDue(long lastCommitNanos) {
+        long pending = writtenPosition - committedPosition;
+        if (pending <= 0)
+            return false;
+        if (waiterCount > 0 || pending >= handler.getCommitSizeBytes())
+            return true;
+        return elapsedMillis(lastCommitNanos) >= handler.getCommitIntervalMillis();
+    }
+
+    private static long elapsedMillis(long sinceNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sinceNanos);
+    }
+
+    /**
+     * Output, from startPosition up to endPosition, which failed to be committed.
+     */
+    private static final class FailedRange {
+        private final long startPosition;
+        private final long endPosition;
+        private final IOException failure;
+
+        FailedRange(long startPosition, long endPosition, IOException failure) {
+            this.startPosition = startPosition;
+            this.endPosition   = endPosition;
+            this.failure       = failure;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package restlessrobot.metrical.handlers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gzip-compressed file.  Bytes are copied into blocks, and each block is compressed by
+ * a background executor when it fills up (or on flush()), so that the writing thread doesn't pay
+ * for compression.  Each block is followed by a sync flush, so the file can be decompressed up to
+ * the end of the last block compressed even before it's closed; closing the sink compresses the
+ * final block and writes the gzip trailer.
+ *
+ * A few blocks can be waiting to be compressed at once.  If compression falls further behind
+ * than that, write(...) waits for it.
+ */
+class GzipFileSink implements FileSink {
+    static final int BLOCK_BYTES = 64 * 1024;
+    private static final int MAX_BLOCKS = 4;
+
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final GZIPOutputStream gzip;
+    private final Executor compressor;
+    private final BlockingQueue<byte[]> freeBlocks = new ArrayBlockingQueue<>(MAX_BLOCKS);
+    private int blockCount;
+    private byte[] block;
+    private int blockLength;
+
+    private volatile FutureTask<Void> lastBlock;
+    private volatile IOException failure;
+
+    /**
+     * @param file The file to write, which is created or truncated
+     * @param compressor The executor to compress blocks with, which must run them in the order
+     *                   they're submitted
+     * @throws IOException Thrown if the file can't be opened
+     */
+    GzipFileSink(File file, Executor compressor) throws IOException {
+        this.stream     = new FileOutputStream(file);
+        this.channel    = stream.getChannel();
+        this.compressor = compressor;
+        try {
+            this.gzip   = new GZIPOutputStream(stream, BLOCK_BYTES, true);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        this.block      = takeBlock();
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+        if (failure != null)
+            throw new IOException("Failed to compress output", failure);
+
+        while (bytes.hasRemaining()) {
+            int length = Math.min(bytes.remaining(), block.length - blockLength);
+            bytes.get(block, blockLength, length);
+            blockLength += length;
+            if (blockLength == block.length)
+                compressBlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0)
+            compressBlock();
+    }
+
+    @Override
+    public void force() throws IOException {
+        FutureTask<Void> last = lastBlock;
+        if (last != null)
+            await(last);
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // The file was closed (and forced first, if that was required) by another thread
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            FutureTask<Void> last = lastBlock;
+            if (last != null)
+                await(last);
+            gzip.close();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void compressBlock() throws IOException {
+        final byte[] full = block;
+        final int length = blockLength;
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    if (failure == null) {
+                        gzip.write(full, 0, length);
+                        gzip.flush();
+                    }
+                    return null;
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    freeBlocks.offer(full);
+                }
+            }
+        });
+        lastBlock = task;
+        compressor.execute(task);
+
+        block = takeBlock();
+        blockLength = 0;
+    }
+
+    private byte[] takeBlock() throws IOException {
+        byte[] free = freeBlocks.poll();
+        if (free != null)
+            return free;
+        if (blockCount < MAX_BLOCKS) {
+            blockCount++;
+            return new byte[BLOCK_BYTES];
+        }
+        try {
+            return freeBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for compression");
+        }
+    }
+
+    private static void await(FutureTask<Void> task) throws IOException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress output", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for compression");
+        }
+    }
+}
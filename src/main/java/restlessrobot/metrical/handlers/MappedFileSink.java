@@ -0,0 +1,122 @@
+package restlessrobot.metrical.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes by copying into memory-mapped segments of a file.  The first segment is mapped when the
+ * sink is created, and each subsequent one when the previous one fills up, and the file is
+ * truncated to the bytes actually written when the sink is closed.
+ *
+ * Writes only copy bytes into the page cache, so they're visible to other processes straight
+ * away, and survive the JVM crashing (but not the operating system) without any flushing.  A file
+ * which wasn't closed has zero bytes after its last event, up to the end of the segment, which
+ * MetricalLogReader reads as the end of the log.
+ *
+ * Java 7 can't unmap a segment explicitly, so each one is unmapped when it's garbage collected.
+ * On platforms which can't truncate a mapped file (e.g. Windows) closing fails until then.
+ *
+ * Segments which fill up are kept until the next force() (or until the sink is closed), so that
+ * force() can write them to the disk.
+ */
+class MappedFileSink implements FileSink {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int segmentBytes;
+
+    // Filled segments which haven't been forced since, guarded by their own monitor
+    private final List<MappedByteBuffer> filledSegments = new ArrayList<>();
+
+    private volatile MappedByteBuffer segment;
+    private volatile boolean closed;
+    private long size;
+
+    /**
+     * @param file The file to write, which is created or truncated
+     * @param segmentBytes The number of bytes to map at a time
+     * @throws IOException Thrown if the file can't be opened
+     */
+    MappedFileSink(File file, int segmentBytes) throws IOException {
+        if (segmentBytes < 1)
+            throw new IllegalArgumentException("Invalid segment size: " + segmentBytes);
+
+        this.file         = new RandomAccessFile(file, "rw");
+        this.channel      = this.file.getChannel();
+        this.segmentBytes = segmentBytes;
+        try {
+            channel.truncate(0);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (!segment.hasRemaining()) {
+                MappedByteBuffer next = channel.map(FileChannel.MapMode.READ_WRITE, size, segmentBytes);
+                synchronized (filledSegments) {
+                    filledSegments.add(segment);
+                }
+                segment = next;
+            }
+
+            int length = Math.min(bytes.remaining(), segment.remaining());
+            if (length == bytes.remaining()) {
+                segment.put(bytes);
+            } else {
+                int limit = bytes.limit();
+                bytes.limit(bytes.position() + length);
+                segment.put(bytes);
+                bytes.limit(limit);
+            }
+            size += length;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // The bytes are already in the page cache
+    }
+
+    @Override
+    public void force() {
+        List<MappedByteBuffer> segments;
+        synchronized (filledSegments) {
+            segments = new ArrayList<>(filledSegments);
+            filledSegments.clear();
+        }
+        MappedByteBuffer current = segment;
+        if (current != null)
+            segments.add(current);
+
+        for (MappedByteBuffer forced : segments) {
+            // Forcing after the file has been truncated could touch pages beyond its end
+            if (closed)
+                return;
+            forced.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        segment = null;
+        synchronized (filledSegments) {
+            filledSegments.clear();
+        }
+        try {
+            channel.truncate(size);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -3,17 +3,23 @@ package restlessrobot.metrical.handlers;
 import java.io.IOException;
 
 import restlessrobot.metrical.MetricalEvent;
-import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalRecordHandler;
 
 /**
  * Created by simon on 06/06/14.
  */
-public class NullMetricalHandler implements MetricalHandler {
+public class NullMetricalHandler implements MetricalRecordHandler {
     @Override
     public void event(MetricalEvent event) {
 
     }
 
+    @Override
+    public void record(MetricalEventRecord record) {
+
+    }
+
     @Override
     public void finish() {
 
@@ -0,0 +1,140 @@
+package restlessrobot.metrical.handlers;
+
+import java.util.List;
+
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.MetricalSampler;
+import restlessrobot.metrical.Unit;
+
+/**
+ * A reusable view of a record with its sample rate metric set: either added after the record's
+ * own metrics, or, if the record was already sampled, replaced by the product of the two rates.
+ */
+final class SampledRecord implements MetricalEventRecord {
+    private MetricalEventRecord record;
+    private double sampleRate;
+    private int rateIndex;
+    private int metricCount;
+
+    /**
+     * Wraps a record.
+     *
+     * @param record The record to wrap
+     * @param sampleRate The probability with which the record was kept
+     * @return This object
+     */
+    SampledRecord wrap(MetricalEventRecord record, double sampleRate) {
+        this.record      = record;
+        this.metricCount = record.getMetricCount();
+        this.rateIndex   = indexOfSampleRate(record);
+        if (rateIndex < 0) {
+            this.rateIndex = metricCount++;
+            this.sampleRate = sampleRate;
+        } else {
+            this.sampleRate = sampleRate * record.getDoubleMetricValue(rateIndex);
+        }
+        return this;
+    }
+
+    /**
+     * Releases the wrapped record, so it isn't held on to between events.
+     */
+    void clear() {
+        record = null;
+    }
+
+    boolean isInUse() {
+        return record != null;
+    }
+
+    private static int indexOfSampleRate(MetricalEventRecord record) {
+        for (int i = record.getMetricCount() - 1; i >= 0; i--) {
+            if (MetricalSampler.SAMPLE_RATE_METRIC.equals(record.getMetricName(i)))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public String getName() {
+        return record.getName();
+    }
+
+    @Override
+    public long getTimestamp() {
+        return record.getTimestamp();
+    }
+
+    @Override
+    public List<MetricalContext> getContexts() {
+        return record.getContexts();
+    }
+
+    @Override
+    public int getMetricCount() {
+        return metricCount;
+    }
+
+    @Override
+    public String getMetricName(int index) {
+        return index == rateIndex ? MetricalSampler.SAMPLE_RATE_METRIC : record.getMetricName(checkIndex(index));
+    }
+
+    @Override
+    public Unit getMetricUnit(int index) {
+        return index == rateIndex ? Unit.NONE : record.getMetricUnit(checkIndex(index));
+    }
+
+    @Override
+    public boolean isFloatingPointMetric(int index) {
+        return index == rateIndex || record.isFloatingPointMetric(checkIndex(index));
+    }
+
+    @Override
+    public long getLongMetricValue(int index) {
+        return index == rateIndex ? (long) sampleRate : record.getLongMetricValue(checkIndex(index));
+    }
+
+    @Override
+    public double getDoubleMetricValue(int index) {
+        return index == rateIndex ? sampleRate : record.getDoubleMetricValue(checkIndex(index));
+    }
+
+    @Override
+    public int getHistogramCount() {
+        return record.getHistogramCount();
+    }
+
+    @Override
+    public MetricalHistogram getHistogram(int index) {
+        return record.getHistogram(index);
+    }
+
+    @Override
+    public MetricalEvent toEvent() {
+        MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+        builder.name(getName());
+        builder.timestamp(getTimestamp());
+        builder.contexts(getContexts());
+        for (int i = 0; i < metricCount; i++) {
+            if (isFloatingPointMetric(i)) {
+                builder.metric(getMetricName(i), Double.valueOf(getDoubleMetricValue(i)), getMetricUnit(i));
+            } else {
+                builder.metric(getMetricName(i), Long.valueOf(getLongMetricValue(i)), getMetricUnit(i));
+            }
+        }
+        for (int i = 0; i < getHistogramCount(); i++) {
+            builder.histogram(getHistogram(i));
+        }
+        return builder.build();
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= metricCount)
+            throw new IndexOutOfBoundsException("Metric index " + index + " of " + metricCount);
+        return index;
+    }
+}
@@ -0,0 +1,128 @@
+package restlessrobot.metrical.handlers;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalRecordHandler;
+import restlessrobot.metrical.MetricalTickable;
+import restlessrobot.metrical.MetricalSampler;
+import restlessrobot.metrical.MetricalStats;
+
+/**
+ * A handler which passes a sample of events to a downstream handler, as decided by a
+ * MetricalSampler, e.g. to sample the events from several Metrical instances in one place, or to
+ * sample only the events going to one of the handlers of a ForkingMetricalHandler.
+ *
+ * Each event kept with a probability less than 1 has a MetricalSampler.SAMPLE_RATE_METRIC metric
+ * attached.  If the event was already sampled (e.g. by Metrical.setSampler(...)), its sample rate
+ * is multiplied by the new one.  Records are wrapped in a reusable per-thread view rather than
+ * copied, so sampling records allocates nothing.
+ *
+ * Sampling before an event is built is cheaper, so where possible, set the sampler on the
+ * Metrical instance instead.
+ */
+public class SamplingMetricalHandler implements MetricalRecordHandler, MetricalTickable {
+    private static final ThreadLocal<SampledRecord> SAMPLED_RECORDS = new ThreadLocal<SampledRecord>() {
+        @Override
+        protected SampledRecord initialValue() {
+            return new SampledRecord();
+        }
+    };
+
+    private final MetricalHandler handler;
+    private final MetricalSampler sampler;
+    private final AtomicLong discardedEventCount = new AtomicLong();
+
+    /**
+     * @param handler The handler to pass sampled events to
+     * @param sampler The sampler which decides which events to keep
+     */
+    public SamplingMetricalHandler(MetricalHandler handler, MetricalSampler sampler) {
+        if (handler == null)
+            throw new IllegalArgumentException("No handler provided");
+        if (sampler == null)
+            throw new IllegalArgumentException("No sampler provided");
+
+        this.handler = handler;
+        this.sampler = sampler;
+    }
+
+    @Override
+    public void event(MetricalEvent event) throws MetricalException {
+        double sampleRate = sampler.sample(event.getName());
+        if (sampleRate <= 0) {
+            discarded();
+        } else if (sampleRate >= 1) {
+            handler.event(event);
+        } else {
+            SampledRecord view = view();
+            MetricalEvent sampled = view.wrap(event, sampleRate).toEvent();
+            view.clear();
+            handler.event(sampled);
+        }
+    }
+
+    @Override
+    public void record(MetricalEventRecord record) throws MetricalException {
+        double sampleRate = sampler.sample(record.getName());
+        if (sampleRate <= 0) {
+            discarded();
+            return;
+        }
+
+        MetricalEventRecord sampled = record;
+        SampledRecord view = null;
+        if (sampleRate < 1) {
+            view = view();
+            sampled = view.wrap(record, sampleRate);
+        }
+        try {
+            if (handler instanceof MetricalRecordHandler) {
+                ((MetricalRecordHandler) handler).record(sampled);
+            } else {
+                handler.event(sampled.toEvent());
+            }
+        } finally {
+            if (view != null)
+                view.clear();
+        }
+    }
+
+    // Returns this thread's view, or a new one if it's in use (e.g. by a nested sampling handler)
+    private static SampledRecord view() {
+        SampledRecord view = SAMPLED_RECORDS.get();
+        return view.isInUse() ? new SampledRecord() : view;
+    }
+
+    @Override
+    public void tick() throws MetricalException {
+        if (handler instanceof MetricalTickable)
+            ((MetricalTickable) handler).tick();
+    }
+
+    @Override
+    public void finish() {
+        handler.finish();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        handler.reset();
+    }
+
+    private void discarded() {
+        discardedEventCount.incrementAndGet();
+        MetricalStats.get().increment(MetricalStats.Counter.EVENTS_DISCARDED);
+    }
+
+    /**
+     * @return The number of events that the sampler discarded
+     */
+    public long getDiscardedEventCount() {
+        return discardedEventCount.get();
+    }
+}
@@ -7,11 +7,11 @@ public class TextCaptureMetricalHandler extends TextOutputMetricalHandler {
     private StringBuilder sb = new StringBuilder();
 
     @Override
-    protected void output(String line) {
+    protected synchronized void output(String line) {
         sb.append(line);
     }
 
-    public String get() {
+    public synchronized String get() {
         String str = sb.toString();
         sb = new StringBuilder();
         return str;
@@ -3,81 +3,354 @@ package restlessrobot.metrical.handlers;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+import restlessrobot.metrical.ByteMetricalFormatter;
+import restlessrobot.metrical.ConcurrentMetricalFormatter;
+import restlessrobot.metrical.MetricalClock;
 import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
 import restlessrobot.metrical.MetricalException;
 import restlessrobot.metrical.MetricalFormatter;
-import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalRecordHandler;
+import restlessrobot.metrical.MetricalStats;
+import restlessrobot.metrical.MetricalTickable;
+import restlessrobot.metrical.StreamingMetricalFormatter;
 import restlessrobot.metrical.TimeProvider;
 import restlessrobot.metrical.formatters.SimpleMetricalFormatter;
 
 /**
  * Created by simon on 06/06/14.
+ *
+ * Thread-safety: a single instance can be shared by any number of reporting threads.  If the
+ * formatter is a ConcurrentMetricalFormatter, each thread formats the body of its event into its
+ * own buffer without holding any lock.  The handler's monitor is then held just long enough to
+ * check for rotation, format any headers (version line, context definitions), and pass the header
+ * and body to output() in a single call, so lines from different events are never interleaved
+ * and context definitions always precede the first event in a file that refers to them.
+ * Formatters which aren't concurrent are called entirely under the handler's monitor.
+ *
+ * If the formatter is a StreamingMetricalFormatter (as the default SimpleMetricalFormatter is),
+ * events are encoded straight into reusable byte buffers and passed to output(ByteBuffer), so
+ * subclasses which override that method can write events without any intermediate Strings.  The
+ * rotation size limit is then measured in UTF-8 bytes; otherwise it's measured in chars.
+ * Subclasses which write bytes can also be constructed with a ByteMetricalFormatter which doesn't
+ * produce text at all, such as BinaryMetricalFormatter.
+ *
+ * The rotation time limit is checked when events arrive, so output that stops receiving events
+ * isn't rotated (or flushed, by subclasses which buffer it) until tick() is called - see
+ * MetricalScheduler.tick(...).
  */
-public abstract class TextOutputMetricalHandler implements MetricalHandler {
+public abstract class TextOutputMetricalHandler implements MetricalRecordHandler, MetricalTickable {
     /*
     TODO: Handle local clock skew.  In some situations the local clock time isn't reliable - e.g.
     if we're running on an Android device where the user has the time set incorrectly.  There's
     not a huge amount we can do about this, but we could periodically contact a reliable time-
     source to calculate an offset?
 */
-    private TimeProvider timeProvider = new TimeProvider() {
+    private volatile TimeProvider timeProvider = MetricalClock.shared();
+
+    public static final int DEFAULT_SIZE_LIMIT_BYTES = 50 * 1024;
+    public static final int DEFAULT_TIME_LIMIT_MILLIS = 5 * 60 * 1000;
+
+    // Per-thread buffers larger than this are discarded after use rather than retained
+    private static final int MAX_RETAINED_BUFFER_CHARS = 64 * 1024;
+    private static final int MAX_RETAINED_BUFFER_BYTES = 64 * 1024;
+    private static final int INITIAL_BUFFER_BYTES = 1024;
+
+    private static final ThreadLocal<StringBuilder> BODY_BUFFER = new ThreadLocal<StringBuilder>() {
         @Override
-        public long currentTimeMillis() {
-            return System.currentTimeMillis();
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
         }
     };
 
-    public static final int DEFAULT_SIZE_LIMIT_BYTES = 50 * 1024;
-    public static final int DEFAULT_TIME_LIMIT_MILLIS = 5 * 60 * 1000;
+    private static final ThreadLocal<ByteBuffer> BODY_BYTES = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        }
+    };
 
-    private MetricalFormatter formatter = new SimpleMetricalFormatter();
+    // byteFormatter is the same object as formatter if it's a StreamingMetricalFormatter, or the
+    // only formatter if it formats events into bytes which aren't text
+    private volatile MetricalFormatter formatter;
+    private volatile ByteMetricalFormatter byteFormatter;
+    private StringBuilder outputBuffer = new StringBuilder();
+    private ByteBuffer outputBytes = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
 
-    private long rotateSizeLimitBytes  = DEFAULT_SIZE_LIMIT_BYTES; // 50 kB
-    private long rotateTimeLimitMillis = DEFAULT_TIME_LIMIT_MILLIS; // 5 mins
-    private long charsSinceLastReset;
+    private volatile long rotateSizeLimitBytes  = DEFAULT_SIZE_LIMIT_BYTES; // 50 kB
+    private volatile long rotateTimeLimitMillis = DEFAULT_TIME_LIMIT_MILLIS; // 5 mins
+    private long sizeSinceLastReset;
     private long lastResetTime;
 
+    public TextOutputMetricalHandler() {
+        setFormatter(new SimpleMetricalFormatter());
+    }
+
+    /**
+     * Creates a handler which formats events into bytes with the given formatter.  The encoded
+     * events are passed to output(ByteBuffer), which the subclass must override unless the bytes
+     * are UTF-8 text.
+     *
+     * @param byteFormatter The formatter to use
+     */
+    protected TextOutputMetricalHandler(ByteMetricalFormatter byteFormatter) {
+        if (byteFormatter == null)
+            throw new IllegalArgumentException("No formatter provided");
+
+        this.byteFormatter = byteFormatter;
+    }
+
     @Override
     public void event(MetricalEvent event) throws MetricalException {
+        ByteMetricalFormatter currentByteFormatter = byteFormatter;
+        MetricalFormatter currentFormatter = formatter;
+        if (currentByteFormatter != null) {
+            outputStreaming(event, currentByteFormatter);
+        } else if (currentFormatter instanceof ConcurrentMetricalFormatter) {
+            outputConcurrently(event, (ConcurrentMetricalFormatter) currentFormatter);
+        } else {
+            outputSerially(event);
+        }
+    }
+
+    @Override
+    public void record(MetricalEventRecord record) throws MetricalException {
+        ByteMetricalFormatter currentByteFormatter = byteFormatter;
+        MetricalFormatter currentFormatter = formatter;
+        if (currentByteFormatter != null) {
+            outputStreaming(record, currentByteFormatter);
+        } else if (currentFormatter instanceof ConcurrentMetricalFormatter) {
+            outputConcurrently(record, (ConcurrentMetricalFormatter) currentFormatter);
+        } else {
+            outputSerially(record.toEvent());
+        }
+    }
+
+    private void outputStreaming(MetricalEventRecord event, ByteMetricalFormatter byteFormatter)
+            throws MetricalException {
+        ByteBuffer body = BODY_BYTES.get();
+        while (true) {
+            body.clear();
+            try {
+                byteFormatter.body(event, body);
+                break;
+            } catch (BufferOverflowException e) {
+                body = ByteBuffer.allocate(body.capacity() * 2);
+                BODY_BYTES.set(body);
+            }
+        }
+        body.flip();
+        try {
+            outputWithHeader(event, byteFormatter, body);
+        } finally {
+            if (body.capacity() > MAX_RETAINED_BUFFER_BYTES)
+                BODY_BYTES.remove();
+        }
+    }
+
+    private synchronized void outputWithHeader(MetricalEventRecord event,
+            ByteMetricalFormatter byteFormatter, ByteBuffer body) throws MetricalException {
         try {
-            if (lastResetTime == 0) {
-                reset();
-            } else if (lastResetTime != 0) {
-                long now = timeProvider.currentTimeMillis();
-                if (now - lastResetTime > rotateTimeLimitMillis) {
-                    reset();
-                }
+            rotateIfTimeLimitReached();
+
+            ByteBuffer bytes = encodeHeader(event, byteFormatter, body.remaining());
+            int length = bytes.position() + body.remaining();
+            if (sizeSinceLastReset > 0 && sizeSinceLastReset + length > rotateSizeLimitBytes) {
+                rotate();
+
+                bytes = encodeHeader(event, byteFormatter, body.remaining());
+                length = bytes.position() + body.remaining();
             }
+            bytes.put(body);
+            bytes.flip();
+
+            output(bytes);
+            if (bytes.capacity() > MAX_RETAINED_BUFFER_BYTES)
+                outputBytes = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+            recordOutput(length);
+
+        } catch (IOException e) {
+            throw new MetricalException("Failed to record event", e);
+        }
+    }
+
+    /**
+     * Encodes an event's header into outputBytes, growing it if necessary to fit the header and
+     * then the body.
+     */
+    private ByteBuffer encodeHeader(MetricalEventRecord event, ByteMetricalFormatter byteFormatter,
+            int bodyLength) {
+        ByteBuffer bytes = outputBytes;
+        while (true) {
+            bytes.clear();
+            try {
+                byteFormatter.header(event, bytes);
+                break;
+            } catch (BufferOverflowException e) {
+                // The formatter's state is unchanged, so it's safe to try again
+                bytes = ByteBuffer.allocate(bytes.capacity() * 2);
+            }
+        }
+        if (bytes.remaining() < bodyLength) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, bytes.position() + bodyLength));
+            bytes.flip();
+            grown.put(bytes);
+            bytes = grown;
+        }
+        outputBytes = bytes;
+        return bytes;
+    }
+
+    private void outputConcurrently(MetricalEventRecord event, ConcurrentMetricalFormatter concurrentFormatter)
+            throws MetricalException {
+        StringBuilder body = BODY_BUFFER.get();
+        body.setLength(0);
+        concurrentFormatter.body(event, body);
+        try {
+            outputWithHeader(event, concurrentFormatter, body);
+        } finally {
+            if (body.capacity() > MAX_RETAINED_BUFFER_CHARS)
+                BODY_BUFFER.remove();
+        }
+    }
+
+    private synchronized void outputWithHeader(MetricalEventRecord event,
+            ConcurrentMetricalFormatter concurrentFormatter, StringBuilder body) throws MetricalException {
+        try {
+            rotateIfTimeLimitReached();
+
+            StringBuilder text = outputBuffer;
+            text.setLength(0);
+            concurrentFormatter.header(event, text);
+            int length = text.length() + body.length();
+            if (sizeSinceLastReset > 0 && sizeSinceLastReset + length > rotateSizeLimitBytes) {
+                rotate();
+
+                text.setLength(0);
+                concurrentFormatter.header(event, text);
+                length = text.length() + body.length();
+            }
+            text.append(body);
+
+            output(text.toString());
+            if (text.capacity() > MAX_RETAINED_BUFFER_CHARS)
+                outputBuffer = new StringBuilder();
+            recordOutput(length);
+
+        } catch (IOException e) {
+            throw new MetricalException("Failed to record event", e);
+        }
+    }
+
+    private synchronized void outputSerially(MetricalEvent event) throws MetricalException {
+        try {
+            rotateIfTimeLimitReached();
 
             String text = formatter.event(event);
             int length = text.length();
-            if (charsSinceLastReset > 0 && charsSinceLastReset + length > rotateSizeLimitBytes) {
-                reset();
+            if (sizeSinceLastReset > 0 && sizeSinceLastReset + length > rotateSizeLimitBytes) {
+                rotate();
 
                 text = formatter.event(event);
                 length = text.length();
             }
 
             output(text);
-            charsSinceLastReset += length;
-            if (lastResetTime == 0)
-                lastResetTime = timeProvider.currentTimeMillis();
+            recordOutput(length);
 
         } catch (IOException e) {
             throw new MetricalException("Failed to record event", e);
         }
     }
 
+    private void rotateIfTimeLimitReached() throws IOException {
+        if (lastResetTime == 0) {
+            reset();
+        } else if (lastResetTime != 0) {
+            long now = timeProvider.currentTimeMillis();
+            if (now - lastResetTime > rotateTimeLimitMillis) {
+                rotate();
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        MetricalStats.get().increment(MetricalStats.Counter.ROTATIONS);
+        reset();
+    }
+
+    private void recordOutput(int length) {
+        MetricalStats.get().add(MetricalStats.Counter.BYTES_FORMATTED, length);
+        sizeSinceLastReset += length;
+        if (lastResetTime == 0)
+            lastResetTime = timeProvider.currentTimeMillis();
+    }
+
+    /**
+     * Rotates the output if the time limit has been reached, even though no event has arrived to
+     * do it, then flushes any buffered output.
+     */
     @Override
-    public void reset() throws IOException {
-        charsSinceLastReset = 0;
+    public synchronized void tick() throws MetricalException {
+        try {
+            if (lastResetTime != 0 && timeProvider.currentTimeMillis() - lastResetTime > rotateTimeLimitMillis)
+                rotate();
+            flush();
+        } catch (IOException e) {
+            throw new MetricalException("Failed to rotate or flush output", e);
+        }
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        sizeSinceLastReset = 0;
         lastResetTime = 0;
-        formatter.reset();
+        ByteMetricalFormatter currentByteFormatter = byteFormatter;
+        if (currentByteFormatter != null) {
+            currentByteFormatter.reset();
+        } else {
+            formatter.reset();
+        }
     }
 
+    /**
+     * Writes formatted text.  Always called while holding this handler's monitor, so
+     * implementations don't need any further synchronization.
+     *
+     * @param line The text to write, consisting of one or more complete lines
+     * @throws IOException Thrown if the text can't be written
+     */
     protected abstract void output(String line) throws IOException;
 
+    /**
+     * Writes formatted text, encoded as UTF-8.  Always called while holding this handler's
+     * monitor.  The buffer is reused once this method returns, so implementations must not keep
+     * it.
+     *
+     * By default the text is decoded and passed to output(String).  Subclasses which write bytes
+     * should override this, so that events can be written without creating any Strings.
+     *
+     * @param bytes The encoded text to write (from the buffer's position to its limit), consisting
+     *              of one or more complete lines
+     * @throws IOException Thrown if the text can't be written
+     */
+    protected void output(ByteBuffer bytes) throws IOException {
+        output(StandardCharsets.UTF_8.decode(bytes).toString());
+    }
+
+    /**
+     * Passes any buffered output on, e.g. to the operating system.  Called by tick() while holding
+     * this handler's monitor.  Does nothing by default.
+     *
+     * @throws IOException Thrown if the output can't be flushed
+     */
+    protected void flush() throws IOException {
+    }
+
     public TimeProvider getTimeProvider() {
         return timeProvider;
     }
@@ -87,6 +360,10 @@ public abstract class TextOutputMetricalHandler implements MetricalHandler {
     }
 
 
+    public long getRotateSizeLimitBytes() {
+        return rotateSizeLimitBytes;
+    }
+
     public void setRotateSizeLimitBytes(long rotateSizeLimitBytes) {
         this.rotateSizeLimitBytes = rotateSizeLimitBytes;
     }
@@ -98,5 +375,7 @@ public abstract class TextOutputMetricalHandler implements MetricalHandler {
     @VisibleForTesting
     void setFormatter(MetricalFormatter formatter) {
         this.formatter = formatter;
+        this.byteFormatter = formatter instanceof StreamingMetricalFormatter
+                ? (StreamingMetricalFormatter) formatter : null;
     }
 }
@@ -0,0 +1,237 @@
+package restlessrobot.metrical.readers;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalDimension;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.Unit;
+
+import static restlessrobot.metrical.formatters.BinaryMetricalFormatter.*;
+
+/**
+ * Reads events written by BinaryMetricalFormatter, e.g. from files written by a
+ * FileMetricalHandler which was constructed with a BinaryMetricalFormatter.  A single reader can
+ * read several logs which have been concatenated.
+ *
+ * Thread-safety: none - a reader must only be used by one thread at a time.
+ */
+public class BinaryMetricalReader implements Closeable {
+    // More string ids than a formatter could assign, even if every thread raced for every id
+    private static final int MAX_STRING_ID = 16 * 1024 * 1024;
+    private static final int MAX_STRING_BYTES = 64 * 1024 * 1024;
+
+    private static final Map<String, Unit> UNITS = new HashMap<>();
+    static {
+        for (Unit unit : Unit.values()) {
+            UNITS.put(unit.getShortName(), unit);
+        }
+    }
+
+    private final DataInputStream in;
+    private final Map<String, MetricalContext> contexts = new HashMap<>();
+    private String[] strings = new String[64];
+    private boolean magicRead = false;
+    private long lastTimestamp;
+
+    /**
+     * @param in The stream to read, which is closed by close()
+     */
+    public BinaryMetricalReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    /**
+     * Reads the next event.
+     *
+     * @return The event, or null if the end of the stream has been reached
+     * @throws IOException Thrown if the stream can't be read, or isn't a valid binary metrics log
+     */
+    public MetricalEvent next() throws IOException {
+        while (true) {
+            int type = in.read();
+            if (type < 0)
+                return null;
+
+            if (type == MAGIC >>> 24) {
+                readMagic();
+                continue;
+            } else if (!magicRead) {
+                throw new IOException("Not a binary metrics log");
+            }
+
+            switch (type) {
+                case STRING_RECORD:
+                    readStringDefinition();
+                    break;
+                case CONTEXT_RECORD:
+                    readContext();
+                    break;
+                case EVENT_RECORD:
+                    return readEvent();
+                default:
+                    throw new IOException("Invalid record type: " + type);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readMagic() throws IOException {
+        int magic = MAGIC >>> 24 << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        if (magic != MAGIC)
+            throw new IOException("Not a binary metrics log");
+        long version = readVarint();
+        if (version != VERSION_NO)
+            throw new IOException("Unsupported binary metrics log version: " + version);
+
+        // Everything that follows is independent of what came before
+        Arrays.fill(strings, null);
+        contexts.clear();
+        lastTimestamp = 0;
+        magicRead = true;
+    }
+
+    private void readStringDefinition() throws IOException {
+        long id = readVarint();
+        if (id > MAX_STRING_ID)
+            throw new IOException("Invalid string id: " + id);
+
+        if (id >= strings.length)
+            strings = Arrays.copyOf(strings, Math.max(strings.length * 2, (int) id + 1));
+        strings[(int) id] = readString();
+    }
+
+    private void readContext() throws IOException {
+        String name = readRef();
+        int dimensionCount = readCount();
+        MetricalDimension[] dimensions = new MetricalDimension[dimensionCount];
+        for (int i = 0; i < dimensionCount; i++) {
+            dimensions[i] = Metrical.d(readRef(), readString());
+        }
+        contexts.put(name, Metrical.c(name, dimensions));
+    }
+
+    private MetricalEvent readEvent() throws IOException {
+        MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+        lastTimestamp += readSignedVarint();
+        builder.timestamp(lastTimestamp);
+        builder.name(readRef());
+
+        int contextCount = readCount();
+        List<MetricalContext> eventContexts = new ArrayList<>(contextCount);
+        for (int i = 0; i < contextCount; i++) {
+            String name = readRef();
+            MetricalContext context = contexts.get(name);
+            if (context == null)
+                throw new IOException("Undefined context: " + name);
+            eventContexts.add(context);
+        }
+        builder.contexts(eventContexts);
+
+        int metricCount = readCount();
+        for (int i = 0; i < metricCount; i++) {
+            String name = readRef();
+            Unit unit = readUnit();
+            int valueType = in.readUnsignedByte();
+            if (valueType == LONG_VALUE) {
+                builder.metric(name, readSignedVarint(), unit);
+            } else if (valueType == DOUBLE_VALUE) {
+                builder.metric(name, in.readDouble(), unit);
+            } else {
+                throw new IOException("Invalid value type: " + valueType);
+            }
+        }
+
+        int histogramCount = readCount();
+        for (int i = 0; i < histogramCount; i++) {
+            builder.histogram(readHistogram());
+        }
+        return builder.build();
+    }
+
+    private MetricalHistogram readHistogram() throws IOException {
+        MetricalHistogram histogram = new MetricalHistogram(readRef(), readUnit());
+        histogram.updateMax(in.readDouble());
+
+        long index = -1;
+        long indexDelta;
+        while ((indexDelta = readVarint()) != 0) {
+            index += indexDelta;
+            if (index >= MetricalHistogram.BUCKETS)
+                throw new IOException("Invalid histogram bucket: " + index);
+            histogram.addBucketValueCount((int) index, readVarint());
+        }
+        return histogram;
+    }
+
+    private Unit readUnit() throws IOException {
+        String shortName = readRef();
+        Unit unit = UNITS.get(shortName);
+        if (unit == null)
+            throw new IOException("Unknown unit: " + shortName);
+        return unit;
+    }
+
+    private String readRef() throws IOException {
+        long ref = readVarint();
+        if (ref == NULL_REF)
+            return null;
+        if (ref == INLINE_REF)
+            return readString();
+
+        long id = ref - FIRST_ID_REF;
+        String value = id < strings.length ? strings[(int) id] : null;
+        if (value == null)
+            throw new IOException("Undefined string id: " + id);
+        return value;
+    }
+
+    private String readString() throws IOException {
+        long length = readVarint();
+        if (length > MAX_STRING_BYTES)
+            throw new IOException("Invalid string length: " + length);
+
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readCount() throws IOException {
+        long count = readVarint();
+        if (count > Integer.MAX_VALUE)
+            throw new IOException("Invalid count: " + count);
+        return (int) count;
+    }
+
+    private long readSignedVarint() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid varint");
+    }
+}
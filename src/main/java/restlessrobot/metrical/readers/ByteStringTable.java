@@ -0,0 +1,111 @@
+package restlessrobot.metrical.readers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interns the Strings decoded from ranges of UTF-8 bytes, so that a name or value which appears
+ * many times in a log is only decoded (and allocated) the first time.  An open-addressing hash
+ * table, keyed by copies of the bytes.
+ *
+ * Once the table holds maxSize strings, further strings are decoded every time they're looked up.
+ *
+ * Thread-safety: none.
+ */
+final class ByteStringTable {
+    private final int maxSize;
+    private byte[][] keys = new byte[64][];
+    private String[] values = new String[64];
+    private int size;
+
+    ByteStringTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param bytes The buffer containing the bytes
+     * @param start The index of the first byte
+     * @param end The index after the last byte
+     * @return The decoded String
+     */
+    String get(ByteBuffer bytes, int start, int end) {
+        int hash = hash(bytes, start, end);
+        int mask = keys.length - 1;
+        int i = hash & mask;
+        byte[] key;
+        while ((key = keys[i]) != null) {
+            if (matches(key, bytes, start, end))
+                return values[i];
+            i = (i + 1) & mask;
+        }
+
+        key = new byte[end - start];
+        for (int j = 0; j < key.length; j++) {
+            key[j] = bytes.get(start + j);
+        }
+        String value = new String(key, StandardCharsets.UTF_8);
+        if (size < maxSize) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                mask = keys.length - 1;
+                i = hash & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+        return value;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            byte[] key = oldKeys[j];
+            if (key != null) {
+                int i = hash(key) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer bytes, int start, int end) {
+        if (key.length != end - start)
+            return false;
+        for (int j = 0; j < key.length; j++) {
+            if (key[j] != bytes.get(start + j))
+                return false;
+        }
+        return true;
+    }
+
+    private static int hash(ByteBuffer bytes, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes.get(i);
+        }
+        return spread(hash);
+    }
+
+    private static int hash(byte[] key) {
+        int hash = 1;
+        for (byte b : key) {
+            hash = 31 * hash + b;
+        }
+        return spread(hash);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,165 @@
+package restlessrobot.metrical.readers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import restlessrobot.metrical.MetricalEventRecord;
+
+/**
+ * Reads and aggregates many log files in parallel, e.g. all the files rotated by a
+ * FileMetricalHandler over a day.
+ *
+ * The files are split recursively across a ForkJoinPool.  Each task reads a batch of up to
+ * FILES_PER_TASK files into its own MetricalLogSummary with its own MetricalLogReader, and the
+ * partial summaries are merged as the tasks complete.  Every file must start with a version line
+ * and define its own contexts, as the files written by FileMetricalHandler do.  Files may be
+ * compressed with gzip.
+ *
+ * Thread-safety: aggregate(...) can be called from any number of threads concurrently.
+ */
+public class MetricalLogAggregator implements Closeable {
+    public static final int FILES_PER_TASK = 4;
+
+    // FileMetricalHandler opens files in advance under names with this suffix
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private final ForkJoinPool pool;
+    private final boolean ownPool;
+
+    /**
+     * Creates an aggregator with its own ForkJoinPool, with one thread per processor.  The pool is
+     * shut down by close().
+     */
+    public MetricalLogAggregator() {
+        this(new ForkJoinPool(), true);
+    }
+
+    /**
+     * @param pool The pool to run aggregation tasks in, which isn't shut down by close()
+     */
+    public MetricalLogAggregator(ForkJoinPool pool) {
+        this(pool, false);
+    }
+
+    private MetricalLogAggregator(ForkJoinPool pool, boolean ownPool) {
+        if (pool == null)
+            throw new IllegalArgumentException("No pool provided");
+
+        this.pool = pool;
+        this.ownPool = ownPool;
+    }
+
+    /**
+     * Aggregates all the files in a directory (but not its subdirectories), apart from temporary
+     * files ending in ".tmp".  A file which is still being written is read up to its last
+     * complete event, see MetricalLogReader.
+     *
+     * @param directory The directory containing the log files
+     * @return A summary of all the events in the files
+     * @throws IOException Thrown if the directory or any of the files can't be read, or any of the
+     *                     files isn't a valid log
+     */
+    public MetricalLogSummary aggregate(File directory) throws IOException {
+        File[] entries = directory.listFiles();
+        if (entries == null)
+            throw new IOException("Can't list directory: " + directory);
+
+        Arrays.sort(entries);
+        List<File> files = new ArrayList<>(entries.length);
+        for (File entry : entries) {
+            if (entry.isFile() && !entry.getName().endsWith(TEMPORARY_FILE_SUFFIX))
+                files.add(entry);
+        }
+        return aggregate(files);
+    }
+
+    /**
+     * Aggregates a list of files.
+     *
+     * @param files The log files to aggregate
+     * @return A summary of all the events in the files
+     * @throws IOException Thrown if any of the files can't be read, or isn't a valid log
+     */
+    public MetricalLogSummary aggregate(List<File> files) throws IOException {
+        try {
+            return pool.invoke(new AggregateTask(files.toArray(new File[files.size()]), 0, files.size()));
+        } catch (ReadFailure e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Shuts down the aggregator's pool, if it created one.
+     */
+    @Override
+    public void close() {
+        if (ownPool)
+            pool.shutdown();
+    }
+
+    private static final class AggregateTask extends RecursiveTask<MetricalLogSummary> {
+        private static final long serialVersionUID = 1L;
+
+        private final File[] files;
+        private final int start;
+        private final int end;
+
+        AggregateTask(File[] files, int start, int end) {
+            this.files = files;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected MetricalLogSummary compute() {
+            if (end - start <= FILES_PER_TASK)
+                return read();
+
+            int middle = (start + end) >>> 1;
+            AggregateTask left = new AggregateTask(files, start, middle);
+            AggregateTask right = new AggregateTask(files, middle, end);
+            left.fork();
+            MetricalLogSummary summary = right.compute();
+            summary.merge(left.join());
+            return summary;
+        }
+
+        private MetricalLogSummary read() {
+            final MetricalLogSummary summary = new MetricalLogSummary();
+            MetricalLogReader reader = new MetricalLogReader();
+            MetricalLogListener listener = new MetricalLogListener() {
+                @Override
+                public void event(MetricalEventRecord record) {
+                    summary.add(record);
+                }
+            };
+
+            for (int i = start; i < end; i++) {
+                try {
+                    reader.read(files[i], listener);
+                } catch (IOException e) {
+                    throw new ReadFailure(files[i], e);
+                }
+                summary.clearKeyCache();
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * Carries an IOException out of a task, which can only throw unchecked exceptions.
+     */
+    private static final class ReadFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReadFailure(File file, IOException cause) {
+            super("Failed to read " + file, cause);
+        }
+    }
+}
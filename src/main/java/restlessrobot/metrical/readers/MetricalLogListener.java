@@ -0,0 +1,20 @@
+package restlessrobot.metrical.readers;
+
+import java.io.IOException;
+
+import restlessrobot.metrical.MetricalEventRecord;
+
+/**
+ * Receives the events read by a MetricalLogReader.
+ */
+public interface MetricalLogListener {
+    /**
+     * Called for each event in a log, in order.  The record is a flyweight which is reused for the
+     * next event, so it's only valid until this method returns - listeners which need to keep an
+     * event must call record.toEvent().
+     *
+     * @param record The event
+     * @throws IOException Thrown to stop reading the log
+     */
+    void event(MetricalEventRecord record) throws IOException;
+}
@@ -0,0 +1,563 @@
+package restlessrobot.metrical.readers;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalDimension;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.Unit;
+
+/**
+ * Reads the text format written by SimpleMetricalFormatter (e.g. the log files written by
+ * FileMetricalHandler) and passes each event to a MetricalLogListener.
+ *
+ * Files are memory-mapped, and scanned a byte at a time without decoding whole lines.  Files
+ * compressed with gzip (e.g. by FileMetricalHandler in OutputMode.GZIP) are recognised, and are
+ * decompressed into a reusable buffer instead.  Names,
+ * dimension values and lists of contexts are interned, so once they've been seen, reading an
+ * event allocates nothing except for any histograms.  Events are passed to the listener as a
+ * reusable flyweight MetricalEventRecord.  Each @e line and the @m/@h lines that follow it are
+ * combined into one event; the context definitions (@c/@d lines) are resolved into
+ * MetricalContexts, and are forgotten at each @v line, since each file starts with one.
+ *
+ * Logs which are still being written (or weren't finished, e.g. because the JVM crashed) are
+ * read up to their last complete event: a line starting with a zero byte (the padding after the
+ * last event in an unclosed memory-mapped file) ends the log, and so does the end of the data in
+ * an unclosed gzip file, where any incomplete last line is ignored.
+ *
+ * Floating-point values are read exactly as written (to 4 significant digits), and metric
+ * values without a decimal point or exponent are read as integers.  An empty event name is read
+ * as null.  Contexts which are referred to without having been defined are read as contexts
+ * without any dimensions.
+ *
+ * Thread-safety: none - a reader must only be used by one thread at a time.  A reader can be
+ * used to read any number of logs, and is faster for it, because names which have already been
+ * interned don't have to be decoded again.
+ */
+public class MetricalLogReader {
+    private static final int VERSION_NO = 1;
+    private static final int MAX_INTERNED_STRINGS = 256 * 1024;
+
+    // Large files are mapped in windows of this size, which start at the beginning of a line
+    private static final long DEFAULT_WINDOW_BYTES = 1L << 30;
+
+    // Streams are read into a buffer of this size, which grows if a line doesn't fit
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+
+    // Powers of ten which doubles represent exactly
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_SIGNIFICAND = 1L << 53;
+
+    private static final Unit[] UNITS = Unit.values();
+    private static final byte[][] UNIT_NAMES = new byte[UNITS.length][];
+    static {
+        for (int i = 0; i < UNITS.length; i++) {
+            UNIT_NAMES[i] = UNITS[i].getShortName().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private final long windowBytes;
+    private final ByteStringTable strings = new ByteStringTable(MAX_INTERNED_STRINGS);
+    private final MetricalLogRecord record = new MetricalLogRecord();
+    private ByteBuffer streamBuffer;
+
+    // The state of the log being read
+    private final Map<String, MetricalContext> contexts = new HashMap<>();
+    private final Map<String, List<MetricalContext>> contextLists = new HashMap<>();
+    private final List<MetricalDimension> pendingDimensions = new ArrayList<>();
+    private String pendingContextName;
+    private boolean recordPending;
+    private boolean endOfData;
+    private long lineNumber;
+
+    // The field most recently found by nextField(...)
+    private int fieldStart;
+    private int fieldEnd;
+
+    public MetricalLogReader() {
+        this(DEFAULT_WINDOW_BYTES);
+    }
+
+    @VisibleForTesting
+    MetricalLogReader(long windowBytes) {
+        this.windowBytes = windowBytes;
+    }
+
+    /**
+     * Reads all the events in a log file.
+     *
+     * @param file The file to read
+     * @param listener The listener to pass the events to
+     * @throws IOException Thrown if the file can't be read or isn't a valid log, or by the listener
+     */
+    public void read(File file, MetricalLogListener listener) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size >= 2 && randomAccessFile.read() == GZIP_MAGIC_0 && randomAccessFile.read() == GZIP_MAGIC_1) {
+                try (InputStream in = new GZIPInputStream(new FileInputStream(file), STREAM_BUFFER_BYTES)) {
+                    read(in, true, listener);
+                }
+                return;
+            }
+
+            start();
+            long offset = 0;
+            while (offset < size && !endOfData) {
+                long length = Math.min(windowBytes, size - offset);
+                boolean last = offset + length == size;
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                int consumed = scan(window, last, listener);
+                if (consumed == 0 && !last)
+                    throw new IOException("Line " + (lineNumber + 1) + " is longer than " + windowBytes + " bytes");
+                offset += consumed;
+            }
+            finish(listener);
+        }
+    }
+
+    /**
+     * Reads all the events in a log from a stream, e.g. one which decompresses a log.  The stream
+     * isn't closed.
+     *
+     * @param in The log to read
+     * @param listener The listener to pass the events to
+     * @throws IOException Thrown if the log can't be read or isn't valid, or by the listener
+     */
+    public void read(InputStream in, MetricalLogListener listener) throws IOException {
+        read(in, false, listener);
+    }
+
+    /**
+     * @param unfinished Whether the stream may end without its gzip trailer, part way through a
+     *                   line, as an unfinished gzip file does
+     */
+    private void read(InputStream in, boolean unfinished, MetricalLogListener listener) throws IOException {
+        if (streamBuffer == null)
+            streamBuffer = ByteBuffer.allocate(STREAM_BUFFER_BYTES);
+        ByteBuffer buffer = streamBuffer;
+        buffer.clear();
+        start();
+        boolean last = false;
+        boolean truncated = false;
+        while (!last && !endOfData) {
+            if (!buffer.hasRemaining()) {
+                // The buffer is full of a single line
+                if (buffer.capacity() >= windowBytes)
+                    throw new IOException("Line " + (lineNumber + 1) + " is longer than " + windowBytes + " bytes");
+                ByteBuffer grown = ByteBuffer.allocate((int) Math.min(windowBytes, buffer.capacity() * 2L));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            int count;
+            try {
+                count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } catch (EOFException e) {
+                if (!unfinished)
+                    throw e;
+                // The data ends before the trailer, so the last line may be incomplete
+                count = -1;
+                truncated = true;
+            }
+            if (count < 0) {
+                last = true;
+            } else {
+                buffer.position(buffer.position() + count);
+            }
+
+            buffer.flip();
+            int consumed = scan(buffer, last && !truncated, listener);
+            buffer.position(buffer.position() + consumed);
+            buffer.compact();
+        }
+        finish(listener);
+    }
+
+    /**
+     * Reads all the events in a log from a buffer, from its position to its limit.  The buffer's
+     * position is moved to its limit.
+     *
+     * @param bytes The log to read
+     * @param listener The listener to pass the events to
+     * @throws IOException Thrown if the log isn't valid, or by the listener
+     */
+    public void read(ByteBuffer bytes, MetricalLogListener listener) throws IOException {
+        start();
+        int consumed = scan(bytes, true, listener);
+        bytes.position(bytes.position() + consumed);
+        finish(listener);
+    }
+
+    private void start() {
+        contexts.clear();
+        contextLists.clear();
+        pendingContextName = null;
+        recordPending = false;
+        endOfData = false;
+        lineNumber = 0;
+    }
+
+    private void finish(MetricalLogListener listener) throws IOException {
+        finishContext();
+        dispatchRecord(listener);
+    }
+
+    /**
+     * Processes the complete lines in a buffer (and the final line, if it's the end of the log).
+     *
+     * @return The number of bytes processed
+     */
+    private int scan(ByteBuffer bytes, boolean endOfLog, MetricalLogListener listener) throws IOException {
+        int start = bytes.position();
+        int limit = bytes.limit();
+        int lineStart = start;
+        while (lineStart < limit) {
+            if (bytes.get(lineStart) == 0) {
+                // The padding after the last event in an unclosed memory-mapped file
+                endOfData = true;
+                return limit - start;
+            }
+            int lineEnd = lineStart;
+            while (lineEnd < limit && bytes.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && !endOfLog)
+                break;
+
+            lineNumber++;
+            int contentEnd = lineEnd > lineStart && bytes.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd > lineStart)
+                processLine(bytes, lineStart, contentEnd, listener);
+            lineStart = lineEnd + 1;
+        }
+        return Math.min(lineStart, limit) - start;
+    }
+
+    private void processLine(ByteBuffer bytes, int start, int end, MetricalLogListener listener) throws IOException {
+        if (end - start < 3 || bytes.get(start) != '@' || bytes.get(start + 2) != ':')
+            throw invalidLine();
+
+        byte type = bytes.get(start + 1);
+        int cursor = start + 3;
+        if (type != 'd')
+            finishContext();
+
+        switch (type) {
+            case 'v':
+                cursor = nextField(bytes, cursor, end);
+                nextField(bytes, cursor, end);
+                if (parseLong(bytes, fieldStart, fieldEnd) != VERSION_NO)
+                    throw new IOException("Unsupported log version at line " + lineNumber);
+                // Each file starts with a version line, and defines its own contexts
+                dispatchRecord(listener);
+                contexts.clear();
+                contextLists.clear();
+                break;
+
+            case 'c':
+                dispatchRecord(listener);
+                pendingContextName = strings.get(bytes, cursor, end);
+                break;
+
+            case 'd':
+                cursor = nextField(bytes, cursor, end);
+                if (pendingContextName == null || !pendingContextName.equals(intern(bytes)))
+                    throw invalidLine();
+                cursor = nextField(bytes, cursor, end);
+                String dimensionName = intern(bytes);
+                pendingDimensions.add(Metrical.d(dimensionName, strings.get(bytes, restOfLine(cursor, end), end)));
+                break;
+
+            case 'e':
+                dispatchRecord(listener);
+                cursor = nextField(bytes, cursor, end);
+                long timestamp = parseLong(bytes, fieldStart, fieldEnd);
+                cursor = nextField(bytes, cursor, end);
+                String name = fieldStart == fieldEnd ? null : intern(bytes);
+                record.start(name, timestamp, contextList(bytes, restOfLine(cursor, end), end));
+                recordPending = true;
+                break;
+
+            case 'm':
+                if (!recordPending)
+                    throw invalidLine();
+                cursor = skipFields(bytes, cursor, end, 2);
+                cursor = nextField(bytes, cursor, end);
+                String metricName = intern(bytes);
+                cursor = nextField(bytes, cursor, end);
+                int valueStart = fieldStart;
+                int valueEnd = fieldEnd;
+                nextField(bytes, cursor, end);
+                Unit unit = parseUnit(bytes, fieldStart, fieldEnd);
+                if (isFloatingPoint(bytes, valueStart, valueEnd)) {
+                    record.addDoubleMetric(metricName, unit, parseDouble(bytes, valueStart, valueEnd));
+                } else {
+                    record.addLongMetric(metricName, unit, parseLong(bytes, valueStart, valueEnd));
+                }
+                break;
+
+            case 'h':
+                if (!recordPending)
+                    throw invalidLine();
+                record.addHistogram(parseHistogram(bytes, cursor, end));
+                break;
+
+            default:
+                throw invalidLine();
+        }
+    }
+
+    /**
+     * Parses the rest of an @h line:
+     *   [timestamp]:[event]:[metric]:[count]:[p50]:[p90]:[p99]:[p99.9]:[max]:[unit]:[buckets]:[contexts]
+     */
+    private MetricalHistogram parseHistogram(ByteBuffer bytes, int cursor, int end) throws IOException {
+        cursor = skipFields(bytes, cursor, end, 2);
+        cursor = nextField(bytes, cursor, end);
+        String name = intern(bytes);
+        cursor = skipFields(bytes, cursor, end, 5);
+        cursor = nextField(bytes, cursor, end);
+        double max = parseDouble(bytes, fieldStart, fieldEnd);
+        cursor = nextField(bytes, cursor, end);
+        MetricalHistogram histogram = new MetricalHistogram(name, parseUnit(bytes, fieldStart, fieldEnd));
+        histogram.updateMax(max);
+
+        nextField(bytes, cursor, end);
+        int bucketsEnd = fieldEnd;
+        int bucketStart = fieldStart;
+        while (bucketStart < bucketsEnd) {
+            int separator = indexOf(bytes, bucketStart, bucketsEnd, (byte) '=');
+            int bucketEnd = indexOf(bytes, separator, bucketsEnd, (byte) ',');
+            if (separator == bucketsEnd)
+                throw invalidLine();
+            long index = parseLong(bytes, bucketStart, separator);
+            if (index < 0 || index >= MetricalHistogram.BUCKETS)
+                throw invalidLine();
+            histogram.addBucketValueCount((int) index, parseLong(bytes, separator + 1, bucketEnd));
+            bucketStart = bucketEnd + 1;
+        }
+        return histogram;
+    }
+
+    // Defines the context described by the preceding @c and @d lines, if there were any
+    private void finishContext() {
+        if (pendingContextName == null)
+            return;
+
+        MetricalDimension[] dimensions = pendingDimensions.toArray(new MetricalDimension[pendingDimensions.size()]);
+        contexts.put(pendingContextName, Metrical.c(pendingContextName, dimensions));
+        contextLists.clear();
+        pendingContextName = null;
+        pendingDimensions.clear();
+    }
+
+    private void dispatchRecord(MetricalLogListener listener) throws IOException {
+        if (recordPending) {
+            recordPending = false;
+            listener.event(record);
+        }
+    }
+
+    // Returns the contexts named by a comma-separated list, which are cached until a context is defined
+    private List<MetricalContext> contextList(ByteBuffer bytes, int start, int end) {
+        String names = strings.get(bytes, start, end);
+        List<MetricalContext> list = contextLists.get(names);
+        if (list == null) {
+            ImmutableList.Builder<MetricalContext> builder = ImmutableList.builder();
+            int nameStart = start;
+            while (nameStart < end) {
+                int nameEnd = indexOf(bytes, nameStart, end, (byte) ',');
+                String name = strings.get(bytes, nameStart, nameEnd);
+                MetricalContext context = contexts.get(name);
+                builder.add(context != null ? context : Metrical.c(name));
+                nameStart = nameEnd + 1;
+            }
+            list = builder.build();
+            contextLists.put(names, list);
+        }
+        return list;
+    }
+
+    private String intern(ByteBuffer bytes) {
+        return strings.get(bytes, fieldStart, fieldEnd);
+    }
+
+    /**
+     * Finds the next field, which ends at a ':' or the end of the line, and sets fieldStart and
+     * fieldEnd to it.
+     *
+     * @return The index after the field's separator
+     */
+    private int nextField(ByteBuffer bytes, int cursor, int end) throws IOException {
+        if (cursor > end)
+            throw invalidLine();
+        fieldStart = cursor;
+        fieldEnd = indexOf(bytes, cursor, end, (byte) ':');
+        return fieldEnd + 1;
+    }
+
+    // Checks that a line has another field, which takes up the rest of the line
+    private int restOfLine(int cursor, int end) throws IOException {
+        if (cursor > end)
+            throw invalidLine();
+        return cursor;
+    }
+
+    private int skipFields(ByteBuffer bytes, int cursor, int end, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            cursor = nextField(bytes, cursor, end);
+        }
+        return cursor;
+    }
+
+    private static int indexOf(ByteBuffer bytes, int start, int end, byte b) {
+        int i = start;
+        while (i < end && bytes.get(i) != b) {
+            i++;
+        }
+        return i;
+    }
+
+    private Unit parseUnit(ByteBuffer bytes, int start, int end) throws IOException {
+        for (int i = 0; i < UNITS.length; i++) {
+            byte[] name = UNIT_NAMES[i];
+            if (name.length == end - start) {
+                int j = 0;
+                while (j < name.length && name[j] == bytes.get(start + j)) {
+                    j++;
+                }
+                if (j == name.length)
+                    return UNITS[i];
+            }
+        }
+        throw new IOException("Unknown unit at line " + lineNumber);
+    }
+
+    private static boolean isFloatingPoint(ByteBuffer bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b == '.' || b == 'e' || b == 'N' || b == 'I')
+                return true;
+        }
+        return false;
+    }
+
+    private long parseLong(ByteBuffer bytes, int start, int end) throws IOException {
+        boolean negative = start < end && bytes.get(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end)
+            throw invalidLine();
+
+        // Accumulate negatively, so that Long.MIN_VALUE can be parsed
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = bytes.get(i) - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10)
+                throw invalidLine();
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE)
+                throw invalidLine();
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * Parses a number in the format written by "%.4g" (e.g. 1.235, 0.001235, 1.235e+04, NaN).
+     * Values with up to 15 significant digits and a decimal exponent within +/-22 are parsed
+     * exactly with double arithmetic; any others are passed to Double.parseDouble(...).
+     */
+    private double parseDouble(ByteBuffer bytes, int start, int end) throws IOException {
+        int i = start;
+        boolean negative = i < end && bytes.get(i) == '-';
+        if (negative)
+            i++;
+
+        long significand = 0;
+        boolean sawDigit = false;
+        int digits = 0;
+        int exponent = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b >= '0' && b <= '9') {
+                sawDigit = true;
+                if (significand != 0 || b != '0')
+                    digits++;
+                if (digits > 15)
+                    return parseDoubleSlowly(bytes, start, end);
+                significand = significand * 10 + (b - '0');
+                if (point)
+                    exponent--;
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (!sawDigit)
+            return parseDoubleSlowly(bytes, start, end);
+        if (i < end) {
+            byte b = bytes.get(i);
+            if (b != 'e' && b != 'E')
+                return parseDoubleSlowly(bytes, start, end);
+            i++;
+            boolean negativeExponent = i < end && bytes.get(i) == '-';
+            if (i < end && (bytes.get(i) == '-' || bytes.get(i) == '+'))
+                i++;
+            if (i == end || end - i > 3)
+                return parseDoubleSlowly(bytes, start, end);
+            int exponentValue = (int) parseLong(bytes, i, end);
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+
+        if (significand >= MAX_EXACT_SIGNIFICAND || exponent < -22 || exponent > 22)
+            return parseDoubleSlowly(bytes, start, end);
+        // Both the significand and the power of ten are exact, so the result is correctly rounded
+        double value = exponent < 0
+                ? significand / POWERS_OF_TEN[-exponent]
+                : significand * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private double parseDoubleSlowly(ByteBuffer bytes, int start, int end) throws IOException {
+        byte[] text = new byte[end - start];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = bytes.get(start + i);
+        }
+        try {
+            return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw invalidLine();
+        }
+    }
+
+    private IOException invalidLine() {
+        return new IOException("Invalid line " + lineNumber);
+    }
+}
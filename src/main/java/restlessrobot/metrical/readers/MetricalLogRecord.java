@@ -0,0 +1,152 @@
+package restlessrobot.metrical.readers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.Unit;
+
+/**
+ * The flyweight that MetricalLogReader passes to its listener for each event.  The metrics of the
+ * event are accumulated into arrays which are reused for the next event.
+ */
+final class MetricalLogRecord implements MetricalEventRecord {
+    private static final int INITIAL_METRIC_CAPACITY = 8;
+
+    private String name;
+    private long timestamp;
+    private List<MetricalContext> contexts;
+    private final List<MetricalHistogram> histograms = new ArrayList<>();
+
+    private int metricCount;
+    private String[] metricNames = new String[INITIAL_METRIC_CAPACITY];
+    private Unit[] metricUnits = new Unit[INITIAL_METRIC_CAPACITY];
+    private boolean[] floatingPoint = new boolean[INITIAL_METRIC_CAPACITY];
+    private long[] longValues = new long[INITIAL_METRIC_CAPACITY];
+    private double[] doubleValues = new double[INITIAL_METRIC_CAPACITY];
+
+    void start(String name, long timestamp, List<MetricalContext> contexts) {
+        this.name = name;
+        this.timestamp = timestamp;
+        this.contexts = contexts;
+        this.metricCount = 0;
+        this.histograms.clear();
+    }
+
+    void addLongMetric(String name, Unit unit, long value) {
+        int index = addMetric(name, unit, false);
+        longValues[index] = value;
+    }
+
+    void addDoubleMetric(String name, Unit unit, double value) {
+        int index = addMetric(name, unit, true);
+        doubleValues[index] = value;
+    }
+
+    void addHistogram(MetricalHistogram histogram) {
+        histograms.add(histogram);
+    }
+
+    private int addMetric(String name, Unit unit, boolean isFloatingPoint) {
+        if (metricCount == metricNames.length) {
+            int capacity = metricCount * 2;
+            metricNames = Arrays.copyOf(metricNames, capacity);
+            metricUnits = Arrays.copyOf(metricUnits, capacity);
+            floatingPoint = Arrays.copyOf(floatingPoint, capacity);
+            longValues = Arrays.copyOf(longValues, capacity);
+            doubleValues = Arrays.copyOf(doubleValues, capacity);
+        }
+        metricNames[metricCount] = name;
+        metricUnits[metricCount] = unit;
+        floatingPoint[metricCount] = isFloatingPoint;
+        return metricCount++;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public List<MetricalContext> getContexts() {
+        return contexts;
+    }
+
+    @Override
+    public int getMetricCount() {
+        return metricCount;
+    }
+
+    @Override
+    public String getMetricName(int index) {
+        checkMetricIndex(index);
+        return metricNames[index];
+    }
+
+    @Override
+    public Unit getMetricUnit(int index) {
+        checkMetricIndex(index);
+        return metricUnits[index];
+    }
+
+    @Override
+    public boolean isFloatingPointMetric(int index) {
+        checkMetricIndex(index);
+        return floatingPoint[index];
+    }
+
+    @Override
+    public long getLongMetricValue(int index) {
+        checkMetricIndex(index);
+        return floatingPoint[index] ? (long) doubleValues[index] : longValues[index];
+    }
+
+    @Override
+    public double getDoubleMetricValue(int index) {
+        checkMetricIndex(index);
+        return floatingPoint[index] ? doubleValues[index] : longValues[index];
+    }
+
+    @Override
+    public int getHistogramCount() {
+        return histograms.size();
+    }
+
+    @Override
+    public MetricalHistogram getHistogram(int index) {
+        return histograms.get(index);
+    }
+
+    @Override
+    public MetricalEvent toEvent() {
+        MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+        builder.name(name);
+        builder.timestamp(timestamp);
+        builder.contexts(contexts);
+        for (int i = 0; i < metricCount; i++) {
+            if (floatingPoint[i]) {
+                builder.metric(metricNames[i], doubleValues[i], metricUnits[i]);
+            } else {
+                builder.metric(metricNames[i], longValues[i], metricUnits[i]);
+            }
+        }
+        for (MetricalHistogram histogram : histograms) {
+            builder.histogram(histogram);
+        }
+        return builder.build();
+    }
+
+    private void checkMetricIndex(int index) {
+        if (index < 0 || index >= metricCount)
+            throw new IndexOutOfBoundsException("Metric index " + index + " of " + metricCount);
+    }
+}
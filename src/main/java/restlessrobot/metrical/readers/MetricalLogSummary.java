@@ -0,0 +1,365 @@
+package restlessrobot.metrical.readers;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalDimension;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.Unit;
+import restlessrobot.metrical.handlers.AggregatingMetricalHandler;
+
+/**
+ * A summary of the events read from one or more logs, e.g. by MetricalLogAggregator.
+ *
+ * Events are grouped by name and by the names and dimensions of their contexts (compared by
+ * value, so that contexts which were defined separately in different files are grouped
+ * together).  For each group, the summary has the number of events, and the count, sum, min and
+ * max of each metric.  Metrics with time units (see Unit.isTimeUnit()), and the histograms
+ * attached to events, are also merged into a MetricalHistogram per metric.
+ *
+ * Summaries can be merged, and reported as summary events in the same format as
+ * AggregatingMetricalHandler.
+ *
+ * Thread-safety: none.
+ */
+public class MetricalLogSummary {
+    private final Map<Key, EventSummary> events = new HashMap<>();
+
+    // Keys for the context lists and event names that have been seen, so that they're only built
+    // once per list.  Context lists are compared by identity, since MetricalLogReader reuses them.
+    private final Map<List<MetricalContext>, Map<String, Key>> keyCache = new IdentityHashMap<>();
+
+    /**
+     * Adds an event to the summary.
+     *
+     * @param record The event to add
+     */
+    public void add(MetricalEventRecord record) {
+        EventSummary summary = summary(key(record));
+        summary.add(record);
+    }
+
+    /**
+     * Adds all the events in another summary to this one.  The other summary is not changed.
+     *
+     * @param other The summary to merge into this one
+     */
+    public void merge(MetricalLogSummary other) {
+        for (Map.Entry<Key, EventSummary> entry : other.events.entrySet()) {
+            summary(entry.getKey()).merge(entry.getValue());
+        }
+    }
+
+    /**
+     * Forgets the context lists which have been seen so far.  Should be called whenever a new log
+     * is read, since its context lists won't be reused.
+     */
+    void clearKeyCache() {
+        keyCache.clear();
+    }
+
+    /**
+     * @return An unmodifiable view of the summaries of each group of events
+     */
+    public Map<Key, EventSummary> getEvents() {
+        return Collections.unmodifiableMap(events);
+    }
+
+    /**
+     * Reports one summary event for each group of events, in the same format as
+     * AggregatingMetricalHandler: a "count" metric with the number of events, and "[metric].count",
+     * "[metric].sum", "[metric].min" and "[metric].max" metrics (and any histogram) for each
+     * metric.  The timestamp of each summary event is that of the first event in the group.
+     *
+     * @param handler The handler to report the summary events to
+     * @throws MetricalException Thrown if the handler fails to process a summary event
+     */
+    public void report(MetricalHandler handler) throws MetricalException {
+        for (Map.Entry<Key, EventSummary> entry : events.entrySet()) {
+            handler.event(entry.getValue().toEvent(entry.getKey()));
+        }
+    }
+
+    private EventSummary summary(Key key) {
+        EventSummary summary = events.get(key);
+        if (summary == null) {
+            summary = new EventSummary();
+            events.put(key, summary);
+        }
+        return summary;
+    }
+
+    private Key key(MetricalEventRecord record) {
+        List<MetricalContext> contexts = record.getContexts();
+        Map<String, Key> keysByName = keyCache.get(contexts);
+        if (keysByName == null) {
+            keysByName = new HashMap<>();
+            keyCache.put(contexts, keysByName);
+        }
+        Key key = keysByName.get(record.getName());
+        if (key == null) {
+            key = new Key(record.getName(), contexts);
+            keysByName.put(record.getName(), key);
+        }
+        return key;
+    }
+
+    /**
+     * Identifies a group of events by name and by the names and dimension values of their
+     * contexts.
+     */
+    public static final class Key {
+        private final String name;
+        private final List<MetricalContext> contexts;
+        private final Map<String, Map<String, Object>> dimensions;
+        private final int hash;
+
+        Key(String name, List<MetricalContext> contexts) {
+            this.name = name;
+            this.contexts = contexts;
+
+            // The order of contexts doesn't matter, since they're identified by name
+            Map<String, Map<String, Object>> dimensions = new HashMap<>();
+            for (MetricalContext context : contexts) {
+                Map<String, Object> values = new HashMap<>();
+                for (MetricalDimension dimension : context.getDimensions().values()) {
+                    values.put(dimension.getName(), dimension.getValue());
+                }
+                dimensions.put(context.getName(), Collections.unmodifiableMap(values));
+            }
+            this.dimensions = Collections.unmodifiableMap(dimensions);
+            this.hash = 31 * (name == null ? 0 : name.hashCode()) + dimensions.hashCode();
+        }
+
+        /**
+         * @return The name of the events
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The contexts of the first event in the group
+         */
+        public List<MetricalContext> getContexts() {
+            return contexts;
+        }
+
+        /**
+         * @return The dimension values of the events' contexts, indexed by context name and then
+         *         by dimension name
+         */
+        public Map<String, Map<String, Object>> getDimensions() {
+            return dimensions;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+            return hash == other.hash
+                    && (name == null ? other.name == null : name.equals(other.name))
+                    && dimensions.equals(other.dimensions);
+        }
+
+        @Override
+        public String toString() {
+            return name + dimensions;
+        }
+    }
+
+    /**
+     * A summary of a group of events.
+     */
+    public static final class EventSummary {
+        private long count;
+        private long firstTimestamp = Long.MAX_VALUE;
+        private final Map<String, MetricSummary> metrics = new LinkedHashMap<>();
+
+        void add(MetricalEventRecord record) {
+            count++;
+            firstTimestamp = Math.min(firstTimestamp, record.getTimestamp());
+
+            int metricCount = record.getMetricCount();
+            for (int i = 0; i < metricCount; i++) {
+                MetricSummary metric = metric(record.getMetricName(i), record.getMetricUnit(i));
+                metric.add(record.isFloatingPointMetric(i)
+                        ? record.getDoubleMetricValue(i)
+                        : record.getLongMetricValue(i));
+            }
+            int histogramCount = record.getHistogramCount();
+            for (int i = 0; i < histogramCount; i++) {
+                MetricalHistogram histogram = record.getHistogram(i);
+                metric(histogram.getName(), histogram.getUnit()).merge(histogram);
+            }
+        }
+
+        void merge(EventSummary other) {
+            count += other.count;
+            firstTimestamp = Math.min(firstTimestamp, other.firstTimestamp);
+            for (Map.Entry<String, MetricSummary> entry : other.metrics.entrySet()) {
+                MetricSummary metric = entry.getValue();
+                metric(entry.getKey(), metric.unit).merge(metric);
+            }
+        }
+
+        private MetricSummary metric(String name, Unit unit) {
+            MetricSummary metric = metrics.get(name);
+            if (metric == null) {
+                metric = new MetricSummary(name, unit);
+                metrics.put(name, metric);
+            }
+            return metric;
+        }
+
+        MetricalEvent toEvent(Key key) {
+            MetricalEvent.MetricalEventBuilder builder = MetricalEvent.builder();
+            builder.name(key.getName());
+            builder.timestamp(firstTimestamp);
+            builder.contexts(key.getContexts());
+            builder.metric(AggregatingMetricalHandler.COUNT_METRIC, count, Unit.NONE);
+            for (MetricSummary metric : metrics.values()) {
+                metric.summarise(builder);
+            }
+            return builder.build();
+        }
+
+        /**
+         * @return The number of events
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The earliest timestamp of the events
+         */
+        public long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        /**
+         * @return An unmodifiable view of the summaries of each metric, indexed by name
+         */
+        public Map<String, MetricSummary> getMetrics() {
+            return Collections.unmodifiableMap(metrics);
+        }
+    }
+
+    /**
+     * A summary of the values of a metric.
+     */
+    public static final class MetricSummary {
+        private final String name;
+        private final Unit unit;
+        private long count;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private MetricalHistogram histogram;
+
+        MetricSummary(String name, Unit unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        void add(double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            if (unit.isTimeUnit())
+                histogram().record(value);
+        }
+
+        // Histograms only contribute to the histogram, since their values aren't known exactly
+        void merge(MetricalHistogram other) {
+            histogram().merge(other);
+        }
+
+        void merge(MetricSummary other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            if (other.histogram != null)
+                histogram().merge(other.histogram);
+        }
+
+        private MetricalHistogram histogram() {
+            if (histogram == null)
+                histogram = new MetricalHistogram(name, unit);
+            return histogram;
+        }
+
+        void summarise(MetricalEvent.MetricalEventBuilder builder) {
+            if (count > 0) {
+                builder.metric(name + AggregatingMetricalHandler.COUNT_SUFFIX, count, Unit.NONE);
+                builder.metric(name + AggregatingMetricalHandler.SUM_SUFFIX, sum, unit);
+                builder.metric(name + AggregatingMetricalHandler.MIN_SUFFIX, min, unit);
+                builder.metric(name + AggregatingMetricalHandler.MAX_SUFFIX, max, unit);
+            }
+            if (histogram != null && histogram.getCount() > 0)
+                builder.histogram(histogram);
+        }
+
+        /**
+         * @return The unit of the metric
+         */
+        public Unit getUnit() {
+            return unit;
+        }
+
+        /**
+         * @return The number of values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The sum of the values
+         */
+        public double getSum() {
+            return sum;
+        }
+
+        /**
+         * @return The smallest value, or +Infinity if there were no values
+         */
+        public double getMin() {
+            return min;
+        }
+
+        /**
+         * @return The largest value, or -Infinity if there were no values
+         */
+        public double getMax() {
+            return max;
+        }
+
+        /**
+         * @return A histogram of the values, or null if the metric doesn't have a time unit and no
+         *         histograms of it were read
+         */
+        public MetricalHistogram getHistogram() {
+            return histogram;
+        }
+    }
+}
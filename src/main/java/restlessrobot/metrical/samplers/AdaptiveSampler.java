@@ -0,0 +1,65 @@
+package restlessrobot.metrical.samplers;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import restlessrobot.metrical.TimeProvider;
+
+/**
+ * Keeps events at random with a probability per event name, which is adjusted every second so
+ * that roughly a target number of events per second are kept for each name.  Names whose events
+ * are rarer than the target are kept in full.
+ *
+ * Deciding to discard an event takes a volatile read and a thread-local random number; only kept
+ * events update any shared state.  The number of events offered is estimated from the number
+ * kept and the probability, so the probability is adjusted on kept events too.  Events are kept
+ * with a probability of 1 until the first second has passed.
+ */
+public class AdaptiveSampler extends PerNameSampler<AdaptiveSampler.State> {
+    private static final long WINDOW_MILLIS = 1000;
+    private static final double MIN_PROBABILITY = 1e-6;
+
+    private final double targetPerSecond;
+
+    /**
+     * @param targetPerSecond The number of events to keep per second, for each event name
+     */
+    public AdaptiveSampler(double targetPerSecond) {
+        if (!(targetPerSecond > 0))
+            throw new IllegalArgumentException("Invalid target per second: " + targetPerSecond);
+
+        this.targetPerSecond = targetPerSecond;
+    }
+
+    @Override
+    protected double sample(State state, TimeProvider timeProvider) {
+        double probability = state.probability;
+        if (probability < 1 && ThreadLocalRandom.current().nextDouble() >= probability)
+            return 0;
+
+        state.kept.incrementAndGet();
+        long now = timeProvider.currentTimeMillis();
+        long start = state.windowStart.get();
+        if (now - start >= WINDOW_MILLIS && state.windowStart.compareAndSet(start, now)) {
+            double offered = state.kept.getAndSet(0) / probability;
+            double target = targetPerSecond * (now - start) / WINDOW_MILLIS;
+            state.probability = Math.max(MIN_PROBABILITY, Math.min(1, target / offered));
+        }
+        return probability;
+    }
+
+    @Override
+    protected State newState(long now) {
+        return new State(now);
+    }
+
+    static final class State {
+        private final AtomicLong kept = new AtomicLong();
+        private final AtomicLong windowStart;
+        private volatile double probability = 1;
+
+        State(long now) {
+            this.windowStart = new AtomicLong(now);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package restlessrobot.metrical.samplers;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import restlessrobot.metrical.MetricalSampler;
+
+/**
+ * Keeps every event with the same probability, whatever its name.
+ */
+public class FixedRateSampler implements MetricalSampler {
+    private final double rate;
+
+    /**
+     * @param rate The probability of keeping each event, greater than 0 and at most 1
+     */
+    public FixedRateSampler(double rate) {
+        if (!(rate > 0 && rate <= 1))
+            throw new IllegalArgumentException("Invalid sample rate: " + rate);
+
+        this.rate = rate;
+    }
+
+    @Override
+    public double sample(String name) {
+        if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)
+            return 0;
+        return rate;
+    }
+}
@@ -0,0 +1,70 @@
+package restlessrobot.metrical.samplers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import restlessrobot.metrical.MetricalClock;
+import restlessrobot.metrical.MetricalSampler;
+import restlessrobot.metrical.TimeProvider;
+
+/**
+ * Base class for samplers which keep separate state for each event name.  Once MAX_NAMES names
+ * have been seen, any further names share a single state, so that events with unbounded names
+ * can't exhaust memory.
+ *
+ * @param <S> The type of the state kept per name
+ */
+abstract class PerNameSampler<S> implements MetricalSampler {
+    static final int MAX_NAMES = 10_000;
+
+    private final ConcurrentMap<String, S> states = new ConcurrentHashMap<>();
+    private volatile S overflowState;
+    private volatile TimeProvider timeProvider = MetricalClock.shared();
+
+    @Override
+    public double sample(String name) {
+        return sample(state(name), timeProvider);
+    }
+
+    /**
+     * Decides whether to keep an event.
+     *
+     * @param state The state for the event's name
+     * @param timeProvider The source of the current time
+     * @return The probability with which the event was kept, or 0 if it should be discarded
+     */
+    protected abstract double sample(S state, TimeProvider timeProvider);
+
+    /**
+     * @param now The current time
+     * @return The state for a name which hasn't been seen before
+     */
+    protected abstract S newState(long now);
+
+    private S state(String name) {
+        String key = name != null ? name : "";
+        S state = states.get(key);
+        if (state != null)
+            return state;
+
+        if (states.size() >= MAX_NAMES) {
+            S overflow = overflowState;
+            if (overflow == null) {
+                synchronized (this) {
+                    if (overflowState == null)
+                        overflowState = newState(timeProvider.currentTimeMillis());
+                    overflow = overflowState;
+                }
+            }
+            return overflow;
+        }
+
+        S created = newState(timeProvider.currentTimeMillis());
+        S existing = states.putIfAbsent(key, created);
+        return existing != null ? existing : created;
+    }
+
+    public void setTimeProvider(TimeProvider timeProvider) {
+        this.timeProvider = timeProvider;
+    }
+}
@@ -0,0 +1,103 @@
+package restlessrobot.metrical.samplers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import restlessrobot.metrical.MetricalClock;
+import restlessrobot.metrical.MonotonicTimeProvider;
+import restlessrobot.metrical.TimeProvider;
+
+/**
+ * Keeps up to a fixed number of events per second for each event name, allowing short bursts,
+ * and discards the rest.
+ *
+ * Each name has a token bucket, implemented as a single atomic "theoretical arrival time" which
+ * each kept event moves on by the interval between permits (the generic cell rate algorithm), so
+ * keeping an event takes one compare-and-set.
+ *
+ * Arrivals are timed with System.nanoTime() while the sampler uses the shared clock (the
+ * default), and with currentTimeNanos() if it's given a MonotonicTimeProvider.  Other
+ * TimeProviders only have millisecond resolution, so with them at most burst events are kept
+ * per millisecond, whatever the rate.
+ *
+ * Which events are kept depends on when they arrive rather than on chance, so the sample rate
+ * attached to each kept event is an estimate: the fraction of events with that name which were
+ * kept over the previous second.  Events are kept with a rate of 1 until a second has passed.
+ */
+public class TokenBucketSampler extends PerNameSampler<TokenBucketSampler.Bucket> {
+    private static final long WINDOW_MILLIS = 1000;
+
+    private final long intervalNanos;
+    private final long burstNanos;
+
+    /**
+     * @param permitsPerSecond The number of events to keep per second, for each event name
+     * @param burst The number of events that can be kept at once, if none have been kept for a
+     *              while
+     */
+    public TokenBucketSampler(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0))
+            throw new IllegalArgumentException("Invalid permits per second: " + permitsPerSecond);
+        if (burst < 1)
+            throw new IllegalArgumentException("Invalid burst: " + burst);
+
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burstNanos    = intervalNanos * (burst - 1);
+    }
+
+    @Override
+    protected double sample(Bucket bucket, TimeProvider timeProvider) {
+        long now = timeProvider.currentTimeMillis();
+        bucket.rollWindow(now);
+        bucket.offered.incrementAndGet();
+
+        long nowNanos = currentTimeNanos(timeProvider);
+        while (true) {
+            long arrival = bucket.arrivalNanos.get();
+            long start = Math.max(arrival, nowNanos);
+            if (start - nowNanos > burstNanos)
+                return 0;
+            if (bucket.arrivalNanos.compareAndSet(arrival, start + intervalNanos))
+                break;
+        }
+        bucket.kept.incrementAndGet();
+        return bucket.rate;
+    }
+
+    private static long currentTimeNanos(TimeProvider timeProvider) {
+        if (timeProvider == MetricalClock.shared() || timeProvider == MetricalClock.system())
+            return System.nanoTime();
+        if (timeProvider instanceof MonotonicTimeProvider)
+            return ((MonotonicTimeProvider) timeProvider).currentTimeNanos();
+        return TimeUnit.MILLISECONDS.toNanos(timeProvider.currentTimeMillis());
+    }
+
+    @Override
+    protected Bucket newState(long now) {
+        return new Bucket(now);
+    }
+
+    static final class Bucket {
+        private final AtomicLong arrivalNanos = new AtomicLong(Long.MIN_VALUE / 2);
+        private final AtomicLong offered = new AtomicLong();
+        private final AtomicLong kept = new AtomicLong();
+        private final AtomicLong windowStart;
+        private volatile double rate = 1;
+
+        Bucket(long now) {
+            this.windowStart = new AtomicLong(now);
+        }
+
+        private void rollWindow(long now) {
+            long start = windowStart.get();
+            if (now - start < WINDOW_MILLIS || !windowStart.compareAndSet(start, now))
+                return;
+
+            // Counts from other threads may land in either window, which only skews the estimate
+            long offeredCount = offered.getAndSet(0);
+            long keptCount = kept.getAndSet(0);
+            if (offeredCount > 0)
+                rate = Math.max(Double.MIN_NORMAL, Math.min(1, (double) keptCount / offeredCount));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package restlessrobot.metrical;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import restlessrobot.metrical.handlers.TextCaptureMetricalHandler;
+
+import static org.junit.Assert.*;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
+
+public class MetricalCardinalityGuardTest {
+    private final MetricalCardinalityGuard guard = new MetricalCardinalityGuard(3, 2);
+
+    @Test
+    public void testValuesWithinLimitUnchanged() throws Exception {
+        MetricalContext context = c("platform", d("os", "android"));
+        assertSame(context, guard.guard(context));
+        assertSame(context, guard.guard(context));
+        assertEquals(0, guard.getFoldedCount("os"));
+    }
+
+    @Test
+    public void testValuesOverLimitFolded() throws Exception {
+        MetricalStats.Snapshot before = MetricalStats.get().snapshot();
+        for (int i = 0; i < 10; i++) {
+            MetricalContext guarded = guard.guard(c("request", d("user", "user-" + i), d("os", "android")));
+            Object expected = i < 3 ? "user-" + i : MetricalCardinalityGuard.OTHER;
+            assertEquals(expected, guarded.getDimensions().get("user").getValue());
+            assertEquals("android", guarded.getDimensions().get("os").getValue());
+        }
+
+        // Values already let through still are
+        assertEquals("user-1", guard.guard(c("request", d("user", "user-1"))).getDimensions().get("user").getValue());
+
+        assertEquals(7, guard.getFoldedCount("user"));
+        assertEquals(Collections.singletonList("user"), guard.getFoldedDimensionNames());
+        assertTrue(MetricalStats.get().snapshot().since(before).getCount(MetricalStats.Counter.VALUES_FOLDED) >= 7);
+    }
+
+    @Test
+    public void testFoldedContextsShareId() throws Exception {
+        guard.guard(c("request", d("user", "a"), d("os", "x")));
+        guard.guard(c("request", d("user", "b"), d("os", "x")));
+        guard.guard(c("request", d("user", "c"), d("os", "x")));
+        MetricalContext d1 = guard.guard(c("request", d("user", "d"), d("os", "x")));
+        MetricalContext d2 = guard.guard(c("request", d("user", "e"), d("os", "x")));
+        assertEquals(d1, d2);
+        assertEquals(d1.getId(), d2.getId());
+    }
+
+    @Test
+    public void testNamesOverLimitFolded() throws Exception {
+        guard.guard(c("a", d("x", "1")));
+        guard.guard(c("b", d("y", "1")));
+
+        MetricalContext guarded = guard.guard(c("c", d("z", "1")));
+        assertEquals(MetricalCardinalityGuard.OTHER, guarded.getName());
+        assertEquals(MetricalCardinalityGuard.OTHER, guarded.getDimensions().get("z").getValue());
+        assertEquals(0, guard.getEstimatedCardinality("z"));
+        assertEquals(0, guard.getFoldedCount("z"));
+    }
+
+    @Test
+    public void testEstimatedCardinality() throws Exception {
+        MetricalCardinalityGuard defaultGuard = new MetricalCardinalityGuard();
+        int distinct = 20_000;
+        for (int i = 0; i < distinct; i++) {
+            defaultGuard.guard(c("request", d("user", Integer.toString(i))));
+        }
+        long estimate = defaultGuard.getEstimatedCardinality("user");
+        assertTrue("Estimate " + estimate, Math.abs(estimate - distinct) < distinct * 0.1);
+        assertEquals(distinct - MetricalCardinalityGuard.DEFAULT_MAX_VALUES, defaultGuard.getFoldedCount("user"));
+    }
+
+    @Test
+    public void testSmallCardinalityEstimatedClosely() throws Exception {
+        MetricalCardinalityGuard defaultGuard = new MetricalCardinalityGuard();
+        for (String os : Arrays.asList("android", "ios", "windows", "android")) {
+            defaultGuard.guard(c("platform", d("os", os)));
+        }
+        assertEquals(3, defaultGuard.getEstimatedCardinality("os"));
+    }
+
+    @Test
+    public void testMetricalWithContexts() throws Exception {
+        TextCaptureMetricalHandler handler = new TextCaptureMetricalHandler();
+        Metrical metrical = new Metrical(handler);
+        metrical.setCardinalityGuard(guard);
+        for (int i = 0; i < 5; i++) {
+            metrical.withContexts(c("request", d("user", "user-" + i))).event("login");
+        }
+        String output = handler.get();
+        assertTrue(output.contains("@d:request:user:user-2\n"));
+        assertFalse(output.contains("user-3"));
+        assertTrue(output.contains("@d:request:user:" + MetricalCardinalityGuard.OTHER + "\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMetricalWithNullContexts() throws Exception {
+        Metrical metrical = new Metrical(new TextCaptureMetricalHandler());
+        metrical.setCardinalityGuard(guard);
+        metrical.withContexts((MetricalContext[]) null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxValues() throws Exception {
+        new MetricalCardinalityGuard(0, 10);
+    }
+}
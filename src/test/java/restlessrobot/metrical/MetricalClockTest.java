@@ -0,0 +1,82 @@
+package restlessrobot.metrical;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricalClockTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+
+    @After
+    public void tearDown() throws Exception {
+        MetricalClock.setTimeProvider(null);
+    }
+
+    @Test
+    public void testSharedFollowsSetTimeProvider() throws Exception {
+        TimeProvider shared = MetricalClock.shared();
+        MetricalClock.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return MOCK_TIME;
+            }
+        });
+        assertEquals(MOCK_TIME, shared.currentTimeMillis());
+
+        MetricalClock.setTimeProvider(null);
+        long before = System.currentTimeMillis();
+        long now = shared.currentTimeMillis();
+        assertTrue(now >= before && now <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void testCoarseTimeProviderTicks() throws Exception {
+        CoarseTimeProvider coarse = new CoarseTimeProvider(1);
+        try {
+            long start = coarse.currentTimeMillis();
+            assertTrue(Math.abs(start - System.currentTimeMillis()) < 1000);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (coarse.currentTimeMillis() < start + 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(coarse.currentTimeMillis() >= start + 20);
+        } finally {
+            coarse.close();
+        }
+    }
+
+    @Test
+    public void testCoarseTimeProviderStopsWhenClosed() throws Exception {
+        CoarseTimeProvider coarse = new CoarseTimeProvider(1);
+        coarse.close();
+        long stopped = coarse.currentTimeMillis();
+        Thread.sleep(20);
+        assertEquals(stopped, coarse.currentTimeMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCoarseTimeProviderInvalidResolution() throws Exception {
+        new CoarseTimeProvider(0);
+    }
+
+    @Test
+    public void testMonotonicTimeProvider() throws Exception {
+        long before = System.currentTimeMillis();
+        MonotonicTimeProvider monotonic = new MonotonicTimeProvider();
+        assertTrue(Math.abs(monotonic.currentTimeMillis() - before) < 1000);
+
+        long previousMillis = monotonic.currentTimeMillis();
+        long previousNanos = monotonic.currentTimeNanos();
+        for (int i = 0; i < 10_000; i++) {
+            long millis = monotonic.currentTimeMillis();
+            long nanos = monotonic.currentTimeNanos();
+            assertTrue(millis >= previousMillis);
+            assertTrue(nanos >= previousNanos);
+            assertEquals(millis, nanos / 1_000_000, 1);
+            previousMillis = millis;
+            previousNanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package restlessrobot.metrical;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import restlessrobot.metrical.handlers.TextCaptureMetricalHandler;
+
+import static org.junit.Assert.*;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
+import static restlessrobot.metrical.Metrical.m;
+
+/**
+ * Shares one Metrical instance between many threads and checks that the output is still a valid
+ * sequence of complete events, each preceded by the definitions of the contexts it refers to.
+ */
+public class MetricalConcurrencyTest {
+    private static final int THREADS = 16;
+    private static final int EVENTS_PER_THREAD = 2_000;
+
+    private final TextCaptureMetricalHandler handler = new TextCaptureMetricalHandler();
+
+    @Before
+    public void setUp() throws Exception {
+        MetricalEvent.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+        });
+        // Rotate often, so that context definitions have to be repeated while other threads are
+        // reporting events that refer to them
+        handler.setRotateSizeLimitBytes(4 * 1024);
+    }
+
+    @Test
+    public void testConcurrentEvents() throws Exception {
+        final Metrical root = new Metrical(handler, c("platform", d("os", "linux"), d("cores", "16")));
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int threadNo = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Metrical worker = root.withContexts(c("worker-" + threadNo, d("id", Integer.toString(threadNo))));
+                    start.await();
+                    for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+                        worker.event("event-" + threadNo,
+                                m("count", i, Unit.NONE),
+                                m("ratio", 0.5f, Unit.PERCENT));
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        verifyOutput(handler.get());
+    }
+
+    private void verifyOutput(String output) {
+        assertTrue("Output ends with a complete line", output.endsWith("\n"));
+
+        Set<String> definedContexts = new HashSet<>();
+        Map<String, Integer> nextCount = new HashMap<>();
+        String currentEvent = null;
+        int metricsForCurrentEvent = 0;
+        int events = 0;
+        int files = 0;
+
+        for (String line : output.split("\n")) {
+            String[] fields = line.split(":", -1);
+            if (!"@m".equals(fields[0]) && currentEvent != null) {
+                assertEquals("Metrics for " + currentEvent, 2, metricsForCurrentEvent);
+                currentEvent = null;
+            }
+
+            switch (fields[0]) {
+                case "@v":
+                    assertEquals(line, "@v:restlessrobot.metrical:1", line);
+                    definedContexts.clear();
+                    files++;
+                    break;
+                case "@c":
+                    assertEquals(line, 2, fields.length);
+                    definedContexts.add(fields[1]);
+                    break;
+                case "@d":
+                    assertEquals(line, 4, fields.length);
+                    assertTrue("Dimension follows its context: " + line, definedContexts.contains(fields[1]));
+                    break;
+                case "@e":
+                    assertEquals(line, 4, fields.length);
+                    assertContextsDefined(definedContexts, line, fields[3]);
+                    currentEvent = fields[1] + ":" + fields[2];
+                    metricsForCurrentEvent = 0;
+                    events++;
+                    break;
+                case "@m":
+                    assertEquals(line, 7, fields.length);
+                    assertEquals("Metric follows its event: " + line, currentEvent, fields[1] + ":" + fields[2]);
+                    assertContextsDefined(definedContexts, line, fields[6]);
+                    if (metricsForCurrentEvent == 0) {
+                        // Each thread's events must arrive in the order they were reported
+                        assertEquals(line, "count", fields[3]);
+                        Integer expected = nextCount.get(fields[2]);
+                        assertEquals(line, expected == null ? 0 : expected, Integer.parseInt(fields[4]));
+                        nextCount.put(fields[2], Integer.parseInt(fields[4]) + 1);
+                    } else {
+                        assertEquals(line, "ratio", fields[3]);
+                        assertEquals(line, "0.5000", fields[4]);
+                    }
+                    metricsForCurrentEvent++;
+                    break;
+                default:
+                    fail("Unexpected line: " + line);
+            }
+        }
+        if (currentEvent != null)
+            assertEquals("Metrics for " + currentEvent, 2, metricsForCurrentEvent);
+
+        assertEquals(THREADS * EVENTS_PER_THREAD, events);
+        assertTrue("Output was rotated", files > 1);
+    }
+
+    private void assertContextsDefined(Set<String> definedContexts, String line, String contextNames) {
+        String[] names = contextNames.split(",");
+        assertEquals(line, 2, names.length);
+        for (String name : names) {
+            assertTrue("Context " + name + " defined before " + line, definedContexts.contains(name));
+        }
+    }
+}
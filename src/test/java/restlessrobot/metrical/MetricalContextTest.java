@@ -0,0 +1,73 @@
+package restlessrobot.metrical;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
+
+public class MetricalContextTest {
+    @Test
+    public void testEqualContextsShareId() {
+        MetricalContext first = c("platform", d("os", "android"), d("city", "Z\u00fcrich"));
+        MetricalContext second = MetricalContext.builder()
+                .name("platform")
+                .dimension("os", "android")
+                .dimension("city", "Z\u00fcrich")
+                .build();
+
+        assertNotSame(first, second);
+        assertEquals(first.getId(), second.getId());
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    @Test
+    public void testDifferentContexts() {
+        MetricalContext context = c("platform", d("os", "android"));
+        MetricalContext[] others = {
+                c("platform", d("os", "ios")),
+                c("platform", d("version", "android")),
+                c("platform", d("os", "android"), d("city", "London")),
+                c("device", d("os", "android")),
+                c(null, d("os", "android")),
+        };
+        for (MetricalContext other : others) {
+            assertNotEquals(context.getId(), other.getId());
+            assertNotEquals(context, other);
+        }
+    }
+
+    @Test
+    public void testIdsReusedAfterCollection() throws Exception {
+        int rounds = 20;
+        int contextsPerRound = 1000;
+        int maxId = 0;
+        for (int round = 0; round < rounds; round++) {
+            MetricalContext[] contexts = new MetricalContext[contextsPerRound];
+            for (int i = 0; i < contextsPerRound; i++) {
+                contexts[i] = c("request", d("user", "user-" + round + "-" + i));
+                maxId = Math.max(maxId, contexts[i].getId());
+            }
+            contexts = null;
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        // Without reuse, every one of the contexts would have needed a new id
+        assertTrue("Max id " + maxId, maxId > 0 && maxId < rounds * contextsPerRound / 4);
+    }
+
+    @Test
+    public void testDimensionEquality() {
+        assertEquals(d("os", "android"), d("os", "android"));
+        assertEquals(d("os", "android").hashCode(), d("os", "android").hashCode());
+        assertNotEquals(d("os", "android"), d("os", "ios"));
+        assertNotEquals(d("os", "android"), d("platform", "android"));
+    }
+
+    @Test
+    public void testToString() {
+        assertEquals("MetricalContext(name=platform, dimensions={os=MetricalDimension(name=os, value=android)})", c("platform", d("os", "android")).toString());
+    }
+}
@@ -0,0 +1,174 @@
+package restlessrobot.metrical;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import restlessrobot.metrical.formatters.SimpleMetricalFormatter;
+import restlessrobot.metrical.handlers.TextCaptureMetricalHandler;
+
+import static org.junit.Assert.*;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
+
+public class MetricalEventTypeTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+
+    private final TextCaptureMetricalHandler handler = new TextCaptureMetricalHandler();
+    private final Metrical metrical = new Metrical(handler, c("platform", d("os", "android")));
+    private final MetricalEventType type = metrical.eventType("request-completed")
+            .metric("latency", Unit.MILLISECONDS)
+            .metric("cpu", Unit.PERCENT)
+            .metric("rows", Unit.NONE)
+            .build();
+
+    @Before
+    public void setUp() throws Exception {
+        MetricalEvent.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return MOCK_TIME;
+            }
+        });
+    }
+
+    @Test
+    public void testSameOutputAsWriter() {
+        metrical.begin("request-completed")
+                .metric("latency", 12, Unit.MILLISECONDS)
+                .metric("cpu", 3.51471, Unit.PERCENT)
+                .metric("rows", -3, Unit.NONE)
+                .end();
+        metrical.begin("request-completed")
+                .metric("latency", Long.MIN_VALUE, Unit.MILLISECONDS)
+                .metric("cpu", 1.5e-300, Unit.PERCENT)
+                .metric("rows", 0, Unit.NONE)
+                .end();
+        String expected = handler.get();
+
+        TextCaptureMetricalHandler typedHandler = new TextCaptureMetricalHandler();
+        MetricalEventType typed = new Metrical(typedHandler, c("platform", d("os", "android")))
+                .eventType("request-completed")
+                .metric("latency", Unit.MILLISECONDS)
+                .metric("cpu", Unit.PERCENT)
+                .metric("rows", Unit.NONE)
+                .build();
+        typed.begin().value(12).value(3.51471).value(-3).end();
+        typed.begin().value(Long.MIN_VALUE).value(1.5e-300).value(0).end();
+        assertEquals(expected, typedHandler.get());
+    }
+
+    @Test
+    public void testRecord() {
+        type.record(12, 3, 100);
+        assertEquals("@v:restlessrobot.metrical:1\n"
+                + "@c:platform\n"
+                + "@d:platform:os:android\n"
+                + "@e:1400000000000:request-completed:platform\n"
+                + "@m:1400000000000:request-completed:latency:12:ms:platform\n"
+                + "@m:1400000000000:request-completed:cpu:3:%:platform\n"
+                + "@m:1400000000000:request-completed:rows:100::platform\n", handler.get());
+
+        // The contexts have already been output
+        type.record(13, 4, 101);
+        assertTrue(handler.get().startsWith("@e:1400000000000:request-completed:platform\n"));
+    }
+
+    @Test
+    public void testContextsOutputAgainAfterChange() {
+        type.record(1, 2, 3);
+        handler.get();
+
+        // Another event replaces the platform context with a different version...
+        metrical.withContexts(c("platform", d("os", "ios"))).event("other");
+        handler.get();
+
+        // ...so the type's version has to be output again
+        type.record(1, 2, 3);
+        assertTrue(handler.get().startsWith("@c:platform\n@d:platform:os:android\n"));
+        type.record(1, 2, 3);
+        assertTrue(handler.get().startsWith("@e:"));
+    }
+
+    @Test
+    public void testExtraMetric() {
+        MetricalEventWriter writer = type.begin().value(1).value(2.5).value(3);
+        assertSame(type, writer.getEventType());
+        writer.metric("extra", 4, Unit.NONE);
+        assertNull(writer.getEventType());
+        writer.end();
+
+        assertTrue(handler.get().endsWith("@m:1400000000000:request-completed:rows:3::platform\n"
+                + "@m:1400000000000:request-completed:extra:4::platform\n"));
+    }
+
+    @Test
+    public void testSampled() {
+        metrical.setSampler(new MetricalSampler() {
+            @Override
+            public double sample(String name) {
+                return 0.5;
+            }
+        });
+        type.record(1, 2, 3);
+        assertTrue(handler.get().endsWith("@m:1400000000000:request-completed:sample-rate:0.5000::platform\n"));
+    }
+
+    @Test
+    public void testByteBufferOverflow() {
+        SimpleMetricalFormatter formatter = new SimpleMetricalFormatter();
+        MetricalEventWriter writer = type.begin().value(1).value(2.5).value(3);
+        try {
+            ByteBuffer small = ByteBuffer.allocate(100);
+            small.put((byte) 'x');
+            try {
+                formatter.body(writer, small);
+                fail("Expected BufferOverflowException");
+            } catch (BufferOverflowException e) {
+                assertEquals(1, small.position());
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            formatter.body(writer, buffer);
+            StringBuilder expected = new StringBuilder();
+            formatter.body(writer, expected);
+            assertEquals(expected.toString(), new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8));
+        } finally {
+            metrical.disable();
+            writer.end();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTooFewValues() {
+        type.begin().value(1).value(2).end();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTooManyValues() {
+        MetricalEventWriter writer = type.begin().value(1).value(2).value(3);
+        try {
+            writer.value(4);
+        } finally {
+            writer.end();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testValueWithoutType() {
+        MetricalEventWriter writer = metrical.begin("my-event");
+        try {
+            writer.value(1);
+        } finally {
+            writer.end();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoName() {
+        metrical.eventType(null);
+    }
+}
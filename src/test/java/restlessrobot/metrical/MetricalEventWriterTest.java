@@ -0,0 +1,166 @@
+package restlessrobot.metrical;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import restlessrobot.metrical.handlers.NullMetricalHandler;
+import restlessrobot.metrical.handlers.TextCaptureMetricalHandler;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
+import static restlessrobot.metrical.Metrical.m;
+
+public class MetricalEventWriterTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+    private static final int ITERATIONS = 100_000;
+
+    private final TextCaptureMetricalHandler handler = new TextCaptureMetricalHandler();
+    private final Metrical metrical = new Metrical(handler, c("platform", d("os", "android")));
+
+    @Before
+    public void setUp() throws Exception {
+        MetricalEvent.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return MOCK_TIME;
+            }
+        });
+    }
+
+    @Test
+    public void testSameOutputAsEvent() throws Exception {
+        metrical.event("my-event",
+                m("metric1", 10, Unit.MILLISECONDS),
+                m("metric2", 3.51471f, Unit.PERCENT));
+        String expected = handler.get();
+
+        handler.reset();
+        metrical.begin("my-event")
+                .metric("metric1", 10, Unit.MILLISECONDS)
+                .metric("metric2", 3.51471f, Unit.PERCENT)
+                .end();
+        assertEquals(expected, handler.get());
+    }
+
+    @Test
+    public void testLargeValues() {
+        metrical.begin("my-event")
+                .metric("big", Long.MAX_VALUE, Unit.BYTES)
+                .metric("small", 1.5e-300, Unit.NONE)
+                .end();
+        assertEquals("@v:restlessrobot.metrical:1\n"
+                + "@c:platform\n"
+                + "@d:platform:os:android\n"
+                + "@e:1400000000000:my-event:platform\n"
+                + "@m:1400000000000:my-event:big:9223372036854775807:B:platform\n"
+                + "@m:1400000000000:my-event:small:1.500e-300::platform\n", handler.get());
+    }
+
+    @Test
+    public void testManyMetrics() {
+        MetricalEventWriter writer = metrical.begin("my-event");
+        for (int i = 0; i < 20; i++) {
+            writer.metric("metric" + i, i, Unit.NONE);
+        }
+        assertEquals(20, writer.getMetricCount());
+        assertEquals("metric19", writer.getMetricName(19));
+        assertEquals(19L, writer.getLongMetricValue(19));
+
+        MetricalEvent event = writer.toEvent();
+        assertEquals(20, event.getMetrics().size());
+        assertEquals(19L, event.getMetrics().get(19).getValue());
+        assertEquals(MOCK_TIME, event.getTimestamp());
+        writer.end();
+    }
+
+    @Test
+    public void testDisabled() {
+        metrical.disable();
+        metrical.begin("my-event").metric("metric1", 10, Unit.MILLISECONDS).end();
+        assertEquals("", handler.get());
+    }
+
+    @Test
+    public void testNestedWriters() {
+        MetricalEventWriter outer = metrical.begin("outer").metric("metric1", 1, Unit.NONE);
+        metrical.begin("inner").metric("metric2", 2, Unit.NONE).end();
+        outer.end();
+        assertEquals("@v:restlessrobot.metrical:1\n"
+                + "@c:platform\n"
+                + "@d:platform:os:android\n"
+                + "@e:1400000000000:inner:platform\n"
+                + "@m:1400000000000:inner:metric2:2::platform\n"
+                + "@e:1400000000000:outer:platform\n"
+                + "@m:1400000000000:outer:metric1:1::platform\n", handler.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUseAfterEnd() {
+        MetricalEventWriter writer = metrical.begin("my-event");
+        writer.end();
+        writer.metric("metric1", 10, Unit.MILLISECONDS);
+    }
+
+    @Test
+    public void testAbandon() {
+        MetricalEventWriter writer = metrical.begin("my-event").metric("metric1", 10, Unit.MILLISECONDS);
+        writer.abandon();
+        writer.abandon();
+        assertEquals("", handler.get());
+        try {
+            writer.end();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("end() called without begin()", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testNoAllocationInSteadyState() {
+        assertNoAllocation(new Metrical(new NullMetricalHandler(), c("platform", d("os", "android"))));
+    }
+
+    @Test
+    public void testNoAllocationAfterWriterNeverEnded() {
+        Metrical nullMetrical = new Metrical(new NullMetricalHandler(), c("platform", d("os", "android")));
+        // e.g. an exception was thrown between begin(...) and end()
+        nullMetrical.begin("request-failed").metric("latency", 1, Unit.MILLISECONDS);
+        assertNoAllocation(nullMetrical);
+    }
+
+    private static void assertNoAllocation(Metrical nullMetrical) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up, so that the thread's writer exists and the loop has been compiled
+        recordEvents(nullMetrical, ITERATIONS);
+        // Measure the cost of measuring, so it can be excluded
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        long overhead = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = allocationBean.getThreadAllocatedBytes(threadId);
+        recordEvents(nullMetrical, ITERATIONS);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before - overhead;
+
+        assertTrue("Allocated " + allocated + " bytes for " + ITERATIONS + " events", allocated < 1024);
+    }
+
+    private static void recordEvents(Metrical metrical, int count) {
+        for (int i = 0; i < count; i++) {
+            metrical.begin("request-completed")
+                    .metric("latency", i, Unit.MILLISECONDS)
+                    .metric("cpu", i * 0.5, Unit.PERCENT)
+                    .metric("rows", 3, Unit.NONE)
+                    .end();
+        }
+    }
+}
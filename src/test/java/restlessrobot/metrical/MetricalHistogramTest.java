@@ -0,0 +1,160 @@
+package restlessrobot.metrical;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import restlessrobot.metrical.handlers.TextCaptureMetricalHandler;
+
+import static org.junit.Assert.*;
+
+public class MetricalHistogramTest {
+    private static final double MAX_RELATIVE_ERROR = 1.0 / 32;
+
+    @Test
+    public void testPercentiles() {
+        MetricalHistogram histogram = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax(), 0);
+        assertPercentile(5000, histogram.getValueAtPercentile(50));
+        assertPercentile(9000, histogram.getValueAtPercentile(90));
+        assertPercentile(9900, histogram.getValueAtPercentile(99));
+        assertPercentile(9990, histogram.getValueAtPercentile(99.9));
+        assertEquals(10000, histogram.getValueAtPercentile(100), 0);
+    }
+
+    @Test
+    public void testSmallAndFractionalValues() {
+        MetricalHistogram histogram = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        histogram.record(0.001);
+        histogram.record(0.0);
+        histogram.record(-5);
+        histogram.record(0.25);
+        assertEquals(4, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50), 0);
+        assertEquals(0.001, histogram.getValueAtPercentile(75), 0);
+        assertEquals(0.25, histogram.getValueAtPercentile(100), 0);
+    }
+
+    @Test
+    public void testExtremeValues() {
+        MetricalHistogram histogram = new MetricalHistogram("latency", Unit.SECONDS);
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(Double.POSITIVE_INFINITY);
+        assertEquals(2, histogram.getCount());
+        assertEquals((double) Long.MAX_VALUE / MetricalHistogram.SCALE, histogram.getMax(), 0);
+        assertEquals(0, histogram.getBucketValueCount(0));
+        assertEquals(2, histogram.getBucketValueCount(MetricalHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void testEmpty() {
+        MetricalHistogram histogram = new MetricalHistogram("latency", Unit.SECONDS);
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99), 0);
+        assertEquals(0, histogram.getMax(), 0);
+    }
+
+    @Test
+    public void testBucketLayout() {
+        double previous = -1;
+        for (int i = 0; i < MetricalHistogram.BUCKETS; i++) {
+            double lowest = MetricalHistogram.getBucketLowestValue(i);
+            assertTrue("Bucket " + i + " starts after bucket " + (i - 1), lowest > previous);
+            previous = lowest;
+
+            // Above 2^53 doubles can't represent every value, so the bucket edges can't be hit exactly
+            if (lowest * MetricalHistogram.SCALE < (1L << 53)) {
+                MetricalHistogram histogram = new MetricalHistogram("latency", Unit.MILLISECONDS);
+                histogram.record(lowest);
+                assertEquals("Lowest value of bucket " + i, 1, histogram.getBucketValueCount(i));
+            }
+        }
+    }
+
+    @Test
+    public void testMergeAndReset() {
+        MetricalHistogram first = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        MetricalHistogram second = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            first.record(random.nextInt(100));
+            second.record(1000 + random.nextInt(100));
+        }
+
+        first.merge(second);
+        assertEquals(2000, first.getCount());
+        assertEquals(1000, second.getCount());
+        assertTrue(first.getMax() >= 1000);
+        assertTrue(first.getValueAtPercentile(50) < 100 * (1 + MAX_RELATIVE_ERROR));
+        assertTrue(first.getValueAtPercentile(51) >= 1000);
+
+        MetricalHistogram snapshot = first.getAndReset();
+        assertEquals(2000, snapshot.getCount());
+        assertEquals(second.getMax(), snapshot.getMax(), 0);
+        assertEquals("latency", snapshot.getName());
+        assertEquals(Unit.MILLISECONDS, snapshot.getUnit());
+        assertEquals(0, first.getCount());
+        assertEquals(0, first.getValueAtPercentile(50), 0);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final MetricalHistogram histogram = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        final int threadCount = 8;
+        final int valuesPerThread = 50000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < valuesPerThread; i++) {
+                        histogram.record(i % 1000);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount * valuesPerThread, histogram.getCount());
+        long total = 0;
+        for (int i = 0; i < MetricalHistogram.BUCKETS; i++) {
+            total += histogram.getBucketValueCount(i);
+        }
+        assertEquals(threadCount * valuesPerThread, total);
+        assertEquals(999, histogram.getMax(), 0);
+    }
+
+    @Test
+    public void testFormattedOutput() throws Exception {
+        MetricalHistogram histogram = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        histogram.record(0.01);
+        histogram.record(0.01);
+        histogram.record(0.05);
+        TextCaptureMetricalHandler handler = new TextCaptureMetricalHandler();
+        handler.event(MetricalEvent.builder()
+                .name("request")
+                .timestamp(1_400_000_000_000L)
+                .histogram(histogram)
+                .build());
+        assertEquals("@v:restlessrobot.metrical:1\n"
+                + "@e:1400000000000:request:\n"
+                + "@h:1400000000000:request:latency:3:0.01000:0.05000:0.05000:0.05000:0.05000:ms:10=2,50=1:\n",
+                handler.get());
+    }
+
+    private static void assertPercentile(double expected, double actual) {
+        assertTrue("Expected " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * (1 + MAX_RELATIVE_ERROR));
+    }
+}
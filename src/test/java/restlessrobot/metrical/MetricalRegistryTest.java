@@ -0,0 +1,141 @@
+package restlessrobot.metrical;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import restlessrobot.metrical.handlers.TextCaptureMetricalHandler;
+
+import static org.junit.Assert.*;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
+
+public class MetricalRegistryTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+    private static final long LONG_INTERVAL = 3_600_000;
+
+    private final TextCaptureMetricalHandler handler = new TextCaptureMetricalHandler();
+    private final Metrical metrical = new Metrical(handler, c("platform", d("os", "android")));
+    private MetricalRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        MetricalEvent.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return MOCK_TIME;
+            }
+        });
+        registry = metrical.registry("app-stats", LONG_INTERVAL);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.close();
+    }
+
+    @Test
+    public void testReportCountersAndGauges() throws Exception {
+        MetricalCounter clicks = registry.counter("clicks", Unit.NONE);
+        MetricalGauge queueSize = registry.gauge("queue-size", Unit.NONE);
+        final AtomicLong memory = new AtomicLong(2048);
+        registry.gauge("memory", Unit.KILOBYTES, new MetricalGauge.Callback() {
+            @Override
+            public double getValue() {
+                return memory.get();
+            }
+        });
+
+        clicks.increment();
+        clicks.add(4);
+        queueSize.set(12);
+        registry.report();
+        assertEquals(
+            "@v:restlessrobot.metrical:1\n"
+                + "@c:platform\n"
+                + "@d:platform:os:android\n"
+                + "@e:1400000000000:app-stats:platform\n"
+                + "@m:1400000000000:app-stats:clicks:5::platform\n"
+                + "@m:1400000000000:app-stats:queue-size:12::platform\n"
+                + "@m:1400000000000:app-stats:memory:2048:kB:platform\n",
+            handler.get());
+
+        // Counters report what they went up by since the previous report
+        clicks.increment();
+        queueSize.set(2.5);
+        memory.set(4096);
+        registry.report();
+        assertEquals(
+            "@e:1400000000000:app-stats:platform\n"
+                + "@m:1400000000000:app-stats:clicks:1::platform\n"
+                + "@m:1400000000000:app-stats:queue-size:2.500::platform\n"
+                + "@m:1400000000000:app-stats:memory:4096:kB:platform\n",
+            handler.get());
+        assertEquals(6, clicks.getCount());
+    }
+
+    @Test
+    public void testNothingReportedWhenEmpty() throws Exception {
+        registry.report();
+        assertEquals("", handler.get());
+    }
+
+    @Test
+    public void testSameCounterReturned() throws Exception {
+        MetricalCounter counter = registry.counter("clicks", Unit.NONE);
+        assertSame(counter, registry.counter("clicks", Unit.NONE));
+        assertSame(registry.gauge("queue-size", Unit.NONE), registry.gauge("queue-size", Unit.NONE));
+        assertEquals(Arrays.asList("clicks", "queue-size"), registry.getMetricNames());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConflictingMetric() throws Exception {
+        registry.counter("clicks", Unit.NONE);
+        registry.gauge("clicks", Unit.NONE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConflictingUnit() throws Exception {
+        registry.counter("clicks", Unit.NONE);
+        registry.counter("clicks", Unit.PERCENT);
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        final MetricalCounter counter = registry.counter("clicks", Unit.NONE);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100_000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000, counter.getCount());
+    }
+
+    @Test
+    public void testBackgroundReports() throws Exception {
+        registry.close();
+        registry = metrical.registry("app-stats", 10);
+        registry.counter("clicks", Unit.NONE).increment();
+
+        StringBuilder output = new StringBuilder();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (output.indexOf("app-stats:clicks:1:") < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            output.append(handler.get());
+        }
+        assertTrue(output.indexOf("@m:1400000000000:app-stats:clicks:1::platform\n") >= 0);
+    }
+}
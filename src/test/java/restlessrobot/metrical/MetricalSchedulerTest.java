@@ -0,0 +1,102 @@
+package restlessrobot.metrical;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MetricalSchedulerTest {
+    private final MetricalScheduler scheduler = new MetricalScheduler();
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.close();
+    }
+
+    @Test
+    public void testTasksShareOneThread() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(6);
+        final String[] threadNames = new String[2];
+        for (int i = 0; i < threadNames.length; i++) {
+            final int index = i;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    threadNames[index] = Thread.currentThread().getName();
+                    ran.countDown();
+                }
+            }, 5);
+        }
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(threadNames[0].startsWith("metrical-scheduler-"));
+        assertEquals(threadNames[0], threadNames[1]);
+    }
+
+    @Test
+    public void testCancelledTaskDoesNotRunAgain() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(1);
+        MetricalScheduler.Task task = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                ran.countDown();
+            }
+        }, 1);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+        task.cancel();
+        assertTrue(task.isCancelled());
+        int runsWhenCancelled = runs.get();
+        Thread.sleep(20);
+        assertEquals(runsWhenCancelled, runs.get());
+    }
+
+    @Test
+    public void testFailingTaskRunsAgain() throws Exception {
+        MetricalStats.Snapshot before = MetricalStats.get().snapshot();
+        final CountDownLatch ran = new CountDownLatch(3);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+                throw new IllegalStateException("Failed");
+            }
+        }, 1);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        // The third run may still be failing, but the first two have been counted
+        MetricalStats.Snapshot interval = MetricalStats.get().snapshot().since(before);
+        assertTrue(interval.getCount(MetricalStats.Counter.EVENTS_FAILED) >= 2);
+    }
+
+    @Test
+    public void testTick() throws Exception {
+        final CountDownLatch ticked = new CountDownLatch(2);
+        scheduler.tick(new MetricalTickable() {
+            @Override
+            public void tick() throws MetricalException {
+                ticked.countDown();
+                throw new MetricalException("Failed", null);
+            }
+        }, 1);
+        assertTrue(ticked.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() throws Exception {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSharedSchedulerCannotBeClosed() throws Exception {
+        MetricalScheduler.shared().close();
+    }
+}
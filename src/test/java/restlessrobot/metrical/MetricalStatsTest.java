@@ -0,0 +1,178 @@
+package restlessrobot.metrical;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import restlessrobot.metrical.handlers.NullMetricalHandler;
+import restlessrobot.metrical.handlers.TextCaptureMetricalHandler;
+
+import static org.junit.Assert.*;
+import static restlessrobot.metrical.Metrical.m;
+
+public class MetricalStatsTest {
+    private final MetricalStats stats = MetricalStats.get();
+
+    @Test
+    public void testEventsCounted() {
+        MetricalStats.Snapshot before = stats.snapshot();
+        Metrical metrical = new Metrical(new TextCaptureMetricalHandler());
+        metrical.event("my-event", m("metric1", 10, Unit.MILLISECONDS));
+        metrical.begin("my-event").metric("metric1", 10, Unit.MILLISECONDS).end();
+
+        metrical.setSampler(new MetricalSampler() {
+            @Override
+            public double sample(String name) {
+                return 0;
+            }
+        });
+        metrical.event("my-event");
+        metrical.begin("my-event").end();
+
+        // Other tests may be reporting events at the same time, so only check for at least these
+        MetricalStats.Snapshot interval = stats.snapshot().since(before);
+        assertTrue(interval.getCount(MetricalStats.Counter.EVENTS_ACCEPTED) >= 2);
+        assertTrue(interval.getCount(MetricalStats.Counter.EVENTS_DISCARDED) >= 2);
+        assertTrue(interval.getCount(MetricalStats.Counter.BYTES_FORMATTED) > 0);
+        assertTrue(interval.getHandlerTime().getCount() >= 2);
+    }
+
+    @Test
+    public void testSnapshotUnchangedByCaller() {
+        MetricalStats.Snapshot snapshot = stats.snapshot();
+        long count = snapshot.getHandlerTime().getCount();
+        snapshot.getHandlerTime().record(1);
+        assertEquals(count, snapshot.getHandlerTime().getCount());
+    }
+
+    @Test
+    public void testFailuresCounted() {
+        MetricalStats.Snapshot before = stats.snapshot();
+        Metrical metrical = new Metrical(new MetricalHandler() {
+            @Override
+            public void event(MetricalEvent event) throws MetricalException {
+                throw new MetricalException("Failed", null);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void reset() throws IOException {
+            }
+        });
+        metrical.event("my-event");
+        metrical.begin("my-event").end();
+
+        assertTrue(stats.snapshot().since(before).getCount(MetricalStats.Counter.EVENTS_FAILED) >= 2);
+    }
+
+    @Test
+    public void testHandlerTimingSwitchedOff() {
+        Metrical metrical = new Metrical(new NullMetricalHandler());
+        stats.setHandlerTimingEnabled(false);
+        try {
+            MetricalStats.Snapshot before = stats.snapshot();
+            for (int i = 0; i < 100; i++) {
+                metrical.event("my-event");
+                metrical.begin("my-event").end();
+            }
+            MetricalStats.Snapshot interval = stats.snapshot().since(before);
+            assertTrue(interval.getCount(MetricalStats.Counter.EVENTS_ACCEPTED) >= 200);
+            // Only events reported by other tests meanwhile (if any) can have been timed
+            assertTrue(interval.getHandlerTime().getCount() < 200);
+        } finally {
+            stats.setHandlerTimingEnabled(true);
+        }
+    }
+
+    @Test
+    public void testConcurrentHandlerTimes() throws Exception {
+        final int threadCount = 4;
+        final int records = 100_000;
+        long before = stats.getHandlerCallCount();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < records; i++) {
+                        stats.recordHandlerTime(1000);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(stats.getHandlerCallCount() - before >= threadCount * records);
+        assertTrue(stats.snapshot().getHandlerTime().getCount() >= threadCount * records);
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        final int threadCount = 4;
+        final int increments = 100_000;
+        final StripedCounter counter = new StripedCounter();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < increments; i++) {
+                        counter.increment();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threadCount * increments, counter.get());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        MetricalStats.registerMBean();
+        // Registering twice is harmless
+        MetricalStats.registerMBean();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MetricalStats.OBJECT_NAME);
+        stats.increment(MetricalStats.Counter.ROTATIONS);
+        long rotations = (Long) server.getAttribute(name, "Rotations");
+        assertTrue(rotations >= 1);
+        assertTrue(rotations <= stats.getRotations());
+        assertNotNull(server.getAttribute(name, "HandlerTimeP99Millis"));
+    }
+
+    @Test
+    public void testReporter() throws Exception {
+        TextCaptureMetricalHandler handler = new TextCaptureMetricalHandler();
+        Metrical metrical = new Metrical(handler);
+        MetricalStatsReporter reporter = new MetricalStatsReporter(metrical, 60_000);
+        try {
+            metrical.event("my-event");
+            handler.get();
+
+            reporter.report();
+            String output = handler.get();
+            assertTrue(output, output.contains(":metrical-stats:events-accepted:"));
+            assertTrue(output, output.contains(":metrical-stats:rotations:"));
+            assertTrue(output, output.contains("\n@h:"));
+        } finally {
+            reporter.close();
+        }
+    }
+}
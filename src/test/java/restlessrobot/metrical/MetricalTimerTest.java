@@ -0,0 +1,195 @@
+package restlessrobot.metrical;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import restlessrobot.metrical.handlers.NullMetricalHandler;
+import restlessrobot.metrical.handlers.TextCaptureMetricalHandler;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
+
+public class MetricalTimerTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+    private static final int ITERATIONS = 100_000;
+    private static final Pattern LATENCY = Pattern.compile("@m:1400000000000:([\\w-]+):latency:([0-9.e+-]+):ms:platform\n");
+
+    private final TextCaptureMetricalHandler handler = new TextCaptureMetricalHandler();
+    private final Metrical metrical = new Metrical(handler, c("platform", d("os", "android")));
+
+    @Before
+    public void setUp() throws Exception {
+        MetricalEvent.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return MOCK_TIME;
+            }
+        });
+    }
+
+    @Test
+    public void testTryWithResources() throws Exception {
+        try (MetricalTimer timer = metrical.startTimer("request-completed", "latency")) {
+            Thread.sleep(5);
+            assertTrue(timer.getElapsedNanos() >= 5_000_000);
+        }
+        assertTrue(latencyMillis("request-completed", handler.get()) >= 5);
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        MetricalTimer timer = metrical.startTimer("request-completed", "latency");
+        Thread.sleep(5);
+        long elapsedNanos = timer.stop();
+        assertTrue(elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(elapsedNanos / 1e6, latencyMillis("request-completed", handler.get()), 0.001 * elapsedNanos / 1e6);
+    }
+
+    @Test
+    public void testSubMillisecondPrecision() {
+        metrical.startTimer("request-completed", "latency").stop();
+        double millis = latencyMillis("request-completed", handler.get());
+        assertTrue(millis > 0);
+        assertTrue(millis < 1000);
+    }
+
+    @Test
+    public void testNestedTimers() {
+        MetricalTimer outer = metrical.startTimer("outer", "latency");
+        MetricalTimer inner = metrical.startTimer("inner", "latency");
+        assertNotSame(outer, inner);
+        inner.stop();
+        outer.stop();
+
+        String output = handler.get();
+        assertTrue(output.indexOf(":inner:latency:") < output.indexOf(":outer:latency:"));
+        assertTrue(latencyMillis("outer", output) >= latencyMillis("inner", output));
+    }
+
+    @Test
+    public void testTimersReused() {
+        MetricalTimer first = metrical.startTimer("request-completed", "latency");
+        first.stop();
+        MetricalTimer second = metrical.startTimer("request-completed", "latency");
+        second.stop();
+        assertSame(first, second);
+    }
+
+    @Test
+    public void testTimeCallable() throws Exception {
+        String result = metrical.time("request-completed", "latency", new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        assertEquals("done", result);
+        assertTrue(latencyMillis("request-completed", handler.get()) >= 0);
+
+        try {
+            metrical.time("request-failed", "latency", new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    throw new IOException("Failed");
+                }
+            });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(latencyMillis("request-failed", handler.get()) >= 0);
+        }
+    }
+
+    @Test
+    public void testStopTwice() {
+        MetricalTimer timer = metrical.startTimer("request-completed", "latency");
+        assertTrue(timer.stop() >= 0);
+        assertEquals(-1, timer.stop());
+        assertEquals(1, countLines("@m:", handler.get()));
+    }
+
+    @Test
+    public void testCloseAfterStop() {
+        MetricalTimer other;
+        try (MetricalTimer timer = metrical.startTimer("request-completed", "latency")) {
+            timer.stop();
+            // The stopped timer is back in the pool, but the thread hasn't reused it yet
+            other = timer;
+        }
+        assertEquals(1, countLines("@m:", handler.get()));
+
+        // The next timer the thread starts reuses it, and isn't affected by the earlier stops
+        MetricalTimer next = metrical.startTimer("request-completed", "latency");
+        assertSame(other, next);
+        assertTrue(next.stop() >= 0);
+        assertEquals(1, countLines("@m:", handler.get()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testElapsedAfterStop() {
+        MetricalTimer timer = metrical.startTimer("request-completed", "latency");
+        timer.stop();
+        timer.getElapsedNanos();
+    }
+
+    @Test
+    public void testNoAllocationInSteadyState() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        Metrical nullMetrical = new Metrical(new NullMetricalHandler(), c("platform", d("os", "android")));
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up, so that the thread's timers exist and the loop has been compiled
+        timeEvents(nullMetrical, ITERATIONS);
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        long overhead = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = allocationBean.getThreadAllocatedBytes(threadId);
+        timeEvents(nullMetrical, ITERATIONS);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before - overhead;
+
+        assertTrue("Allocated " + allocated + " bytes for " + ITERATIONS + " events", allocated < 1024);
+    }
+
+    private static void timeEvents(Metrical metrical, int count) {
+        for (int i = 0; i < count; i++) {
+            MetricalTimer outer = metrical.startTimer("request-completed", "latency");
+            try {
+                metrical.startTimer("query-completed", "latency").stop();
+            } finally {
+                outer.close();
+            }
+        }
+    }
+
+    private static double latencyMillis(String eventName, String output) {
+        Matcher matcher = LATENCY.matcher(output);
+        while (matcher.find()) {
+            if (matcher.group(1).equals(eventName))
+                return Double.parseDouble(matcher.group(2));
+        }
+        throw new AssertionError("No latency for " + eventName + " in " + output);
+    }
+
+    private static int countLines(String prefix, String text) {
+        int count = 0;
+        for (String line : text.split("\n")) {
+            if (line.startsWith(prefix))
+                count++;
+        }
+        return count;
+    }
+}
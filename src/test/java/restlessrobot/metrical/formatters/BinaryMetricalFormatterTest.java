@@ -0,0 +1,182 @@
+package restlessrobot.metrical.formatters;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.Unit;
+import restlessrobot.metrical.readers.BinaryMetricalReader;
+
+import static org.junit.Assert.*;
+
+public class BinaryMetricalFormatterTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+
+    private final BinaryMetricalFormatter formatter = new BinaryMetricalFormatter();
+    private MetricalContext platform;
+    private MetricalContext user;
+    private MetricalEvent event;
+
+    @Before
+    public void setUp() {
+        platform = Metrical.c("platform", Metrical.d("os", "andro:id"), Metrical.d("city", "Z\u00fcrich"));
+        user = Metrical.c("user", Metrical.d("name", "\u65e5\u672c \ud83d\ude00"));
+        MetricalHistogram histogram = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        histogram.record(12.5);
+        histogram.record(1500);
+        event = MetricalEvent.builder()
+                .name("request-completed")
+                .timestamp(MOCK_TIME)
+                .metric("latency", 12L, Unit.MILLISECONDS)
+                .metric("cpu", 3.51471, Unit.PERCENT)
+                .metric("delta", -5L, Unit.NONE)
+                .metric("gr\u00f6\u00dfe", Long.MIN_VALUE, Unit.KILOBYTES)
+                .histogram(histogram)
+                .contexts(Arrays.asList(platform, user))
+                .build();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<MetricalEvent> events = Arrays.asList(
+                event,
+                MetricalEvent.builder().name("started").timestamp(MOCK_TIME - 5).build(),
+                MetricalEvent.builder().timestamp(MOCK_TIME + 100)
+                        .metric("ratio", Double.NaN, Unit.NONE)
+                        .contexts(Arrays.asList(user)).build());
+
+        List<MetricalEvent> read = readAll(format(formatter, events));
+        assertEquals(events.size(), read.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertSameEvent(events.get(i), read.get(i));
+        }
+
+        // Floating-point values are written exactly
+        assertEquals(3.51471, read.get(0).getDoubleMetricValue(1), 0);
+        assertEquals(Long.MIN_VALUE, read.get(0).getLongMetricValue(3));
+        assertTrue(Double.isNaN(read.get(2).getDoubleMetricValue(0)));
+        assertNull(read.get(2).getName());
+    }
+
+    @Test
+    public void testDefinitionsOnlyOutputOnce() {
+        ByteBuffer first = ByteBuffer.allocate(4096);
+        int firstHeaderLength = formatter.header(event, first);
+        ByteBuffer second = ByteBuffer.allocate(4096);
+        int secondHeaderLength = formatter.header(event, second);
+
+        // Just the record type and the timestamp delta
+        assertTrue(firstHeaderLength > 50);
+        assertEquals(2, secondHeaderLength);
+        assertEquals(BinaryMetricalFormatter.EVENT_RECORD, second.get(0));
+    }
+
+    @Test
+    public void testSmallerThanText() throws Exception {
+        List<MetricalEvent> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            events.add(MetricalEvent.builder()
+                    .name("request-completed")
+                    .timestamp(MOCK_TIME + i * 10)
+                    .metric("latency", i, Unit.MILLISECONDS)
+                    .metric("cpu", i / 7.0, Unit.PERCENT)
+                    .contexts(Arrays.asList(platform, user))
+                    .build());
+        }
+
+        SimpleMetricalFormatter textFormatter = new SimpleMetricalFormatter();
+        int textLength = 0;
+        for (MetricalEvent e : events) {
+            textLength += textFormatter.event(e).length();
+        }
+        int binaryLength = format(formatter, events).length;
+        assertTrue("Binary length " + binaryLength + ", text length " + textLength, binaryLength * 3 < textLength);
+    }
+
+    @Test
+    public void testHeaderOverflow() throws Exception {
+        ByteBuffer small = ByteBuffer.allocate(20);
+        small.put((byte) 1);
+        try {
+            formatter.header(event, small);
+            fail("Expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            assertEquals(1, small.position());
+        }
+
+        // Nothing was recorded as output, so all the definitions are written again
+        assertSameEvent(event, readAll(format(formatter, Arrays.asList(event))).get(0));
+    }
+
+    @Test
+    public void testBodyOverflow() {
+        ByteBuffer small = ByteBuffer.allocate(30);
+        try {
+            formatter.body(event, small);
+            fail("Expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, small.position());
+        }
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        byte[] first = format(formatter, Arrays.asList(event));
+        formatter.reset();
+        byte[] second = format(formatter, Arrays.asList(event));
+        assertArrayEquals(first, second);
+
+        // Logs can be concatenated
+        byte[] both = Arrays.copyOf(first, first.length * 2);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        List<MetricalEvent> read = readAll(both);
+        assertEquals(2, read.size());
+        assertSameEvent(event, read.get(1));
+    }
+
+    @Test
+    public void testDictionaryFull() throws Exception {
+        BinaryMetricalFormatter smallFormatter = new BinaryMetricalFormatter(2);
+        assertSameEvent(event, readAll(format(smallFormatter, Arrays.asList(event))).get(0));
+    }
+
+    private static byte[] format(BinaryMetricalFormatter formatter, List<MetricalEvent> events) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (MetricalEvent e : events) {
+            // Format the body first, as the handlers do
+            ByteBuffer body = ByteBuffer.allocate(4096);
+            formatter.body(e, body);
+            body.flip();
+            formatter.header(e, buffer);
+            buffer.put(body);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static List<MetricalEvent> readAll(byte[] bytes) throws IOException {
+        List<MetricalEvent> events = new ArrayList<>();
+        try (BinaryMetricalReader reader = new BinaryMetricalReader(new ByteArrayInputStream(bytes))) {
+            MetricalEvent e;
+            while ((e = reader.next()) != null) {
+                events.add(e);
+            }
+        }
+        return events;
+    }
+
+    // Compares events by their text representations, because contexts are compared by identity
+    private static void assertSameEvent(MetricalEvent expected, MetricalEvent actual) {
+        assertEquals(new SimpleMetricalFormatter().event(expected), new SimpleMetricalFormatter().event(actual));
+    }
+}
@@ -0,0 +1,149 @@
+package restlessrobot.metrical.formatters;
+
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MetricalTextEncoderTest {
+    private static final int RANDOM_VALUES = 100_000;
+
+    @Test
+    public void testEdgeCases() {
+        double[] values = {
+                0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, -Double.MAX_VALUE,
+                Float.MIN_VALUE, Float.MIN_NORMAL, Float.MAX_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                1, -1, 0.5, 0.125, 1.0005, 1.00049, 1.00051, 99.995, 999.95, 9999.5, 9999.4999,
+                1234.5, 12345, 0.0001, 0.00009999, 0.000099995, 0.00099995, 1e-5, 1e-19, 1e-20,
+                1e22, 1e23, 1e25, 1e26, 1e-300, 4.9e-324, 2.2250738585072014E-308,
+                0.1, 0.2, 0.3, 1.0 / 3, 2.0 / 3, Math.PI, Math.E, 3.51471f, 0.1f,
+        };
+        for (double value : values) {
+            assertEncoded(value);
+            assertEncoded(-value);
+        }
+    }
+
+    @Test
+    public void testSpecialValues() {
+        assertEquals("NaN", encode(Double.NaN));
+        assertEquals("Infinity", encode(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", encode(Double.NEGATIVE_INFINITY));
+        assertEquals("0.000", encode(0.0));
+        assertEquals("-0.000", encode(-0.0));
+        assertEquals("4.900e-324", encode(Double.MIN_VALUE));
+        assertEquals("1.401e-45", encode(Float.MIN_VALUE));
+        assertEquals("1.235e+04", encode(12345));
+        assertEquals("1235", encode(1234.5));
+        assertEquals("100.0", encode(99.995));
+        assertEquals("0.0001000", encode(0.0001));
+        assertEquals("9.999e-05", encode(0.00009999));
+    }
+
+    @Test
+    public void testPowersOfTen() {
+        for (int exponent = -330; exponent <= 310; exponent++) {
+            double value = Double.parseDouble("1e" + exponent);
+            assertEncoded(value);
+            assertEncoded(Math.nextUp(value));
+            assertEncoded(Math.nextAfter(value, 0));
+            assertEncoded(value * 9.9995);
+            assertEncoded(value * 9.99949999);
+        }
+    }
+
+    @Test
+    public void testTies() {
+        // Values whose 5th significant digit is 5, which must round the same way as "%.4g"
+        Random random = new Random(7);
+        for (int i = 0; i < RANDOM_VALUES; i++) {
+            int digits = 10000 + random.nextInt(90000);
+            digits = digits - digits % 10 + 5;
+            int exponent = random.nextInt(40) - 20;
+            assertEncoded(Double.parseDouble(digits + "e" + exponent));
+        }
+    }
+
+    @Test
+    public void testRandomDoubles() {
+        Random random = new Random(42);
+        for (int i = 0; i < RANDOM_VALUES; i++) {
+            assertEncoded(Double.longBitsToDouble(random.nextLong()));
+            assertEncoded(random.nextDouble() * Math.pow(10, random.nextInt(30) - 10));
+            assertEncoded(random.nextInt(100_000) / 1000.0);
+        }
+    }
+
+    @Test
+    public void testRandomFloats() {
+        Random random = new Random(43);
+        for (int i = 0; i < RANDOM_VALUES; i++) {
+            assertEncoded(Float.intBitsToFloat(random.nextInt()));
+            assertEncoded(random.nextFloat() * 100);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(44);
+        for (int i = 0; i < RANDOM_VALUES; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value) || Double.isInfinite(value) || value == 0)
+                continue;
+
+            double parsed = Double.parseDouble(encode(value));
+            // 4 significant digits are accurate to half a unit in the 4th digit
+            assertEquals("Round trip of " + value, value, parsed, Math.abs(value) * 5e-4);
+        }
+    }
+
+    @Test
+    public void testText() {
+        assertEquals("android", MetricalTextEncoder.appendText(new StringBuilder(), "android").toString());
+        assertEquals("a_b__c_", MetricalTextEncoder.appendText(new StringBuilder(), "a:b::c:").toString());
+        assertEquals("", MetricalTextEncoder.appendText(new StringBuilder(), "").toString());
+    }
+
+    @Test
+    public void testAppends() {
+        StringBuilder sb = new StringBuilder("x=");
+        MetricalTextEncoder.appendNumber(sb, 1.5).append(',');
+        MetricalTextEncoder.appendNumber(sb, -2.25e10);
+        assertEquals("x=1.500,-2.250e+10", sb.toString());
+    }
+
+    @Test
+    public void testPutLong() {
+        long[] values = {0, 7, -7, 10, 1_400_000_000_000L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (long value : values) {
+            ByteBuffer buffer = ByteBuffer.allocate(32);
+            MetricalTextEncoder.putLong(value, buffer);
+            assertEquals(Long.toString(value), new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+        }
+
+        ByteBuffer small = ByteBuffer.allocate(4);
+        small.put((byte) 'x');
+        try {
+            MetricalTextEncoder.putLong(-1234, small);
+            fail("Expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            assertEquals(1, small.position());
+        }
+    }
+
+    private static void assertEncoded(double value) {
+        assertEquals("Encoding of " + value + " (" + Double.doubleToRawLongBits(value) + ")",
+                String.format(Locale.ROOT, "%.4g", value), encode(value));
+    }
+
+    private static String encode(double value) {
+        return MetricalTextEncoder.appendNumber(new StringBuilder(), value).toString();
+    }
+}
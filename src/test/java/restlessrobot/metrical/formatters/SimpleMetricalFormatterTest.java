@@ -0,0 +1,196 @@
+package restlessrobot.metrical.formatters;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.MetricalRecordHandler;
+import restlessrobot.metrical.Unit;
+
+import static org.junit.Assert.*;
+
+public class SimpleMetricalFormatterTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+
+    private final SimpleMetricalFormatter formatter = new SimpleMetricalFormatter();
+    private final SimpleMetricalFormatter referenceFormatter = new SimpleMetricalFormatter();
+    private MetricalEvent event;
+
+    @Before
+    public void setUp() {
+        MetricalContext platform = Metrical.c("platform", Metrical.d("os", "andro:id"), Metrical.d("city", "Z\u00fcrich"));
+        MetricalContext user = Metrical.c("user", Metrical.d("name", "\u65e5\u672c \ud83d\ude00"));
+        MetricalHistogram histogram = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        histogram.record(12.5);
+        event = MetricalEvent.builder()
+                .name("request-completed")
+                .timestamp(MOCK_TIME)
+                .metric("latency", 12L, Unit.MILLISECONDS)
+                .metric("cpu", 3.51471, Unit.PERCENT)
+                .metric("gr\u00f6\u00dfe", 5L, Unit.KILOBYTES)
+                .histogram(histogram)
+                .contexts(Arrays.asList(platform, user))
+                .build();
+    }
+
+    @Test
+    public void testEvent() {
+        assertEquals("@v:restlessrobot.metrical:1\n"
+                + "@c:platform\n"
+                + "@d:platform:os:andro_id\n"
+                + "@d:platform:city:Z\u00fcrich\n"
+                + "@c:user\n"
+                + "@d:user:name:\u65e5\u672c \ud83d\ude00\n"
+                + "@e:1400000000000:request-completed:platform,user\n"
+                + "@m:1400000000000:request-completed:latency:12:ms:platform,user\n"
+                + "@m:1400000000000:request-completed:cpu:3.515:%:platform,user\n"
+                + "@m:1400000000000:request-completed:gr\u00f6\u00dfe:5:kB:platform,user\n"
+                + "@h:1400000000000:request-completed:latency:1:12.50:12.50:12.50:12.50:12.50:ms:304=1:platform,user\n",
+                formatter.event(event));
+        // The contexts have already been output
+        assertTrue(formatter.event(event).startsWith("@e:1400000000000:request-completed:platform,user\n"));
+    }
+
+    @Test
+    public void testEqualContextsBuiltSeparately() {
+        formatter.event(event);
+
+        // Equal contexts aren't output again, and changed ones are
+        MetricalEvent rebuilt = MetricalEvent.builder()
+                .name("request-completed")
+                .timestamp(MOCK_TIME)
+                .contexts(Arrays.asList(
+                        Metrical.c("platform", Metrical.d("os", "andro:id"), Metrical.d("city", "Z\u00fcrich")),
+                        Metrical.c("user", Metrical.d("name", "someone else"))))
+                .build();
+        assertEquals("@c:user\n"
+                + "@d:user:name:someone else\n"
+                + "@e:1400000000000:request-completed:platform,user\n", formatter.event(rebuilt));
+        assertTrue(formatter.event(event).startsWith("@c:user\n@d:user:name:\u65e5"));
+    }
+
+    @Test
+    public void testByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        int headerLength = formatter.header(event, buffer);
+        int bodyLength = formatter.body(event, buffer);
+        assertEquals(headerLength + bodyLength, buffer.position());
+        assertEquals(referenceFormatter.event(event), decode(buffer));
+
+        // The contexts have already been output
+        buffer.clear();
+        assertEquals(0, formatter.header(event, buffer));
+        formatter.body(event, buffer);
+        assertEquals(referenceFormatter.event(event), decode(buffer));
+    }
+
+    @Test
+    public void testHeaderOverflow() {
+        ByteBuffer small = ByteBuffer.allocate(20);
+        small.put((byte) 'x');
+        try {
+            formatter.header(event, small);
+            fail("Expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            assertEquals(1, small.position());
+        }
+
+        // Nothing was recorded as output, so the whole header is written again
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        formatter.header(event, buffer);
+        formatter.body(event, buffer);
+        assertEquals(referenceFormatter.event(event), decode(buffer));
+    }
+
+    @Test
+    public void testBodyOverflow() {
+        ByteBuffer small = ByteBuffer.allocate(100);
+        try {
+            formatter.body(event, small);
+            fail("Expected BufferOverflowException");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, small.position());
+        }
+    }
+
+    @Test
+    public void testAppendable() throws Exception {
+        String expected = referenceFormatter.event(event);
+
+        StringWriter writer = new StringWriter();
+        assertEquals(expected.length(), formatter.event(event, writer));
+        assertEquals(expected, writer.toString());
+
+        formatter.reset();
+        StringBuilder sb = new StringBuilder("prefix\n");
+        assertEquals(expected.length(), formatter.event(event, sb));
+        assertEquals("prefix\n" + expected, sb.toString());
+    }
+
+    @Test
+    public void testEventTypesCollected() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        Metrical metrical = new Metrical(new MetricalRecordHandler() {
+            @Override
+            public void record(MetricalEventRecord record) {
+                sb.setLength(0);
+                formatter.header(record, sb);
+                formatter.body(record, sb);
+            }
+
+            @Override
+            public void event(MetricalEvent event) {
+                record(event);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void reset() {
+            }
+        });
+
+        // A type per request, as for a Metrical instance created per request
+        int rounds = 20;
+        int typesPerRound = 100;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < typesPerRound; i++) {
+                metrical.withContexts(Metrical.c("request", Metrical.d("id", round + "-" + i)))
+                        .eventType("request-completed")
+                        .metric("latency", Unit.MILLISECONDS)
+                        .build()
+                        .record(12);
+            }
+            assertTrue(sb.toString(), sb.toString().endsWith(":request-completed:latency:12:ms:request\n"));
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        int count = formatter.getEncodedTypeCount();
+        assertTrue("Encoded types " + count, count < rounds * typesPerRound / 4);
+    }
+
+    @Test
+    public void testReset() {
+        String first = formatter.event(event);
+        formatter.reset();
+        assertEquals(first, formatter.event(event));
+    }
+
+    private static String decode(ByteBuffer buffer) {
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
@@ -0,0 +1,400 @@
+package restlessrobot.metrical.handlers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.MetricalMetric;
+import restlessrobot.metrical.TimeProvider;
+import restlessrobot.metrical.Unit;
+
+import static org.junit.Assert.*;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
+import static restlessrobot.metrical.Metrical.m;
+
+public class AggregatingMetricalHandlerTest {
+    private static final long MOCK_TIME_EPOCH_MILLIS = 1_400_000_000_000L;
+    private static final long FLUSH_INTERVAL_MILLIS = 10_000;
+
+    private final List<MetricalEvent> summaries = new ArrayList<>();
+    private boolean finished;
+
+    private AggregatingMetricalHandler handler;
+    private Metrical metrical;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new AggregatingMetricalHandler(new MetricalHandler() {
+            @Override
+            public void event(MetricalEvent event) {
+                summaries.add(event);
+            }
+
+            @Override
+            public void finish() {
+                finished = true;
+            }
+
+            @Override
+            public void reset() throws IOException {
+            }
+        }, FLUSH_INTERVAL_MILLIS);
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS));
+        metrical = new Metrical(handler);
+    }
+
+    @Test
+    public void testIntegerMetrics() throws Exception {
+        metrical.event("request", m("latency", 10, Unit.MILLISECONDS));
+        metrical.event("request", m("latency", 30, Unit.MILLISECONDS));
+        metrical.event("request", m("latency", 5, Unit.MILLISECONDS));
+        handler.flush();
+
+        assertEquals(1, summaries.size());
+        MetricalEvent summary = summaries.get(0);
+        assertEquals("request", summary.getName());
+        Map<String, MetricalMetric<? extends Number>> metrics = metricsByName(summary);
+        assertEquals(3L, metrics.get("count").getValue());
+        assertEquals(3L, metrics.get("latency.count").getValue());
+        assertEquals(45L, metrics.get("latency.sum").getValue());
+        assertEquals(5L, metrics.get("latency.min").getValue());
+        assertEquals(30L, metrics.get("latency.max").getValue());
+        assertEquals(Unit.MILLISECONDS, metrics.get("latency.sum").getUnit());
+        assertEquals(Unit.NONE, metrics.get("latency.count").getUnit());
+    }
+
+    @Test
+    public void testMixedMetrics() throws Exception {
+        metrical.event("request", m("load", 2, Unit.PERCENT));
+        metrical.event("request", m("load", 0.5f, Unit.PERCENT));
+        metrical.begin("request").metric("load", 4.25, Unit.PERCENT).end();
+        handler.flush();
+
+        Map<String, MetricalMetric<? extends Number>> metrics = metricsByName(summaries.get(0));
+        assertEquals(3L, metrics.get("load.count").getValue());
+        assertEquals(6.75, metrics.get("load.sum").getValue().doubleValue(), 0);
+        assertEquals(0.5, metrics.get("load.min").getValue().doubleValue(), 0);
+        assertEquals(4.25, metrics.get("load.max").getValue().doubleValue(), 0);
+    }
+
+    @Test
+    public void testGroupedByNameAndContexts() throws Exception {
+        MetricalContext get = c("request", d("operation", "get"));
+        MetricalContext put = c("request", d("operation", "put"));
+        metrical.withContexts(get).event("request", m("latency", 10, Unit.MILLISECONDS));
+        metrical.withContexts(get).event("request", m("latency", 20, Unit.MILLISECONDS));
+        metrical.withContexts(put).event("request", m("latency", 100, Unit.MILLISECONDS));
+        metrical.withContexts(get).event("other", m("latency", 1, Unit.MILLISECONDS));
+        metrical.withContexts(get).event("request");
+        handler.flush();
+
+        assertEquals(3, summaries.size());
+        for (MetricalEvent summary : summaries) {
+            Map<String, MetricalMetric<? extends Number>> metrics = metricsByName(summary);
+            MetricalContext context = summary.getContexts().get(0);
+            if (summary.getName().equals("request") && context.equals(get)) {
+                assertEquals(3L, metrics.get("count").getValue());
+                assertEquals(2L, metrics.get("latency.count").getValue());
+                assertEquals(30L, metrics.get("latency.sum").getValue());
+            } else if (summary.getName().equals("request") && context.equals(put)) {
+                assertEquals(1L, metrics.get("count").getValue());
+                assertEquals(100L, metrics.get("latency.sum").getValue());
+            } else {
+                assertEquals("other", summary.getName());
+                assertEquals(1L, metrics.get("latency.sum").getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        metrical.event("request", m("latency", 10, Unit.MILLISECONDS));
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS + FLUSH_INTERVAL_MILLIS - 1));
+        metrical.event("request", m("latency", 20, Unit.MILLISECONDS));
+        assertTrue("Not flushed within interval", summaries.isEmpty());
+
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS + FLUSH_INTERVAL_MILLIS));
+        metrical.event("request", m("latency", 30, Unit.MILLISECONDS));
+        assertEquals(1, summaries.size());
+        assertEquals(60L, metricsByName(summaries.get(0)).get("latency.sum").getValue());
+
+        metrical.event("request", m("latency", 40, Unit.MILLISECONDS));
+        handler.finish();
+        assertEquals(2, summaries.size());
+        assertEquals(40L, metricsByName(summaries.get(1)).get("latency.sum").getValue());
+        assertTrue("Downstream handler finished", finished);
+    }
+
+    @Test
+    public void testTickFlushesWithoutEvents() throws Exception {
+        metrical.event("request", m("latency", 10, Unit.MILLISECONDS));
+        handler.tick();
+        assertTrue("Not flushed within interval", summaries.isEmpty());
+
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS + FLUSH_INTERVAL_MILLIS));
+        handler.tick();
+        assertEquals(1, summaries.size());
+        assertEquals(10L, metricsByName(summaries.get(0)).get("latency.sum").getValue());
+    }
+
+    @Test
+    public void testEventsDontFlushOnceTicked() throws Exception {
+        handler.tick();
+        metrical.event("request", m("latency", 10, Unit.MILLISECONDS));
+
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS + FLUSH_INTERVAL_MILLIS));
+        metrical.event("request", m("latency", 20, Unit.MILLISECONDS));
+        assertTrue("Flushed by event after tick", summaries.isEmpty());
+
+        handler.tick();
+        assertEquals(1, summaries.size());
+        assertEquals(30L, metricsByName(summaries.get(0)).get("latency.sum").getValue());
+    }
+
+    @Test
+    public void testTimeHistograms() throws Exception {
+        handler = new AggregatingMetricalHandler(new MetricalHandler() {
+            @Override
+            public void event(MetricalEvent event) {
+                summaries.add(event);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void reset() throws IOException {
+            }
+        }, FLUSH_INTERVAL_MILLIS, true);
+        metrical = new Metrical(handler);
+        for (int i = 1; i <= 100; i++) {
+            metrical.event("request", m("latency", i, Unit.MILLISECONDS), m("rows", i, Unit.NONE));
+        }
+        handler.flush();
+
+        MetricalEvent summary = summaries.get(0);
+        assertEquals(100L, metricsByName(summary).get("latency.count").getValue());
+        assertEquals(1, summary.getHistograms().size());
+        MetricalHistogram histogram = summary.getHistograms().get(0);
+        assertEquals("latency", histogram.getName());
+        assertEquals(100, histogram.getCount());
+        assertEquals(99, histogram.getValueAtPercentile(99), 99 / 32.0);
+
+        metrical.event("request", m("latency", 500, Unit.MILLISECONDS));
+        handler.flush();
+        histogram = summaries.get(1).getHistograms().get(0);
+        assertEquals(1, histogram.getCount());
+        assertEquals(500, histogram.getMax(), 0);
+    }
+
+    @Test
+    public void testIdleGroupsNotReported() throws Exception {
+        metrical.event("request", m("latency", 10, Unit.MILLISECONDS));
+        handler.flush();
+        handler.flush();
+        assertEquals(1, summaries.size());
+    }
+
+    @Test
+    public void testGroupNotRetiredWhileRecording() throws Exception {
+        metrical.event("request", m("latency", 10, Unit.MILLISECONDS));
+        handler.flush();
+
+        // Flush twice part way through recording an event, after it has been counted but before
+        // its metric has been added: the second flush finds the group idle, but mustn't discard it
+        final MetricalEvent event = MetricalEvent.builder()
+                .name("request")
+                .metric("latency", 20, Unit.MILLISECONDS)
+                .build();
+        handler.record(new MetricalEventRecord() {
+            private boolean flushed;
+
+            @Override
+            public String getMetricName(int index) {
+                if (!flushed) {
+                    flushed = true;
+                    try {
+                        handler.flush();
+                        handler.flush();
+                    } catch (MetricalException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return event.getMetricName(index);
+            }
+
+            @Override
+            public String getName() {
+                return event.getName();
+            }
+
+            @Override
+            public long getTimestamp() {
+                return event.getTimestamp();
+            }
+
+            @Override
+            public List<MetricalContext> getContexts() {
+                return event.getContexts();
+            }
+
+            @Override
+            public int getMetricCount() {
+                return event.getMetricCount();
+            }
+
+            @Override
+            public Unit getMetricUnit(int index) {
+                return event.getMetricUnit(index);
+            }
+
+            @Override
+            public boolean isFloatingPointMetric(int index) {
+                return event.isFloatingPointMetric(index);
+            }
+
+            @Override
+            public long getLongMetricValue(int index) {
+                return event.getLongMetricValue(index);
+            }
+
+            @Override
+            public double getDoubleMetricValue(int index) {
+                return event.getDoubleMetricValue(index);
+            }
+
+            @Override
+            public int getHistogramCount() {
+                return event.getHistogramCount();
+            }
+
+            @Override
+            public MetricalHistogram getHistogram(int index) {
+                return event.getHistogram(index);
+            }
+
+            @Override
+            public MetricalEvent toEvent() {
+                return event;
+            }
+
+        });
+        handler.flush();
+
+        long sum = 0;
+        for (MetricalEvent summary : summaries) {
+            MetricalMetric<? extends Number> latencySum = metricsByName(summary).get("latency.sum");
+            if (latencySum != null)
+                sum += latencySum.getValue().longValue();
+        }
+        assertEquals(30, sum);
+    }
+
+    @Test
+    public void testConcurrentRecordAndFlushLoseNothing() throws Exception {
+        final AtomicLong countTotal = new AtomicLong();
+        final AtomicLong sumTotal = new AtomicLong();
+        final AggregatingMetricalHandler concurrentHandler = new AggregatingMetricalHandler(new MetricalHandler() {
+            @Override
+            public void event(MetricalEvent event) {
+                Map<String, MetricalMetric<? extends Number>> metrics = metricsByName(event);
+                countTotal.addAndGet(metrics.get("count").getValue().longValue());
+                // A value recorded during a flush may be summed in one summary and counted in the next
+                MetricalMetric<? extends Number> sum = metrics.get("value.sum");
+                if (sum != null)
+                    sumTotal.addAndGet(sum.getValue().longValue());
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void reset() throws IOException {
+            }
+        }, FLUSH_INTERVAL_MILLIS);
+        concurrentHandler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS));
+        final Metrical concurrentMetrical = new Metrical(concurrentHandler);
+
+        final int threadCount = 4;
+        final int eventsPerThread = 50_000;
+        final AtomicBoolean recording = new AtomicBoolean(true);
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (recording.get()) {
+                    try {
+                        concurrentHandler.flush();
+                    } catch (MetricalException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        });
+        flusher.start();
+
+        Thread[] recorders = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            recorders[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < eventsPerThread; i++) {
+                        // Groups go idle and are retired between events, as they're spread over names
+                        concurrentMetrical.event("request-" + (i % 1024), m("value", 1, Unit.NONE));
+                    }
+                }
+            });
+            recorders[t].start();
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        recording.set(false);
+        flusher.join();
+        concurrentHandler.flush();
+
+        assertEquals("Events counted", threadCount * eventsPerThread, countTotal.get());
+        assertEquals("Values summed", threadCount * eventsPerThread, sumTotal.get());
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        metrical.event("request", m("latency", 10, Unit.MILLISECONDS));
+        handler.reset();
+        handler.flush();
+        assertTrue(summaries.isEmpty());
+    }
+
+    private Map<String, MetricalMetric<? extends Number>> metricsByName(MetricalEvent event) {
+        Map<String, MetricalMetric<? extends Number>> metrics = new HashMap<>();
+        for (MetricalMetric<? extends Number> metric : event.getMetrics()) {
+            metrics.put(metric.getName(), metric);
+        }
+        return metrics;
+    }
+
+    private TimeProvider buildMockTimeProvider(final long mockTime) {
+        return new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return mockTime;
+            }
+        };
+    }
+}
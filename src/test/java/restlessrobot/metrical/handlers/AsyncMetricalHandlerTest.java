@@ -0,0 +1,224 @@
+package restlessrobot.metrical.handlers;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+
+import static org.junit.Assert.*;
+
+public class AsyncMetricalHandlerTest {
+    private static final int CAPACITY = 4;
+
+    private final List<MetricalEvent> delivered = Collections.synchronizedList(new ArrayList<MetricalEvent>());
+    private final CountDownLatch firstEventStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseHandler = new CountDownLatch(1);
+    private MetricalEvent failingEvent;
+    private boolean finished;
+
+    private MetricalHandler recordingHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        recordingHandler = new MetricalHandler() {
+            @Override
+            public void event(MetricalEvent event) throws MetricalException {
+                firstEventStarted.countDown();
+                try {
+                    releaseHandler.await();
+                } catch (InterruptedException e) {
+                    throw new MetricalException("Interrupted", e);
+                }
+                if (event == failingEvent)
+                    throw new MetricalException("Failed", null);
+                delivered.add(event);
+            }
+
+            @Override
+            public void finish() {
+                finished = true;
+            }
+
+            @Override
+            public void reset() throws IOException {
+            }
+        };
+    }
+
+    @Test
+    public void testEventsDeliveredInOrder() throws Exception {
+        releaseHandler.countDown();
+        AsyncMetricalHandler handler = new AsyncMetricalHandler(recordingHandler);
+        List<MetricalEvent> events = mockEvents(100);
+        for (MetricalEvent event : events) {
+            handler.event(event);
+        }
+        handler.finish();
+
+        assertEquals(events, delivered);
+        assertTrue("Wrapped handler finished", finished);
+        assertEquals(0, handler.getDroppedEventCount());
+        assertEquals(0, handler.getQueueSize());
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        AsyncMetricalHandler handler = new AsyncMetricalHandler(recordingHandler, CAPACITY,
+                AsyncMetricalHandler.OverflowPolicy.DROP_NEWEST);
+        List<MetricalEvent> events = fillBuffer(handler);
+        MetricalEvent overflow1 = Mockito.mock(MetricalEvent.class);
+        MetricalEvent overflow2 = Mockito.mock(MetricalEvent.class);
+        handler.event(overflow1);
+        handler.event(overflow2);
+        releaseHandler.countDown();
+        handler.finish();
+
+        assertEquals(events, delivered);
+        assertEquals(2, handler.getDroppedEventCount());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        AsyncMetricalHandler handler = new AsyncMetricalHandler(recordingHandler, CAPACITY,
+                AsyncMetricalHandler.OverflowPolicy.DROP_OLDEST);
+        List<MetricalEvent> events = fillBuffer(handler);
+        MetricalEvent overflow1 = Mockito.mock(MetricalEvent.class);
+        MetricalEvent overflow2 = Mockito.mock(MetricalEvent.class);
+        handler.event(overflow1);
+        handler.event(overflow2);
+        releaseHandler.countDown();
+        handler.finish();
+
+        List<MetricalEvent> expected = new ArrayList<>();
+        expected.add(events.get(0));
+        expected.addAll(events.subList(3, events.size()));
+        expected.add(overflow1);
+        expected.add(overflow2);
+        assertEquals(expected, delivered);
+        assertEquals(2, handler.getDroppedEventCount());
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        final AsyncMetricalHandler handler = new AsyncMetricalHandler(recordingHandler, CAPACITY,
+                AsyncMetricalHandler.OverflowPolicy.BLOCK);
+        List<MetricalEvent> events = fillBuffer(handler);
+        final MetricalEvent overflow = Mockito.mock(MetricalEvent.class);
+        final CountDownLatch overflowReported = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                handler.event(overflow);
+                overflowReported.countDown();
+            }
+        });
+        producer.start();
+
+        assertFalse("Producer blocked while buffer full", overflowReported.await(100, TimeUnit.MILLISECONDS));
+        releaseHandler.countDown();
+        assertTrue("Producer unblocked", overflowReported.await(5, TimeUnit.SECONDS));
+        handler.finish();
+
+        events.add(overflow);
+        assertEquals(events, delivered);
+        assertEquals(0, handler.getDroppedEventCount());
+    }
+
+    @Test
+    public void testFailuresCounted() throws Exception {
+        releaseHandler.countDown();
+        AsyncMetricalHandler handler = new AsyncMetricalHandler(recordingHandler);
+        List<MetricalEvent> events = mockEvents(3);
+        failingEvent = events.get(1);
+        for (MetricalEvent event : events) {
+            handler.event(event);
+        }
+        handler.finish();
+
+        events.remove(failingEvent);
+        assertEquals(events, delivered);
+        assertEquals(1, handler.getFailedEventCount());
+    }
+
+    @Test
+    public void testEventsAfterFinishDropped() throws Exception {
+        releaseHandler.countDown();
+        AsyncMetricalHandler handler = new AsyncMetricalHandler(recordingHandler);
+        handler.finish();
+        handler.event(Mockito.mock(MetricalEvent.class));
+
+        assertTrue(delivered.isEmpty());
+        assertEquals(1, handler.getDroppedEventCount());
+    }
+
+    @Test
+    public void testEventsRacingFinishDeliveredOrDropped() throws Exception {
+        releaseHandler.countDown();
+        final MetricalEvent event = Mockito.mock(MetricalEvent.class);
+        for (int run = 0; run < 20; run++) {
+            delivered.clear();
+            final AsyncMetricalHandler handler = new AsyncMetricalHandler(recordingHandler);
+            final AtomicBoolean stop = new AtomicBoolean();
+            final AtomicLong reported = new AtomicLong();
+            List<Thread> producers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Thread producer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (!stop.get()) {
+                            handler.event(event);
+                            reported.incrementAndGet();
+                        }
+                    }
+                });
+                producer.start();
+                producers.add(producer);
+            }
+            Thread.sleep(2);
+            handler.finish();
+            stop.set(true);
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            assertEquals("Events delivered or dropped", reported.get(),
+                    delivered.size() + handler.getDroppedEventCount());
+        }
+    }
+
+    /**
+     * Reports one event which blocks the consumer thread in the wrapped handler, then fills the
+     * buffer behind it.
+     */
+    private List<MetricalEvent> fillBuffer(AsyncMetricalHandler handler) throws Exception {
+        List<MetricalEvent> events = mockEvents(CAPACITY + 1);
+        handler.event(events.get(0));
+        assertTrue("Consumer started", firstEventStarted.await(5, TimeUnit.SECONDS));
+        for (MetricalEvent event : events.subList(1, events.size())) {
+            handler.event(event);
+        }
+        assertEquals(CAPACITY, handler.getQueueSize());
+        assertEquals(0, handler.getDroppedEventCount());
+        return events;
+    }
+
+    private List<MetricalEvent> mockEvents(int count) {
+        List<MetricalEvent> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            events.add(Mockito.mock(MetricalEvent.class));
+        }
+        return events;
+    }
+}
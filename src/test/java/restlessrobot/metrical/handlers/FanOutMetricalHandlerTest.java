@@ -0,0 +1,173 @@
+package restlessrobot.metrical.handlers;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+
+import static org.junit.Assert.*;
+
+public class FanOutMetricalHandlerTest {
+    private static final int CAPACITY = 4;
+
+    private final CountDownLatch slowStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseSlow = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        releaseSlow.countDown();
+    }
+
+    @Test
+    public void testEventsDeliveredToEveryHandler() throws Exception {
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+        FanOutMetricalHandler handler = new FanOutMetricalHandler(first, second);
+        List<MetricalEvent> events = mockEvents(100);
+        for (MetricalEvent event : events) {
+            handler.event(event);
+        }
+        handler.finish();
+
+        assertEquals(events, first.delivered);
+        assertEquals(events, second.delivered);
+        assertTrue(first.finished);
+        assertTrue(second.finished);
+        assertEquals(2, handler.getHandlerCount());
+    }
+
+    @Test
+    public void testFailingHandlerIsolated() throws Exception {
+        RecordingHandler healthy = new RecordingHandler();
+        MetricalHandler failing = new RecordingHandler() {
+            @Override
+            public void event(MetricalEvent event) throws MetricalException {
+                throw new MetricalException("Failed", null);
+            }
+
+            @Override
+            public void finish() {
+                throw new IllegalStateException("Failed to finish");
+            }
+        };
+        FanOutMetricalHandler handler = new FanOutMetricalHandler(failing, healthy);
+        List<MetricalEvent> events = mockEvents(10);
+        for (MetricalEvent event : events) {
+            handler.event(event);
+        }
+        handler.finish();
+
+        assertEquals(events, healthy.delivered);
+        assertTrue(healthy.finished);
+        assertEquals(10, handler.getFailedEventCount(0));
+        assertEquals(0, handler.getFailedEventCount(1));
+    }
+
+    @Test
+    public void testSlowHandlerIsolated() throws Exception {
+        RecordingHandler fast = new RecordingHandler();
+        RecordingHandler slow = new RecordingHandler() {
+            @Override
+            public void event(MetricalEvent event) throws MetricalException {
+                slowStarted.countDown();
+                try {
+                    releaseSlow.await();
+                } catch (InterruptedException e) {
+                    throw new MetricalException("Interrupted", e);
+                }
+                super.event(event);
+            }
+        };
+        // The fast handler is given its own, larger, queue, which is used as it is
+        FanOutMetricalHandler handler = new FanOutMetricalHandler(CAPACITY,
+                AsyncMetricalHandler.OverflowPolicy.DROP_NEWEST, slow, new AsyncMetricalHandler(fast));
+        List<MetricalEvent> events = mockEvents(CAPACITY + 3);
+        handler.event(events.get(0));
+        assertTrue("Slow handler started", slowStarted.await(5, TimeUnit.SECONDS));
+        for (MetricalEvent event : events.subList(1, events.size())) {
+            handler.event(event);
+        }
+
+        // The slow handler's queue is full, and the rest of its events are dropped
+        assertEquals(CAPACITY, handler.getQueueSize(0));
+        assertEquals(2, handler.getDroppedEventCount(0));
+        assertEquals(0, handler.getDroppedEventCount(1));
+
+        // The fast handler gets every event while the slow one is stuck
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fast.delivered.size() < events.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(events, fast.delivered);
+        assertTrue(slow.delivered.isEmpty());
+
+        releaseSlow.countDown();
+        handler.finish();
+        assertEquals(events.subList(0, CAPACITY + 1), slow.delivered);
+        assertEquals(0, handler.getQueueSize(0));
+    }
+
+    @Test
+    public void testResetContinuesAfterFailure() throws Exception {
+        RecordingHandler failing = new RecordingHandler() {
+            @Override
+            public void reset() throws IOException {
+                throw new IOException("Failed to reset");
+            }
+        };
+        RecordingHandler healthy = new RecordingHandler();
+        FanOutMetricalHandler handler = new FanOutMetricalHandler(failing, healthy);
+        try {
+            handler.reset();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Failed to reset", e.getMessage());
+        }
+        assertTrue(healthy.reset);
+        handler.finish();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoHandlers() {
+        new FanOutMetricalHandler();
+    }
+
+    private List<MetricalEvent> mockEvents(int count) {
+        List<MetricalEvent> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            events.add(Mockito.mock(MetricalEvent.class));
+        }
+        return events;
+    }
+
+    private static class RecordingHandler implements MetricalHandler {
+        final List<MetricalEvent> delivered = Collections.synchronizedList(new ArrayList<MetricalEvent>());
+        volatile boolean finished;
+        volatile boolean reset;
+
+        @Override
+        public void event(MetricalEvent event) throws MetricalException {
+            delivered.add(event);
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            reset = true;
+        }
+    }
+}
@@ -7,16 +7,36 @@ import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
 
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
 import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalException;
 import restlessrobot.metrical.MetricalFormatter;
+import restlessrobot.metrical.MetricalStats;
 import restlessrobot.metrical.TimeProvider;
+import restlessrobot.metrical.Unit;
+import restlessrobot.metrical.formatters.BinaryMetricalFormatter;
+import restlessrobot.metrical.readers.BinaryMetricalReader;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static restlessrobot.metrical.Metrical.c;
+import static restlessrobot.metrical.Metrical.d;
 
 public class FileMetricalHandlerTest {
     /**
@@ -156,6 +176,35 @@ public class FileMetricalHandlerTest {
                 RESET_TEXT + SINGLE_LINE_TEXT_1 +  SINGLE_LINE_TEXT_2, contents);
     }
 
+    @Test
+    public void testTickRotatesIdleFile() throws Exception {
+        handler.event(mockEvent1);
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_2_EPOCH_MILLIS));
+        handler.tick();
+        assertNull("Rotated without an event", handler.getCurrentPath());
+
+        handler.event(mockEvent2);
+        handler.finish();
+
+        File f1 = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected first file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f1));
+
+        File f2 = new File(pathStem + MOCK_TIME_2_ISO + ".log");
+        assertEquals("Expected second file contents", RESET_TEXT + SINGLE_LINE_TEXT_2, readFileContents(f2));
+    }
+
+    @Test
+    public void testTickFlushesIdleFile() throws Exception {
+        handler.event(mockEvent1);
+        handler.tick();
+
+        // Still the current file, but the buffered output has been written
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals(f.getCanonicalPath(), handler.getCurrentPath());
+        assertEquals("Expected file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f));
+        handler.finish();
+    }
+
     @Test
     public void testFileRotationBySizeFirstLineExceedsSize() throws Exception {
         handler.setRotateSizeLimitBytes(5);
@@ -190,6 +239,53 @@ public class FileMetricalHandlerTest {
         assertEquals("Expected second file contents", RESET_TEXT + SINGLE_LINE_TEXT_2, contents);
     }
 
+    @Test(timeout = 10000)
+    public void testFileRotationToNextFile() throws Exception {
+        handler.setRotateSizeLimitBytes(15);
+        handler.event(mockEvent1);
+
+        // The next file is opened in the background, and renamed when the output is rotated
+        File next = new File(pathStem + "next-1.log.tmp");
+        while (!next.exists()) {
+            Thread.sleep(10);
+        }
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_3_EPOCH_MILLIS));
+        handler.event(mockEvent2);
+        assertFalse("Next file renamed", next.exists());
+        handler.finish();
+
+        File f1 = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected first file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f1));
+
+        File f2 = new File(pathStem + MOCK_TIME_3_ISO + ".log");
+        assertEquals("Expected second file contents", RESET_TEXT + SINGLE_LINE_TEXT_2, readFileContents(f2));
+
+        // The file opened for the next rotation is deleted
+        assertEquals("Files remaining", 2, testFolder.getRoot().list().length);
+    }
+
+    @Test(timeout = 10000)
+    public void testFileRotationAfterOutputModeChange() throws Exception {
+        handler.setRotateSizeLimitBytes(15);
+        handler.event(mockEvent1);
+        File next = new File(pathStem + "next-1.log.tmp");
+        while (!next.exists()) {
+            Thread.sleep(10);
+        }
+
+        // The next file was opened for buffered output, so it's replaced by a mapped one
+        handler.setOutputMode(FileMetricalHandler.OutputMode.MAPPED);
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_3_EPOCH_MILLIS));
+        handler.event(mockEvent2);
+
+        File f2 = new File(pathStem + MOCK_TIME_3_ISO + ".log");
+        assertTrue("Expected mapped file contents",
+                readFileContents(f2).startsWith(RESET_TEXT + SINGLE_LINE_TEXT_2 + "\0"));
+        handler.finish();
+        assertEquals("Expected second file contents", RESET_TEXT + SINGLE_LINE_TEXT_2, readFileContents(f2));
+        assertEquals("Files remaining", 2, testFolder.getRoot().list().length);
+    }
+
     @Test
     public void testFileRotationBySizeSecondLineWithinSize() throws Exception {
         handler.setRotateSizeLimitBytes(31);
@@ -204,12 +300,351 @@ public class FileMetricalHandlerTest {
                 RESET_TEXT + SINGLE_LINE_TEXT_1 +  SINGLE_LINE_TEXT_2, contents);
     }
 
+    @Test
+    public void testMappedOutputFileContents() throws Exception {
+        handler.setOutputMode(FileMetricalHandler.OutputMode.MAPPED);
+        handler.event(mockEvent1);
+        handler.event(mockEvent2);
+        handler.finish();
+
+        // The file is truncated to the text written
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        String contents = readFileContents(f);
+        assertEquals("Expected file contents", RESET_TEXT + SINGLE_LINE_TEXT_1 + SINGLE_LINE_TEXT_2, contents);
+    }
+
+    @Test
+    public void testMappedFileRotationBySize() throws Exception {
+        handler.setOutputMode(FileMetricalHandler.OutputMode.MAPPED);
+        handler.setRotateSizeLimitBytes(15);
+        handler.event(mockEvent1);
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_3_EPOCH_MILLIS));
+        handler.event(mockEvent2);
+        handler.finish();
+
+        File f1 = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected first file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f1));
+
+        File f2 = new File(pathStem + MOCK_TIME_3_ISO + ".log");
+        assertEquals("Expected second file contents", RESET_TEXT + SINGLE_LINE_TEXT_2, readFileContents(f2));
+    }
+
+    @Test
+    public void testMappedOutputVisibleBeforeFinish() throws Exception {
+        handler.setOutputMode(FileMetricalHandler.OutputMode.MAPPED);
+        handler.event(mockEvent1);
+
+        // The text is in the file straight away, followed by the rest of the preallocated segment
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        String contents = readFileContents(f);
+        assertTrue("Expected file contents", contents.startsWith(RESET_TEXT + SINGLE_LINE_TEXT_1 + "\0"));
+        handler.finish();
+    }
+
+    @Test
+    public void testAwaitDurable() throws Exception {
+        handler.event(mockEvent1);
+
+        // The text is flushed out of the write buffer and forced
+        handler.awaitDurable();
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f));
+        handler.finish();
+    }
+
+    @Test(timeout = 10000)
+    public void testGroupCommitAcknowledged() throws Exception {
+        // Waiting threads start a commit straight away, rather than after the interval
+        handler.setDurability(FileMetricalHandler.Durability.GROUP_COMMIT_ACKNOWLEDGED);
+        handler.setCommitIntervalMillis(60 * 60 * 1000);
+        handler.event(mockEvent1);
+
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f));
+        handler.finish();
+    }
+
+    @Test(timeout = 10000)
+    public void testGroupCommitAcknowledgedConcurrently() throws Exception {
+        handler.setDurability(FileMetricalHandler.Durability.GROUP_COMMIT_ACKNOWLEDGED);
+        handler.setCommitIntervalMillis(60 * 60 * 1000);
+        final int eventsPerThread = 100;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < eventsPerThread; j++) {
+                            handler.event(mockEvent1);
+                        }
+                    } catch (MetricalException e) {
+                        // The file length is checked below
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected file length", (RESET_TEXT + SINGLE_LINE_TEXT_1).length()
+                + (threads.length * eventsPerThread - 1) * SINGLE_LINE_TEXT_1.length(), readFileContents(f).length());
+        handler.finish();
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedCloseNotReportedDurable() throws Exception {
+        // The first file can't be forced when it's closed, but the second can
+        handler = new FileMetricalHandler(pathStem, ".log") {
+            private boolean firstSinkOpened;
+
+            @Override
+            FileSink openSink(File f, OutputMode mode, Executor fileCompressor) throws IOException {
+                final FileSink sink = super.openSink(f, mode, fileCompressor);
+                if (firstSinkOpened)
+                    return sink;
+
+                firstSinkOpened = true;
+                return new FileSink() {
+                    @Override
+                    public void write(ByteBuffer bytes) throws IOException {
+                        sink.write(bytes);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        sink.flush();
+                    }
+
+                    @Override
+                    public void force() throws IOException {
+                        throw new IOException("Failed to force");
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        sink.close();
+                    }
+                };
+            }
+        };
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS));
+        handler.setFormatter(mockFormatter);
+        handler.setDurability(FileMetricalHandler.Durability.GROUP_COMMIT);
+        handler.setCommitIntervalMillis(60 * 60 * 1000);
+
+        MetricalStats.Snapshot before = MetricalStats.get().snapshot();
+        handler.event(mockEvent1);
+        handler.reset();
+        try {
+            handler.awaitDurable();
+            fail("Expected the failed force to be reported");
+        } catch (IOException e) {
+            assertEquals("Failed to force", e.getCause().getMessage());
+        }
+        assertTrue(MetricalStats.get().snapshot().since(before).getCount(MetricalStats.Counter.COMMITS_FAILED) >= 1);
+
+        // The second file is still committed, and its events are durable
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_3_EPOCH_MILLIS));
+        handler.event(mockEvent2);
+        handler.awaitDurable();
+        handler.reset();
+        handler.awaitDurable();
+        handler.finish();
+    }
+
+    @Test(timeout = 10000)
+    public void testGroupCommitBySize() throws Exception {
+        handler.setDurability(FileMetricalHandler.Durability.GROUP_COMMIT);
+        handler.setCommitIntervalMillis(60 * 60 * 1000);
+        handler.setCommitSizeBytes(1);
+        handler.event(mockEvent1);
+
+        // The committer flushes the text in the background
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        while (f.length() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals("Expected file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f));
+        handler.finish();
+    }
+
+    @Test(timeout = 10000)
+    public void testGroupCommitByInterval() throws Exception {
+        handler.setDurability(FileMetricalHandler.Durability.GROUP_COMMIT);
+        handler.setCommitIntervalMillis(10);
+        handler.event(mockEvent1);
+
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        while (f.length() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals("Expected file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f));
+        handler.finish();
+    }
+
+    @Test(timeout = 10000)
+    public void testMappedGroupCommitAcknowledged() throws Exception {
+        handler.setOutputMode(FileMetricalHandler.OutputMode.MAPPED);
+        handler.setDurability(FileMetricalHandler.Durability.GROUP_COMMIT_ACKNOWLEDGED);
+        handler.setRotateSizeLimitBytes(15);
+        handler.event(mockEvent1);
+        handler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_3_EPOCH_MILLIS));
+        handler.event(mockEvent2);
+        handler.finish();
+
+        File f1 = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected first file contents", RESET_TEXT + SINGLE_LINE_TEXT_1, readFileContents(f1));
+
+        File f2 = new File(pathStem + MOCK_TIME_3_ISO + ".log");
+        assertEquals("Expected second file contents", RESET_TEXT + SINGLE_LINE_TEXT_2, readFileContents(f2));
+    }
+
+    @Test
+    public void testStreamingOutput() throws Exception {
+        assertStreamingOutput(FileMetricalHandler.OutputMode.BUFFERED);
+    }
+
+    @Test
+    public void testMappedStreamingOutput() throws Exception {
+        assertStreamingOutput(FileMetricalHandler.OutputMode.MAPPED);
+    }
+
+    private void assertStreamingOutput(FileMetricalHandler.OutputMode outputMode) throws Exception {
+        FileMetricalHandler streamingHandler = new FileMetricalHandler(pathStem, ".log");
+        streamingHandler.setOutputMode(outputMode);
+        streamingHandler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS));
+        streamingHandler.setRotateSizeLimitBytes(10 * 1024 * 1024);
+        TextCaptureMetricalHandler captureHandler = new TextCaptureMetricalHandler();
+        captureHandler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS));
+        captureHandler.setRotateSizeLimitBytes(10 * 1024 * 1024);
+
+        // Enough events to fill the write buffer several times, and more than one mapped segment
+        List<MetricalContext> contexts = Arrays.asList(c("platform", d("city", "Z\u00fcrich"), d("name", "\u65e5\u672c \ud83d\ude00")));
+        for (int i = 0; i < 1000; i++) {
+            MetricalEvent event = MetricalEvent.builder()
+                    .name("request-completed")
+                    .timestamp(MOCK_TIME_EPOCH_MILLIS + i)
+                    .metric("latency", i, Unit.MILLISECONDS)
+                    .metric("gr\u00f6\u00dfe", i / 7.0, Unit.KILOBYTES)
+                    .contexts(contexts)
+                    .build();
+            streamingHandler.event(event);
+            captureHandler.event(event);
+        }
+        streamingHandler.finish();
+
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected file contents", captureHandler.get(), readFileContents(f));
+    }
+
+    @Test
+    public void testGzipStreamingOutput() throws Exception {
+        assertStreamingOutput(FileMetricalHandler.OutputMode.GZIP);
+    }
+
+    @Test
+    public void testGzipOutputReadableBeforeFinish() throws Exception {
+        handler.setOutputMode(FileMetricalHandler.OutputMode.GZIP);
+        handler.event(mockEvent1);
+        handler.event(mockEvent2);
+
+        // Flushing compresses the partial block, so the file can be decompressed that far
+        handler.awaitDurable();
+        File f = new File(pathStem + MOCK_TIME_ISO + ".log");
+        assertEquals("Expected file contents", RESET_TEXT + SINGLE_LINE_TEXT_1 + SINGLE_LINE_TEXT_2,
+                readGzipContents(f, RESET_TEXT.length() + SINGLE_LINE_TEXT_1.length() + SINGLE_LINE_TEXT_2.length()));
+        handler.finish();
+        assertEquals("Expected file contents", RESET_TEXT + SINGLE_LINE_TEXT_1 + SINGLE_LINE_TEXT_2, readFileContents(f));
+    }
+
+    @Test
+    public void testBinaryOutput() throws Exception {
+        FileMetricalHandler binaryHandler = new FileMetricalHandler(pathStem, ".bin", new BinaryMetricalFormatter());
+        binaryHandler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS));
+        MetricalEvent event = MetricalEvent.builder()
+                .name("request-completed")
+                .timestamp(MOCK_TIME_EPOCH_MILLIS)
+                .metric("latency", 12L, Unit.MILLISECONDS)
+                .contexts(Arrays.asList(c("platform", d("os", "android"))))
+                .build();
+        binaryHandler.event(event);
+        binaryHandler.event(event);
+        binaryHandler.finish();
+
+        File f = new File(pathStem + MOCK_TIME_ISO + ".bin");
+        try (BinaryMetricalReader reader = new BinaryMetricalReader(new FileInputStream(f))) {
+            for (int i = 0; i < 2; i++) {
+                MetricalEvent read = reader.next();
+                assertEquals("request-completed", read.getName());
+                assertEquals(MOCK_TIME_EPOCH_MILLIS, read.getTimestamp());
+                assertEquals(12L, read.getLongMetricValue(0));
+                assertEquals("android", read.getContexts().get(0).getDimensions().get("os").getValue());
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testNoAllocationPerEvent() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        FileMetricalHandler streamingHandler = new FileMetricalHandler(pathStem, ".log");
+        streamingHandler.setTimeProvider(buildMockTimeProvider(MOCK_TIME_EPOCH_MILLIS));
+        streamingHandler.setRotateSizeLimitBytes(Long.MAX_VALUE);
+        Metrical metrical = new Metrical(streamingHandler, c("platform", d("os", "android")));
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up, so that the file is open, the buffers have grown and the loop has been compiled
+        recordEvents(metrical, 50_000);
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        long overhead = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = allocationBean.getThreadAllocatedBytes(threadId);
+        recordEvents(metrical, 50_000);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before - overhead;
+        streamingHandler.finish();
+
+        assertTrue("Allocated " + allocated + " bytes for 50000 events", allocated < 16 * 1024);
+    }
+
+    private static void recordEvents(Metrical metrical, int count) {
+        for (int i = 0; i < count; i++) {
+            metrical.begin("request-completed")
+                    .metric("latency", i, Unit.MILLISECONDS)
+                    .metric("cpu", i * 0.5, Unit.PERCENT)
+                    .end();
+        }
+    }
 
     private String readFileContents(File file) throws IOException {
         byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length >= 2 && bytes[0] == (byte) 0x1f && bytes[1] == (byte) 0x8b)
+            return readGzipContents(file, Integer.MAX_VALUE);
         return new String(bytes, StandardCharsets.UTF_8);
     }
 
+    // Reads up to a number of bytes, since an unfinished file has no trailer
+    private String readGzipContents(File file, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[4096];
+            int count;
+            while (out.size() < length && (count = in.read(buffer, 0, Math.min(buffer.length, length - out.size()))) > 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     private TimeProvider buildMockTimeProvider(final long mockTime) {
         TimeProvider timeProvider = new TimeProvider() {
             @Override
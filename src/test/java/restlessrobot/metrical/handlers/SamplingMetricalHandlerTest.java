@@ -0,0 +1,137 @@
+package restlessrobot.metrical.handlers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalSampler;
+import restlessrobot.metrical.TimeProvider;
+import restlessrobot.metrical.Unit;
+
+import static org.junit.Assert.*;
+
+public class SamplingMetricalHandlerTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+
+    private final TextCaptureMetricalHandler captureHandler = new TextCaptureMetricalHandler();
+    private final StubSampler sampler = new StubSampler();
+    private final SamplingMetricalHandler handler = new SamplingMetricalHandler(captureHandler, sampler);
+    private final MetricalEvent event = MetricalEvent.builder()
+            .name("request-completed")
+            .timestamp(MOCK_TIME)
+            .metric("latency", 12L, Unit.MILLISECONDS)
+            .contexts(Arrays.asList(Metrical.c("platform", Metrical.d("os", "android"))))
+            .build();
+
+    @Test
+    public void testKeptEvent() throws Exception {
+        sampler.rate = 1;
+        handler.event(event);
+        assertEquals(text(event), captureHandler.get());
+        assertEquals(0, handler.getDiscardedEventCount());
+    }
+
+    @Test
+    public void testDiscardedEvent() throws Exception {
+        sampler.rate = 0;
+        handler.event(event);
+        handler.record(event);
+        assertEquals("", captureHandler.get());
+        assertEquals(2, handler.getDiscardedEventCount());
+    }
+
+    @Test
+    public void testSampledEvent() throws Exception {
+        sampler.rate = 0.25;
+        handler.event(event);
+        assertEquals(text(MetricalEvent.builder()
+                .name("request-completed")
+                .timestamp(MOCK_TIME)
+                .metric("latency", 12L, Unit.MILLISECONDS)
+                .metric(MetricalSampler.SAMPLE_RATE_METRIC, 0.25, Unit.NONE)
+                .contexts(event.getContexts())
+                .build()), captureHandler.get());
+    }
+
+    @Test
+    public void testSampledRecord() throws Exception {
+        sampler.rate = 0.25;
+        handler.event(event);
+        String expected = captureHandler.get();
+
+        captureHandler.reset();
+        handler.record(event);
+        assertEquals(expected, captureHandler.get());
+    }
+
+    @Test
+    public void testResampledEvent() throws Exception {
+        // The rates multiply, rather than adding another sample rate metric
+        sampler.rate = 0.5;
+        SamplingMetricalHandler outer = new SamplingMetricalHandler(handler, new StubSampler(0.5));
+        outer.event(event);
+        String expected = text(MetricalEvent.builder()
+                .name("request-completed")
+                .timestamp(MOCK_TIME)
+                .metric("latency", 12L, Unit.MILLISECONDS)
+                .metric(MetricalSampler.SAMPLE_RATE_METRIC, 0.25, Unit.NONE)
+                .contexts(event.getContexts())
+                .build());
+        assertEquals(expected, captureHandler.get());
+
+        captureHandler.reset();
+        outer.record(event);
+        assertEquals(expected, captureHandler.get());
+    }
+
+    @Test
+    public void testMetricalSampler() throws Exception {
+        TextCaptureMetricalHandler metricalHandler = new TextCaptureMetricalHandler();
+        Metrical metrical = new Metrical(metricalHandler);
+        metrical.setSampler(new StubSampler(0));
+        metrical.event("discarded", Metrical.m("latency", 12, Unit.MILLISECONDS));
+        metrical.begin("discarded").metric("latency", 12L, Unit.MILLISECONDS).end();
+        assertEquals("", metricalHandler.get());
+
+        // Derived instances keep the sampler they were created with
+        Metrical derived = metrical.withContexts(Metrical.c("platform"));
+        metrical.setSampler(new StubSampler(0.5));
+        derived.event("kept");
+        assertEquals("", metricalHandler.get());
+        metrical.begin("kept").metric("latency", 12L, Unit.MILLISECONDS).end();
+        assertTrue(metricalHandler.get().contains(":kept:sample-rate:0.5000::\n"));
+        metricalHandler.reset();
+        metrical.event("kept");
+        assertTrue(metricalHandler.get().contains(":kept:sample-rate:0.5000::\n"));
+    }
+
+    private static String text(MetricalEvent event) throws Exception {
+        TextCaptureMetricalHandler reference = new TextCaptureMetricalHandler();
+        reference.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return MOCK_TIME;
+            }
+        });
+        reference.event(event);
+        return reference.get();
+    }
+
+    private static class StubSampler implements MetricalSampler {
+        private double rate;
+
+        StubSampler() {
+        }
+
+        StubSampler(double rate) {
+            this.rate = rate;
+        }
+
+        @Override
+        public double sample(String name) {
+            return rate;
+        }
+    }
+}
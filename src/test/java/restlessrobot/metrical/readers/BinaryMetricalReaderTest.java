@@ -0,0 +1,82 @@
+package restlessrobot.metrical.readers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.Unit;
+import restlessrobot.metrical.formatters.BinaryMetricalFormatter;
+
+import static org.junit.Assert.*;
+
+public class BinaryMetricalReaderTest {
+    @Test
+    public void testEmpty() throws Exception {
+        assertNull(reader(new byte[0]).next());
+    }
+
+    @Test
+    public void testTimestamps() throws Exception {
+        byte[] bytes = format(event(1_400_000_000_000L), event(1_399_999_999_000L), event(Long.MAX_VALUE));
+        BinaryMetricalReader reader = reader(bytes);
+        assertEquals(1_400_000_000_000L, reader.next().getTimestamp());
+        assertEquals(1_399_999_999_000L, reader.next().getTimestamp());
+        assertEquals(Long.MAX_VALUE, reader.next().getTimestamp());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testNotBinaryLog() throws Exception {
+        try {
+            reader("@v:restlessrobot.metrical:1\n".getBytes("UTF-8")).next();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Not a binary metrics log", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws Exception {
+        byte[] bytes = {(byte) 0x89, 'M', 'T', 'B', 2};
+        try {
+            reader(bytes).next();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Unsupported binary metrics log version: 2", e.getMessage());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws Exception {
+        byte[] bytes = format(event(1_400_000_000_000L));
+        BinaryMetricalReader reader = reader(Arrays.copyOf(bytes, bytes.length - 1));
+        reader.next();
+    }
+
+    private static MetricalEvent event(long timestamp) {
+        return MetricalEvent.builder()
+                .name("tick")
+                .timestamp(timestamp)
+                .metric("count", 1L, Unit.NONE)
+                .build();
+    }
+
+    private static byte[] format(MetricalEvent... events) {
+        BinaryMetricalFormatter formatter = new BinaryMetricalFormatter();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (MetricalEvent event : events) {
+            formatter.header(event, buffer);
+            formatter.body(event, buffer);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static BinaryMetricalReader reader(byte[] bytes) {
+        return new BinaryMetricalReader(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,205 @@
+package restlessrobot.metrical.readers;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalException;
+import restlessrobot.metrical.MetricalHandler;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.Unit;
+import restlessrobot.metrical.formatters.SimpleMetricalFormatter;
+import restlessrobot.metrical.handlers.FileMetricalHandler;
+
+import static org.junit.Assert.*;
+
+public class MetricalLogAggregatorTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+    private static final int FILES = 50;
+    private static final int EVENTS_PER_FILE = 100;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private final MetricalLogAggregator aggregator = new MetricalLogAggregator();
+
+    @After
+    public void tearDown() {
+        aggregator.close();
+    }
+
+    @Test
+    public void testAggregateDirectory() throws Exception {
+        for (int file = 0; file < FILES; file++) {
+            // Each file defines its own contexts, as FileMetricalHandler's files do
+            MetricalContext android = Metrical.c("platform", Metrical.d("os", "android"));
+            MetricalContext ios = Metrical.c("platform", Metrical.d("os", "ios"));
+            SimpleMetricalFormatter formatter = new SimpleMetricalFormatter();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < EVENTS_PER_FILE; i++) {
+                MetricalHistogram histogram = new MetricalHistogram("queue", Unit.NONE);
+                histogram.record(i);
+                sb.append(formatter.event(MetricalEvent.builder()
+                        .name("request")
+                        .timestamp(MOCK_TIME + file * EVENTS_PER_FILE + i)
+                        .metric("latency", (long) i, Unit.MILLISECONDS)
+                        .metric("size", 0.5, Unit.KILOBYTES)
+                        .histogram(histogram)
+                        .contexts(Arrays.asList(i % 4 == 0 ? ios : android))
+                        .build()));
+            }
+            write(String.format("metrics-%03d.log", file), sb.toString());
+        }
+
+        MetricalLogSummary summary = aggregator.aggregate(testFolder.getRoot());
+        Map<MetricalLogSummary.Key, MetricalLogSummary.EventSummary> events = summary.getEvents();
+        assertEquals(2, events.size());
+
+        MetricalLogSummary.EventSummary androidSummary = find(events, "android");
+        assertEquals(FILES * EVENTS_PER_FILE * 3 / 4, androidSummary.getCount());
+        assertEquals(MOCK_TIME + 1, androidSummary.getFirstTimestamp());
+
+        MetricalLogSummary.MetricSummary latency = androidSummary.getMetrics().get("latency");
+        assertEquals(FILES * EVENTS_PER_FILE * 3 / 4, latency.getCount());
+        long expectedSum = 0;
+        for (int i = 0; i < EVENTS_PER_FILE; i++) {
+            if (i % 4 != 0)
+                expectedSum += i;
+        }
+        assertEquals(FILES * expectedSum, latency.getSum(), 0);
+        assertEquals(1, latency.getMin(), 0);
+        assertEquals(99, latency.getMax(), 0);
+        assertEquals(Unit.MILLISECONDS, latency.getUnit());
+        assertEquals(latency.getCount(), latency.getHistogram().getCount());
+
+        MetricalLogSummary.MetricSummary size = find(events, "ios").getMetrics().get("size");
+        assertEquals(FILES * EVENTS_PER_FILE / 4 * 0.5, size.getSum(), 0);
+        assertNull(size.getHistogram());
+
+        // Histograms read from the logs are merged
+        MetricalLogSummary.MetricSummary queue = find(events, "ios").getMetrics().get("queue");
+        assertEquals(0, queue.getCount());
+        assertEquals(FILES * EVENTS_PER_FILE / 4, queue.getHistogram().getCount());
+        assertEquals(96, queue.getHistogram().getMax(), 0);
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        MetricalContext android = Metrical.c("platform", Metrical.d("os", "android"));
+        SimpleMetricalFormatter formatter = new SimpleMetricalFormatter();
+        write("metrics.log", formatter.event(MetricalEvent.builder()
+                .name("request")
+                .timestamp(MOCK_TIME)
+                .metric("latency", 5L, Unit.MILLISECONDS)
+                .contexts(Arrays.asList(android))
+                .build()));
+
+        final List<MetricalEvent> reported = new ArrayList<>();
+        aggregator.aggregate(testFolder.getRoot()).report(new MetricalHandler() {
+            @Override
+            public void event(MetricalEvent event) throws MetricalException {
+                reported.add(event);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void reset() throws IOException {
+            }
+        });
+
+        assertEquals(1, reported.size());
+        MetricalEvent event = reported.get(0);
+        assertEquals("request", event.getName());
+        assertEquals(MOCK_TIME, event.getTimestamp());
+        assertEquals("android", event.getContexts().get(0).getDimensions().get("os").getValue());
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < event.getMetricCount(); i++) {
+            names.add(event.getMetricName(i));
+        }
+        assertEquals(Arrays.asList("count", "latency.count", "latency.sum", "latency.min", "latency.max"), names);
+        assertEquals(1, event.getHistogramCount());
+    }
+
+    @Test
+    public void testInvalidFile() throws Exception {
+        write("metrics-1.log", "@v:restlessrobot.metrical:1\n");
+        File invalid = write("metrics-2.log", "not a log\n");
+        try {
+            aggregator.aggregate(testFolder.getRoot());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Failed to read " + invalid, e.getMessage());
+            assertEquals("Invalid line 1", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testTemporaryFilesSkipped() throws Exception {
+        write("metrics-1.log", "@v:restlessrobot.metrical:1\n@e:1400000000000:started:\n");
+        write("metrics-next-2.log.tmp", "\0\0\0\0");
+        assertEquals(1, aggregator.aggregate(testFolder.getRoot()).getEvents().size());
+    }
+
+    @Test
+    public void testAggregateUnfinishedMappedFile() throws Exception {
+        assertEquals(EVENTS_PER_FILE, aggregateUnfinished(FileMetricalHandler.OutputMode.MAPPED));
+    }
+
+    @Test
+    public void testAggregateUnfinishedGzipFile() throws Exception {
+        assertEquals(EVENTS_PER_FILE, aggregateUnfinished(FileMetricalHandler.OutputMode.GZIP));
+    }
+
+    // Aggregates the directory of a handler which is still writing its first file
+    private long aggregateUnfinished(FileMetricalHandler.OutputMode outputMode) throws Exception {
+        FileMetricalHandler handler = new FileMetricalHandler(new File(testFolder.getRoot(), "metrics-").getPath(), ".log");
+        handler.setOutputMode(outputMode);
+        try {
+            Metrical metrical = new Metrical(handler);
+            for (int i = 0; i < EVENTS_PER_FILE; i++) {
+                metrical.event("request", Metrical.m("latency", i, Unit.MILLISECONDS));
+            }
+            handler.tick();
+            handler.awaitDurable();
+
+            long count = 0;
+            for (MetricalLogSummary.EventSummary summary : aggregator.aggregate(testFolder.getRoot()).getEvents().values()) {
+                count += summary.getCount();
+            }
+            return count;
+        } finally {
+            handler.finish();
+        }
+    }
+
+    private MetricalLogSummary.EventSummary find(Map<MetricalLogSummary.Key, MetricalLogSummary.EventSummary> events,
+            String os) {
+        for (Map.Entry<MetricalLogSummary.Key, MetricalLogSummary.EventSummary> entry : events.entrySet()) {
+            if (os.equals(entry.getKey().getDimensions().get("platform").get("os")))
+                return entry.getValue();
+        }
+        throw new AssertionError("No summary for " + os);
+    }
+
+    private File write(String name, String text) throws IOException {
+        File file = new File(testFolder.getRoot(), name);
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,272 @@
+package restlessrobot.metrical.readers;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import restlessrobot.metrical.Metrical;
+import restlessrobot.metrical.MetricalContext;
+import restlessrobot.metrical.MetricalEvent;
+import restlessrobot.metrical.MetricalEventRecord;
+import restlessrobot.metrical.MetricalHistogram;
+import restlessrobot.metrical.Unit;
+import restlessrobot.metrical.formatters.SimpleMetricalFormatter;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class MetricalLogReaderTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private final MetricalLogReader reader = new MetricalLogReader();
+    private final List<MetricalEvent> events = new ArrayList<>();
+    private final MetricalLogListener collector = new MetricalLogListener() {
+        @Override
+        public void event(MetricalEventRecord record) {
+            events.add(record.toEvent());
+        }
+    };
+    private List<MetricalEvent> written;
+    private String log;
+
+    @Before
+    public void setUp() {
+        MetricalContext platform = Metrical.c("platform", Metrical.d("os", "andro:id"), Metrical.d("city", "Z\u00fcrich"));
+        MetricalContext user = Metrical.c("user", Metrical.d("name", "\u65e5\u672c \ud83d\ude00"));
+        MetricalHistogram histogram = new MetricalHistogram("latency", Unit.MILLISECONDS);
+        histogram.record(12.5);
+        histogram.record(1500);
+
+        written = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            written.add(MetricalEvent.builder()
+                    .name("request-completed")
+                    .timestamp(MOCK_TIME + i)
+                    .metric("latency", (long) i, Unit.MILLISECONDS)
+                    .metric("cpu", i / 7.0, Unit.PERCENT)
+                    .metric("gr\u00f6\u00dfe", -i * 1e20, Unit.KILOBYTES)
+                    .contexts(i % 2 == 0 ? Arrays.asList(platform, user) : Arrays.asList(user))
+                    .build());
+        }
+        written.add(MetricalEvent.builder().timestamp(MOCK_TIME).histogram(histogram).build());
+        written.add(MetricalEvent.builder().name("started").timestamp(MOCK_TIME).build());
+
+        // Two files' worth of events, so the contexts are defined twice
+        SimpleMetricalFormatter formatter = new SimpleMetricalFormatter();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < written.size(); i++) {
+            if (i == written.size() / 2)
+                formatter.reset();
+            sb.append(formatter.event(written.get(i)));
+        }
+        log = sb.toString();
+    }
+
+    @Test
+    public void testReadFile() throws Exception {
+        reader.read(writeLog(log), collector);
+        assertEvents(written, events);
+    }
+
+    @Test
+    public void testReadBuffer() throws Exception {
+        ByteBuffer bytes = ByteBuffer.wrap(log.getBytes(StandardCharsets.UTF_8));
+        reader.read(bytes, collector);
+        assertFalse(bytes.hasRemaining());
+        assertEvents(written, events);
+    }
+
+    @Test
+    public void testReadFileInWindows() throws Exception {
+        new MetricalLogReader(300).read(writeLog(log), collector);
+        assertEvents(written, events);
+    }
+
+    @Test
+    public void testReadGzipFile() throws Exception {
+        File file = testFolder.newFile();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write(log.getBytes(StandardCharsets.UTF_8));
+        }
+        reader.read(file, collector);
+        assertEvents(written, events);
+    }
+
+    @Test
+    public void testReadUnfinishedGzipFile() throws Exception {
+        // Sync-flushed but not closed, so there's no trailer, and the last line is incomplete
+        File file = testFolder.newFile();
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            GZIPOutputStream out = new GZIPOutputStream(stream, true);
+            out.write((log + "@e:1400000").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        reader.read(file, collector);
+        assertEvents(written, events);
+    }
+
+    @Test
+    public void testReadPaddedFile() throws Exception {
+        // An unclosed memory-mapped file is padded with zero bytes after its last event
+        new MetricalLogReader(300).read(writeLog(log + new String(new char[1000])), collector);
+        assertEvents(written, events);
+    }
+
+    @Test
+    public void testReadStream() throws Exception {
+        // Lines are split across reads, and the buffer has to grow for a line longer than it
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            longName.append('x');
+        }
+        written.add(MetricalEvent.builder().name(longName.toString()).timestamp(MOCK_TIME).build());
+        String text = log + new SimpleMetricalFormatter().event(written.get(written.size() - 1));
+
+        reader.read(new FilterInputStream(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        }, collector);
+        assertEvents(written, events);
+    }
+
+    @Test
+    public void testLineLongerThanWindow() throws Exception {
+        try {
+            new MetricalLogReader(10).read(writeLog(log), collector);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Line 1 is longer than 10 bytes", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        read("@v:restlessrobot.metrical:1\n"
+                + "@e:1400000000000::\n"
+                + "@m:1400000000000::a:1.235e+04:ms:\n"
+                + "@m:1400000000000::b:-0.0001000:%:\n"
+                + "@m:1400000000000::c:9.999e-05::\n"
+                + "@m:1400000000000::d:NaN:s:\n"
+                + "@m:1400000000000::e:-9223372036854775808:B:\n"
+                + "@m:1400000000000::f:4.900e-324:MB:\r\n");
+
+        MetricalEvent event = events.get(0);
+        assertNull(event.getName());
+        assertEquals(0, event.getContexts().size());
+        assertEquals(12350.0, event.getDoubleMetricValue(0), 0);
+        assertEquals(-0.0001, event.getDoubleMetricValue(1), 0);
+        assertEquals(9.999e-05, event.getDoubleMetricValue(2), 0);
+        assertTrue(Double.isNaN(event.getDoubleMetricValue(3)));
+        assertFalse(event.isFloatingPointMetric(4));
+        assertEquals(Long.MIN_VALUE, event.getLongMetricValue(4));
+        assertEquals(Double.MIN_VALUE, event.getDoubleMetricValue(5), 0);
+        assertEquals(Arrays.asList(Unit.MILLISECONDS, Unit.PERCENT, Unit.NONE, Unit.SECONDS, Unit.BYTES, Unit.MEGABYTES),
+                Arrays.asList(event.getMetricUnit(0), event.getMetricUnit(1), event.getMetricUnit(2),
+                        event.getMetricUnit(3), event.getMetricUnit(4), event.getMetricUnit(5)));
+    }
+
+    @Test
+    public void testUndefinedContext() throws Exception {
+        read("@e:1400000000000:tick:platform\n");
+        MetricalContext context = events.get(0).getContexts().get(0);
+        assertEquals("platform", context.getName());
+        assertTrue(context.getDimensions().isEmpty());
+    }
+
+    @Test
+    public void testInvalidLines() throws Exception {
+        assertInvalid("@v:restlessrobot.metrical:2\n", "Unsupported log version at line 1");
+        assertInvalid("@e:1400000000000:tick:\nsome text\n", "Invalid line 2");
+        assertInvalid("@m:1400000000000:tick:a:1:ms:\n", "Invalid line 1");
+        assertInvalid("@e:1400000000000:tick:\n@m:1400000000000:tick:a:1x:ms:\n", "Invalid line 2");
+        assertInvalid("@e:1400000000000:tick:\n@m:1400000000000:tick:a:1:furlongs:\n", "Unknown unit at line 2");
+        assertInvalid("@e:1400000000000:tick:\n@m:1400000000000:tick:a::ms:\n", "Invalid line 2");
+        assertInvalid("@c:platform\n@d:user:os:android\n", "Invalid line 2");
+        assertInvalid("@e:99999999999999999999:tick:\n", "Invalid line 1");
+    }
+
+    @Test
+    public void testNoAllocationPerEvent() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        SimpleMetricalFormatter formatter = new SimpleMetricalFormatter();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50_000; i++) {
+            sb.append(formatter.event(written.get(i % 20)));
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        final long[] total = new long[1];
+        MetricalLogListener summer = new MetricalLogListener() {
+            @Override
+            public void event(MetricalEventRecord record) {
+                total[0] += record.getLongMetricValue(0);
+            }
+        };
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up, so that the names have been interned and the loop has been compiled
+        for (int i = 0; i < 3; i++) {
+            reader.read(bytes.duplicate(), summer);
+        }
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        reader.read(bytes.duplicate(), summer);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Allocated " + allocated + " bytes for 50000 events", allocated < 16 * 1024);
+        assertTrue(total[0] > 0);
+    }
+
+    private void read(String text) throws IOException {
+        reader.read(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), collector);
+    }
+
+    private void assertInvalid(String text, String message) {
+        try {
+            read(text);
+            fail("Expected IOException for " + text);
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private File writeLog(String text) throws IOException {
+        File file = testFolder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // Compares events by their text representations, because contexts are compared by identity
+    private static void assertEvents(List<MetricalEvent> expected, List<MetricalEvent> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(new SimpleMetricalFormatter().event(expected.get(i)),
+                    new SimpleMetricalFormatter().event(actual.get(i)));
+        }
+    }
+}
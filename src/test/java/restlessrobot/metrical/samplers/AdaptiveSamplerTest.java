@@ -0,0 +1,84 @@
+package restlessrobot.metrical.samplers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import restlessrobot.metrical.TimeProvider;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveSamplerTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+    private static final int EVENTS_PER_SECOND = 100_000;
+
+    private final AdaptiveSampler sampler = new AdaptiveSampler(1000);
+    private long now = MOCK_TIME;
+
+    @Before
+    public void setUp() {
+        sampler.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void testAdapts() {
+        // Everything is kept in the first second
+        assertEquals(EVENTS_PER_SECOND, countKeptInSecond("event", EVENTS_PER_SECOND));
+
+        // Then the probability drops so that about 1000 per second are kept
+        for (int second = 0; second < 3; second++) {
+            assertEquals(1000, countKeptInSecond("event", EVENTS_PER_SECOND), 150);
+        }
+
+        // Rarer events are all kept again
+        for (int second = 0; second < 10; second++) {
+            countKeptInSecond("event", 100);
+        }
+        assertEquals(100, countKeptInSecond("event", 100));
+    }
+
+    @Test
+    public void testPerNameProbabilities() {
+        int frequentKept = 0;
+        int rareKept = 0;
+        for (int i = 0; i < 3 * EVENTS_PER_SECOND; i++) {
+            now = MOCK_TIME + i * 1000L / EVENTS_PER_SECOND;
+            if (sampler.sample("frequent") > 0 && i >= 2 * EVENTS_PER_SECOND)
+                frequentKept++;
+            if (i % 10_000 == 0 && sampler.sample("rare") > 0)
+                rareKept++;
+        }
+        assertEquals(30, rareKept);
+        assertEquals(1000, frequentKept, 150);
+    }
+
+    @Test
+    public void testSampleRate() {
+        countKeptInSecond("event", EVENTS_PER_SECOND);
+        countKeptInSecond("event", EVENTS_PER_SECOND);
+
+        // Kept events report the probability they were kept with
+        double rate;
+        do {
+            rate = sampler.sample("event");
+        } while (rate == 0);
+        assertEquals(0.01, rate, 0.002);
+    }
+
+    // Spreads events evenly over a second
+    private int countKeptInSecond(String name, int events) {
+        long start = now;
+        int kept = 0;
+        for (int i = 0; i < events; i++) {
+            now = start + i * 1000L / events;
+            if (sampler.sample(name) > 0)
+                kept++;
+        }
+        now = start + 1000;
+        return kept;
+    }
+}
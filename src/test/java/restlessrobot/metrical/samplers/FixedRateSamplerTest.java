@@ -0,0 +1,43 @@
+package restlessrobot.metrical.samplers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FixedRateSamplerTest {
+    private static final int EVENTS = 100_000;
+
+    @Test
+    public void testKeepAll() {
+        FixedRateSampler sampler = new FixedRateSampler(1);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, sampler.sample("event"), 0);
+        }
+    }
+
+    @Test
+    public void testRate() {
+        FixedRateSampler sampler = new FixedRateSampler(0.25);
+        int kept = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            double rate = sampler.sample("event");
+            if (rate > 0) {
+                assertEquals(0.25, rate, 0);
+                kept++;
+            }
+        }
+        assertEquals(EVENTS / 4, kept, EVENTS / 100);
+    }
+
+    @Test
+    public void testInvalidRate() {
+        for (double rate : new double[] {0, -1, 1.5, Double.NaN}) {
+            try {
+                new FixedRateSampler(rate);
+                fail("Expected IllegalArgumentException for " + rate);
+            } catch (IllegalArgumentException e) {
+                assertEquals("Invalid sample rate: " + rate, e.getMessage());
+            }
+        }
+    }
+}
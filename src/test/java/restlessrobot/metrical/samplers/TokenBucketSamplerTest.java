@@ -0,0 +1,100 @@
+package restlessrobot.metrical.samplers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import restlessrobot.metrical.TimeProvider;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketSamplerTest {
+    private static final long MOCK_TIME = 1_400_000_000_000L;
+
+    private final TokenBucketSampler sampler = new TokenBucketSampler(10, 5);
+    private long now = MOCK_TIME;
+
+    @Before
+    public void setUp() {
+        sampler.setTimeProvider(new TimeProvider() {
+            @Override
+            public long currentTimeMillis() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void testBurst() {
+        assertEquals(5, countKept("event", 20));
+
+        // One permit every 100ms
+        now += 99;
+        assertEquals(0, countKept("event", 20));
+        now += 1;
+        assertEquals(1, countKept("event", 20));
+        now += 300;
+        assertEquals(3, countKept("event", 20));
+    }
+
+    @Test
+    public void testPerNameBudgets() {
+        assertEquals(5, countKept("event1", 20));
+        assertEquals(5, countKept("event2", 20));
+        assertEquals(5, countKept(null, 20));
+    }
+
+    @Test
+    public void testSampleRate() {
+        // Everything is kept with a rate of 1 in the first second
+        assertEquals(1, sampler.sample("event"), 0);
+        countKept("event", 19);
+
+        // 5 out of 20 were kept in the first second
+        now += 1000;
+        assertEquals(0.25, sampler.sample("event"), 0);
+    }
+
+    @Test
+    public void testRateAboveBurstPerMillisecond() {
+        // More than one event per millisecond, with the default clock
+        TokenBucketSampler fastSampler = new TokenBucketSampler(10_000, 1);
+        long start = System.nanoTime();
+        long elapsedNanos;
+        int kept = 0;
+        do {
+            if (fastSampler.sample("event") > 0)
+                kept++;
+            elapsedNanos = System.nanoTime() - start;
+        } while (elapsedNanos < TimeUnit.MILLISECONDS.toNanos(200));
+
+        assertTrue("Kept " + kept, kept > 1000);
+        assertTrue("Kept " + kept, kept <= elapsedNanos / 100_000 + 1);
+    }
+
+    @Test
+    public void testInvalidArguments() {
+        try {
+            new TokenBucketSampler(0, 1);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid permits per second: 0.0", e.getMessage());
+        }
+        try {
+            new TokenBucketSampler(1, 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid burst: 0", e.getMessage());
+        }
+    }
+
+    private int countKept(String name, int events) {
+        int kept = 0;
+        for (int i = 0; i < events; i++) {
+            if (sampler.sample(name) > 0)
+                kept++;
+        }
+        return kept;
+    }
+}